@@ -1,21 +1,34 @@
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.io.Reader;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenFilter;
@@ -34,27 +47,44 @@ import org.apache.lucene.analysis.standard.StandardTokenizer;
 import org.apache.lucene.search.suggest.InputIterator;
 import org.apache.lucene.search.suggest.Lookup.LookupResult;
 import org.apache.lucene.search.suggest.Lookup;
-//import org.apache.lucene.search.suggest.analyzing.AnalyzingInfixSuggester;
+import org.apache.lucene.search.suggest.analyzing.AnalyzingInfixSuggester;
 import org.apache.lucene.search.suggest.analyzing.AnalyzingSuggester;
 import org.apache.lucene.search.suggest.analyzing.FuzzySuggester;
 import org.apache.lucene.search.suggest.analyzing.FreeTextSuggester;
 import org.apache.lucene.search.suggest.analyzing.SuggestStopFilter;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 
+import perf.HeapUsage;
+
 // TODO
 //   - char filter to remove ', -, /
 
-// javac -cp /l/trunk/lucene/build/core/classes/java:/l/trunk/lucene/build/suggest/classes/java:/l/trunk/lucene/build/analysis/common/classes/java:/l/trunk/lucene/build/analysis/icu/classes/java FreeDBSuggest.java
+// javac -cp /l/trunk/lucene/build/core/classes/java:/l/trunk/lucene/build/suggest/classes/java:/l/trunk/lucene/build/analysis/common/classes/java:/l/trunk/lucene/build/analysis/icu/classes/java:/l/util/build FreeDBSuggest.java
 
-// java -Xmx14g -cp .:/l/trunk/lucene/build/highlighter/lucene-highlighter-6.0.0-SNAPSHOT.jar:/l/trunk/lucene/build/misc/lucene-misc-6.0.0-SNAPSHOT.jar:/l/trunk/lucene/build/core/classes/java:/l/trunk/lucene/build/suggest/classes/java:/l/trunk/lucene/build/analysis/common/classes/java:/l/trunk/lucene/build/analysis/icu/classes/java:/l/util.trunk2/../trunk/lucene/analysis/icu/lib/icu4j-49.1.jar FreeDBSuggest -create
+// java -Xmx14g -cp .:/l/trunk/lucene/build/highlighter/lucene-highlighter-6.0.0-SNAPSHOT.jar:/l/trunk/lucene/build/misc/lucene-misc-6.0.0-SNAPSHOT.jar:/l/trunk/lucene/build/core/classes/java:/l/trunk/lucene/build/suggest/classes/java:/l/trunk/lucene/build/analysis/common/classes/java:/l/trunk/lucene/build/analysis/icu/classes/java:/l/util.trunk2/../trunk/lucene/analysis/icu/lib/icu4j-49.1.jar:/l/util/build FreeDBSuggest -create
 
 
 // NGram:
-// java -Xmx1g -cp .:/l/predictivesuggest2/lucene/build/highlighter/lucene-highlighter-6.0.0-SNAPSHOT.jar:/l/predictivesuggest2/lucene/build/misc/lucene-misc-6.0.0-SNAPSHOT.jar:/l/predictivesuggest2/lucene/build/core/classes/java:/l/predictivesuggest2/lucene/build/suggest/classes/java:/l/predictivesuggest2/lucene/build/analysis/common/classes/java:/l/predictivesuggest2/lucene/build/analysis/icu/classes/java:/l/util.trunk2/../predictivesuggest2/lucene/analysis/icu/lib/icu4j-49.1.jar FreeDBSuggest -create
+// java -Xmx1g -cp .:/l/predictivesuggest2/lucene/build/highlighter/lucene-highlighter-6.0.0-SNAPSHOT.jar:/l/predictivesuggest2/lucene/build/misc/lucene-misc-6.0.0-SNAPSHOT.jar:/l/predictivesuggest2/lucene/build/core/classes/java:/l/predictivesuggest2/lucene/build/suggest/classes/java:/l/predictivesuggest2/lucene/build/analysis/common/classes/java:/l/predictivesuggest2/lucene/build/analysis/icu/classes/java:/l/util.trunk2/../predictivesuggest2/lucene/analysis/icu/lib/icu4j-49.1.jar:/l/util/build FreeDBSuggest -create
+
+// Compare suggesters: build each from the same -source (one suggestion per line), report build time, peak heap, serialized size
+// and load time, then replay lookups (-keystrokes log, else prefixes of -queries lines) on -threads threads with per prefix
+// length latency percentiles:
+// java -Xmx14g -cp <as above>:/l/util/lib/HdrHistogram.jar FreeDBSuggest -create -suggesters analyzing,fuzzy,freetext,infix -threads 8 /l/tmp/freedb.suggest
+
+// Typeahead replay: every query is typed one char at a time, one lookup per keystroke; the prefix suggester is run both
+// uncached and with a per-session cache that resumes its FST traversal from the previous keystroke:
+// java -Xmx14g -cp <as above>:/l/util/lib/HdrHistogram.jar FreeDBSuggest -create -suggesters prefix,analyzing -replay -source /lucenedata/freedb/songs.txt /l/tmp/freedb.suggest
 
 public class FreeDBSuggest {
+
+  // Progress and build diagnostics; stderr in -server mode, whose stdout carries only the one load status line (which
+  // suggest.py reads) and then the lookup responses:
+  private static PrintStream log = System.out;
+
   public static void main(String[] args) throws Exception {
 
     // StandardAnalyzer plus ICUFoldingFilter
@@ -122,245 +152,431 @@ public class FreeDBSuggest {
         }
       };
 
-    //Lookup suggester = new AnalyzingSuggester(a, a, AnalyzingSuggester.PRESERVE_SEP, 256, -1);
-    //Lookup suggester = new AnalyzingInfixSuggester(Version.LUCENE_50, new File("infixsuggest"), a);
     //Lookup suggester = new InfixingSuggester(a, a);
-    //Lookup suggester = new FuzzySuggester(a, a, AnalyzingSuggester.PRESERVE_SEP, 256, -1, 1, true, 1, 3);
-    Lookup suggester = new FreeTextSuggester(a, qa, 3, (byte) 0x20);
 
+    List<String> suggesterNames = new ArrayList<String>();
     boolean doCreate = false;
     boolean doServer = false;
     String suggestFileName = "freedb.suggest";
-    for(String arg : args) {
+    // ~ 3.2M albums:
+    //String source = "/lucenedata/freedb/all.txt";
+    //String source = "/lucenedata/enwiki/enwiki-20120502-lines-1k.txt";
+    //String source = "/lucenedata/aolqueries/AOL-user-ct-collection/justQueriesSorted.txt";
+    //String source = "/lucenedata/bible/lines.txt";
+    String source = "/lucenedata/reddit-comments/justBody.txt";
+    String queriesFile = "/lucenedata/freedb/subset.txt";
+    String keystrokesFile = null;
+    boolean replay = false;
+    int threadCount = Runtime.getRuntime().availableProcessors();
+    int topN = 7;
+    int iters = 10;
+    for(int i=0;i<args.length;i++) {
+      String arg = args[i];
       if (arg.equals("-create")) {
         doCreate = true;
       } else if (arg.equals("-server")) {
         doServer = true;
+      } else if (arg.equals("-suggesters")) {
+        suggesterNames.addAll(Arrays.asList(args[++i].split(",")));
+      } else if (arg.equals("-source")) {
+        source = args[++i];
+      } else if (arg.equals("-queries")) {
+        queriesFile = args[++i];
+      } else if (arg.equals("-keystrokes")) {
+        keystrokesFile = args[++i];
+      } else if (arg.equals("-replay")) {
+        replay = true;
+      } else if (arg.equals("-threads")) {
+        threadCount = Integer.parseInt(args[++i]);
+      } else if (arg.equals("-topN")) {
+        topN = Integer.parseInt(args[++i]);
+      } else if (arg.equals("-iters")) {
+        iters = Integer.parseInt(args[++i]);
       } else {
         suggestFileName = arg;
       }
     }
+    if (suggesterNames.isEmpty()) {
+      suggesterNames.add("freetext");
+    }
+    if (doServer && suggesterNames.size() != 1) {
+      throw new IllegalArgumentException("-server needs exactly one suggester; got " + suggesterNames);
+    }
+    if (doServer) {
+      log = System.err;
+    }
 
-    if (doCreate) {
-      CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
-        .onMalformedInput(CodingErrorAction.IGNORE)
-        .onUnmappableCharacter(CodingErrorAction.IGNORE);
-      // ~ 3.2M albums:
-      //InputStream is = new FileInputStream("/lucenedata/freedb/all.txt");
-      //String source = "/lucenedata/enwiki/enwiki-20120502-lines-1k.txt";
-      //String source = "/lucenedata/aolqueries/AOL-user-ct-collection/justQueriesSorted.txt";
-      //String source = "/lucenedata/bible/lines.txt";
-      String source = "/lucenedata/reddit-comments/justBody.txt";
-      InputStream is = new FileInputStream(source);
-      final BufferedReader reader = new BufferedReader(new InputStreamReader(is, decoder), 1<<16);
-      //final Set<String> seen = new HashSet<String>();
-      final AtomicInteger songCount = new AtomicInteger();
-      final AtomicInteger albumCount = new AtomicInteger();
-      final Random random = new Random(17);
-
-      InputIterator terms = new InputIterator() {
-
-          String[] current;
-          String title;
-          int currentUpto;
-          int count;
-          long weight;
-
-          @Override
-          public boolean hasContexts() {
-            return false;
-          }
-
-          @Override
-          public Set<BytesRef> contexts() {
-            return null;
-          }
+    final Directory tempDir = new MMapDirectory(Paths.get(System.getProperty("java.io.tmpdir")));
 
-          @Override
-          public BytesRef next() throws IOException {
+    List<String[]> sessions = null;
+    if (doServer == false) {
+      sessions = readSessions(keystrokesFile, queriesFile, replay);
+    }
 
-            /*
+    for(String name : suggesterNames) {
+      // each suggester gets its own file (or, for infix, its own index directory), unless there is only one:
+      String fileName = suggesterNames.size() == 1 ? suggestFileName : suggestFileName + "." + name;
+      log.println("\nsuggester=" + name + " file=" + fileName);
 
-            if (current == null || currentUpto == current.length) {
-              String line = reader.readLine();
-              //System.out.println("got line: " + line);
-              if (line == null) {
-                System.out.println("Done reading!");
-                return null;
-              }
-              albumCount.incrementAndGet();
-              current = line.trim().split("\t");
-              if (current.length == 2) {
-                System.out.println("FAIL: " + line);
-              }
-              String diskID = current[0];
-              title = current[1];
-              currentUpto = 2;
-              count++;
-              if (count % 100000 == 0) {
-                System.out.println(count + "...");
-                //if (count == 1000000) {
-                //return null;
-                //}
-              }
-            }
-            songCount.incrementAndGet();
-            weight = 1+random.nextInt(1000000);
-            // OOME @ 12G heap:
-            //return new BytesRef(current[currentUpto++] + " [" + title + "]");
-            return new BytesRef(current[currentUpto++]);
-            */
-            
-            String line = reader.readLine();
-            count++;
-            if (count % 100000 == 0) {
-              System.out.println(count + "...");
-            }
-            //System.out.println("line=" + line);
-            //if (line == null || count++ == 100000) {
-            if (line == null) {
-              System.out.println("Done reading!");
-              return null;
-            }
-            return new BytesRef(line);
-          }
+      if (doCreate) {
+        Lookup suggester = newSuggester(name, a, qa, tempDir, fileName);
+        System.gc();
+        long heapBefore = HeapUsage.used();
+        HeapUsage.resetPeak();
+        long t0 = System.nanoTime();
+        BufferedReader reader = openUTF8(source, CodingErrorAction.IGNORE);
+        suggester.build(new LineInputIterator(reader));
+        long t1 = System.nanoTime();
+        long peakHeap = HeapUsage.peakUsed() - heapBefore;
+        reader.close();
+        store(suggester, fileName);
+        log.println(String.format(Locale.ROOT, "  build: %.1f sec; peak heap +%.1f MB; %.1f MB serialized",
+                                  (t1-t0)/1000000000., peakHeap/1024./1024., sizeOnDisk(name, fileName)/1024./1024.));
+        close(suggester);
+      }
 
-          @Override
-          public BytesRef payload() {
-            //return new BytesRef(title);
-            return null;
-          }
+      System.gc();
+      long heapBefore = HeapUsage.used();
+      long t0 = System.nanoTime();
+      Lookup suggester = load(name, a, qa, tempDir, fileName);
+      long t1 = System.nanoTime();
+      System.gc();
+      System.out.println(String.format(Locale.ROOT, "  load: %.1f msec; heap +%.1f MB; ramBytesUsed=%.1f MB; %d entries",
+                                       (t1-t0)/1000000., (HeapUsage.used()-heapBefore)/1024./1024., suggester.ramBytesUsed()/1024./1024., suggester.getCount()));
 
-          @Override
-          public boolean hasPayloads() {
-            return false;
+      if (doServer) {
+        serve(suggester);
+      } else {
+        long hash = runLookups(suggester, sessions, threadCount, topN, iters, false);
+        if (suggester instanceof PrefixFSTSuggester) {
+          System.out.println("\n  with per-session prefix cache:");
+          long cachedHash = runLookups(suggester, sessions, threadCount, topN, iters, true);
+          if (cachedHash != hash) {
+            throw new RuntimeException("prefix cache changed the results: hash=" + cachedHash + " vs " + hash);
           }
+        }
+      }
+      close(suggester);
+    }
+    tempDir.close();
+  }
 
-          @Override
-          public long weight() {
-            return weight;
-          }
-        };
+  private static Lookup newSuggester(String name, Analyzer a, Analyzer qa, Directory tempDir, String fileName) throws IOException {
+    switch (name) {
+    case "analyzing":
+      return new AnalyzingSuggester(tempDir, "suggest", a, qa);
+    case "fuzzy":
+      return new FuzzySuggester(tempDir, "suggest", a, qa);
+    case "freetext":
+      return new FreeTextSuggester(a, qa, 3, (byte) 0x20);
+    case "prefix":
+      return new PrefixFSTSuggester();
+    case "infix":
+      // persists itself, in its own index, when built:
+      return new AnalyzingInfixSuggester(new MMapDirectory(Paths.get(fileName)), a, qa, AnalyzingInfixSuggester.DEFAULT_MIN_PREFIX_CHARS, true);
+    default:
+      throw new IllegalArgumentException("unknown suggester \"" + name + "\"; must be analyzing, fuzzy, freetext, prefix or infix");
+    }
+  }
 
-      long t0 = System.nanoTime();
-      suggester.build(terms);
-      long t1 = System.nanoTime();
-      reader.close();
-      System.out.println("Done building: " + ((t1-t0)/1000000000.) + " sec; " + songCount + " songs; " + albumCount + " albums");
+  private static void store(Lookup suggester, String fileName) throws IOException {
+    if (suggester instanceof AnalyzingInfixSuggester) {
+      // already committed by build
+      return;
+    }
+    FileOutputStream os = new FileOutputStream(new File(fileName));
+    suggester.store(os);
+    os.close();
+  }
 
-      FileOutputStream os = new FileOutputStream(new File(suggestFileName));
-      suggester.store(os);
-      os.close();
-      //System.out.println("Saved to " + suggestFileName + ": " + ((AnalyzingSuggester) suggester).sizeInBytes() + " bytes");
-      System.out.println("Saved to " + suggestFileName);
-    } else {
-      long t0 = System.nanoTime();
-      FileInputStream is = new FileInputStream(new File(suggestFileName));
+  private static Lookup load(String name, Analyzer a, Analyzer qa, Directory tempDir, String fileName) throws IOException {
+    Lookup suggester = newSuggester(name, a, qa, tempDir, fileName);
+    if (suggester instanceof AnalyzingInfixSuggester == false) {
+      FileInputStream is = new FileInputStream(new File(fileName));
       suggester.load(is);
       is.close();
-      long t1 = System.nanoTime();
-      System.out.println(((t1-t0)/1000000.0) + " msec to load");
     }
+    return suggester;
+  }
 
-    /*
-    for(String arg : args) {
-      if (!arg.equals("-create")) {
-        long t0 = System.nanoTime();
-        List<LookupResult> results = suggester.lookup(arg, false, 10);
-        long t1 = System.nanoTime();
-        System.out.println("Suggestions for " + arg + " (" + ((t1-t0)/1000000.0) + " msec):");
-        for(LookupResult result : results) {
-          System.out.println("  " + result);
-        }
+  private static void close(Lookup suggester) throws IOException {
+    if (suggester instanceof Closeable) {
+      ((Closeable) suggester).close();
+    }
+  }
+
+  private static long sizeOnDisk(String name, String fileName) throws IOException {
+    Path path = Paths.get(fileName);
+    if (name.equals("infix") == false) {
+      return Files.size(path);
+    }
+    long size = 0;
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+      for(Path file : stream) {
+        size += Files.size(file);
       }
     }
-    */
+    return size;
+  }
 
-    if (doServer) {
-      byte[] buffer = new byte[100];
-      while(true) {
-        if (System.in.read(buffer, 0, 2) != 2) {
-          break;
-        }
-        int len = Integer.parseInt(new String(buffer, 0, 2, "UTF-8").trim());
-        if (System.in.read(buffer, 0, len) != len) {
-          break;
-        }
-        List<LookupResult> results = suggester.lookup(new String(buffer, 0, len, "UTF-8"), false, 10);
-        StringBuilder sb = new StringBuilder();
-        for(LookupResult result : results) {
-          sb.append(result.toString());
-          sb.append('\n');
+  private static BufferedReader openUTF8(String fileName, CodingErrorAction onError) throws IOException {
+    CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+      .onMalformedInput(onError)
+      .onUnmappableCharacter(onError);
+    return new BufferedReader(new InputStreamReader(new FileInputStream(fileName), decoder), 1<<16);
+  }
+
+  /** One suggestion per line, all with weight 0 */
+  private static class LineInputIterator implements InputIterator {
+    private final BufferedReader reader;
+    int count;
+
+    LineInputIterator(BufferedReader reader) {
+      this.reader = reader;
+    }
+
+    @Override
+    public boolean hasContexts() {
+      return false;
+    }
+
+    @Override
+    public Set<BytesRef> contexts() {
+      return null;
+    }
+
+    @Override
+    public BytesRef next() throws IOException {
+      String line = reader.readLine();
+      count++;
+      if (count % 100000 == 0) {
+        log.println(count + "...");
+      }
+      //System.out.println("line=" + line);
+      //if (line == null || count++ == 100000) {
+      if (line == null) {
+        log.println("Done reading!");
+        return null;
+      }
+      return new BytesRef(line);
+    }
+
+    @Override
+    public BytesRef payload() {
+      return null;
+    }
+
+    @Override
+    public boolean hasPayloads() {
+      return false;
+    }
+
+    @Override
+    public long weight() {
+      return 0;
+    }
+  }
+
+  /** Reads the lookups to replay, grouped into sessions whose lookups run in order on one thread.  A keystroke log has one
+   *  lookup per line, optionally preceded by a session ID and a tab; lines of one session need not be adjacent.
+   *  Without a keystroke log, each line of the queries file becomes one session looking up its 2, 4, .. 10 char prefixes,
+   *  or, with replay, every prefix as it is typed one char at a time. */
+  static List<String[]> readSessions(String keystrokesFile, String queriesFile, boolean replay) throws IOException {
+    Map<String,List<String>> sessions = new LinkedHashMap<String,List<String>>();
+    int lineCount = 0;
+    if (keystrokesFile != null) {
+      BufferedReader reader = openUTF8(keystrokesFile, CodingErrorAction.REPORT);
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int i = line.indexOf('\t');
+        String sessionID = i == -1 ? "line" + lineCount : line.substring(0, i);
+        List<String> session = sessions.get(sessionID);
+        if (session == null) {
+          session = new ArrayList<String>();
+          sessions.put(sessionID, session);
         }
-        byte[] response = sb.toString().getBytes("UTF-8");
-        byte[] lenBytes = String.format("%5d", response.length).getBytes("UTF-8");
-        System.out.write(lenBytes, 0, lenBytes.length);
-        System.out.write(response, 0, response.length);
+        session.add(line.substring(i+1));
+        lineCount++;
       }
+      reader.close();
     } else {
-
-      int TOP_N = 7;
-      int ITERS = 1;
-
-      for(int prefixLen=2;prefixLen<12;prefixLen+=2) {
-        CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
-          .onMalformedInput(CodingErrorAction.REPORT)
-          .onUnmappableCharacter(CodingErrorAction.REPORT);
-        InputStream is = new FileInputStream("/lucenedata/freedb/subset.txt");
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(is, decoder), 1<<16);
-        List<String> queries = new ArrayList<String>();
-        while (true) {
-          String line = reader.readLine();
-          if (line == null) {
-            break;
+      BufferedReader reader = openUTF8(queriesFile, CodingErrorAction.REPORT);
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        List<String> session = new ArrayList<String>();
+        if (replay) {
+          for(int prefixLen=1;prefixLen<=line.length();prefixLen++) {
+            session.add(line.substring(0, prefixLen));
           }
-          BytesRef b = new BytesRef(line.trim());
-          if (b.length >= prefixLen) {
-            b.length = prefixLen;
-            String s = null;
-            try {
-              s = b.utf8ToString();
-            } catch (ArrayIndexOutOfBoundsException aioobe) {
-            }
-            if (s != null) {
-              List<LookupResult> results = suggester.lookup(s, false, TOP_N);
-              if (results.size() != 0) {
-                queries.add(s);
-              }
-            }
+        } else {
+          for(int prefixLen=2;prefixLen<12 && prefixLen<=line.length();prefixLen+=2) {
+            session.add(line.substring(0, prefixLen));
           }
         }
-        reader.close();
+        if (session.isEmpty() == false) {
+          sessions.put("line" + lineCount, session);
+        }
+        lineCount++;
+      }
+      reader.close();
+    }
+    List<String[]> result = new ArrayList<String[]>();
+    int lookupCount = 0;
+    for(List<String> session : sessions.values()) {
+      result.add(session.toArray(new String[session.size()]));
+      lookupCount += session.size();
+    }
+    System.out.println(result.size() + " sessions; " + lookupCount + " lookups");
+    return result;
+  }
+
+  // latencies are recorded in micros; the last prefix length bucket also holds all longer prefixes:
+  private static final long MAX_MICROS = 3600L * 1000 * 1000;
+  private static final int MAX_PREFIX_LENGTH = 20;
+
+  /** Replays all sessions iters times on threadCount threads, printing per-prefix-length latency percentiles; the first
+   *  iteration is warmup and is not recorded.  With prefixCache, each session resumes from its previous lookup (the
+   *  suggester must be a PrefixFSTSuggester).  Returns the hash of the last iteration's results. */
+  static long runLookups(final Lookup suggester, final List<String[]> sessions, int threadCount, final int topN, int iters, final boolean prefixCache) throws InterruptedException {
+    final List<Histogram[]> threadHistograms = new ArrayList<Histogram[]>();
+    for(int t=0;t<threadCount;t++) {
+      Histogram[] histograms = new Histogram[MAX_PREFIX_LENGTH+1];
+      for(int i=0;i<histograms.length;i++) {
+        histograms[i] = new Histogram(MAX_MICROS, 3);
+      }
+      threadHistograms.add(histograms);
+    }
 
-        System.out.println("\nprefixLen=" + prefixLen);
-        double bestSec = 0;
-        for(int cycle=0;cycle<10;cycle++) {
-          long hash = 0;
-          long t0 = System.nanoTime();
-          for(int iter=0;iter<ITERS;iter++) {
-            //System.out.println("ITER=" + iter);
-            for(String q : queries) {
-              if (iter == 0 && cycle == 0) {
-                System.out.println("  q=" + q);
+    final AtomicBoolean failed = new AtomicBoolean();
+    final AtomicLong bytesFollowed = new AtomicLong();
+    final AtomicLong bytesResumed = new AtomicLong();
+    double bestQPS = 0;
+    long lastHash = 0;
+    for(int iter=0;iter<iters;iter++) {
+      final boolean record = iter > 0;
+      final AtomicInteger nextSession = new AtomicInteger();
+      final AtomicLong hash = new AtomicLong();
+      final AtomicLong lookupCount = new AtomicLong();
+      Thread[] threads = new Thread[threadCount];
+      long t0 = System.nanoTime();
+      for(int t=0;t<threadCount;t++) {
+        final Histogram[] histograms = threadHistograms.get(t);
+        threads[t] = new Thread() {
+            @Override
+            public void run() {
+              try {
+                _run();
+              } catch (Exception e) {
+                failed.set(true);
+                throw new RuntimeException(e);
               }
-              for(LookupResult r : suggester.lookup(q, false, TOP_N)) {
-                if (iter == 0 && cycle == 0) {
-                  System.out.println("    " + r.key + " " + r.value);
+            }
+
+            private void _run() throws IOException {
+              long myHash = 0;
+              long myCount = 0;
+              while (true) {
+                int sessionID = nextSession.getAndIncrement();
+                if (sessionID >= sessions.size()) {
+                  break;
+                }
+                PrefixFSTSuggester.Session session = prefixCache ? ((PrefixFSTSuggester) suggester).newSession() : null;
+                for(String prefix : sessions.get(sessionID)) {
+                  long tStart = System.nanoTime();
+                  List<LookupResult> results;
+                  if (session != null) {
+                    results = ((PrefixFSTSuggester) suggester).lookup(session, prefix, topN);
+                  } else {
+                    results = suggester.lookup(prefix, false, topN);
+                  }
+                  long micros = (System.nanoTime() - tStart) / 1000;
+                  if (record) {
+                    histograms[Math.min(prefix.length(), MAX_PREFIX_LENGTH)].recordValue(Math.min(micros, MAX_MICROS));
+                  }
+                  for(LookupResult result : results) {
+                    myHash += result.key.toString().hashCode();
+                  }
+                  myCount++;
+                }
+                if (session != null && record) {
+                  bytesFollowed.addAndGet(session.bytesFollowed);
+                  bytesResumed.addAndGet(session.bytesResumed);
                 }
-                hash += r.key.toString().hashCode();
               }
+              hash.addAndGet(myHash);
+              lookupCount.addAndGet(myCount);
             }
-          }
-          long t1 = System.nanoTime();
-          double sec = (t1-t0)/1000000000.;
-          System.out.println(String.format("  cycle %d: %.2f sec for %d lookups = %.1f lookups/sec; hash=%d",
-                                           cycle, sec, (ITERS*queries.size()), (ITERS*queries.size()/sec), hash));
-          if (cycle == 0 || sec < bestSec) {
-            bestSec = sec;
-          }
-        }
-        System.out.println(String.format("  best: %.1f lookups/sec", (ITERS*queries.size()/bestSec)));
+          };
+        threads[t].start();
+      }
+      for(Thread thread : threads) {
+        thread.join();
+      }
+      if (failed.get()) {
+        throw new RuntimeException("lookup thread failed");
+      }
+      double sec = (System.nanoTime()-t0)/1000000000.;
+      double qps = lookupCount.get()/sec;
+      System.out.println(String.format(Locale.ROOT, "  iter %d: %.2f sec for %d lookups = %.1f lookups/sec; hash=%d%s",
+                                       iter, sec, lookupCount.get(), qps, hash.get(), record ? "" : " (warmup)"));
+      if (record) {
+        bestQPS = Math.max(bestQPS, qps);
+      }
+      lastHash = hash.get();
+    }
+    System.out.println(String.format(Locale.ROOT, "  best: %.1f lookups/sec with %d threads", bestQPS, threadCount));
+    if (prefixCache) {
+      System.out.println(String.format(Locale.ROOT, "  prefix cache: %.1f%% of prefix bytes resumed instead of followed",
+                                       100.0*bytesResumed.get()/Math.max(1, bytesResumed.get() + bytesFollowed.get())));
+    }
+
+    Histogram[] merged = threadHistograms.get(0);
+    for(int t=1;t<threadCount;t++) {
+      for(int i=0;i<merged.length;i++) {
+        merged[i].add(threadHistograms.get(t)[i]);
+      }
+    }
+    System.out.println(String.format(Locale.ROOT, "  %8s %10s %8s %8s %8s %8s %8s", "prefix", "count", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+    for(int i=0;i<merged.length;i++) {
+      Histogram h = merged[i];
+      if (h.getHistogramData().getTotalCount() == 0) {
+        continue;
+      }
+      System.out.println(String.format(Locale.ROOT, "  %8s %10d %8.3f %8.3f %8.3f %8.3f %8.3f",
+                                       i == MAX_PREFIX_LENGTH ? ">=" + i : Integer.toString(i),
+                                       h.getHistogramData().getTotalCount(),
+                                       h.getHistogramData().getValueAtPercentile(50)/1000.,
+                                       h.getHistogramData().getValueAtPercentile(90)/1000.,
+                                       h.getHistogramData().getValueAtPercentile(99)/1000.,
+                                       h.getHistogramData().getValueAtPercentile(99.9)/1000.,
+                                       h.getHistogramData().getMaxValue()/1000.));
+    }
+    return lastHash;
+  }
+
+  /** Serves lookups over stdin/stdout for suggest.py: a 2 digit length then the UTF-8 prefix; replies with a 5 digit length
+   *  then one result per line */
+  private static void serve(Lookup suggester) throws IOException {
+    byte[] buffer = new byte[100];
+    while(true) {
+      if (System.in.read(buffer, 0, 2) != 2) {
+        break;
+      }
+      int len = Integer.parseInt(new String(buffer, 0, 2, "UTF-8").trim());
+      if (System.in.read(buffer, 0, len) != len) {
+        break;
+      }
+      List<LookupResult> results = suggester.lookup(new String(buffer, 0, len, "UTF-8"), false, 10);
+      StringBuilder sb = new StringBuilder();
+      for(LookupResult result : results) {
+        sb.append(result.toString());
+        sb.append('\n');
       }
+      byte[] response = sb.toString().getBytes("UTF-8");
+      byte[] lenBytes = String.format("%5d", response.length).getBytes("UTF-8");
+      System.out.write(lenBytes, 0, lenBytes.length);
+      System.out.write(response, 0, response.length);
     }
   }
 }
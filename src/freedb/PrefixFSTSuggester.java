@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.search.suggest.InputIterator;
+import org.apache.lucene.search.suggest.Lookup;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+
+/** Plain prefix completion over an FST of the suggestions' UTF-8 bytes, most frequent first.  Unlike the analyzing
+ *  suggesters it can resume from a previous lookup: a {@link Session} keeps the arc reached at each byte of the last
+ *  prefix, so the next keystroke only follows the bytes past the longest common prefix before collecting the top N. */
+public class PrefixFSTSuggester extends Lookup {
+
+  private static final PositiveIntOutputs OUTPUTS = PositiveIntOutputs.getSingleton();
+
+  private FST<Long> fst;
+  private long count;
+
+  /** Per-session traversal state; not thread safe, like a user's typing.  It binds to the FST on its first lookup, so
+   *  a session may be created before {@link #build} or {@link #load}. */
+  public final class Session {
+    private FST.BytesReader bytesReader;
+    private final BytesRefBuilder bytes = new BytesRefBuilder();
+    // arcs[i] and outputs[i] are the state after following the first i bytes; valid up to depth:
+    @SuppressWarnings({"rawtypes","unchecked"})
+    private FST.Arc<Long>[] arcs = new FST.Arc[16];
+    private long[] outputs = new long[16];
+    private int depth;
+
+    // how many bytes were followed again vs. resumed, across all lookups:
+    long bytesFollowed;
+    long bytesResumed;
+  }
+
+  public Session newSession() {
+    return new Session();
+  }
+
+  @Override
+  public long getCount() {
+    return count;
+  }
+
+  /** Builds the FST; a suggestion's weight is how many times it occurs plus the sum of its weights */
+  @Override
+  public void build(InputIterator iterator) throws IOException {
+    List<BytesRef> inputs = new ArrayList<BytesRef>();
+    List<Long> weights = new ArrayList<Long>();
+    BytesRef input;
+    while ((input = iterator.next()) != null) {
+      inputs.add(BytesRef.deepCopyOf(input));
+      weights.add(iterator.weight());
+    }
+    final Integer[] order = new Integer[inputs.size()];
+    for(int i=0;i<order.length;i++) {
+      order[i] = i;
+    }
+    final List<BytesRef> sortInputs = inputs;
+    ArrayUtil.timSort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return sortInputs.get(a).compareTo(sortInputs.get(b));
+        }
+      });
+
+    Builder<Long> builder = new Builder<Long>(FST.INPUT_TYPE.BYTE1, OUTPUTS);
+    IntsRefBuilder scratch = new IntsRefBuilder();
+    count = 0;
+    int i = 0;
+    while (i < order.length) {
+      BytesRef term = inputs.get(order[i]);
+      long weight = 0;
+      while (i < order.length && inputs.get(order[i]).equals(term)) {
+        weight += 1 + weights.get(order[i]);
+        i++;
+      }
+      // lowest output wins, so store the cost:
+      builder.add(Util.toIntsRef(term, scratch), Long.MAX_VALUE - weight);
+      count++;
+    }
+    fst = builder.finish();
+  }
+
+  @Override
+  public List<LookupResult> lookup(CharSequence key, Set<BytesRef> contexts, boolean onlyMorePopular, int num) throws IOException {
+    if (contexts != null) {
+      throw new IllegalArgumentException("this suggester doesn't support contexts");
+    }
+    if (fst == null) {
+      return Collections.emptyList();
+    }
+    return lookup(newSession(), key, num);
+  }
+
+  /** Looks up the top num completions of key, resuming from the session's previous prefix where they share bytes */
+  public List<LookupResult> lookup(Session session, CharSequence key, int num) throws IOException {
+    if (fst == null) {
+      return Collections.emptyList();
+    }
+    if (session.bytesReader == null) {
+      session.bytesReader = fst.getBytesReader();
+      session.arcs[0] = fst.getFirstArc(new FST.Arc<Long>());
+    }
+    BytesRef utf8 = new BytesRef(key);
+
+    // how much of the previous prefix we can keep:
+    int common = 0;
+    int max = Math.min(session.depth, utf8.length);
+    BytesRef prev = session.bytes.get();
+    while (common < max && prev.bytes[common] == utf8.bytes[utf8.offset+common]) {
+      common++;
+    }
+    session.bytesResumed += common;
+
+    session.bytes.setLength(common);
+    session.depth = common;
+    for(int i=common;i<utf8.length;i++) {
+      if (i+1 >= session.arcs.length) {
+        session.arcs = ArrayUtil.grow(session.arcs, i+2);
+        session.outputs = ArrayUtil.grow(session.outputs, i+2);
+      }
+      FST.Arc<Long> next = session.arcs[i+1];
+      if (next == null) {
+        next = session.arcs[i+1] = new FST.Arc<Long>();
+      }
+      session.bytesFollowed++;
+      if (fst.findTargetArc(utf8.bytes[utf8.offset+i] & 0xff, session.arcs[i], next, session.bytesReader) == null) {
+        // no suggestion has this prefix; keep what we followed so far
+        return Collections.emptyList();
+      }
+      session.outputs[i+1] = session.outputs[i] + next.output;
+      session.bytes.append(utf8.bytes[utf8.offset+i]);
+      session.depth = i+1;
+    }
+
+    Util.TopNSearcher<Long> searcher = new Util.TopNSearcher<Long>(fst, num, num, new Comparator<Long>() {
+        @Override
+        public int compare(Long a, Long b) {
+          return a.compareTo(b);
+        }
+      });
+    IntsRefBuilder prefix = new IntsRefBuilder();
+    Util.toIntsRef(session.bytes.get(), prefix);
+    searcher.addStartPaths(session.arcs[session.depth], session.outputs[session.depth], true, prefix);
+
+    List<LookupResult> results = new ArrayList<LookupResult>();
+    BytesRefBuilder scratch = new BytesRefBuilder();
+    for(Util.Result<Long> result : searcher.search()) {
+      IntsRef ints = result.input;
+      scratch.clear();
+      for(int i=0;i<ints.length;i++) {
+        scratch.append((byte) ints.ints[ints.offset+i]);
+      }
+      results.add(new LookupResult(scratch.get().utf8ToString(), Long.MAX_VALUE - result.output));
+    }
+    return results;
+  }
+
+  @Override
+  public boolean store(DataOutput output) throws IOException {
+    output.writeVLong(count);
+    if (fst == null) {
+      return false;
+    }
+    fst.save(output);
+    return true;
+  }
+
+  @Override
+  public boolean load(DataInput input) throws IOException {
+    count = input.readVLong();
+    fst = new FST<Long>(input, OUTPUTS);
+    return true;
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    return fst == null ? 0 : fst.ramBytesUsed();
+  }
+}
@@ -6,6 +6,8 @@ import getch
 
 LUCENE_HOME = '/l/trunk'
 #LUCENE_HOME = '/l/predictivesuggest2'
+# this luceneutil checkout, whose build dir has perf.HeapUsage:
+UTIL_HOME = os.path.abspath(os.path.join(os.path.dirname(__file__), '..', '..'))
 
 cp = []
 cp.append('.')
@@ -14,6 +16,7 @@ cp.append('%s/lucene/build/suggest/classes/java' % LUCENE_HOME)
 cp.append('%s/lucene/build/analysis/common/classes/java' % LUCENE_HOME)
 cp.append('%s/lucene/build/analysis/icu/classes/java' % LUCENE_HOME)
 cp.append('%s/lucene/analysis/icu/lib/icu4j-49.1.jar' % LUCENE_HOME)
+cp.append('%s/build' % UTIL_HOME)
 
 cmd = 'java -Xmx14g -cp %s FreeDBSuggest %s -server' % (':'.join(cp), sys.argv[1])
 
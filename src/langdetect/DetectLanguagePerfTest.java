@@ -0,0 +1,188 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Throughput, per-document latency and accuracy of the embedded detectors on a europarl test file; the detectors are
+// loaded by class name, so only the jars of the ones you run need to be on the classpath:
+
+// javac LanguageDetector.java DetectLanguagePerfTest.java
+// javac -cp dawid:. LangIDJavaDetectEmbedded.java
+// javac -cp /usr/local/src/langdetect-09-13-2011/lib/langdetect.jar:. LDDetectEmbedded.java
+// javac -cp /lucene/tika.clean/tika-app/target/tika-app-1.0-SNAPSHOT.jar:. TikaDetectLanguageEmbedded.java
+
+// java -cp .:dawid:/usr/local/src/langdetect-09-13-2011/lib/langdetect.jar:/usr/local/src/langdetect-09-13-2011/lib/jsonic-1.2.0.jar:/lucene/tika.clean/tika-app/target/tika-app-1.0-SNAPSHOT.jar DetectLanguagePerfTest europarl.21.test -detectors langid,ld,tika -threads 4
+
+public class DetectLanguagePerfTest {
+
+  private static String className(String detector) {
+    switch (detector) {
+    case "langid":
+      return "LangIDJavaDetectEmbedded";
+    case "ld":
+      return "LDDetectEmbedded";
+    case "tika":
+      return "TikaDetectLanguageEmbedded";
+    default:
+      // any other LanguageDetector implementation
+      return detector;
+    }
+  }
+
+  private static LanguageDetector newDetector(String detector) throws Exception {
+    return Class.forName(className(detector)).asSubclass(LanguageDetector.class).getConstructor().newInstance();
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      System.err.println("Usage: java DetectLanguagePerfTest europarl.test [-detectors langid,ld,tika] [-threads N] [-iters N]");
+      System.exit(1);
+    }
+
+    String testFile = args[0];
+    String[] detectors = new String[] {"langid", "ld", "tika"};
+    int threadCount = 1;
+    int iters = 10;
+    for(int i=1;i<args.length;i++) {
+      if (args[i].equals("-detectors")) {
+        detectors = args[++i].split(",");
+      } else if (args[i].equals("-threads")) {
+        threadCount = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-iters")) {
+        iters = Integer.parseInt(args[++i]);
+      } else {
+        throw new IllegalArgumentException("unrecognized argument \"" + args[i] + "\"");
+      }
+    }
+
+    // Pre-load the corpus so only detection is timed:
+    List<String> labelsList = new ArrayList<String>();
+    List<String> textsList = new ArrayList<String>();
+    BufferedReader is = new BufferedReader(new InputStreamReader(new FileInputStream(testFile), StandardCharsets.UTF_8));
+    long totBytes = 0;
+    while (true) {
+      String line = is.readLine();
+      if (line == null) {
+        break;
+      }
+      line = line.trim();
+      int idx = line.indexOf('\t');
+      if (idx <= 0) continue;
+      String text = line.substring(idx + 1);
+      labelsList.add(line.substring(0, idx));
+      textsList.add(text);
+      totBytes += text.getBytes(StandardCharsets.UTF_8).length;
+    }
+    is.close();
+
+    final String[] labels = labelsList.toArray(new String[labelsList.size()]);
+    final String[] texts = textsList.toArray(new String[textsList.size()]);
+    System.out.println(String.format(Locale.ROOT, "%d docs; %.2f MB UTF-8; %d threads", texts.length, totBytes/1024./1024., threadCount));
+
+    for(String detector : detectors) {
+      System.out.println();
+      System.out.println("detector " + detector + ":");
+
+      final LanguageDetector[] perThread = new LanguageDetector[threadCount];
+      for(int i=0;i<threadCount;i++) {
+        perThread[i] = newDetector(detector);
+      }
+
+      long bestNS = -1;
+      long[] bestLatencies = null;
+      String[] bestAnswers = null;
+      for(int iter=0;iter<iters;iter++) {
+        final long[] latencies = new long[texts.length];
+        final String[] answers = new String[texts.length];
+        final AtomicInteger nextDoc = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] threads = new Thread[threadCount];
+        for(int i=0;i<threadCount;i++) {
+          final LanguageDetector d = perThread[i];
+          threads[i] = new Thread() {
+              @Override
+              public void run() {
+                try {
+                  _run();
+                } catch (Exception e) {
+                  failed.set(true);
+                  throw new RuntimeException(e);
+                }
+              }
+
+              private void _run() throws Exception {
+                while (failed.get() == false) {
+                  int doc = nextDoc.getAndIncrement();
+                  if (doc >= texts.length) {
+                    break;
+                  }
+                  long t0 = System.nanoTime();
+                  answers[doc] = d.detect(texts[doc]);
+                  latencies[doc] = System.nanoTime() - t0;
+                }
+              }
+            };
+        }
+
+        long t0 = System.nanoTime();
+        for(Thread thread : threads) {
+          thread.start();
+        }
+        for(Thread thread : threads) {
+          thread.join();
+        }
+        long t = System.nanoTime() - t0;
+        if (failed.get()) {
+          throw new RuntimeException("detector " + detector + " failed");
+        }
+
+        System.out.println(String.format(Locale.ROOT, "  iter %d: %.1f msec", iter, t/1000000.));
+        if (bestNS == -1 || t < bestNS) {
+          bestNS = t;
+          bestLatencies = latencies;
+          bestAnswers = answers;
+          System.out.println("    **");
+        }
+      }
+
+      // Accuracy against the europarl labels, overall and per language:
+      Map<String,int[]> byLabel = new TreeMap<String,int[]>();
+      int correct = 0;
+      for(int i=0;i<labels.length;i++) {
+        int[] counts = byLabel.get(labels[i]);
+        if (counts == null) {
+          counts = new int[2];
+          byLabel.put(labels[i], counts);
+        }
+        counts[1]++;
+        if (labels[i].equals(bestAnswers[i])) {
+          counts[0]++;
+          correct++;
+        }
+      }
+
+      Arrays.sort(bestLatencies);
+      System.out.println(String.format(Locale.ROOT, "  best %.1f msec; %.3f MB/sec; latency usec p50=%.1f p90=%.1f p99=%.1f max=%.1f",
+                                       bestNS/1000000.,
+                                       totBytes/1024./1024./(bestNS/1000000000.),
+                                       percentile(bestLatencies, 50)/1000.,
+                                       percentile(bestLatencies, 90)/1000.,
+                                       percentile(bestLatencies, 99)/1000.,
+                                       bestLatencies[bestLatencies.length-1]/1000.));
+      System.out.println(String.format(Locale.ROOT, "  accuracy %.2f%% (= %d/%d)", 100.*correct/labels.length, correct, labels.length));
+      StringBuilder b = new StringBuilder();
+      for(Map.Entry<String,int[]> ent : byLabel.entrySet()) {
+        int[] counts = ent.getValue();
+        b.append(String.format(Locale.ROOT, " %s=%.1f%%", ent.getKey(), 100.*counts[0]/counts[1]));
+      }
+      System.out.println("   " + b);
+    }
+  }
+
+  /** sorted must be sorted and non-empty */
+  private static long percentile(long[] sorted, double pct) {
+    int idx = (int) Math.ceil(pct/100. * sorted.length) - 1;
+    return sorted[Math.max(0, idx)];
+  }
+}
@@ -1,17 +1,41 @@
 import java.io.*;
 import com.cybozu.labs.langdetect.DetectorFactory;
 import com.cybozu.labs.langdetect.Detector;
+import com.cybozu.labs.langdetect.LangDetectException;
 import com.cybozu.labs.langdetect.Language;
 
-// javac -cp /home/mike/src/langdetect/lib/langdetect.jar /lucene/util/langdetect/LDDetectEmbedded.java 
+// javac -cp /home/mike/src/langdetect/lib/langdetect.jar /lucene/util/langdetect/LanguageDetector.java /lucene/util/langdetect/LDDetectEmbedded.java 
 
-public class LDDetectEmbedded {
+public class LDDetectEmbedded implements LanguageDetector {
     private static final double DEFAULT_ALPHA = 0.5;
 
+    private static final String PROFILES_DIR = "/usr/local/src/langdetect-09-13-2011/profiles";
+
+    private static boolean profilesLoaded;
+
+    // DetectorFactory is a global singleton, and loading the same profile twice throws:
+    private static synchronized void loadProfiles() throws LangDetectException {
+        if (profilesLoaded == false) {
+            DetectorFactory.loadProfile(PROFILES_DIR);
+            DetectorFactory.setSeed(0);
+            profilesLoaded = true;
+        }
+    }
+
+    public LDDetectEmbedded() throws LangDetectException {
+        loadProfiles();
+    }
+
+    @Override
+    public String detect(String text) throws LangDetectException {
+        final Detector d = DetectorFactory.create(DEFAULT_ALPHA);
+        d.append(text);
+        return d.detect();
+    }
+
     public static void main(String[] args) throws Exception {
 
-        DetectorFactory.loadProfile("/usr/local/src/langdetect-09-13-2011/profiles");
-        DetectorFactory.setSeed(0);
+        final LDDetectEmbedded detector = new LDDetectEmbedded();
 
         final InputStream is = new BufferedInputStream(System.in);
         final OutputStream os = new BufferedOutputStream(System.out);
@@ -25,9 +49,7 @@ public class LDDetectEmbedded {
             if (is.read(bytes) != byteCount) {
                 break;
             }
-            final Detector d = DetectorFactory.create(DEFAULT_ALPHA);
-            d.append(new String(bytes, "UTF-8"));
-            String answer = d.detect();
+            String answer = detector.detect(new String(bytes, "UTF-8"));
             final byte[] result = answer.getBytes("UTF-8");
             os.write(String.format("%7d", result.length).getBytes("UTF-8"));
             os.write(result);
@@ -36,4 +58,4 @@ public class LDDetectEmbedded {
         is.close();
         os.close();
     }
-}
\ No newline at end of file
+}
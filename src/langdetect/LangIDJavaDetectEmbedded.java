@@ -1,13 +1,20 @@
 import java.io.*;
 import com.carrotsearch.labs.langid.LangIdV3;
 
-// javac -cp dawid LangIDJavaDetectEmbedded.java
+// javac -cp dawid LanguageDetector.java LangIDJavaDetectEmbedded.java
 
-public class LangIDJavaDetectEmbedded {
+public class LangIDJavaDetectEmbedded implements LanguageDetector {
+
+  private final LangIdV3 langid = new LangIdV3();
+
+  @Override
+  public String detect(String text) {
+    return langid.classify(text, true).getLangCode();
+  }
 
   public static void main(String[] args) throws Exception {
 
-    LangIdV3 langid = new LangIdV3();
+    LangIDJavaDetectEmbedded detector = new LangIDJavaDetectEmbedded();
 
 
     final InputStream is = new BufferedInputStream(System.in);
@@ -22,7 +29,7 @@ public class LangIDJavaDetectEmbedded {
       if (is.read(bytes) != byteCount) {
         break;
       }
-      byte[] result = langid.classify(new String(bytes, "UTF-8"), true).getLangCode().getBytes("UTF-8");
+      byte[] result = detector.detect(new String(bytes, "UTF-8")).getBytes("UTF-8");
       os.write(String.format("%7d", result.length).getBytes("UTF-8"));
       os.write(result);
       os.flush();
@@ -30,4 +37,4 @@ public class LangIDJavaDetectEmbedded {
     is.close();
     os.close();
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,8 @@
+// The detector SPI shared by the *DetectEmbedded programs (which evalEuroparl.py talks to over pipes) and
+// DetectLanguagePerfTest.  Implementations need a public no-arg constructor and need not be thread safe: the perf
+// test creates one instance per thread.
+
+public interface LanguageDetector {
+  /** Returns the detected language code, e.g. "en" */
+  String detect(String text) throws Exception;
+}
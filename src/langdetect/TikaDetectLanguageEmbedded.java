@@ -1,11 +1,17 @@
 import java.io.*;
 import org.apache.tika.language.LanguageIdentifier;
 
-// javac -cp /lucene/tika.clean/tika-app/target/tika-app-1.0-SNAPSHOT.jar /lucene/util/langdetect/TikaDetectLanguageEmbedded.java 
+// javac -cp /lucene/tika.clean/tika-app/target/tika-app-1.0-SNAPSHOT.jar /lucene/util/langdetect/LanguageDetector.java /lucene/util/langdetect/TikaDetectLanguageEmbedded.java 
 
 // evalEuroparl.py runs this and sends tests / gets results
 // over pipes:
-public class TikaDetectLanguageEmbedded {
+public class TikaDetectLanguageEmbedded implements LanguageDetector {
+
+    @Override
+    public String detect(String text) {
+        return new LanguageIdentifier(text).getLanguage();
+    }
+
     public static void main(String[] args) throws Exception {
 
         final InputStream is = new BufferedInputStream(System.in);
@@ -29,4 +35,4 @@ public class TikaDetectLanguageEmbedded {
         is.close();
         os.close();
     }
-}
\ No newline at end of file
+}
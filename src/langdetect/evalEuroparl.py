@@ -29,7 +29,7 @@ class DetectTika:
   TIKA_COMMAND = 'java -cp %s:%s/tika-app/target/tika-app-1.4-SNAPSHOT.jar TikaDetectLanguageEmbedded' % (ROOT, TIKA_ROOT)
   name = 'Tika'
   def __init__(self):
-    if os.system('javac -cp %s/tika-app/target/tika-app-1.4-SNAPSHOT.jar %s/TikaDetectLanguageEmbedded.java' % (TIKA_ROOT, ROOT)):
+    if os.system('javac -cp %s/tika-app/target/tika-app-1.4-SNAPSHOT.jar %s/LanguageDetector.java %s/TikaDetectLanguageEmbedded.java' % (TIKA_ROOT, ROOT, ROOT)):
       raise RuntimeError('compile failed')
 
     # talk to Tika via pipes
@@ -73,7 +73,7 @@ class DetectPyLangIDJava:
   COMMAND = 'java -cp dawid:%s LangIDJavaDetectEmbedded' % ROOT
 
   def __init__(self):
-    if os.system('javac -cp %s/dawid %s/LangIDJavaDetectEmbedded.java' % (ROOT, ROOT)):
+    if os.system('javac -cp %s/dawid %s/LanguageDetector.java %s/LangIDJavaDetectEmbedded.java' % (ROOT, ROOT, ROOT)):
       raise RuntimeError('compile failed')
 
     self.ld = subprocess.Popen(self.COMMAND,
@@ -94,7 +94,7 @@ class DetectLD:
   
   LD_COMMAND = 'java -cp %s/lib/langdetect.jar:%s/lib/jsonic-1.2.0.jar:%s LDDetectEmbedded' % (LD_ROOT, LD_ROOT, ROOT)
   def __init__(self):
-    if os.system('javac -cp %s/lib/langdetect.jar %s/LDDetectEmbedded.java' % (LD_ROOT, ROOT)):
+    if os.system('javac -cp %s/lib/langdetect.jar %s/LanguageDetector.java %s/LDDetectEmbedded.java' % (LD_ROOT, ROOT, ROOT)):
       raise RuntimeError('compile failed')
 
     self.ld = subprocess.Popen(self.LD_COMMAND,
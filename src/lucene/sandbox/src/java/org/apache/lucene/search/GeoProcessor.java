@@ -6,6 +6,7 @@ import org.apache.lucene.util.*;
 import org.json.JSONObject;
 
 import java.util.List;
+import java.util.Locale;
 import java.util.Scanner;
 
 /**
@@ -18,13 +19,52 @@ public class GeoProcessor extends GeoCalculator {
         return (s.equalsIgnoreCase("Y"));
     }
 
+    private static boolean doTimeDecomposition(Scanner in) {
+        System.out.print(" Time serial vs parallel range decomposition (y/n)? ");
+        String s = in.next();
+        return (s.equalsIgnoreCase("Y"));
+    }
+
+    /**
+     * Repeatedly computes the ranges for a bbox (poly == null) or polygon serially and with fork/join, checks both produce
+     * the same ranges, and reports the best time of each
+     */
+    private static void timeDecomposition(Scanner in, GeoRect rect, double[][] poly) {
+        System.out.print(" Enter fork depth: ");
+        int forkDepth = in.nextInt();
+        System.out.print(" Enter iterations: ");
+        int iters = in.nextInt();
+
+        long bestSerialNS = Long.MAX_VALUE;
+        long bestParallelNS = Long.MAX_VALUE;
+        for (int iter=0; iter<iters; ++iter) {
+            long t0 = System.nanoTime();
+            GeoRangeComputer[] serial = (poly == null) ? GeoRangeComputer.bbox(rect.minLon, rect.minLat, rect.maxLon, rect.maxLat, 0)
+                    : GeoRangeComputer.polygon(poly[LON_INDEX], poly[LAT_INDEX], 0);
+            long t1 = System.nanoTime();
+            GeoRangeComputer[] parallel = (poly == null) ? GeoRangeComputer.bbox(rect.minLon, rect.minLat, rect.maxLon, rect.maxLat, forkDepth)
+                    : GeoRangeComputer.polygon(poly[LON_INDEX], poly[LAT_INDEX], forkDepth);
+            long t2 = System.nanoTime();
+            for (int i=0; i<serial.length; ++i) {
+                if (serial[i].ranges.sameRanges(parallel[i].ranges) == false) {
+                    throw new IllegalStateException("parallel decomposition differs from serial for computer " + i);
+                }
+            }
+            bestSerialNS = Math.min(bestSerialNS, t1-t0);
+            bestParallelNS = Math.min(bestParallelNS, t2-t1);
+        }
+        System.out.println(String.format(Locale.ROOT, "\n Serial  : %.2f msec (best of %d)", bestSerialNS/1000000.0, iters));
+        System.out.println(String.format(Locale.ROOT, " Parallel: %.2f msec (best of %d, fork depth %d); %.2fx speedup, identical ranges",
+                bestParallelNS/1000000.0, iters, forkDepth, (double) bestSerialNS/bestParallelNS));
+    }
+
     private static void postTermsEnumToMap(GeoRangeComputer[] grc) {
         for (GeoRangeComputer c : grc) {
 //            mapPoster.post(mapPoster.toJSON(c.mbr()));
-            for (GeoRangeComputer.Range rng : c.rangeBounds) {
+            for (int i=0; i<c.ranges.size(); ++i) {
                 try {
                     Thread.sleep(300);
-                    mapPoster.post(new JSONObject(rng.toGeoJson()));
+                    mapPoster.post(new JSONObject(c.ranges.toGeoJson(i)));
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -172,6 +212,9 @@ public class GeoProcessor extends GeoCalculator {
     public static void bboxTermsEnum(Scanner in) {
         boolean postToMap = doPostToMap(in);
         GeoRect rect = getRect(in);
+        if (doTimeDecomposition(in)) {
+            timeDecomposition(in, rect, null);
+        }
         GeoRangeComputer[] grc = GeoRangeComputer.bbox(rect.minLon, rect.minLat, rect.maxLon, rect.maxLat);
         System.out.print( "Check target point (y/n): ");
         if (in.next().equalsIgnoreCase("y")) {
@@ -199,6 +242,9 @@ public class GeoProcessor extends GeoCalculator {
 //            lons[i] = pts[i][LON_INDEX];
 //            lats[i] = pts[i][LAT_INDEX];
 //        }
+        if (doTimeDecomposition(in)) {
+            timeDecomposition(in, null, poly);
+        }
         GeoRangeComputer[] grc = GeoRangeComputer.polygon(poly[LON_INDEX], poly[LAT_INDEX]);
         System.out.print( "Check target point (y/n): ");
         if (in.next().equalsIgnoreCase("y")) {
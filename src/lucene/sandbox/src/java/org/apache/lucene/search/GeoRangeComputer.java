@@ -17,16 +17,10 @@ package org.apache.lucene.search;
  * limitations under the License.
  */
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.PrintStream;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.ListIterator;
-import java.util.TreeMap;
-import java.util.TreeSet;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.lucene.spatial.geopoint.document.GeoPointField;
 import org.apache.lucene.spatial.util.GeoEncodingUtils;
@@ -59,31 +53,56 @@ public class GeoRangeComputer {
 
   private static short DETAIL_LEVEL;
   private static short MAX_SHIFT;
-  private boolean containSearch = false;
 
-  public RangeSet rset = new RangeSet();
-  public TreeSet hset = new TreeSet<Long>();
+  // computeRange calls shallower than this fork their two halves into the common ForkJoinPool; 0 is serial:
+  private final int forkDepth;
 
-  private final TreeMap<Integer, AtomicInteger> indexMap = new TreeMap<>();
-  public final LinkedList<Range> rangeBounds = new LinkedList<>();
+  public final RangeSet ranges = new RangeSet();
 
 //  private RangeFile rangeFile;
 
   private static double LOG2 = StrictMath.log(2);
 
+  /** Set to false to stop printing a line for every computed range set, e.g. when benchmarking */
+  static boolean VERBOSE = true;
+
   GeoRangeComputer(final GeoRangeQueryEnum queryEnum) {
+    this(queryEnum, 0);
+  }
+
+  /**
+   * Decomposes the shape in parallel: the top {@code forkDepth} levels of the recursion are split into fork/join tasks,
+   * each filling its own {@link RangeSet}, and the halves are concatenated in curve order so the ranges are identical
+   * to the serial ones.
+   */
+  GeoRangeComputer(final GeoRangeQueryEnum queryEnum, final int forkDepth) {
+    this.forkDepth = forkDepth;
     try {
       this.termEnum = queryEnum;
       this.MAX_SHIFT = queryEnum.computeMaxShift();
       this.DETAIL_LEVEL = (short)(((GeoEncodingUtils.BITS<<1)-this.MAX_SHIFT)/2);
 
 //      this.rangeFile = new RangeFile("./ranges.geojson", minLon, minLat, maxLon, maxLat);
-      computeRange(0L, (short) (((GeoEncodingUtils.BITS) << 1) - 1));
-      assert rangeBounds.isEmpty() == false;
+      final long t0 = System.nanoTime();
+      final short rootShift = (short) (((GeoEncodingUtils.BITS) << 1) - 1);
+      if (forkDepth > 0) {
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+          @Override
+          protected void compute() {
+            computeRange(0L, rootShift, ranges, 0);
+          }
+        });
+      } else {
+        computeRange(0L, rootShift, ranges, 0);
+      }
+      assert ranges.size() > 0;
 //      rangeFile.finish();
-      Collections.sort(rangeBounds);
 //      rangeFile.close();
-      System.out.println("Created " + rangeBounds.size() + " ranges");
+      if (VERBOSE) {
+        System.out.println(String.format(Locale.ROOT, "Created %d ranges in %.2f msec, using %.1f KB%s", ranges.size(),
+            (System.nanoTime()-t0)/1000000.0, ranges.ramBytesUsed()/1024.0,
+            forkDepth > 0 ? " (fork depth " + forkDepth + ", " + ForkJoinPool.commonPool().getParallelism() + " threads)" : ""));
+      }
     } catch(Exception e) {
       e.printStackTrace();
     }
@@ -92,7 +111,7 @@ public class GeoRangeComputer {
   /**
    * entry point for recursively computing ranges
    */
-  private final void computeRange(long term, final short shift) {
+  private final void computeRange(final long term, final short shift, final RangeSet out, final int depth) {
     final long split = term | (0x1L<<shift);
     assert shift < 64;
     final long upperMax;
@@ -103,8 +122,27 @@ public class GeoRangeComputer {
     }
     final long lowerMax = split-1;
 
-    relateAndRecurse(term, lowerMax, shift);
-    relateAndRecurse(split, upperMax, shift);
+    if (depth < forkDepth) {
+      final RangeSet lowerRanges = new RangeSet();
+      final RangeSet upperRanges = new RangeSet();
+      ForkJoinTask.invokeAll(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          relateAndRecurse(term, lowerMax, shift, lowerRanges, depth+1);
+        }
+      }, new RecursiveAction() {
+        @Override
+        protected void compute() {
+          relateAndRecurse(split, upperMax, shift, upperRanges, depth+1);
+        }
+      });
+      // lower half precedes upper half along the curve, so this keeps out sorted:
+      out.addAll(lowerRanges);
+      out.addAll(upperRanges);
+    } else {
+      relateAndRecurse(term, lowerMax, shift, out, depth+1);
+      relateAndRecurse(split, upperMax, shift, out, depth+1);
+    }
   }
 
   /**
@@ -116,7 +154,7 @@ public class GeoRangeComputer {
    * @param res spatial res represented as a bit shift (MSB is lower res)
    * @return
    */
-  private void relateAndRecurse(final long start, final long end, final short res) {
+  private void relateAndRecurse(final long start, final long end, final short res, final RangeSet out, final int depth) {
     final double minLon = GeoEncodingUtils.mortonUnhashLon(start);
     final double minLat = GeoEncodingUtils.mortonUnhashLat(start);
     final double maxLon = GeoEncodingUtils.mortonUnhashLon(end);
@@ -131,28 +169,20 @@ public class GeoRangeComputer {
       final short nextRes = (short)(res-1);
       if (nextRes % GeoPointField.PRECISION_STEP == 0) {
         long nextStart = start|(1L<<nextRes);
-        addRange(start, nextStart-1, level, nextRes, !within);
-        addRange(nextStart, nextStart|((1L<<nextRes)-1), level, nextRes, !within);
+        addRange(out, start, nextStart-1, level, nextRes, !within);
+        addRange(out, nextStart, nextStart|((1L<<nextRes)-1), level, nextRes, !within);
       } else {
-        addRange(start, end, level, res, !within);
+        addRange(out, start, end, level, res, !within);
       }
     } else if (level < DETAIL_LEVEL &&  termEnum.cellIntersectsMBR(minLon, minLat, maxLon, maxLat)) {
-        computeRange(start, (short) (res - 1));
+        computeRange(start, (short) (res - 1), out, depth);
     }
   }
 
-  private void addRange(long start, long end, short level, short res, boolean boundary) {
-    Range r;
-    rset.add(r = new Range(start, end, res, level, boundary));
-    hset.add(start);
-    rangeBounds.add(r);
+  private void addRange(RangeSet out, long start, long end, short level, short res, boolean boundary) {
+    out.add(start, end, res, level, boundary);
     // add the range to the range file
-//    rangeFile.append(r);
-    if (indexMap.containsKey((int)level)) {
-      (indexMap.get((int) level)).incrementAndGet();
-    } else {
-      indexMap.put((int)(level), new AtomicInteger(1));
-    }
+//    rangeFile.append(start, end);
   }
 
   public static GeoRangeComputer[] pointRadius(final double centerLon, final double centerLat, final double radius) {
@@ -168,16 +198,28 @@ public class GeoRangeComputer {
   }
 
   public static GeoRangeComputer[] bbox(final double minLon, final double minLat, final double maxLon, final double maxLat) {
+    return bbox(minLon, minLat, maxLon, maxLat, 0);
+  }
+
+  public static GeoRangeComputer[] bbox(final double minLon, final double minLat, final double maxLon, final double maxLat, final int forkDepth) {
     if (maxLon < minLon) {
       return new GeoRangeComputer[] {
-          new GeoRangeComputer(new GeoRangeQueryEnum.BBox(-180.0, minLat, maxLon, maxLat)),
-          new GeoRangeComputer(new GeoRangeQueryEnum.BBox(minLon, minLat, 180.0, maxLat))
+          new GeoRangeComputer(new GeoRangeQueryEnum.BBox(-180.0, minLat, maxLon, maxLat), forkDepth),
+          new GeoRangeComputer(new GeoRangeQueryEnum.BBox(minLon, minLat, 180.0, maxLat), forkDepth)
       };
     }
-    return new GeoRangeComputer[] { new GeoRangeComputer(new GeoRangeQueryEnum.BBox(minLon, minLat, maxLon, maxLat)) };
+    return new GeoRangeComputer[] { new GeoRangeComputer(new GeoRangeQueryEnum.BBox(minLon, minLat, maxLon, maxLat), forkDepth) };
   }
 
   public static GeoRangeComputer[] polygon(final double[] x, final double[] y) {
+    return polygon(x, y, 0);
+  }
+
+  public static GeoRangeComputer[] polygon(final double[] x, final double[] y, final int forkDepth) {
+    return polygon(x, y, forkDepth, true);
+  }
+
+  public static GeoRangeComputer[] polygon(final double[] x, final double[] y, final int forkDepth, final boolean cachedRelations) {
     GeoRect bbox = GeoUtils.polyToBBox(x, y);
 //    if (bbox.maxLon < bbox.minLon) {
 //      return new GeoRangeComputer[] {
@@ -185,7 +227,7 @@ public class GeoRangeComputer {
 //          new GeoRangeComputer(new GeoRangeQueryEnum.Polygon(new GeoRect(bbox.minLon, GeoUtils.MAX_LON_INCL, bbox.minLat, bbox.maxLat), x, y))
 //      };
 
-    return new GeoRangeComputer[] { new GeoRangeComputer(new GeoRangeQueryEnum.Polygon(bbox, x, y)) };
+    return new GeoRangeComputer[] { new GeoRangeComputer(new GeoRangeQueryEnum.Polygon(bbox, x, y, cachedRelations), forkDepth) };
   }
 
   public GeoRect mbr() {
@@ -201,7 +243,7 @@ public class GeoRangeComputer {
       BytesRef br = brb.get();
       System.out.println(br);
       final long reducedHash = LegacyNumericUtils.prefixCodedToLong(br);
-      if (hset.contains(reducedHash)) {
+      if (ranges.indexOfStart(reducedHash) >= 0) {
         contained = true;
         System.out.println("CONTAINED at resolution " + i + " with hash " + reducedHash);
       }
@@ -229,157 +271,188 @@ public class GeoRangeComputer {
     }
   }
 
-  public Range contains(BytesRef b) {
-    containSearch = true;
-    return rset.contains(b);
+  /** Returns the index of the range holding the whole cell of this prefix coded term, or -1 */
+  public int contains(BytesRef b) {
+    return ranges.contains(b);
   }
 
   public void printRangesForLevel(short level) {
-    if (!indexMap.containsKey((int)(level)))
-      return;
-
-    final int count = indexMap.get((int)(level)).get();
-    int offset = 0;
-    for (Integer i : indexMap.descendingKeySet()) {
-      if (i == (int)(level)) break;
-      offset += indexMap.get(i).get();
+    int count = ranges.levelCount(level);
+    for (int i=0; i<ranges.size() && count > 0; ++i) {
+      if (ranges.level(i) == level) {
+        System.out.println(ranges.toString(i));
+        --count;
+      }
     }
-
-    final ListIterator<Range> iter = rangeBounds.listIterator(offset);
-    for (int i=0; i<count; ++i)
-      System.out.println(iter.next());
   }
 
-  private final class RangeSet extends TreeSet<Range> {
-    public RangeSet() {
-      super();
+  /**
+   * Ranges along the space-filling curve, held in parallel primitive arrays sorted by start.  computeRange visits cells in
+   * curve order and ranges never overlap, so appending keeps the arrays sorted and lookups are binary searches.  Ranges are
+   * referred to by their index.
+   */
+  public static final class RangeSet {
+    private long[] starts = new long[16];
+    private long[] ends = new long[16];
+    // res << 6 | level << 1 | boundary:
+    private short[] infos = new short[16];
+    private final int[] levelCounts = new int[64];
+    private int size;
+
+    void add(final long start, final long end, final short res, final short level, final boolean boundary) {
+      assert size == 0 || start > ends[size-1] : "ranges must be added in order";
+      if (size == starts.length) {
+        starts = ArrayUtil.grow(starts, size+1);
+        ends = ArrayUtil.grow(ends, size+1);
+        infos = ArrayUtil.grow(infos, size+1);
+      }
+      starts[size] = start;
+      ends[size] = end;
+      infos[size] = (short) (res << 6 | level << 1 | (boundary ? 1 : 0));
+      levelCounts[level]++;
+      size++;
     }
 
-    public Range ceiling(BytesRef term) {
-      if (term == null)
-        return first();
-      final Range termRange = new Range(term);
-      return super.ceiling(termRange);
+    /** Appends all of other's ranges, which must all come after this set's ranges along the curve */
+    void addAll(final RangeSet other) {
+      if (other.size == 0) {
+        return;
+      }
+      assert size == 0 || other.starts[0] > ends[size-1] : "ranges must be added in order";
+      final int newSize = size + other.size;
+      if (newSize > starts.length) {
+        starts = ArrayUtil.grow(starts, newSize);
+        ends = ArrayUtil.grow(ends, newSize);
+        infos = ArrayUtil.grow(infos, newSize);
+      }
+      System.arraycopy(other.starts, 0, starts, size, other.size);
+      System.arraycopy(other.ends, 0, ends, size, other.size);
+      System.arraycopy(other.infos, 0, infos, size, other.size);
+      for (int i=0; i<levelCounts.length; ++i) {
+        levelCounts[i] += other.levelCounts[i];
+      }
+      size = newSize;
     }
 
-    public Range floor(BytesRef term) {
-      if (term == null)
-        return first();
-      final Range termRange = new Range(term);
-      return super.floor(termRange);
+    /** Returns true if other holds exactly the same ranges in the same order */
+    public boolean sameRanges(final RangeSet other) {
+      if (size != other.size) {
+        return false;
+      }
+      for (int i=0; i<size; ++i) {
+        if (starts[i] != other.starts[i] || ends[i] != other.ends[i] || infos[i] != other.infos[i]) {
+          return false;
+        }
+      }
+      return true;
     }
 
-    public Range contains(BytesRef b) {
-      Range r = new Range(b);
-      return (super.contains(r)) ? super.floor(r) : null;
+    public int size() {
+      return size;
     }
-  }
 
-  /**
-   * Range Class
-   */
-  public final class Range implements Comparable<Range> {
-    final BytesRef lower;
-    final long lowerVal;
-    final long upperVal;
-    BytesRef cell;
-    BytesRef upper;
-    final short level;
-    final boolean boundary;
-
-
-    Range(final BytesRef term) {
-      this.lower = term;
-      this.boundary = false;
-      this.lowerVal = LegacyNumericUtils.prefixCodedToLong(term);
-      this.upperVal = -1;
-      this.level = -1;
+    public long start(int index) {
+      return starts[index];
     }
 
-    Range(final long lower, final long upper, final short res, final short level, final boolean boundary) {
-      this.level = level;
-      this.boundary = boundary;
-
-      BytesRefBuilder brb = new BytesRefBuilder();
-      LegacyNumericUtils.longToPrefixCoded((this.lowerVal = lower), boundary ? 0 : res, brb);
-      this.lower = brb.get();
-      LegacyNumericUtils.longToPrefixCoded((this.upperVal = upper), boundary ? 0 : res, (brb = new BytesRefBuilder()));
-      this.upper = brb.get();
-      LegacyNumericUtils.longToPrefixCoded(this.lowerVal, res, (brb = new BytesRefBuilder()));
-      this.cell = brb.get();
-
+    public long end(int index) {
+      return ends[index];
     }
 
-    public void merge(final Range r) {
-      this.upper = r.upper;
+    public short res(int index) {
+      return (short) (infos[index] >>> 6);
     }
 
-    @Override
-    public int compareTo(Range other) {
-      if (containSearch && other.level == DETAIL_LEVEL && other.boundary == true) {
-        if (this.lowerVal > other.upperVal)
-          return 1;
-        else if (this.lowerVal < other.lowerVal)
-          return -1;
-        else return 0;
-      }
-      return this.lower.compareTo(other.lower);
+    public short level(int index) {
+      return (short) ((infos[index] >>> 1) & 0x1f);
     }
 
-    @Override
-    public boolean equals(Object other) {
-      return this.lower.compareTo(((Range)(other)).lower) == 0;
-    }
-    @Override
-    public final int hashCode() {
-      return this.lower.hashCode();
+    public boolean boundary(int index) {
+      return (infos[index] & 1) != 0;
     }
 
-    @Override
-    public String toString() {
-      return GeoEncodingUtils.geoTermToString(lowerVal) + " " + lowerVal + " " +  cell.toString() + (((this.boundary) ? " cellCrosses " : " within ") + level);
+    public int levelCount(short level) {
+      return levelCounts[level];
     }
 
-    public String toGeoJson() {
+    public long ramBytesUsed() {
+      return RamUsageEstimator.sizeOf(starts) + RamUsageEstimator.sizeOf(ends) + RamUsageEstimator.sizeOf(infos)
+          + RamUsageEstimator.sizeOf(levelCounts);
+    }
 
-      final double llLat = GeoEncodingUtils.mortonUnhashLat(lowerVal);
-      final double llLon = GeoEncodingUtils.mortonUnhashLon(lowerVal);
-      final double urLat = GeoEncodingUtils.mortonUnhashLat(upperVal);
-      final double urLon = GeoEncodingUtils.mortonUnhashLon(upperVal);
-      final String coords = "\"coordinates\":[[[" + llLon + "," + llLat + "],[" + urLon + "," + llLat + "],[" + urLon + "," + urLat
-          + "],[" + llLon + "," + urLat + "],[" + llLon + "," + llLat + "]]]";
+    /** Returns the index of the last range starting at or before value, or -1 */
+    private int floorIndex(final long value) {
+      int lo = 0;
+      int hi = size-1;
+      while (lo <= hi) {
+        final int mid = (lo+hi) >>> 1;
+        if (starts[mid] <= value) {
+          lo = mid+1;
+        } else {
+          hi = mid-1;
+        }
+      }
+      return hi;
+    }
 
-      return "{\"type\":\"Feature\", \"properties\":{\"color\": " + ((boundary) ? "\"#ff0000\"" : "\"#0000ff\"")
-          + ", \"fillColor\":" + ((boundary) ? "\"#ff0000\"" : "\"#0000ff\"") + "}, \"geometry\":{\"type\":\"Polygon\","
-          + coords + "}},";
+    /** Returns the index of the range starting exactly at value, or -1 */
+    public int indexOfStart(final long value) {
+      final int index = floorIndex(value);
+      return index >= 0 && starts[index] == value ? index : -1;
     }
-  }
 
-  /**
-   * RangeFile class
-   */
-  public final class RangeFile extends FileOutputStream {
-    private PrintStream stream;
+    /** Returns the index of the first range starting at or after the term's value, or -1; a null term means the first range */
+    public int ceiling(BytesRef term) {
+      if (term == null) {
+        return size == 0 ? -1 : 0;
+      }
+      final long value = LegacyNumericUtils.prefixCodedToLong(term);
+      int index = floorIndex(value);
+      if (index < 0 || starts[index] != value) {
+        index++;
+      }
+      return index < size ? index : -1;
+    }
 
-    public RangeFile(String filename, final double minLon, final double minLat, final double maxLon, final double maxLat) throws FileNotFoundException {
-      super(filename, true);
-      stream = new PrintStream(this);
-      stream.println("{\"type\":\"FeatureCollection\",\"features\":[");
+    /** Returns the index of the last range starting at or before the term's value, or -1; a null term means the first range */
+    public int floor(BytesRef term) {
+      if (term == null) {
+        return size == 0 ? -1 : 0;
+      }
+      return floorIndex(LegacyNumericUtils.prefixCodedToLong(term));
+    }
 
-      String coords = "\"coordinates\":[[[" + minLon + "," + minLat + "],[" + maxLon + "," + minLat + "],[" + maxLon
-          + "," + maxLat + "],[" + minLon + "," + maxLat + "],[" + minLon + "," + minLat + "]]]";
+    /** Returns the index of the range holding the term's whole cell, or -1 */
+    public int contains(BytesRef term) {
+      final long value = LegacyNumericUtils.prefixCodedToLong(term);
+      final int shift = LegacyNumericUtils.getPrefixCodedLongShift(term);
+      final long cellEnd = shift == 0 ? value : value | ((1L<<shift)-1);
+      final int index = floorIndex(value);
+      return index >= 0 && cellEnd <= ends[index] ? index : -1;
+    }
 
-      stream.println("{\"type\":\"Feature\", \"properties\":{}, \"geometry\":{\"type\":\"Polygon\","
-          + coords + "}},");
+    public BytesRef cell(int index) {
+      BytesRefBuilder brb = new BytesRefBuilder();
+      LegacyNumericUtils.longToPrefixCoded(starts[index], res(index), brb);
+      return brb.get();
     }
 
-    public void append(Range range) {
-      stream.println(range.toGeoJson());
+    public String toString(int index) {
+      return GeoEncodingUtils.geoTermToString(starts[index]) + " " + starts[index] + " " + cell(index).toString()
+          + (((boundary(index)) ? " cellCrosses " : " within ") + level(index));
     }
 
-    public void finish() throws IOException {
-      stream.println("]}");
-      this.close();
+    public String toGeoJson(int index) {
+      final double llLat = GeoEncodingUtils.mortonUnhashLat(starts[index]);
+      final double llLon = GeoEncodingUtils.mortonUnhashLon(starts[index]);
+      final double urLat = GeoEncodingUtils.mortonUnhashLat(ends[index]);
+      final double urLon = GeoEncodingUtils.mortonUnhashLon(ends[index]);
+      final String coords = "\"coordinates\":[[[" + llLon + "," + llLat + "],[" + urLon + "," + llLat + "],[" + urLon + "," + urLat
+          + "],[" + llLon + "," + urLat + "],[" + llLon + "," + llLat + "]]]";
+      final String color = boundary(index) ? "\"#ff0000\"" : "\"#0000ff\"";
+
+      return "{\"type\":\"Feature\", \"properties\":{\"color\": " + color + ", \"fillColor\":" + color
+          + "}, \"geometry\":{\"type\":\"Polygon\"," + coords + "}},";
     }
   }
 
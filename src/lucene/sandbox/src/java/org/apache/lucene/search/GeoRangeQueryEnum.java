@@ -72,11 +72,17 @@ abstract class GeoRangeQueryEnum {
     public static class Polygon extends GeoRangeQueryEnum {
         @Override
         protected boolean cellCrosses(final double minLon, final double minLat, final double maxLon, final double maxLat) {
+            if (relation != null) {
+                return relation.rectCrosses(minLon, minLat, maxLon, maxLat);
+            }
             return GeoRelationUtils.rectCrossesPolyApprox(minLon, minLat, maxLon, maxLat, x, y, this.mbr.minLon, this.mbr.minLat, this.mbr.maxLon, this.mbr.maxLat);
         }
 
         @Override
         protected boolean cellWithin(final double minLon, final double minLat, final double maxLon, final double maxLat) {
+            if (relation != null) {
+                return relation.rectWithin(minLon, minLat, maxLon, maxLat);
+            }
             return GeoRelationUtils.rectWithinPolyApprox(minLon, minLat, maxLon, maxLat, x, y, this.mbr.minLon, this.mbr.minLat, this.mbr.maxLon, this.mbr.maxLat);
         }
 
@@ -90,13 +96,23 @@ abstract class GeoRangeQueryEnum {
         }
 
         Polygon(GeoRect bbox, double[] x, double[] y) {
+            this(bbox, x, y, true);
+        }
+
+        /**
+         * @param cachedRelations if true, cell relations use a {@link PolygonRelation} grid built once here; otherwise every
+         *                        cell scans all vertices with {@link GeoRelationUtils}
+         */
+        Polygon(GeoRect bbox, double[] x, double[] y, boolean cachedRelations) {
             super(bbox.minLon, bbox.minLat, bbox.maxLon, bbox.maxLat);
             this.x = x;
             this.y = y;
+            this.relation = cachedRelations ? new PolygonRelation(x, y) : null;
         }
 
         public double[] x;
         public double[] y;
+        final PolygonRelation relation;
     }
 
     protected GeoRangeQueryEnum(double minLon, double minLat, double maxLon, double maxLat) {
@@ -0,0 +1,239 @@
+package org.apache.lucene.search;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Relates rectangles to a closed polygon ({@code x[0] == x[n-1]}, {@code y[0] == y[n-1]}) using a uniform grid over the
+ * polygon's bounding box that is built once per query.  Each grid cell lists the edges whose bounding box overlaps it, and
+ * cells without edges are rasterized as fully inside or outside, so a cell relation only looks at the few edges near the
+ * rectangle instead of every vertex.
+ */
+final class PolygonRelation {
+  private static final byte OUTSIDE = 0;
+  private static final byte INSIDE = 1;
+  private static final byte EDGES = 2;
+
+  private final double[] x;
+  private final double[] y;
+  private final double minX, minY, maxX, maxY;
+  private final int gridSize;
+  private final double cellWidth, cellHeight;
+
+  // edges of grid cell c are cellEdges[cellStarts[c]] .. cellEdges[cellStarts[c+1]-1], cells in row-major order:
+  private final int[] cellStarts;
+  private final int[] cellEdges;
+  private final byte[] cellStates;
+
+  PolygonRelation(final double[] x, final double[] y) {
+    if (x.length != y.length || x.length < 4) {
+      throw new IllegalArgumentException("polygon must have at least 4 points (closed); got " + x.length);
+    }
+    this.x = x;
+    this.y = y;
+    double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+    double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+    for (int i=0; i<x.length; ++i) {
+      minX = Math.min(minX, x[i]);
+      minY = Math.min(minY, y[i]);
+      maxX = Math.max(maxX, x[i]);
+      maxY = Math.max(maxY, y[i]);
+    }
+    this.minX = minX;
+    this.minY = minY;
+    this.maxX = maxX;
+    this.maxY = maxY;
+
+    final int edgeCount = x.length-1;
+    // ~1 edge per cell for a smooth boundary, but bound memory for huge polygons:
+    gridSize = Math.max(4, Math.min(512, (int) Math.ceil(Math.sqrt(edgeCount)) * 2));
+    cellWidth = Math.max(maxX - minX, Double.MIN_NORMAL) / gridSize;
+    cellHeight = Math.max(maxY - minY, Double.MIN_NORMAL) / gridSize;
+
+    // first pass counts edges per cell, second pass fills them in:
+    final int cellCount = gridSize * gridSize;
+    cellStarts = new int[cellCount+1];
+    for (int e=0; e<edgeCount; ++e) {
+      final int col0 = col(Math.min(x[e], x[e+1])), col1 = col(Math.max(x[e], x[e+1]));
+      final int row0 = row(Math.min(y[e], y[e+1])), row1 = row(Math.max(y[e], y[e+1]));
+      for (int row=row0; row<=row1; ++row) {
+        for (int col=col0; col<=col1; ++col) {
+          cellStarts[row*gridSize + col + 1]++;
+        }
+      }
+    }
+    for (int c=0; c<cellCount; ++c) {
+      cellStarts[c+1] += cellStarts[c];
+    }
+    cellEdges = new int[cellStarts[cellCount]];
+    final int[] upto = Arrays.copyOf(cellStarts, cellCount);
+    for (int e=0; e<edgeCount; ++e) {
+      final int col0 = col(Math.min(x[e], x[e+1])), col1 = col(Math.max(x[e], x[e+1]));
+      final int row0 = row(Math.min(y[e], y[e+1])), row1 = row(Math.max(y[e], y[e+1]));
+      for (int row=row0; row<=row1; ++row) {
+        for (int col=col0; col<=col1; ++col) {
+          cellEdges[upto[row*gridSize + col]++] = e;
+        }
+      }
+    }
+
+    // rasterize cells without edges by casting a ray along each row's center line:
+    cellStates = new byte[cellCount];
+    double[] crossings = new double[16];
+    for (int row=0; row<gridSize; ++row) {
+      final double cy = minY + (row + 0.5) * cellHeight;
+      int crossingCount = 0;
+      for (int e=0; e<edgeCount; ++e) {
+        if ((y[e] > cy) != (y[e+1] > cy)) {
+          if (crossingCount == crossings.length) {
+            crossings = Arrays.copyOf(crossings, crossingCount*2);
+          }
+          crossings[crossingCount++] = x[e] + (cy - y[e]) * (x[e+1] - x[e]) / (y[e+1] - y[e]);
+        }
+      }
+      Arrays.sort(crossings, 0, crossingCount);
+      int crossed = 0;
+      for (int col=0; col<gridSize; ++col) {
+        final int cell = row*gridSize + col;
+        if (cellStarts[cell+1] > cellStarts[cell]) {
+          cellStates[cell] = EDGES;
+        } else {
+          final double cx = minX + (col + 0.5) * cellWidth;
+          while (crossed < crossingCount && crossings[crossed] < cx) {
+            ++crossed;
+          }
+          cellStates[cell] = (crossed & 1) == 1 ? INSIDE : OUTSIDE;
+        }
+      }
+    }
+  }
+
+  private int col(double v) {
+    return Math.max(0, Math.min(gridSize-1, (int) ((v - minX) / cellWidth)));
+  }
+
+  private int row(double v) {
+    return Math.max(0, Math.min(gridSize-1, (int) ((v - minY) / cellHeight)));
+  }
+
+  /** Returns true if any polygon edge touches the rectangle */
+  boolean rectCrosses(final double rMinX, final double rMinY, final double rMaxX, final double rMaxY) {
+    if (rMaxX < minX || rMinX > maxX || rMaxY < minY || rMinY > maxY) {
+      return false;
+    }
+    final int col0 = col(rMinX), col1 = col(rMaxX);
+    final int row0 = row(rMinY), row1 = row(rMaxY);
+    if ((long) (col1-col0+1) * (row1-row0+1) > x.length) {
+      // the rectangle covers more grid cells than there are edges, so just test every edge:
+      for (int e=0; e<x.length-1; ++e) {
+        if (edgeCrossesRect(e, rMinX, rMinY, rMaxX, rMaxY)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    for (int row=row0; row<=row1; ++row) {
+      for (int col=col0; col<=col1; ++col) {
+        final int cell = row*gridSize + col;
+        for (int i=cellStarts[cell]; i<cellStarts[cell+1]; ++i) {
+          if (edgeCrossesRect(cellEdges[i], rMinX, rMinY, rMaxX, rMaxY)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Returns true if the rectangle is entirely inside the polygon */
+  boolean rectWithin(final double rMinX, final double rMinY, final double rMaxX, final double rMaxY) {
+    if (rMinX < minX || rMaxX > maxX || rMinY < minY || rMaxY > maxY) {
+      return false;
+    }
+    // no edge touches it, so the rect is all inside or all outside; any corner decides:
+    return rectCrosses(rMinX, rMinY, rMaxX, rMaxY) == false && contains(rMinX, rMinY);
+  }
+
+  /** Point in polygon; answered from the raster unless the point's grid cell has edges */
+  boolean contains(final double px, final double py) {
+    if (px < minX || px > maxX || py < minY || py > maxY) {
+      return false;
+    }
+    final int cell = row(py)*gridSize + col(px);
+    if (cellStates[cell] != EDGES) {
+      return cellStates[cell] == INSIDE;
+    }
+    // the edges crossing this point's row are registered in that row's cells; count those crossing right of the point
+    // in the cell holding the crossing, so an edge spanning several cells is counted once:
+    final int row = row(py);
+    boolean inside = false;
+    for (int col=col(px); col<gridSize; ++col) {
+      final int c = row*gridSize + col;
+      for (int i=cellStarts[c]; i<cellStarts[c+1]; ++i) {
+        final int e = cellEdges[i];
+        if ((y[e] > py) != (y[e+1] > py)) {
+          final double cx = x[e] + (py - y[e]) * (x[e+1] - x[e]) / (y[e+1] - y[e]);
+          if (cx > px && col(cx) == col) {
+            inside = !inside;
+          }
+        }
+      }
+    }
+    return inside;
+  }
+
+  /** Liang-Barsky clip of edge e against the closed rectangle */
+  private boolean edgeCrossesRect(final int e, final double rMinX, final double rMinY, final double rMaxX, final double rMaxY) {
+    final double x0 = x[e], y0 = y[e];
+    final double dx = x[e+1] - x0, dy = y[e+1] - y0;
+    double t0 = 0.0, t1 = 1.0;
+    for (int side=0; side<4; ++side) {
+      final double p, q;
+      switch (side) {
+        case 0: p = -dx; q = x0 - rMinX; break;
+        case 1: p = dx; q = rMaxX - x0; break;
+        case 2: p = -dy; q = y0 - rMinY; break;
+        default: p = dy; q = rMaxY - y0; break;
+      }
+      if (p == 0) {
+        if (q < 0) {
+          return false;
+        }
+      } else {
+        final double t = q / p;
+        if (p < 0) {
+          if (t > t1) {
+            return false;
+          }
+          t0 = Math.max(t0, t);
+        } else {
+          if (t < t0) {
+            return false;
+          }
+          t1 = Math.min(t1, t);
+        }
+      }
+    }
+    return true;
+  }
+
+  long ramBytesUsed() {
+    return 4L * (cellStarts.length + cellEdges.length) + cellStates.length;
+  }
+}
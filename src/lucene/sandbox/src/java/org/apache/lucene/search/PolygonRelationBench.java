@@ -0,0 +1,153 @@
+package org.apache.lucene.search;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.lucene.spatial.util.GeoProjectionUtils;
+
+/**
+ * Times GeoRangeComputer's polygon range decomposition with the cached {@link PolygonRelation} grid vs. scanning all
+ * vertices per cell, for regular polygons with the same gon counts IndexAndSearchOpenStreetMaps' -poly N uses and for
+ * the outer rings of a poly file such as london.boroughs.poly.txt.gz:
+ *
+ *   java org.apache.lucene.search.PolygonRelationBench -gons 10,100,1000 -polyFile /path/to/london.boroughs.poly.txt.gz -iters 10
+ */
+public class PolygonRelationBench {
+
+  // Center and radius of the regular polygons: central London
+  private static final double CENTER_LON = -0.1275;
+  private static final double CENTER_LAT = 51.5072;
+  private static final double RADIUS_METERS = 20000;
+
+  public static void main(String[] args) throws IOException {
+    String gonsList = "3,10,100,1000,10000";
+    String polyFile = null;
+    int iters = 10;
+    for (int i=0; i<args.length; ++i) {
+      if (args[i].equals("-gons") && i+1 < args.length) {
+        gonsList = args[++i];
+      } else if (args[i].equals("-polyFile") && i+1 < args.length) {
+        polyFile = args[++i];
+      } else if (args[i].equals("-iters") && i+1 < args.length) {
+        iters = Integer.parseInt(args[++i]);
+      } else {
+        throw new IllegalArgumentException("unknown command line option \"" + args[i] + "\"");
+      }
+    }
+
+    GeoRangeComputer.VERBOSE = false;
+    System.out.println(String.format(Locale.ROOT, "%-12s %9s %12s %12s %8s %12s %12s",
+        "shape", "vertices", "scan msec", "cached msec", "speedup", "scanRanges", "cachedRanges"));
+
+    for (String s : gonsList.split(",")) {
+      final int gons = Integer.parseInt(s.trim());
+      final double[][] poly = makeRegularPoly(CENTER_LON, CENTER_LAT, RADIUS_METERS, gons);
+      run("poly" + gons, poly[0], poly[1], iters);
+    }
+
+    if (polyFile != null) {
+      final List<double[][]> polys = readOuterRings(polyFile);
+      for (int i=0; i<polys.size(); ++i) {
+        run("file" + i, polys.get(i)[0], polys.get(i)[1], iters);
+      }
+    }
+  }
+
+  /** Prints the best time of both relation engines for one polygon, and the ranges each produced */
+  private static void run(String label, double[] lons, double[] lats, int iters) {
+    long bestScan = Long.MAX_VALUE;
+    long bestCached = Long.MAX_VALUE;
+    GeoRangeComputer[] scan = null;
+    GeoRangeComputer[] cached = null;
+    for (int iter=0; iter<iters; ++iter) {
+      long t0 = System.nanoTime();
+      scan = GeoRangeComputer.polygon(lons, lats, 0, false);
+      long t1 = System.nanoTime();
+      cached = GeoRangeComputer.polygon(lons, lats, 0, true);
+      long t2 = System.nanoTime();
+      bestScan = Math.min(bestScan, t1-t0);
+      bestCached = Math.min(bestCached, t2-t1);
+    }
+    // the vertex scan uses GeoRelationUtils' approximate relations, so the range sets may differ slightly:
+    System.out.println(String.format(Locale.ROOT, "%-12s %9d %12.2f %12.2f %7.1fx %12d %12d%s",
+        label, lons.length-1, bestScan/1000000.0, bestCached/1000000.0, (double) bestScan/bestCached,
+        scan[0].ranges.size(), cached[0].ranges.size(), scan[0].ranges.sameRanges(cached[0].ranges) ? "" : " (differ)"));
+  }
+
+  /** Closed regular polygon with {@code gons} vertices on the great circle {@code radiusMeters} around the center */
+  private static double[][] makeRegularPoly(double centerLon, double centerLat, double radiusMeters, int gons) {
+    double[][] result = new double[2][gons+1];
+    for (int i=0; i<gons; ++i) {
+      double[] pt = GeoProjectionUtils.pointFromLonLatBearingGreatCircle(centerLon, centerLat, i*(360.0/gons), radiusMeters, null);
+      result[0][i] = pt[0];
+      result[1][i] = pt[1];
+    }
+    // close poly
+    result[0][gons] = result[0][0];
+    result[1][gons] = result[1][0];
+    return result;
+  }
+
+  /** Reads the first (outer) ring of every polygon in a poly file written by src/python/geoJSONToJava.py; holes are skipped */
+  private static List<double[][]> readOuterRings(String fileName) throws IOException {
+    InputStream is = Files.newInputStream(Paths.get(fileName));
+    if (fileName.endsWith(".gz")) {
+      is = new GZIPInputStream(is);
+    }
+    List<double[][]> result = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 1 << 16)) {
+      int ring = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith("  poly count=")) {
+          ring = 0;
+        } else if (line.startsWith("    vertex count=")) {
+          double[] lats = parseDoubles(reader.readLine(), "      lats ");
+          double[] lons = parseDoubles(reader.readLine(), "      lons ");
+          if (ring++ == 0) {
+            result.add(new double[][] {lons, lats});
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  private static double[] parseDoubles(String line, String prefix) {
+    if (line == null || line.startsWith(prefix) == false) {
+      throw new IllegalArgumentException("expected line starting with \"" + prefix + "\" but got: " + line);
+    }
+    String[] parts = line.substring(prefix.length()).split(" ");
+    double[] values = new double[parts.length];
+    for (int i=0; i<parts.length; ++i) {
+      values[i] = Double.parseDouble(parts[i]);
+    }
+    return values;
+  }
+}
@@ -15,12 +15,17 @@
  * limitations under the License.
  */
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.util.AbstractMap;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 
@@ -34,80 +39,48 @@ import org.apache.lucene.util.SparseFixedBitSet;
 import org.apache.lucene.util.packed.EliasFanoDocIdSet;
 
 /**
- * Benchmark for {@link DocIdSet} implementations.
+ * Benchmark for {@link DocIdSet} implementations: build, nextDoc, advance with several strides, and intersection and union
+ * of two sets, over uniform, clustered, run-length and Zipf distributed sets of several densities.  Measurement follows
+ * JMH's model: each fork is a fresh JVM that runs warmup iterations, then timed iterations of a fixed duration, and
+ * ns/op is reported as the mean over all forks' iterations with a 99.9% confidence interval, along with bytes/doc.
+ *
+ * <p>To benchmark a prototype, add a {@link DocIdSetFactory} to {@link #FACTORIES}, or pass {@code -factory ClassName}
+ * for a {@link DocIdSetFactory} subclass (in the default package, like this class) with a public no-arg constructor:
+ *
+ * <pre>
+ *   java -cp lucene-core.jar:lucene-test-framework.jar:. DocIdSetBenchmark -forks 2 -distributions uniform,zipf -densities 0.001,0.1 -factory MyFactory
+ * </pre>
  */
 public class DocIdSetBenchmark {
 
-  /** Tracks scores for each {@link DocIdSet} impl. */
-  private static class ScoresRegister {
-
-    private final Map<Object, Map<Float, Map<Class<?>, Long>>> scores;
-
-    ScoresRegister() {
-      scores = new LinkedHashMap<>();
-    }
-
-    public void registerScore(String key, Float loadFactor, Class<?> cls, long score) {
-      Map<Float, Map<Class<?>, Long>> m1 = scores.get(key);
-      if (m1 == null) {
-        m1 = new LinkedHashMap<>();
-        scores.put(key, m1);
-      }
-
-      Map<Class<?>, Long> m2 = m1.get(loadFactor);
-      if (m2 == null) {
-        m2 = new LinkedHashMap<>();
-        m1.put(loadFactor, m2);
-      }
+  /** Builds one {@link DocIdSet} implementation from another set's docs. */
+  public static abstract class DocIdSetFactory {
+    public abstract String getName();
+    public abstract DocIdSet copyOf(DocIdSet set, int numBits) throws IOException;
+  }
 
-      Long s = m2.get(cls);
-      if (s != null) {
-        score = Math.max(s, score);
+  private static final List<DocIdSetFactory> FACTORIES = new ArrayList<>(Arrays.asList(
+    new DocIdSetFactory() {
+      @Override
+      public String getName() {
+        return FixedBitSet.class.getSimpleName();
       }
-      m2.put(cls, score);
-    }
-
-    // print the tables that are used for the visualizations
-    public void printChartsTables() {
-      for (Map.Entry<Object, Map<Float, Map<Class<?>, Long>>> entry : scores.entrySet()) {
-        System.out.println("#### " + entry.getKey());
-        Map<Float, Map<Class<?>, Long>> m2 = entry.getValue();
-        System.out.print("['log10(loadFactor)', '" + FixedBitSet.class.getSimpleName() + "'");
-        for (Class<?> cls : m2.values().iterator().next().keySet()) {
-          if (cls != FixedBitSet.class) {
-            System.out.print(", '" + cls.getSimpleName() + "'");
-          }
-        }
-        System.out.println("],");
-        for (Map.Entry<Float, Map<Class<?>, Long>> entry2 : m2.entrySet()) {
-          final float loadFactor = entry2.getKey();
-          final Map<Class<?>, Long> scores = entry2.getValue();
-          final double fbsScore = scores.get(FixedBitSet.class);
-          System.out.print("[" + Math.log10(loadFactor) + ",0");
-          for (Map.Entry<Class<?>, Long> score : scores.entrySet()) {
-            if (score.getKey() != FixedBitSet.class) {
-              System.out.print("," + Math.log(score.getValue() / fbsScore) / Math.log(2));
-            }
-          }
-          System.out.println("],");
-        }
+      @Override
+      public DocIdSet copyOf(DocIdSet set, int numBits) throws IOException {
+        final FixedBitSet copy = new FixedBitSet(numBits);
+        copy.or(iterator(set));
+        return new BitDocIdSet(copy);
       }
-    }
-
-  }
-
-  private static int DUMMY; // to prevent JVM optimizations
-  private static final long SECOND = 1000L * 1000L * 1000L; // in ns
-  private static final Random RANDOM = new Random();
-  private static DocIdSetFactory[] FACTORIES = new DocIdSetFactory[] {
+    },
     new DocIdSetFactory() {
-      public Class<?> getKey() {
-        return RoaringDocIdSet.class;
+      @Override
+      public String getName() {
+        return RoaringDocIdSet.class.getSimpleName();
       }
       @Override
       public DocIdSet copyOf(DocIdSet set, int numBits) throws IOException {
         RoaringDocIdSet.Builder copy = new RoaringDocIdSet.Builder(numBits);
-        final DocIdSetIterator disi = set.iterator();
+        final DocIdSetIterator disi = iterator(set);
         for (int doc = disi.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = disi.nextDoc()) {
           copy.add(doc);
         }
@@ -115,220 +88,497 @@ public class DocIdSetBenchmark {
       }
     },
     new DocIdSetFactory() {
-      public Class<?> getKey() {
-        return EliasFanoDocIdSet.class;
+      @Override
+      public String getName() {
+        return EliasFanoDocIdSet.class.getSimpleName();
       }
       @Override
       public DocIdSet copyOf(DocIdSet set, int numBits) throws IOException {
         int cardinality = 0, maxDoc = -1;
-        final DocIdSetIterator disi = set.iterator();
+        final DocIdSetIterator disi = iterator(set);
         for (int doc = disi.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = disi.nextDoc()) {
           ++cardinality;
           maxDoc = doc;
         }
         final EliasFanoDocIdSet copy = new EliasFanoDocIdSet(cardinality, maxDoc);
-        copy.encodeFromDisi(set.iterator());
+        copy.encodeFromDisi(iterator(set));
         return copy;
       }
     },
     new DocIdSetFactory() {
-      public Class<?> getKey() {
-        return SparseFixedBitSet.class;
+      @Override
+      public String getName() {
+        return SparseFixedBitSet.class.getSimpleName();
       }
       @Override
       public DocIdSet copyOf(DocIdSet set, int numBits) throws IOException {
         SparseFixedBitSet copy = new SparseFixedBitSet(numBits);
-        copy.or(set.iterator());
+        copy.or(iterator(set));
         return new BitDocIdSet(copy, copy.approximateCardinality());
       }
     }
-  };
-  private static final int MAX_DOC = 1 << 24;
-  private static float[] LOAD_FACTORS = new float[] {0.00001f, 0.0001f, 0.001f, 0.01f, 0.1f, 0.5f, 0.9f, 0.99f, 1f};
+  ));
 
-  private static abstract class DocIdSetFactory {
-    public abstract Class<?> getKey();
-    public abstract DocIdSet copyOf(DocIdSet set, int numBits) throws IOException;
-  }
-
-  protected static FixedBitSet randomSet(int numBits, int numBitsSet) {
-    assert numBitsSet <= numBits;
-    final FixedBitSet set = new FixedBitSet(numBits);
-    if (numBitsSet == numBits) {
-      set.set(0, numBits);
-    } else {
-      for (int i = 0; i < numBitsSet; ++i) {
-        while (true) {
-          final int o = RANDOM.nextInt(numBits);
-          if (!set.get(o)) {
-            set.set(o);
-            break;
+  /** How docs are spread over the doc ID space; each generates a set with roughly {@code density * numBits} docs. */
+  private enum Distribution {
+    /** Every doc is independently in the set */
+    UNIFORM {
+      @Override
+      FixedBitSet generate(int numBits, float density, Random random) {
+        final FixedBitSet set = new FixedBitSet(numBits);
+        for (int doc = 0; doc < numBits; ++doc) {
+          if (random.nextFloat() < density) {
+            set.set(doc);
+          }
+        }
+        return set;
+      }
+    },
+    /** Docs are concentrated in some 1024-doc clusters, e.g. a filter on a field correlated with index order */
+    CLUSTERED {
+      @Override
+      FixedBitSet generate(int numBits, float density, Random random) {
+        final int clusterSize = 1024;
+        final float clusterProbability = Math.min(1f, density * 16);
+        final float densityInCluster = density / clusterProbability;
+        final FixedBitSet set = new FixedBitSet(numBits);
+        for (int start = 0; start < numBits; start += clusterSize) {
+          if (random.nextFloat() < clusterProbability) {
+            final int end = Math.min(numBits, start + clusterSize);
+            for (int doc = start; doc < end; ++doc) {
+              if (random.nextFloat() < densityInCluster) {
+                set.set(doc);
+              }
+            }
           }
         }
+        return set;
       }
+    },
+    /** Alternating runs of set and unset docs with geometric lengths, e.g. a filter on a sorted field or on time ranges */
+    RUNS {
+      @Override
+      FixedBitSet generate(int numBits, float density, Random random) {
+        final double meanSetRun = 64;
+        final double meanUnsetRun = density >= 1f ? 0 : meanSetRun * (1 - density) / density;
+        final FixedBitSet set = new FixedBitSet(numBits);
+        int doc = (int) Math.min(numBits, geometric(meanUnsetRun, random));
+        while (doc < numBits) {
+          final int end = (int) Math.min(numBits, doc + Math.max(1, geometric(meanSetRun, random)));
+          set.set(doc, end);
+          doc = (int) Math.min(numBits, end + geometric(meanUnsetRun, random));
+        }
+        return set;
+      }
+    },
+    /** The doc ID space is cut into 256 slices whose densities follow a Zipf law, e.g. a term that is popular in recent docs */
+    ZIPF {
+      @Override
+      FixedBitSet generate(int numBits, float density, Random random) {
+        final int sliceCount = 256;
+        final int sliceSize = (numBits + sliceCount - 1) / sliceCount;
+        final int[] ranks = new int[sliceCount];
+        double sumWeights = 0;
+        for (int i = 0; i < sliceCount; ++i) {
+          ranks[i] = i;
+          sumWeights += 1.0 / (i + 1);
+        }
+        // random slice order, so the densest slice is not always first:
+        for (int i = sliceCount - 1; i > 0; --i) {
+          final int j = random.nextInt(i + 1);
+          final int tmp = ranks[i];
+          ranks[i] = ranks[j];
+          ranks[j] = tmp;
+        }
+        final FixedBitSet set = new FixedBitSet(numBits);
+        for (int slice = 0; slice < sliceCount; ++slice) {
+          final double sliceDensity = Math.min(1.0, (double) density * sliceCount / (ranks[slice] + 1) / sumWeights);
+          final int end = Math.min(numBits, (slice + 1) * sliceSize);
+          for (int doc = slice * sliceSize; doc < end; ++doc) {
+            if (random.nextDouble() < sliceDensity) {
+              set.set(doc);
+            }
+          }
+        }
+        return set;
+      }
+    };
+
+    abstract FixedBitSet generate(int numBits, float density, Random random);
+
+    private static double geometric(double mean, Random random) {
+      return mean == 0 ? 0 : -Math.log(1 - random.nextDouble()) * mean;
     }
-    return set;
   }
 
-  protected static FixedBitSet randomSet(int numBits, float percentSet) {
-    return randomSet(numBits, (int) (percentSet * numBits));
+  /** The sets of one implementation: {@code a} is what most benchmarks use, {@code b} is an independent set from the
+   *  same distribution for intersection and union. */
+  private static class Candidate {
+    final DocIdSetFactory factory;
+    final DocIdSet a;
+    final DocIdSet b;
+    final double bytesPerDoc;
+
+    Candidate(DocIdSetFactory factory, DocIdSet a, DocIdSet b, int cardinality) {
+      this.factory = factory;
+      this.a = a;
+      this.b = b;
+      this.bytesPerDoc = (double) RamUsageTester.sizeOf(a) / cardinality;
+    }
+  }
+
+  /** One benchmarked operation; returns a value derived from the docs it visited so the JIT cannot drop the work. */
+  private static abstract class Benchmark {
+    final String name;
+
+    Benchmark(String name) {
+      this.name = name;
+    }
+
+    abstract long run(Candidate candidate, int numBits) throws IOException;
+  }
+
+  private static List<Benchmark> benchmarks(final DocIdSet buildSource, int[] strides) {
+    final List<Benchmark> benchmarks = new ArrayList<>();
+    benchmarks.add(new Benchmark("build") {
+        @Override
+        long run(Candidate candidate, int numBits) throws IOException {
+          return candidate.factory.copyOf(buildSource, numBits).hashCode();
+        }
+      });
+    benchmarks.add(new Benchmark("nextDoc") {
+        @Override
+        long run(Candidate candidate, int numBits) throws IOException {
+          return exhaustIterator(candidate.a);
+        }
+      });
+    for (final int stride : strides) {
+      benchmarks.add(new Benchmark("advance(" + stride + ")") {
+          @Override
+          long run(Candidate candidate, int numBits) throws IOException {
+            return exhaustIterator(candidate.a, stride);
+          }
+        });
+    }
+    benchmarks.add(new Benchmark("and") {
+        @Override
+        long run(Candidate candidate, int numBits) throws IOException {
+          return intersect(candidate.a, candidate.b);
+        }
+      });
+    benchmarks.add(new Benchmark("or") {
+        @Override
+        long run(Candidate candidate, int numBits) throws IOException {
+          return union(candidate.a, candidate.b);
+        }
+      });
+    return benchmarks;
   }
 
-  private static int exhaustIterator(DocIdSet set) throws IOException {
-    int dummy = 0;
+  private static DocIdSetIterator iterator(DocIdSet set) throws IOException {
     final DocIdSetIterator it = set.iterator();
+    return it == null ? DocIdSetIterator.empty() : it;
+  }
+
+  private static long exhaustIterator(DocIdSet set) throws IOException {
+    long dummy = 0;
+    final DocIdSetIterator it = iterator(set);
     for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
       dummy += doc;
     }
     return dummy;
   }
 
-  private static int exhaustIterator(DocIdSet set, int increment) throws IOException {
-    int dummy = 0;
-    final DocIdSetIterator it = set.iterator();
-    for (int doc = -1; doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.advance(doc + increment)) {
+  private static long exhaustIterator(DocIdSet set, int increment) throws IOException {
+    long dummy = 0;
+    final DocIdSetIterator it = iterator(set);
+    for (int doc = it.advance(increment - 1); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.advance(doc + increment)) {
       dummy += doc;
     }
     return dummy;
   }
 
-  private static Collection<Map.Entry<Class<?>, DocIdSet>> sets(int numBits, float load) throws IOException {
-    final BitDocIdSet fixedSet = new BitDocIdSet(randomSet(numBits, load));
-    final List<Map.Entry<Class<?>, DocIdSet>> sets = new ArrayList<>();
-    sets.add(new AbstractMap.SimpleImmutableEntry<Class<?>, DocIdSet>(FixedBitSet.class, fixedSet));
-    for (DocIdSetFactory factory : FACTORIES) {
-      sets.add(new AbstractMap.SimpleImmutableEntry<Class<?>, DocIdSet>(factory.getKey(), factory.copyOf(fixedSet, numBits)));
+  /** Leap-frog conjunction, like ConjunctionDISI */
+  private static long intersect(DocIdSet a, DocIdSet b) throws IOException {
+    long dummy = 0;
+    final DocIdSetIterator lead = iterator(a);
+    final DocIdSetIterator other = iterator(b);
+    int doc = lead.nextDoc();
+    while (doc != DocIdSetIterator.NO_MORE_DOCS) {
+      final int otherDoc = other.docID() < doc ? other.advance(doc) : other.docID();
+      if (otherDoc == doc) {
+        dummy += doc;
+        doc = lead.nextDoc();
+      } else {
+        doc = lead.advance(otherDoc);
+      }
     }
-    return sets;
+    return dummy;
   }
 
-  // Compute how many FixedBitSets can be built in one second
-  public static long scoreBuildFixedBitSet(DocIdSet set, int maxDoc) throws IOException {
-    final long start = System.nanoTime();
-    int dummy = 0;
-    long score = 0;
-    while (System.nanoTime() - start < SECOND) {
-      final FixedBitSet copy = new FixedBitSet(maxDoc);
-      DocIdSetIterator iterator = set.iterator();
-      if (iterator != null) {
-        copy.or(iterator);
+  /** Merges both iterators, visiting each doc in either set once */
+  private static long union(DocIdSet a, DocIdSet b) throws IOException {
+    long dummy = 0;
+    final DocIdSetIterator itA = iterator(a);
+    final DocIdSetIterator itB = iterator(b);
+    int docA = itA.nextDoc();
+    int docB = itB.nextDoc();
+    while (docA != DocIdSetIterator.NO_MORE_DOCS || docB != DocIdSetIterator.NO_MORE_DOCS) {
+      if (docA < docB) {
+        dummy += docA;
+        docA = itA.nextDoc();
+      } else if (docB < docA) {
+        dummy += docB;
+        docB = itB.nextDoc();
+      } else {
+        dummy += docA;
+        docA = itA.nextDoc();
+        docB = itB.nextDoc();
       }
-      dummy += copy.hashCode();
-      ++score;
     }
-    DUMMY += dummy;
-    return score;
+    return dummy;
   }
 
-  //Compute how many DocIdSets can be built in one second
-  public static long scoreBuild(DocIdSetFactory factory, DocIdSet set, int numBits) throws IOException {
-    final long start = System.nanoTime();
-    int dummy = 0;
-    long score = 0;
-    while (System.nanoTime() - start < SECOND) {
-      final DocIdSet copy = factory.copyOf(set, numBits);
-      dummy += copy.hashCode();
-      ++score;
+  private static long DUMMY; // to prevent JVM optimizations
+
+  /** Runs warmup then timed iterations of {@code iterationMS} each, returning the ns/op of each timed iteration. */
+  private static double[] measure(Benchmark benchmark, Candidate candidate, int numBits, int warmupIterations, int iterations, long iterationMS) throws IOException {
+    final long iterationNS = iterationMS * 1000L * 1000L;
+    final double[] nsPerOp = new double[iterations];
+    for (int i = -warmupIterations; i < iterations; ++i) {
+      final long start = System.nanoTime();
+      long ops = 0;
+      long elapsed;
+      do {
+        DUMMY += benchmark.run(candidate, numBits);
+        ++ops;
+      } while ((elapsed = System.nanoTime() - start) < iterationNS);
+      if (i >= 0) {
+        nsPerOp[i] = (double) elapsed / ops;
+      }
     }
-    DUMMY += dummy;
-    return score;
+    return nsPerOp;
   }
 
-  // Compute how many times a DocIdSet can be iterated in one second
-  public static long score(DocIdSet set) throws IOException {
-    final long start = System.nanoTime();
-    int dummy = 0;
-    long score = 0;
-    while (System.nanoTime() - start < SECOND) {
-      dummy += exhaustIterator(set);
-      ++score;
+  /** Collects ns/op samples and bytes/doc per (distribution, density, implementation, benchmark) across forks. */
+  private static class Results {
+    private final Map<String, List<Double>> samples = new LinkedHashMap<>();
+    private final Map<String, Double> bytesPerDoc = new LinkedHashMap<>();
+
+    void add(String key, double[] nsPerOp, double bytes) {
+      List<Double> l = samples.get(key);
+      if (l == null) {
+        l = new ArrayList<>();
+        samples.put(key, l);
+      }
+      for (double ns : nsPerOp) {
+        l.add(ns);
+      }
+      // the same for every fork, up to the random sets' variation:
+      bytesPerDoc.put(key, bytes);
     }
-    DUMMY += dummy;
-    return score;
-  }
 
-  //Compute how many times a DocIdSet can be advanced in one second
-  public static long score(DocIdSet set, int inc) throws IOException {
-    final long start = System.nanoTime();
-    int dummy = 0;
-    long score = 0;
-    while (System.nanoTime() - start < SECOND) {
-      dummy += exhaustIterator(set, inc);
-      ++score;
+    /** Line a forked JVM prints for the parent to parse */
+    static String encode(String key, double[] nsPerOp, double bytes) {
+      StringBuilder sb = new StringBuilder("RESULT\t").append(key).append('\t').append(bytes).append('\t');
+      for (int i = 0; i < nsPerOp.length; ++i) {
+        if (i > 0) {
+          sb.append(',');
+        }
+        sb.append(nsPerOp[i]);
+      }
+      return sb.toString();
     }
-    DUMMY += dummy;
-    return score;
-  }
 
-  public static void main(String[] args) throws IOException, InterruptedException {
-    ScoresRegister reg = new ScoresRegister();
-    for (float loadFactor : LOAD_FACTORS) {
-      for (Map.Entry<Class<?>, DocIdSet> set : sets(MAX_DOC, loadFactor)) {
-        final long memSize = RamUsageTester.sizeOf(set.getValue());
-        reg.registerScore("memory", loadFactor, set.getKey(), memSize);
-        System.out.println(set.getKey().getSimpleName() + "\t" + loadFactor + "\t" + memSize);
+    void addEncoded(String line) {
+      final int end = line.lastIndexOf('\t');
+      final int bytesStart = line.lastIndexOf('\t', end - 1);
+      final String[] parts = line.substring(end + 1).split(",");
+      final double[] nsPerOp = new double[parts.length];
+      for (int i = 0; i < parts.length; ++i) {
+        nsPerOp[i] = Double.parseDouble(parts[i]);
       }
+      add(line.substring("RESULT\t".length(), bytesStart), nsPerOp, Double.parseDouble(line.substring(bytesStart + 1, end)));
     }
-    System.out.println();
-    System.out.println("JVM warm-up");
-    long start = System.nanoTime();
-    while (System.nanoTime() - start < 30 * SECOND) {
-      final int numBits = 1 << 18;
-      for (float loadFactor : LOAD_FACTORS) {
-        final BitDocIdSet fixedSet = new BitDocIdSet(randomSet(numBits, loadFactor), 0);
-        scoreBuildFixedBitSet(fixedSet, numBits);
-        for (DocIdSetFactory factory : FACTORIES) {
-          scoreBuild(factory, fixedSet, numBits);
+
+    void print() {
+      System.out.println(String.format(Locale.ROOT, "%-10s %8s %-20s %-16s %5s %14s %12s %10s",
+          "dist", "density", "impl", "benchmark", "cnt", "ns/op", "error(99.9%)", "bytes/doc"));
+      for (Map.Entry<String, List<Double>> entry : samples.entrySet()) {
+        final List<Double> l = entry.getValue();
+        double sum = 0;
+        for (double v : l) {
+          sum += v;
         }
-        for (Map.Entry<Class<?>, DocIdSet> set : sets(numBits, loadFactor)) {
-          score(set.getValue());
-          score(set.getValue(), 313);
+        final double mean = sum / l.size();
+        double sumSquares = 0;
+        for (double v : l) {
+          sumSquares += (v - mean) * (v - mean);
         }
+        // normal approximation of the 99.9% confidence interval:
+        final double error = l.size() < 2 ? Double.NaN : 3.291 * Math.sqrt(sumSquares / (l.size() - 1)) / Math.sqrt(l.size());
+        final String[] key = entry.getKey().split("\t");
+        System.out.println(String.format(Locale.ROOT, "%-10s %8s %-20s %-16s %5d %14.1f %12.1f %10.3f",
+            key[0], key[1], key[2], key[3], l.size(), mean, error, bytesPerDoc.get(entry.getKey())));
+      }
+    }
+  }
+
+  private static List<String> split(String s) {
+    final List<String> l = new ArrayList<>();
+    for (String part : s.split(",")) {
+      l.add(part.trim());
+    }
+    return l;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int maxDoc = 1 << 24;
+    String densities = "0.0001,0.001,0.01,0.1,0.5,0.99";
+    String distributions = "uniform,clustered,runs,zipf";
+    String strides = "31,3571,319993"; // primes
+    String impls = null;
+    String benchmarkNames = null;
+    int forks = 1;
+    int fork = -1;
+    int warmupIterations = 3;
+    int iterations = 5;
+    long iterationMS = 500;
+    long seed = 17;
+    final List<String> childArgs = new ArrayList<>();
+    for (int i = 0; i < args.length; ++i) {
+      final String arg = args[i];
+      if (i + 1 >= args.length) {
+        throw new IllegalArgumentException("missing value for command line option \"" + arg + "\"");
+      }
+      final String value = args[++i];
+      if (arg.equals("-fork")) {
+        fork = Integer.parseInt(value);
+        continue;
+      } else if (arg.equals("-forks")) {
+        forks = Integer.parseInt(value);
+        continue;
+      }
+      childArgs.add(arg);
+      childArgs.add(value);
+      if (arg.equals("-maxDoc")) {
+        maxDoc = Integer.parseInt(value);
+      } else if (arg.equals("-densities")) {
+        densities = value;
+      } else if (arg.equals("-distributions")) {
+        distributions = value;
+      } else if (arg.equals("-strides")) {
+        strides = value;
+      } else if (arg.equals("-impls")) {
+        impls = value;
+      } else if (arg.equals("-benchmarks")) {
+        benchmarkNames = value;
+      } else if (arg.equals("-warmupIterations")) {
+        warmupIterations = Integer.parseInt(value);
+      } else if (arg.equals("-iterations")) {
+        iterations = Integer.parseInt(value);
+      } else if (arg.equals("-iterationMS")) {
+        iterationMS = Long.parseLong(value);
+      } else if (arg.equals("-seed")) {
+        seed = Long.parseLong(value);
+      } else if (arg.equals("-factory")) {
+        FACTORIES.add(Class.forName(value).asSubclass(DocIdSetFactory.class).getConstructor().newInstance());
+      } else {
+        throw new IllegalArgumentException("unknown command line option \"" + arg + "\"");
       }
     }
 
-    // Start the test
-    System.out.println("LoadFactor\tBenchmark\tImplementation\tScore");
-    for (int i = 0; i < 3; ++i) {
-      for (float load : LOAD_FACTORS) {
-        final Collection<Map.Entry<Class<?>, DocIdSet>> sets = sets(MAX_DOC, load);
-        // Free memory so that GC doesn't kick in while the benchmark is running
-        System.gc();
-        Thread.sleep(5 * 1000);
-        DocIdSet fastestSet = null;
-        for (Map.Entry<Class<?>, DocIdSet> set : sets) {
-          fastestSet = set.getValue();
-          if (set.getValue() instanceof RoaringDocIdSet) { // fastest at nextDoc
-            break;
+    final Results results = new Results();
+    if (fork == -1 && forks > 0) {
+      // parent: run each fork in a fresh JVM with our own JVM flags, so JIT profiles and heap state don't leak across forks
+      final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+      for (int f = 0; f < forks; ++f) {
+        final List<String> cmd = new ArrayList<>();
+        cmd.add(java);
+        cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(DocIdSetBenchmark.class.getName());
+        cmd.addAll(childArgs);
+        cmd.add("-fork");
+        cmd.add(Integer.toString(f));
+        System.out.println("# Fork " + (f + 1) + " of " + forks);
+        final Process process = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            if (line.startsWith("RESULT\t")) {
+              results.addEncoded(line);
+            } else {
+              System.out.println(line);
+            }
           }
         }
-        long score = scoreBuildFixedBitSet(fastestSet, MAX_DOC);
-        reg.registerScore("build", load, FixedBitSet.class, score);
-        System.out.println(load + "\tbuild\t" + FixedBitSet.class.getSimpleName() + "\t" + score);
-        for (DocIdSetFactory factory : FACTORIES) {
-          score = scoreBuild(factory, fastestSet, MAX_DOC);
-          reg.registerScore("build", load, factory.getKey(), score);
-          System.out.println(load + "\tbuild\t" + factory.getKey().getSimpleName() + "\t" + score);
+        final int exitCode = process.waitFor();
+        if (exitCode != 0) {
+          throw new RuntimeException("fork " + f + " failed with exit code " + exitCode);
         }
-        System.gc();
-        Thread.sleep(5 * 1000);
-        for (Map.Entry<Class<?>, DocIdSet> set : sets) {
-          score = score(set.getValue());
-          reg.registerScore("nextDoc", load, set.getKey(), score);
-          System.out.println(load + "\tnextDoc()\t" + set.getKey().getSimpleName() + "\t" + score(set.getValue()));
+      }
+      results.print();
+      return;
+    }
+
+    final List<Integer> strideList = new ArrayList<>();
+    for (String stride : split(strides)) {
+      strideList.add(Integer.parseInt(stride));
+    }
+    final int[] strideArray = new int[strideList.size()];
+    for (int i = 0; i < strideArray.length; ++i) {
+      strideArray[i] = strideList.get(i);
+    }
+    final List<DocIdSetFactory> factories = new ArrayList<>();
+    for (DocIdSetFactory factory : FACTORIES) {
+      if (impls == null || split(impls).contains(factory.getName())) {
+        factories.add(factory);
+      }
+    }
+    // each fork benchmarks its own random sets:
+    final Random random = new Random(seed + Math.max(0, fork));
+
+    for (String distributionName : split(distributions)) {
+      final Distribution distribution = Distribution.valueOf(distributionName.toUpperCase(Locale.ROOT));
+      for (String densityString : split(densities)) {
+        final float density = Float.parseFloat(densityString);
+        final FixedBitSet bitsA = distribution.generate(maxDoc, density, random);
+        final FixedBitSet bitsB = distribution.generate(maxDoc, density, random);
+        final int cardinality = bitsA.cardinality();
+        System.out.println(String.format(Locale.ROOT, "# %s density=%s: %d docs", distribution, densityString, cardinality));
+        final List<Candidate> candidates = new ArrayList<>();
+        DocIdSet buildSource = new BitDocIdSet(bitsA);
+        for (DocIdSetFactory factory : factories) {
+          final DocIdSet a = factory.copyOf(new BitDocIdSet(bitsA), maxDoc);
+          candidates.add(new Candidate(factory, a, factory.copyOf(new BitDocIdSet(bitsB), maxDoc), cardinality));
+          if (a instanceof RoaringDocIdSet) {
+            // fastest at nextDoc, so build times are mostly the built set's own cost
+            buildSource = a;
+          }
         }
-        for (int inc : new int[] {1, 31, 313, 3571, 33533, 319993}) { // primes
-          final String key = "advance(" + inc + ")";
-          for (Map.Entry<Class<?>, DocIdSet> set : sets) {
-            score = score(set.getValue(), inc);
-            reg.registerScore(key, load, set.getKey(), score);
-            System.out.println(load + "\t" + key + "\t" + set.getKey().getSimpleName() + "\t" + score);
+        for (Benchmark benchmark : benchmarks(buildSource, strideArray)) {
+          if (benchmarkNames != null && split(benchmarkNames).contains(benchmark.name) == false) {
+            continue;
+          }
+          for (Candidate candidate : candidates) {
+            // Free memory so that GC doesn't kick in while the benchmark is running
+            System.gc();
+            final double[] nsPerOp = measure(benchmark, candidate, maxDoc, warmupIterations, iterations, iterationMS);
+            final String key = distribution.name().toLowerCase(Locale.ROOT) + "\t" + densityString + "\t" + candidate.factory.getName() + "\t" + benchmark.name;
+            if (fork == -1) {
+              results.add(key, nsPerOp, candidate.bytesPerDoc);
+            } else {
+              System.out.println(Results.encode(key, nsPerOp, candidate.bytesPerDoc));
+            }
           }
         }
       }
     }
-    System.out.println("DONE " + DUMMY);
-    System.out.println("Tables for Google charts:");
-    reg.printChartsTables();
+    if (fork == -1) {
+      results.print();
+    }
+    System.out.println("# DONE " + DUMMY);
   }
 }
@@ -0,0 +1,415 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.shingle.ShingleAnalyzerWrapper;
+import org.apache.lucene.analysis.shingle.ShingleFilter;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.spell.DirectSpellChecker;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+
+// Runs candidate tasks (e.g. CreateQueries output) against the target index, measuring each one's hit count, index bytes
+// read and best wall time, and then keeps, for each category, the -perCategory tasks whose cost is most tightly grouped.
+// The measured cost is written as a "# hits=.. bytes=.. ms=.." annotation, so -check can later re-measure a tasks file
+// and report categories that drifted, e.g. because the corpus or index changed.
+
+// java -cp build/classes/java:lib/*:. perf.CalibrateTasks -indexPath /l/indices/wikimedium10m -tasksFile /l/util/tasks/candidates.tasks -tasksOut /l/util/tasks/calibrated.tasks
+
+// java -cp build/classes/java:lib/*:. perf.CalibrateTasks -indexPath /l/indices/wikimedium10m -check /l/util/tasks/calibrated.tasks
+
+public class CalibrateTasks {
+
+  /** Counts all bytes read through any input opened from this directory, including clones and slices. Not thread
+   *  safe: tasks are measured one at a time. */
+  static final class CountingDirectory extends FilterDirectory {
+    long bytesRead;
+
+    CountingDirectory(Directory in) {
+      super(in);
+    }
+
+    @Override
+    public IndexInput openInput(String name, IOContext context) throws IOException {
+      return new CountingIndexInput(name, in.openInput(name, context), this);
+    }
+  }
+
+  private static final class CountingIndexInput extends IndexInput {
+    private final IndexInput in;
+    private final CountingDirectory dir;
+
+    CountingIndexInput(String resourceDescription, IndexInput in, CountingDirectory dir) {
+      super(resourceDescription);
+      this.in = in;
+      this.dir = dir;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+      dir.bytesRead++;
+      return in.readByte();
+    }
+
+    @Override
+    public void readBytes(byte[] b, int offset, int len) throws IOException {
+      dir.bytesRead += len;
+      in.readBytes(b, offset, len);
+    }
+
+    @Override
+    public long getFilePointer() {
+      return in.getFilePointer();
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+      in.seek(pos);
+    }
+
+    @Override
+    public long length() {
+      return in.length();
+    }
+
+    @Override
+    public IndexInput slice(String sliceDescription, long offset, long length) throws IOException {
+      return new CountingIndexInput(sliceDescription, in.slice(sliceDescription, offset, length), dir);
+    }
+
+    @Override
+    public CountingIndexInput clone() {
+      return new CountingIndexInput(toString(), in.clone(), dir);
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private static class Candidate {
+    final String category;
+    final String text;
+    final Task task;
+    // only set by -check:
+    final Map<String,Double> expected;
+
+    int hits;
+    long bytes;
+    long nanos = Long.MAX_VALUE;
+
+    Candidate(String category, String text, Task task, Map<String,Double> expected) {
+      this.category = category;
+      this.text = text;
+      this.task = task;
+      this.expected = expected;
+    }
+
+    double cost(String metric) {
+      switch (metric) {
+      case "hits":
+        return hits;
+      case "bytes":
+        return bytes;
+      case "ms":
+        return nanos/1000000.0;
+      default:
+        throw new IllegalArgumentException("unknown cost \"" + metric + "\"; must be hits, bytes or ms");
+      }
+    }
+
+    String annotation() {
+      return String.format(Locale.ROOT, "hits=%d bytes=%d ms=%.3f", hits, bytes, nanos/1000000.0);
+    }
+  }
+
+  public static void main(String[] clArgs) throws Exception {
+    Args args = new Args(clArgs);
+    final String indexPath = args.getString("-indexPath");
+    final String fieldName = args.getString("-field", "body");
+    final String analyzer = args.getString("-analyzer", "StandardAnalyzer");
+    final String check = args.getString("-check", null);
+    final List<String> tasksFiles;
+    final String tasksOut;
+    if (check == null) {
+      tasksFiles = args.getStrings("-tasksFile");
+      tasksOut = args.getString("-tasksOut");
+    } else {
+      tasksFiles = Collections.singletonList(check);
+      tasksOut = null;
+    }
+    final int perCategory = Integer.parseInt(args.getString("-perCategory", "100"));
+    final String costMetric = args.getString("-cost", "bytes");
+    final int iters = Integer.parseInt(args.getString("-iters", "5"));
+    final int topN = Integer.parseInt(args.getString("-topN", "10"));
+    // -check reports a category once its median measured/annotated cost ratio is off by more than this:
+    final double maxDrift = Double.parseDouble(args.getString("-maxDrift", "0.25"));
+    args.check();
+
+    if (Arrays.asList("hits", "bytes", "ms").contains(costMetric) == false) {
+      throw new IllegalArgumentException("-cost must be hits, bytes or ms; got \"" + costMetric + "\"");
+    }
+    if (iters < 1) {
+      throw new IllegalArgumentException("-iters must be >= 1; got " + iters);
+    }
+
+    final Analyzer a;
+    if (analyzer.equals("EnglishAnalyzer")) {
+      a = new EnglishAnalyzer();
+    } else if (analyzer.equals("StandardAnalyzer")) {
+      a = new StandardAnalyzer();
+    } else if (analyzer.equals("StandardAnalyzerNoStopWords")) {
+      a = new StandardAnalyzer(CharArraySet.EMPTY_SET);
+    } else if (analyzer.equals("ShingleStandardAnalyzer")) {
+      a = new ShingleAnalyzerWrapper(new StandardAnalyzer(CharArraySet.EMPTY_SET),
+                                     2, 2, ShingleFilter.DEFAULT_TOKEN_SEPARATOR, true, true, ShingleFilter.DEFAULT_FILLER_TOKEN);
+    } else {
+      throw new RuntimeException("unknown analyzer " + analyzer);
+    }
+
+    // Wall time is measured against the plain directory, so the byte counting doesn't slow it down:
+    final Path path = Paths.get(indexPath);
+    final Directory dir = FSDirectory.open(path);
+    final CountingDirectory countingDir = new CountingDirectory(FSDirectory.open(path));
+    final SearcherManager mgr = new SearcherManager(DirectoryReader.open(dir), null);
+    final SearcherManager countingMgr = new SearcherManager(DirectoryReader.open(countingDir), null);
+    final DirectSpellChecker spellChecker = new DirectSpellChecker();
+    final Map<String,Integer> facetFields = new HashMap<>();
+    final IndexState state = new IndexState(mgr, null, fieldName, spellChecker, "FastVectorHighlighter", new FacetsConfig(), facetFields);
+    final IndexState countingState = new IndexState(countingMgr, null, fieldName, spellChecker, "FastVectorHighlighter", new FacetsConfig(), facetFields);
+
+    final TaskParser taskParser = new TaskParser(state, new QueryParser(fieldName, a), fieldName, topN, new Random(17), false);
+
+    // category -> candidates, in the order categories first appear:
+    final Map<String,List<Candidate>> byCategory = new LinkedHashMap<>();
+    int count = 0;
+    for(String tasksFile : tasksFiles) {
+      try (BufferedReader reader = Files.newBufferedReader(Paths.get(tasksFile), StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (line.length() == 0 || line.startsWith("#")) {
+            continue;
+          }
+          final int spot = line.indexOf(':');
+          if (spot == -1) {
+            throw new RuntimeException("task line is malformed: " + line);
+          }
+          int spot2 = line.indexOf(" #");
+          if (spot2 == -1) {
+            spot2 = line.length();
+          }
+          final String category = line.substring(0, spot);
+          final String text = line.substring(spot+1, spot2).trim();
+          final Task task;
+          try {
+            task = taskParser.parseOneTask(category + ": " + text);
+          } catch (Exception e) {
+            System.out.println("skip task \"" + line + "\": " + e);
+            continue;
+          }
+          List<Candidate> candidates = byCategory.get(category);
+          if (candidates == null) {
+            candidates = new ArrayList<>();
+            byCategory.put(category, candidates);
+          }
+          candidates.add(new Candidate(category, text, task, check == null ? null : parseAnnotation(line.substring(spot2))));
+          count++;
+        }
+      }
+    }
+    System.out.println(count + " tasks in " + byCategory.size() + " categories");
+
+    final List<Candidate> all = new ArrayList<>();
+    for(List<Candidate> candidates : byCategory.values()) {
+      all.addAll(candidates);
+    }
+
+    // Hits and bytes read don't change from run to run on the same index, so one run each against the counting directory
+    // is enough.  They are not a property of the corpus alone though: "+filter=N%" tasks' RandomQuery picks docs by
+    // per-segment docID, so re-indexing the same docs into different segments changes their hits and bytes, and -check
+    // may report drift for those categories even though the corpus did not change:
+    long t0 = System.nanoTime();
+    for(Candidate candidate : all) {
+      final Task task = candidate.task.clone();
+      final long bytesBefore = countingDir.bytesRead;
+      task.go(countingState);
+      candidate.bytes = countingDir.bytesRead - bytesBefore;
+      candidate.hits = task.totalHitCount;
+    }
+    System.out.println(String.format(Locale.ROOT, "count hits/bytes: %.1f sec", (System.nanoTime()-t0)/1000000000.0));
+
+    // Wall time: one warmup pass, then keep each task's fastest of iters passes:
+    t0 = System.nanoTime();
+    for(int iter=-1;iter<iters;iter++) {
+      for(Candidate candidate : all) {
+        final Task task = candidate.task.clone();
+        final long tStart = System.nanoTime();
+        task.go(state);
+        final long nanos = System.nanoTime() - tStart;
+        if (iter >= 0) {
+          candidate.nanos = Math.min(candidate.nanos, nanos);
+        }
+      }
+    }
+    System.out.println(String.format(Locale.ROOT, "time %d iters: %.1f sec", iters, (System.nanoTime()-t0)/1000000000.0));
+
+    mgr.close();
+    countingMgr.close();
+    dir.close();
+    countingDir.close();
+
+    if (check != null) {
+      if (checkDrift(byCategory, costMetric, maxDrift) == false) {
+        System.exit(1);
+      }
+      return;
+    }
+
+    try (BufferedWriter out = Files.newBufferedWriter(Paths.get(tasksOut), StandardCharsets.UTF_8)) {
+      System.out.println();
+      System.out.println(String.format(Locale.ROOT, "%-20s %6s %12s %12s %12s %8s", "category", "tasks", "min " + costMetric, "median", "max", "max/min"));
+      for(List<Candidate> candidates : byCategory.values()) {
+        final List<Candidate> selected = selectTightest(candidates, perCategory, costMetric);
+        final double min = selected.get(0).cost(costMetric);
+        final double max = selected.get(selected.size()-1).cost(costMetric);
+        System.out.println(String.format(Locale.ROOT, "%-20s %6d %12.1f %12.1f %12.1f %8.2f",
+                                         selected.get(0).category, selected.size(), min,
+                                         selected.get(selected.size()/2).cost(costMetric), max, max/Math.max(min, 1)));
+        if (selected.size() < perCategory) {
+          System.out.println("  WARNING: only " + selected.size() + " candidates");
+        }
+        // write in the original candidate order:
+        for(Candidate candidate : candidates) {
+          if (selected.contains(candidate)) {
+            out.write(candidate.category + ": " + candidate.text + " # " + candidate.annotation() + "\n");
+          }
+        }
+      }
+    }
+  }
+
+  /** Returns the n candidates, sorted by cost, whose max/min cost ratio is smallest */
+  private static List<Candidate> selectTightest(List<Candidate> candidates, int n, final String costMetric) {
+    final List<Candidate> sorted = new ArrayList<>(candidates);
+    Collections.sort(sorted, new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+          int cmp = Double.compare(a.cost(costMetric), b.cost(costMetric));
+          if (cmp == 0) {
+            cmp = a.text.compareTo(b.text);
+          }
+          return cmp;
+        }
+      });
+    if (sorted.size() <= n) {
+      return sorted;
+    }
+    int best = 0;
+    double bestSpread = Double.POSITIVE_INFINITY;
+    for(int i=0;i+n<=sorted.size();i++) {
+      // +1 so zero cost tasks (e.g. no hits) don't make the ratio infinite:
+      final double spread = Math.log(sorted.get(i+n-1).cost(costMetric)+1) - Math.log(sorted.get(i).cost(costMetric)+1);
+      if (spread < bestSpread) {
+        bestSpread = spread;
+        best = i;
+      }
+    }
+    return sorted.subList(best, best+n);
+  }
+
+  /** Parses the " # hits=.. bytes=.. ms=.." suffix of a calibrated task line */
+  private static Map<String,Double> parseAnnotation(String s) {
+    final Map<String,Double> values = new HashMap<>();
+    for(String token : s.replace('#', ' ').trim().split("\\s+")) {
+      final int i = token.indexOf('=');
+      if (i != -1) {
+        try {
+          values.put(token.substring(0, i), Double.parseDouble(token.substring(i+1)));
+        } catch (NumberFormatException nfe) {
+          // ignore other annotations
+        }
+      }
+    }
+    return values;
+  }
+
+  /** Prints each category's median measured/annotated cost ratio, and returns false if any is off by more than maxDrift */
+  private static boolean checkDrift(Map<String,List<Candidate>> byCategory, String costMetric, double maxDrift) {
+    boolean ok = true;
+    System.out.println();
+    System.out.println(String.format(Locale.ROOT, "%-20s %6s %10s %10s %10s", "category", "tasks", "hits", "bytes", "ms"));
+    for(List<Candidate> candidates : byCategory.values()) {
+      final String[] metrics = new String[] {"hits", "bytes", "ms"};
+      final double[] medians = new double[metrics.length];
+      for(int i=0;i<metrics.length;i++) {
+        final List<Double> ratios = new ArrayList<>();
+        for(Candidate candidate : candidates) {
+          final Double expected = candidate.expected.get(metrics[i]);
+          if (expected != null) {
+            ratios.add((candidate.cost(metrics[i])+1) / (expected+1));
+          }
+        }
+        if (ratios.isEmpty()) {
+          medians[i] = Double.NaN;
+        } else {
+          Collections.sort(ratios);
+          medians[i] = ratios.get(ratios.size()/2);
+        }
+      }
+      final double drift = medians[Arrays.asList(metrics).indexOf(costMetric)];
+      final boolean drifted = Double.isNaN(drift) || Math.abs(drift - 1.0) > maxDrift;
+      System.out.println(String.format(Locale.ROOT, "%-20s %6d %10.3f %10.3f %10.3f%s",
+                                       candidates.get(0).category, candidates.size(), medians[0], medians[1], medians[2],
+                                       drifted ? "  DRIFT" : ""));
+      if (drifted) {
+        ok = false;
+      }
+    }
+    return ok;
+  }
+}
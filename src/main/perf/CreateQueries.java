@@ -23,14 +23,19 @@ import org.apache.lucene.util.*;
 import org.apache.lucene.search.spell.*;
 
 import java.io.IOException;
-import java.io.File;
 import java.io.BufferedWriter;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.io.FileOutputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 import java.util.Random;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // TODO
 //   - maybe run the query and if it produces too few results, nuke it? (eg AndHighMed)
@@ -48,6 +53,9 @@ import java.util.HashSet;
     * Run this:
       javac -cp build/classes/java:build/contrib/spellchecker/classes/java perf/CreateQueries.java
       java -cp build/classes/java:build/contrib/spellchecker/classes/java:. perf.CreateQueries /p/lucene/indices/shingles body queries.txt >& /dev/shm/terms.x
+
+  The terms dictionary is scanned once, by -threads threads that each take ranges of terms sharing a 2-byte prefix, and
+  every query category is derived from that scan; output only depends on the index and -seed, not on the thread count.
 */
 
 // javac -cp build/classes/java:build/contrib/spellchecker/classes/java perf/CreateQueries.java
@@ -66,13 +74,99 @@ public class CreateQueries {
   }
 
   private static class MostFrequentTerms extends PriorityQueue<TermFreq> {
+    private final int maxSize;
+
     public MostFrequentTerms(int maxSize) {
       super(maxSize, false);
+      this.maxSize = maxSize;
     }
 
     @Override
     protected boolean lessThan(TermFreq tf1, TermFreq tf2) {
-      return tf1.df < tf2.df;
+      // ties go to the smaller term, so the top terms don't depend on which thread saw them first:
+      return tf1.df < tf2.df || (tf1.df == tf2.df && tf1.term.compareTo(tf2.term) > 0);
+    }
+
+    /** Like insertWithOverflow, but only copies the term if it is competitive */
+    void offer(BytesRef term, long df) {
+      if (size() == maxSize) {
+        TermFreq bottom = top();
+        if (df < bottom.df || (df == bottom.df && term.compareTo(bottom.term) > 0)) {
+          return;
+        }
+      }
+      insertWithOverflow(new TermFreq(term, df));
+    }
+  }
+
+  private final static int MAX_TERM_LENGTH_BUCKET = 32;
+
+  /** Everything one scan thread gathers from its ranges of the terms dictionary */
+  private static class TermStats {
+    final MostFrequentTerms topTerms = new MostFrequentTerms(TOP_N);
+    final MostFrequentTerms topShingles = new MostFrequentTerms(TOP_N);
+    // number of (non-shingle) terms by floor(log2(df)) and floor(log2(totalTermFreq)):
+    final long[] dfHistogram = new long[64];
+    final long[] ttfHistogram = new long[64];
+    // number of (non-shingle) terms by UTF-8 length; the last bucket counts all longer terms:
+    final long[] lengthCounts = new long[MAX_TERM_LENGTH_BUCKET+1];
+    long termCount;
+    long shingleCount;
+
+    void add(BytesRef term, int df, long ttf) {
+      if (indexOf(term, (byte) ':') != -1) {
+        return;
+      }
+      if (indexOf(term, (byte) ' ') != -1) {
+        if (startsWithHole(term) == false) {
+          shingleCount++;
+          topShingles.offer(term, df);
+        }
+        return;
+      }
+      termCount++;
+      dfHistogram[63 - Long.numberOfLeadingZeros(df)]++;
+      if (ttf > 0) {
+        ttfHistogram[63 - Long.numberOfLeadingZeros(ttf)]++;
+      }
+      lengthCounts[Math.min(term.length, MAX_TERM_LENGTH_BUCKET)]++;
+      topTerms.offer(term, df);
+    }
+
+    void merge(TermStats other) {
+      while (other.topTerms.size() > 0) {
+        topTerms.insertWithOverflow(other.topTerms.pop());
+      }
+      while (other.topShingles.size() > 0) {
+        topShingles.insertWithOverflow(other.topShingles.pop());
+      }
+      for(int i=0;i<64;i++) {
+        dfHistogram[i] += other.dfHistogram[i];
+        ttfHistogram[i] += other.ttfHistogram[i];
+      }
+      for(int i=0;i<lengthCounts.length;i++) {
+        lengthCounts[i] += other.lengthCounts[i];
+      }
+      termCount += other.termCount;
+      shingleCount += other.shingleCount;
+    }
+
+    private static int indexOf(BytesRef term, byte b) {
+      for(int i=0;i<term.length;i++) {
+        if (term.bytes[term.offset+i] == b) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /** A shingle over a hole, i.e. starting with "_ " or ending with " _" */
+    private static boolean startsWithHole(BytesRef term) {
+      final byte[] bytes = term.bytes;
+      final int start = term.offset;
+      final int end = term.offset + term.length;
+      return (term.length >= 2 && bytes[start] == '_' && bytes[start+1] == ' ') ||
+        (term.length >= 2 && bytes[end-2] == ' ' && bytes[end-1] == '_');
     }
   }
 
@@ -80,26 +174,41 @@ public class CreateQueries {
   private final static int NUM_QUERIES = 500;
   private final static int TOP_N = 50000;
 
-  public static void main(String[] args) throws IOException {
-    if (args.length != 3) {
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
       System.out.println();
-      System.out.println("Usage: java perf.CreateQueries /path/to/shingled/index fieldName queriesFileOut");
+      System.out.println("Usage: java perf.CreateQueries /path/to/shingled/index fieldName queriesFileOut [-threads N] [-seed 1742]");
       System.exit(1);
     }
 
     final String indexPath = args[0];
     final String field = args[1];
     final String queriesFileOut = args[2];
+    int threadCount = Runtime.getRuntime().availableProcessors();
+    long seed = 1742;
+    for(int i=3;i<args.length;i+=2) {
+      if (i+1 == args.length) {
+        throw new IllegalArgumentException("missing value for command line option \"" + args[i] + "\"");
+      }
+      if (args[i].equals("-threads")) {
+        threadCount = Integer.parseInt(args[i+1]);
+      } else if (args[i].equals("-seed")) {
+        seed = Long.parseLong(args[i+1]);
+      } else {
+        throw new IllegalArgumentException("unknown command line option \"" + args[i] + "\"");
+      }
+    }
 
     final BufferedWriter queriesOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(queriesFileOut),"UTF8"));
 
-    final Directory dir = FSDirectory.open(new File(indexPath));
+    final Directory dir = FSDirectory.open(Paths.get(indexPath));
     final IndexReader r = DirectoryReader.open(dir);
 
-    System.out.println("\nFind top df terms...");
+    System.out.println("\nScan terms with " + threadCount + " threads...");
+    final TermStats stats = scanTerms(r, field, threadCount);
     
-    // First pass: get high/medium/low freq terms:
-    final TermFreq[] topTerms = getTopTermsByDocFreq(r, field, TOP_N, false);
+    // High/medium/low freq terms:
+    final TermFreq[] topTerms = sortedTopTerms(stats.topTerms, "unique terms");
 
     final long maxDF = topTerms[0].df;
 
@@ -148,7 +257,7 @@ public class CreateQueries {
     final TermFreq[] lowFreqTerms = new TermFreq[topTerms.length - downTo];
     System.arraycopy(topTerms, downTo, lowFreqTerms, 0, lowFreqTerms.length);
 
-    final Random random = new Random(1742);
+    final Random random = new Random(seed);
 
     System.out.println("  " + highFreqTerms.length + " high freq terms");
     System.out.println("  " + mediumFreqTerms.length + " medium freq terms");
@@ -161,9 +270,9 @@ public class CreateQueries {
 
     makeWildcardQueries(topTerms, queriesOut);
 
-    processShingles(r, field, queriesOut);
+    processShingles(r, field, sortedTopTerms(stats.topShingles, "unique shingles"), queriesOut);
 
-    makeFuzzyAndRespellQueries(r, field, topTerms, queriesOut);
+    makeFuzzyAndRespellQueries(r, field, topTerms, threadCount, queriesOut);
 
     queriesOut.close();
 
@@ -224,41 +333,71 @@ public class CreateQueries {
     queriesOut.flush();
   }
 
-  private static void makeFuzzyAndRespellQueries(IndexReader r, String field, TermFreq[] topTerms, Writer queriesOut) throws IOException {
+  private static void makeFuzzyAndRespellQueries(final IndexReader r, final String field, final TermFreq[] topTerms, int threadCount, Writer queriesOut) throws Exception {
 
     System.out.println("\nFind top fuzzy/respell terms...");
     final DirectSpellChecker spellChecker = new DirectSpellChecker();    
     spellChecker.setThresholdFrequency(1.0f);
 
-    final MostFrequentTerms pq = new MostFrequentTerms(NUM_QUERIES);
-
-    // TODO: use threads...?
-    int count = 0;
-    for(TermFreq tdf : topTerms) {
-      if ((++count) % 1000 == 0) {
-        System.out.println("  "  + count + " of " + topTerms.length + "...");
-      }
-      if (tdf.term.length < 5) {
-        continue;
-      }
-      // TODO: make my own fuzzy enum?
-      long sumDF = 0;
-      SuggestWord[] suggested = spellChecker.suggestSimilar(new Term(field, tdf.term), 50, r, SuggestMode.SUGGEST_MORE_POPULAR);
-      if (suggested.length < 5) {
-        continue;
-      }
-      for(SuggestWord suggest : suggested) {
-        sumDF += suggest.freq;
-      }
-
-      // Strongly favor higher number of suggestions and gently favor higher sumDF:
-      final long score = (long) (Math.log(sumDF) * suggested.length);
-
-      final TermFreq newTF = new TermFreq(tdf.term, score); 
-      final TermFreq bumpedTF = pq.insertWithOverflow(newTF);
+    // score of each top term, or -1 if it's not a candidate; scored concurrently since each suggestSimilar is costly:
+    final long[] scores = new long[topTerms.length];
+    final AtomicInteger nextTerm = new AtomicInteger();
+    final AtomicBoolean failed = new AtomicBoolean();
+    Thread[] threads = new Thread[threadCount];
+    for(int t=0;t<threadCount;t++) {
+      threads[t] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              _run();
+            } catch (Exception e) {
+              failed.set(true);
+              throw new RuntimeException(e);
+            }
+          }
+
+          private void _run() throws IOException {
+            while (true) {
+              final int idx = nextTerm.getAndIncrement();
+              if (idx >= topTerms.length) {
+                break;
+              }
+              if ((idx+1) % 1000 == 0) {
+                System.out.println("  "  + (idx+1) + " of " + topTerms.length + "...");
+              }
+              scores[idx] = -1;
+              final TermFreq tdf = topTerms[idx];
+              if (tdf.term.length < 5) {
+                continue;
+              }
+              // TODO: make my own fuzzy enum?
+              long sumDF = 0;
+              SuggestWord[] suggested = spellChecker.suggestSimilar(new Term(field, tdf.term), 50, r, SuggestMode.SUGGEST_MORE_POPULAR);
+              if (suggested.length < 5) {
+                continue;
+              }
+              for(SuggestWord suggest : suggested) {
+                sumDF += suggest.freq;
+              }
+
+              // Strongly favor higher number of suggestions and gently favor higher sumDF:
+              scores[idx] = (long) (Math.log(sumDF) * suggested.length);
+            }
+          }
+        };
+      threads[t].start();
+    }
+    for(Thread thread : threads) {
+      thread.join();
+    }
+    if (failed.get()) {
+      throw new RuntimeException("fuzzy scoring thread failed");
+    }
 
-      if (bumpedTF != newTF) {
-        System.out.println("  " + newTF.term.utf8ToString() + " score=" + score + " suggestCount=" + suggested.length);
+    final MostFrequentTerms pq = new MostFrequentTerms(NUM_QUERIES);
+    for(int idx=0;idx<topTerms.length;idx++) {
+      if (scores[idx] != -1) {
+        pq.offer(topTerms[idx].term, scores[idx]);
       }
     }
 
@@ -266,7 +405,6 @@ public class CreateQueries {
       throw new RuntimeException("index is too small: only " + pq.size() + " top fuzzy terms");
     }
 
-//    int downTo = NUM_QUERIES;
     while (pq.size()>0) {
       TermFreq tdf = pq.pop();
       System.out.println("  " + tdf.term.utf8ToString() + " freq=" + tdf.df);
@@ -390,37 +528,105 @@ public class CreateQueries {
     queriesOut.flush();
   }
 
-  private static TermFreq[] getTopTermsByDocFreq(IndexReader r, String field, int topN, boolean doShingles) throws IOException {
-    final MostFrequentTerms pq = new MostFrequentTerms(topN);
-    Terms terms = MultiFields.getTerms(r, field);
-    if (terms != null) {
-      TermsEnum termsEnum = terms.iterator(null);
-      while (termsEnum.next() != null) {
-        String term = termsEnum.term().utf8ToString();
-        if (term.indexOf(':') != -1) {
-          continue;
-        }
-        final boolean isShingle = term.indexOf(' ') != -1;
+  /** Scans the field's terms dictionary once, split into ranges of terms sharing a 2-byte prefix that threads claim in
+   *  order, and merges what each thread gathered. */
+  private static TermStats scanTerms(IndexReader r, String field, int threadCount) throws Exception {
+    final Terms terms = MultiFields.getTerms(r, field);
+    if (terms == null) {
+      throw new RuntimeException("field '" + field + "' does not exist");
+    }
+    final long t0 = System.nanoTime();
+    final int rangeCount = 1 << 16;
+    final AtomicInteger nextRange = new AtomicInteger();
+    final AtomicBoolean failed = new AtomicBoolean();
+    final List<TermStats> threadStats = new ArrayList<>();
+    Thread[] threads = new Thread[threadCount];
+    for(int t=0;t<threadCount;t++) {
+      final TermStats myStats = new TermStats();
+      threadStats.add(myStats);
+      threads[t] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              _run();
+            } catch (Exception e) {
+              failed.set(true);
+              throw new RuntimeException(e);
+            }
+          }
+
+          private void _run() throws IOException {
+            final TermsEnum termsEnum = terms.iterator();
+            final BytesRef upper = new BytesRef(new byte[2]);
+            while (true) {
+              final int range = nextRange.getAndIncrement();
+              if (range >= rangeCount) {
+                break;
+              }
+              // range covers [prefix, next prefix); the first range also takes terms shorter than 2 bytes:
+              final BytesRef term;
+              if (range == 0) {
+                term = termsEnum.seekCeil(new BytesRef()) == TermsEnum.SeekStatus.END ? null : termsEnum.term();
+              } else {
+                term = termsEnum.seekCeil(new BytesRef(new byte[] {(byte) (range >> 8), (byte) range})) == TermsEnum.SeekStatus.END ? null : termsEnum.term();
+              }
+              if (term == null) {
+                continue;
+              }
+              final boolean lastRange = range == rangeCount-1;
+              upper.bytes[0] = (byte) ((range+1) >> 8);
+              upper.bytes[1] = (byte) (range+1);
+              BytesRef next = term;
+              while (next != null && (lastRange || next.compareTo(upper) < 0)) {
+                myStats.add(next, termsEnum.docFreq(), termsEnum.totalTermFreq());
+                next = termsEnum.next();
+              }
+            }
+          }
+        };
+      threads[t].start();
+    }
+    for(Thread thread : threads) {
+      thread.join();
+    }
+    if (failed.get()) {
+      throw new RuntimeException("terms scan thread failed");
+    }
 
-        if (isShingle && (term.startsWith("_ ") || term.endsWith(" _"))) {
-          // A hole!
-          continue;
-        }
+    final TermStats stats = threadStats.get(0);
+    for(int t=1;t<threadStats.size();t++) {
+      stats.merge(threadStats.get(t));
+    }
+    System.out.println(String.format(Locale.ROOT, "  %d terms and %d shingles in %.1f sec", stats.termCount, stats.shingleCount, (System.nanoTime()-t0)/1000000000.0));
+    System.out.println("  df histogram (log2 bucket: terms):");
+    printHistogram(stats.dfHistogram);
+    System.out.println("  totalTermFreq histogram (log2 bucket: terms):");
+    printHistogram(stats.ttfHistogram);
+    System.out.println("  term length (bytes: terms):");
+    for(int i=0;i<stats.lengthCounts.length;i++) {
+      if (stats.lengthCounts[i] != 0) {
+        System.out.println("    " + (i == MAX_TERM_LENGTH_BUCKET ? ">=" : "") + i + ": " + stats.lengthCounts[i]);
+      }
+    }
+    return stats;
+  }
 
-        if (isShingle == doShingles) {
-          pq.insertWithOverflow(new TermFreq(termsEnum.term(), termsEnum.docFreq()));
-        }
+  private static void printHistogram(long[] histogram) {
+    for(int i=0;i<histogram.length;i++) {
+      if (histogram[i] != 0) {
+        System.out.println("    " + (1L << i) + ".." + ((1L << (i+1)) - 1) + ": " + histogram[i]);
       }
-    } else {
-      throw new RuntimeException("field '" + field + "' does not exist");
     }
+  }
 
-    if (pq.size() < topN) {
-      throw new RuntimeException("index is too small: only " + pq.size() + " unique terms");
+  /** Drains the queue into an array, highest df first */
+  private static TermFreq[] sortedTopTerms(MostFrequentTerms pq, String desc) {
+    if (pq.size() < TOP_N) {
+      throw new RuntimeException("index is too small: only " + pq.size() + " " + desc);
     }
 
-    final TermFreq[] topTerms = new TermFreq[topN];
-    int downTo = topN-1;
+    final TermFreq[] topTerms = new TermFreq[pq.size()];
+    int downTo = topTerms.length-1;
     while (pq.size()>0) {
       topTerms[downTo--] = pq.pop();
     }
@@ -428,10 +634,8 @@ public class CreateQueries {
     return topTerms;
   }
 
-  private static void processShingles(IndexReader r, String field, Writer queriesOut) throws IOException {
+  private static void processShingles(IndexReader r, String field, TermFreq[] topShingles, Writer queriesOut) throws IOException {
     System.out.println("\nFind phrase queries...");
-    // First pass: get high/medium freq shingles:
-    final TermFreq[] topShingles = getTopTermsByDocFreq(r, field, TOP_N, true);
 
     long topDF = topShingles[0].df;
     int upto = 0;
@@ -17,15 +17,29 @@
 
 package perf;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.codecs.CodecUtil;
 import org.apache.lucene.codecs.DocValuesFormat;
@@ -36,39 +50,118 @@ import org.apache.lucene.codecs.lucene70.Lucene70Codec;
 import org.apache.lucene.codecs.lucene70.Lucene70DocValuesFormat;
 import org.apache.lucene.codecs.perfield.PerFieldDocValuesFormat;
 import org.apache.lucene.codecs.perfield.PerFieldPostingsFormat;
-import org.apache.lucene.index.CodecReader;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.DocValuesType;
 import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.IndexFileNames;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.SegmentCommitInfo;
 import org.apache.lucene.index.SegmentReader;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.store.ChecksumIndexInput;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.IOContext;
-import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.StringHelper;
 
 /** 
  * does ugly hacks to print out disk usage analysis of a lucene index 
  * <p>
- * You need a lucene 6.x core jar, then do this:
+ * Each segment is rewritten on its own, concurrently, with a codec that writes per-field files, and the per-segment
+ * results are summed.  Pass -cache to keep the per-segment results across runs, keyed by segment id and deletes/doc
+ * values generation, so a re-run only analyzes new or changed segments.  Pass -json to also write per-field,
+ * per-file-type bytes for capacity planning.
+ * <p>
+ * You need a lucene 7.x core jar, then do this:
  * javac -cp /path/to/lucene-core.jar DiskUsage.java
  * java -cp /path/to/lucene-core.jar:. DiskUsage /elasticserach/data/elasticsearch/nodes/0/indices/whatever/0/index
  */
 public class DiskUsage {
   
   public static void main(String args[]) throws Exception {
-    if (args.length != 1) {
-      System.err.println("java [-Djava.io.tmpdir=/scratch] [-Dmode=BEST_COMPRESSION] -cp lucene-core.jar:./build DiskUsage <path to lucene index>");
+    int threadCount = Runtime.getRuntime().availableProcessors();
+    Path cacheFile = null;
+    Path jsonFile = null;
+    boolean verbose = false;
+    String indexPath = null;
+    for(int i=0;i<args.length;i++) {
+      if (args[i].equals("-threads") && i < args.length-1) {
+        threadCount = Integer.parseInt(args[++i]);
+        if (threadCount < 1) {
+          throw new IllegalArgumentException("-threads must be >= 1; got " + threadCount);
+        }
+      } else if (args[i].equals("-cache") && i < args.length-1) {
+        cacheFile = Paths.get(args[++i]);
+      } else if (args[i].equals("-json") && i < args.length-1) {
+        jsonFile = Paths.get(args[++i]);
+      } else if (args[i].equals("-verbose")) {
+        verbose = true;
+      } else if (indexPath == null && args[i].startsWith("-") == false) {
+        indexPath = args[i];
+      } else {
+        indexPath = null;
+        break;
+      }
+    }
+    if (indexPath == null) {
+      System.err.println("java [-Djava.io.tmpdir=/scratch] [-Dmode=BEST_COMPRESSION] -cp lucene-core.jar:./build DiskUsage [-threads N] [-cache file] [-json file] [-verbose] <path to lucene index>");
       System.exit(1);
     }
 
+    Path tmp = Files.createTempDirectory(null);
+    System.err.println("analyzing... (using " + tmp + " for temporary storage)");
+
+    try (Directory dir = FSDirectory.open(Paths.get(indexPath));
+         DirectoryReader reader = DirectoryReader.open(dir)) {
+
+      FieldInfos fieldInfos = MultiFields.getMergedFieldInfos(reader);
+      for (FieldInfo fi : fieldInfos) {
+        if (fi.getPointDimensionCount() != 0) {
+          // printed once, up front, so the output looks the same however many segments we analyze:
+          System.err.println("retrieving per-field point usage, if you see a scary corruption error, its probably just this tool!!!!");
+          break;
+        }
+      }
+
+      Map<String,SegmentStats> cache = new HashMap<>();
+      if (cacheFile != null && Files.exists(cacheFile)) {
+        cache = readCache(cacheFile);
+      }
+
+      long t0 = System.nanoTime();
+      List<SegmentStats> segments = analyzeSegments(reader, tmp, cache, threadCount, verbose);
+      if (verbose) {
+        System.err.println(String.format(Locale.ROOT, "%d segments analyzed with %d threads in %.1f sec (%d were cached)",
+                                         segments.size(), threadCount, (System.nanoTime()-t0)/1000000000., segments.size() - newlyAnalyzed(segments, cache)));
+      }
+
+      if (cacheFile != null) {
+        // only keep the segments still in the index:
+        Map<String,SegmentStats> newCache = new HashMap<>();
+        for (SegmentStats segment : segments) {
+          newCache.put(segment.key, segment);
+        }
+        writeCache(cacheFile, newCache);
+      }
+
+      IndexStats total = new IndexStats(segments);
+      report(total, fieldInfos);
+      if (jsonFile != null) {
+        writeJSON(jsonFile, total, fieldInfos);
+      }
+    } finally {
+      IOUtils.rm(tmp);
+    }
+  }
+
+  private static IndexWriterConfig newConfig() {
     IndexWriterConfig conf = new IndexWriterConfig(null);
     conf.setOpenMode(OpenMode.CREATE);
     // force codec to write per-field filenames.
@@ -83,29 +176,134 @@ public class DiskUsage {
         return new Lucene70DocValuesFormat();
       }
     });
+    return conf;
+  }
     
-    Path tmp = Files.createTempDirectory(null);
-    System.err.println("analyzing... (using " + tmp + " for temporary storage)");
+  /** Identifies a segment's current contents: deletes and doc values updates bump their generations */
+  static String segmentKey(SegmentCommitInfo info) {
+    // the stored fields compression mode changes the results too:
+    return StringHelper.idToString(info.info.getId()) + "_" + info.getDelGen() + "_" + info.getDocValuesGen() + "_" + System.getProperty("mode", "BEST_SPEED");
+  }
     
-    try (Directory dir = FSDirectory.open(Paths.get(args[0]));
-         DirectoryReader reader = DirectoryReader.open(dir);
-         Directory scratch = FSDirectory.open(tmp);
-         IndexWriter writer = new IndexWriter(scratch, conf)) {
-      
-      CodecReader inputs[] = new CodecReader[reader.leaves().size()];
-      for (int i = 0; i < inputs.length; i++) {
-        inputs[i] = (CodecReader) reader.leaves().get(i).reader();
+  /** Analyzes all segments not already in the cache, biggest first, in threadCount threads */
+  static List<SegmentStats> analyzeSegments(DirectoryReader reader, final Path tmp, final Map<String,SegmentStats> cache,
+                                            int threadCount, final boolean verbose) throws Exception {
+    final List<SegmentReader> todo = new ArrayList<>();
+    final List<SegmentStats> results = Collections.synchronizedList(new ArrayList<SegmentStats>());
+    for (LeafReaderContext ctx : reader.leaves()) {
+      SegmentReader sr = (SegmentReader) ctx.reader();
+      SegmentStats cached = cache.get(segmentKey(sr.getSegmentInfo()));
+      if (cached != null) {
+        results.add(cached);
+      } else {
+        todo.add(sr);
       }
-      writer.addIndexes(inputs);
+    }
       
+    // Start the big segments first so one isn't left running alone at the end:
+    Collections.sort(todo, new Comparator<SegmentReader>() {
+        @Override
+        public int compare(SegmentReader a, SegmentReader b) {
+          return Integer.compare(b.maxDoc(), a.maxDoc());
+        }
+      });
+      
+    final AtomicInteger nextSegment = new AtomicInteger();
+    final AtomicBoolean failed = new AtomicBoolean();
+    Thread[] threads = new Thread[Math.min(threadCount, todo.size())];
+    for(int i=0;i<threads.length;i++) {
+      threads[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              _run();
+            } catch (Exception e) {
+              failed.set(true);
+              throw new RuntimeException(e);
+            }
+          }
+
+          private void _run() throws Exception {
+            while (failed.get() == false) {
+              int upto = nextSegment.getAndIncrement();
+              if (upto >= todo.size()) {
+                break;
+              }
+              SegmentReader sr = todo.get(upto);
+              long t0 = System.nanoTime();
+              results.add(analyzeSegment(sr, tmp.resolve("seg" + upto)));
+              if (verbose) {
+                System.err.println(String.format(Locale.ROOT, "%s: %d docs took %.1f sec",
+                                                 sr.getSegmentName(), sr.maxDoc(), (System.nanoTime()-t0)/1000000000.));
+              }
+            }
+          }
+        };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failed.get()) {
+      throw new RuntimeException("analyzing segments failed");
+    }
+    return results;
+  }
+
+  /** Rewrites one segment (dropping its deleted docs) with per-field files and measures them */
+  static SegmentStats analyzeSegment(SegmentReader source, Path scratchPath) throws Exception {
+    try (Directory scratch = FSDirectory.open(scratchPath);
+         IndexWriter writer = new IndexWriter(scratch, newConfig())) {
+      writer.addIndexes(source);
       try (DirectoryReader newReader = DirectoryReader.open(writer)) {
         assert newReader.leaves().size() == 1;
         SegmentReader sr = (SegmentReader) newReader.leaves().get(0).reader();
-        report(sr, analyzeFields(sr));
+        SegmentStats stats = new SegmentStats(segmentKey(source.getSegmentInfo()), sr.numDocs());
+        for (FieldStats field : analyzeFields(sr)) {
+          stats.fields.put(field.name, field);
+        }
+        Directory directory = sr.directory();
+        for (String file : directory.listAll()) {
+          String extension = IndexFileNames.getExtension(file);
+          if (extension != null && extension.equals("lock") == false) {
+            add(stats.bytesByExtension, extension, directory.fileLength(file));
+          }
+        }
+        return stats;
       }
     } finally {
-      IOUtils.rm(tmp);
+      IOUtils.rm(scratchPath);
+    }
+  }
+
+  private static int newlyAnalyzed(List<SegmentStats> segments, Map<String,SegmentStats> cache) {
+    int count = 0;
+    for (SegmentStats segment : segments) {
+      if (cache.containsKey(segment.key) == false) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @SuppressWarnings("unchecked")
+  static Map<String,SegmentStats> readCache(Path cacheFile) throws IOException, ClassNotFoundException {
+    try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(cacheFile))) {
+      return (Map<String,SegmentStats>) in.readObject();
+    }
+  }
+
+  static void writeCache(Path cacheFile, Map<String,SegmentStats> cache) throws IOException {
+    Path tmpFile = Paths.get(cacheFile.toString() + ".tmp");
+    try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(tmpFile))) {
+      out.writeObject(cache);
     }
+    Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  static void add(Map<String,Long> bytesByExtension, String extension, long bytes) {
+    Long current = bytesByExtension.get(extension);
+    bytesByExtension.put(extension, current == null ? bytes : current + bytes);
   }
   
   /** Returns the codec suffix from this file name, or null if there is no suffix. */
@@ -128,14 +326,69 @@ public class DiskUsage {
     }
   }
   
-  static class FieldStats implements Comparable<FieldStats> {
+  /** One segment's results; this is what we cache */
+  static class SegmentStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final String key;
+    final int numDocs;
+    final Map<String,FieldStats> fields = new HashMap<>();
+    // all files, per-field or not:
+    final Map<String,Long> bytesByExtension = new TreeMap<>();
+
+    SegmentStats(String key, int numDocs) {
+      this.key = key;
+      this.numDocs = numDocs;
+    }
+  }
+
+  /** Sum over all segments */
+  static class IndexStats {
+    long numDocs;
+    final Map<String,Long> bytesByExtension = new TreeMap<>();
+    final Set<FieldStats> fields;
+
+    IndexStats(List<SegmentStats> segments) {
+      Map<String,FieldStats> byName = new HashMap<>();
+      for (SegmentStats segment : segments) {
+        numDocs += segment.numDocs;
+        for (Map.Entry<String,Long> ent : segment.bytesByExtension.entrySet()) {
+          add(bytesByExtension, ent.getKey(), ent.getValue());
+        }
+        for (FieldStats field : segment.fields.values()) {
+          FieldStats sum = byName.get(field.name);
+          if (sum == null) {
+            sum = new FieldStats(field.name);
+            byName.put(field.name, sum);
+          }
+          sum.add(field);
+        }
+      }
+      // sort only once the totals are known:
+      fields = new TreeSet<FieldStats>(byName.values());
+    }
+
+    long totalBytes() {
+      long total = 0;
+      for (long bytes : bytesByExtension.values()) {
+        total += bytes;
+      }
+      return total;
+    }
+  }
+
+  static class FieldStats implements Comparable<FieldStats>, Serializable {
+    private static final long serialVersionUID = 1L;
+
     final String name;
     long termsBytes;
     long postingsBytes;
     long proxBytes;
     long dvBytes;
     long pointsBytes;
-    int docCountWithField;
+    long docCountWithField;
+    // the same bytes, by file extension:
+    final Map<String,Long> bytesByExtension = new TreeMap<>();
     
     FieldStats(String name) {
       this.name = name;
@@ -145,6 +398,18 @@ public class DiskUsage {
       return termsBytes + postingsBytes + proxBytes + dvBytes + pointsBytes;
     }
 
+    void add(FieldStats other) {
+      termsBytes += other.termsBytes;
+      postingsBytes += other.postingsBytes;
+      proxBytes += other.proxBytes;
+      dvBytes += other.dvBytes;
+      pointsBytes += other.pointsBytes;
+      docCountWithField += other.docCountWithField;
+      for (Map.Entry<String,Long> ent : other.bytesByExtension.entrySet()) {
+        DiskUsage.add(bytesByExtension, ent.getKey(), ent.getValue());
+      }
+    }
+
     @Override
     public int compareTo(FieldStats o) {
       // reverse order
@@ -201,11 +466,9 @@ public class DiskUsage {
       }
 
       if (docsWithField != null) {
-        int count = 0;
-        while(docsWithField.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
-          count++;
-        }
-        fieldStats.docCountWithField = count;
+        // No need to iterate: we just wrote this segment with Lucene70DocValuesFormat, whose iterators' cost is
+        // exactly the number of docs with a value (maxDoc when dense, else the sparse doc count):
+        fieldStats.docCountWithField = docsWithField.cost();
       }
     }
     
@@ -214,29 +477,35 @@ public class DiskUsage {
       String suffix = parseSuffix(file);
       long bytes = directory.fileLength(file);
       if (suffix != null) {
-        switch (IndexFileNames.getExtension(file)) {
+        String extension = IndexFileNames.getExtension(file);
+        FieldStats fieldStats;
+        switch (extension) {
           case "dvd":
           case "dvm":
-            stats.get(dvSuffixes.get(suffix)).dvBytes += bytes;
+            fieldStats = stats.get(dvSuffixes.get(suffix));
+            fieldStats.dvBytes += bytes;
             break;
           case "tim":
           case "tip":
-            stats.get(postingsSuffixes.get(suffix)).termsBytes += bytes;
+            fieldStats = stats.get(postingsSuffixes.get(suffix));
+            fieldStats.termsBytes += bytes;
             break;
           case "doc":
-            stats.get(postingsSuffixes.get(suffix)).postingsBytes += bytes;
+            fieldStats = stats.get(postingsSuffixes.get(suffix));
+            fieldStats.postingsBytes += bytes;
             break;
           case "pos":
           case "pay":
-            stats.get(postingsSuffixes.get(suffix)).proxBytes += bytes;
+            fieldStats = stats.get(postingsSuffixes.get(suffix));
+            fieldStats.proxBytes += bytes;
             break;
           default: 
             throw new AssertionError("unexpected suffixed file: " + file);
         }
+        add(fieldStats.bytesByExtension, extension, bytes);
       } else {
         // not a per-field file, but we can hackishly do this for the points case.
         if ("dii".equals(IndexFileNames.getExtension(file))) {
-          System.err.println("retrieving per-field point usage, if you see a scary corruption error, its probably just this tool!!!!");
           try (ChecksumIndexInput in = directory.openChecksumInput(file, IOContext.READONCE)) {
             // fail hard if its not exactly the version we do this hack for.
             CodecUtil.checkIndexHeader(in, "Lucene60PointsFormatMeta", 0, 0, reader.getSegmentInfo().info.getId(), "");
@@ -254,6 +523,7 @@ public class DiskUsage {
               long offset = entry.getKey();
               String field = entry.getValue();
               stats.get(field).pointsBytes += (offset - previousOffset);
+              add(stats.get(field).bytesByExtension, "dim", offset - previousOffset);
               previousOffset = offset;
             }
             CodecUtil.checkFooter(in);
@@ -265,7 +535,7 @@ public class DiskUsage {
     return new TreeSet<FieldStats>(stats.values());
   }
   
-  static void report(SegmentReader reader, Set<FieldStats> stats) throws Exception {
+  static void report(IndexStats index, FieldInfos fieldInfos) throws Exception {
     long totalSize = 0;
     long storeSize = 0;
     long vectorSize = 0;
@@ -275,50 +545,48 @@ public class DiskUsage {
     long pointsSize = 0;
     long termsSize = 0;
     long proxSize = 0;
-    for (String file : reader.directory().listAll()) {
-      long size = reader.directory().fileLength(file);
+    for (Map.Entry<String,Long> ent : index.bytesByExtension.entrySet()) {
+      long size = ent.getValue();
       totalSize += size;
-      String extension = IndexFileNames.getExtension(file);
-      if (extension != null) {
-        switch (extension) {
-          case "fdt":
-          case "fdx":
-            storeSize += size;
-            break;
-          case "tvx":
-          case "tvd":
-            vectorSize += size;
-            break;
-          case "nvd":
-          case "nvm":
-            normsSize += size;
-            break;
-          case "dvd":
-          case "dvm":
-            dvsSize += size;
-            break;
-          case "tim":
-          case "tip":
-            termsSize += size;
-            break;
-          case "pos":
-          case "pay":
-            proxSize += size;
-            break;
-          case "doc":
-            postingsSize += size;
-            break;
-          case "dii":
-          case "dim":
-            pointsSize += size;
-            break;
-        }
+      String extension = ent.getKey();
+      switch (extension) {
+        case "fdt":
+        case "fdx":
+          storeSize += size;
+          break;
+        case "tvx":
+        case "tvd":
+          vectorSize += size;
+          break;
+        case "nvd":
+        case "nvm":
+          normsSize += size;
+          break;
+        case "dvd":
+        case "dvm":
+          dvsSize += size;
+          break;
+        case "tim":
+        case "tip":
+          termsSize += size;
+          break;
+        case "pos":
+        case "pay":
+          proxSize += size;
+          break;
+        case "doc":
+          postingsSize += size;
+          break;
+        case "dii":
+        case "dim":
+          pointsSize += size;
+          break;
       }
     }
     
     DecimalFormat df = new DecimalFormat("#,##0");
     System.out.printf("total disk:    %15s\n", df.format(totalSize));
-    System.out.printf("num docs:      %15s\n", df.format(reader.numDocs()));
+    System.out.printf("num docs:      %15s\n", df.format(index.numDocs));
     System.out.printf("stored fields: %15s\n", df.format(storeSize));
     System.out.printf("term vectors:  %15s\n", df.format(vectorSize));
     System.out.printf("norms:         %15s\n", df.format(normsSize));
@@ -330,7 +598,7 @@ public class DiskUsage {
     System.out.println();
 
     int maxFieldNameLength = 0;
-    for (FieldStats field : stats) {
+    for (FieldStats field : index.fields) {
         maxFieldNameLength = Math.max(maxFieldNameLength, field.name.length());
     }
 
@@ -340,7 +608,7 @@ public class DiskUsage {
     System.out.printf(fieldNameFormat + " %15s %15s %15s %15s %15s %15s %15s %20s\n", "field", "total", "terms dict", "postings", "proximity", "points", "docvalues", "% with dv", "features");
     System.out.printf(fieldNameFormat + " %15s %15s %15s %15s %15s %15s %15s %20s\n", "=====", "=====", "==========", "========", "=========", "=========", "=========", "========", "========");
 
-    for (FieldStats field : stats) {
+    for (FieldStats field : index.fields) {
       System.out.printf(fieldNameFormat + " %15s %15s %15s %15s %15s %15s %14.1f%% %20s\n", 
                        field.name,
                        df.format(field.totalBytes()),
@@ -349,9 +617,67 @@ public class DiskUsage {
                        df.format(field.proxBytes),
                        df.format(field.pointsBytes),
                        df.format(field.dvBytes),
-                       (100.0*field.docCountWithField)/reader.maxDoc(),
-                       features(reader.getFieldInfos().fieldInfo(field.name)));
+                       (100.0*field.docCountWithField)/index.numDocs,
+                       features(fieldInfos.fieldInfo(field.name)));
+    }
+  }
+
+  /** Writes per-field and per-file-type bytes, for capacity planning */
+  static void writeJSON(Path jsonFile, IndexStats index, FieldInfos fieldInfos) throws IOException {
+    try (Writer out = Files.newBufferedWriter(jsonFile, StandardCharsets.UTF_8)) {
+      out.write("{\n");
+      out.write("  \"numDocs\": " + index.numDocs + ",\n");
+      out.write("  \"totalBytes\": " + index.totalBytes() + ",\n");
+      out.write("  \"bytesByFileType\": " + toJSON(index.bytesByExtension) + ",\n");
+      out.write("  \"fields\": {");
+      boolean first = true;
+      for (FieldStats field : index.fields) {
+        if (first == false) {
+          out.write(",");
+        }
+        first = false;
+        out.write("\n    " + quote(field.name) + ": {");
+        out.write("\"totalBytes\": " + field.totalBytes());
+        out.write(", \"docCountWithField\": " + field.docCountWithField);
+        out.write(", \"features\": " + quote(features(fieldInfos.fieldInfo(field.name))));
+        out.write(", \"bytesByFileType\": " + toJSON(field.bytesByExtension) + "}");
+      }
+      out.write("\n  }\n");
+      out.write("}\n");
+    }
+  }
+
+  private static String toJSON(Map<String,Long> bytesByExtension) {
+    StringBuilder sb = new StringBuilder();
+    sb.append('{');
+    for (Map.Entry<String,Long> ent : bytesByExtension.entrySet()) {
+      if (sb.length() > 1) {
+        sb.append(", ");
+      }
+      sb.append(quote(ent.getKey()));
+      sb.append(": ");
+      sb.append(ent.getValue());
+    }
+    sb.append('}');
+    return sb.toString();
+  }
+
+  private static String quote(String s) {
+    StringBuilder sb = new StringBuilder();
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char ch = s.charAt(i);
+      if (ch == '"' || ch == '\\') {
+        sb.append('\\');
+        sb.append(ch);
+      } else if (ch < 0x20) {
+        sb.append(String.format(Locale.ROOT, "\\u%04x", (int) ch));
+      } else {
+        sb.append(ch);
+      }
     }
+    sb.append('"');
+    return sb.toString();
   }
 
   static String features(FieldInfo fi) {
@@ -0,0 +1,206 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/** Docs decoded once from a line file into off-heap memory, so indexing threads can fill their {@link LineFileDocs.DocState}
+ *  without I/O, UTF-8 decoding or date parsing.  Each doc is one record in a direct buffer chunk: msecSinceEpoch, timeSec,
+ *  the title, body and date lengths, then the three strings, stored one byte per char when they are all Latin-1 and two
+ *  otherwise.  The id is the doc's ordinal.  Once loaded the corpus is read-only, so any number of {@link Reader}s can read
+ *  it concurrently without locking.  Note that the chunks count against {@code -XX:MaxDirectMemorySize}. */
+public final class DocCorpus {
+
+  private static final int MIN_CHUNK_SIZE = 1 << 20;   // 1 MB
+  private static final int MAX_CHUNK_SIZE = 1 << 28;   // 256 MB
+
+  // Set on a stored string length when its chars were written as single bytes:
+  private static final int LATIN1 = 1 << 31;
+
+  private static final int HEADER_SIZE = 8 + 4 + 3*4;
+
+  private final ByteBuffer[] chunks;
+
+  // (chunk << 32) | offset of each doc's record:
+  private final long[] addresses;
+
+  private final long ramBytesUsed;
+
+  private DocCorpus(ByteBuffer[] chunks, long[] addresses, long ramBytesUsed) {
+    this.chunks = chunks;
+    this.addresses = addresses;
+    this.ramBytesUsed = ramBytesUsed;
+  }
+
+  /** Decodes the first {@code maxDocs} docs ({@code -1} for all) from the line file (text or binary). */
+  public static DocCorpus load(String lineFile, int maxDocs) throws IOException {
+    final long t0 = System.nanoTime();
+    LineFileDocs docs = new LineFileDocs(lineFile, false, false, false, false, false, null,
+                                         Collections.<String,Integer>emptyMap(), null, false);
+    LineFileDocs.DocState state = docs.newDocState();
+    List<ByteBuffer> chunks = new ArrayList<>();
+    long[] addresses = new long[maxDocs == -1 ? 1024 : maxDocs];
+    ByteBuffer chunk = null;
+    long ramBytesUsed = 0;
+    int docCount = 0;
+
+    while (maxDocs == -1 || docCount < maxDocs) {
+      if (docs.nextDoc(state) == null) {
+        break;
+      }
+      String title = state.title.stringValue();
+      String body = state.body.stringValue();
+      String date = state.date.stringValue();
+      boolean titleLatin1 = isLatin1(title);
+      boolean bodyLatin1 = isLatin1(body);
+      boolean dateLatin1 = isLatin1(date);
+      int size = HEADER_SIZE +
+        title.length() * (titleLatin1 ? 1 : 2) +
+        body.length() * (bodyLatin1 ? 1 : 2) +
+        date.length() * (dateLatin1 ? 1 : 2);
+
+      if (chunk == null || chunk.remaining() < size) {
+        // Grow chunk sizes so small corpora stay small, but a single huge doc still gets its own chunk:
+        int chunkSize = chunk == null ? MIN_CHUNK_SIZE : (int) Math.min(MAX_CHUNK_SIZE, 2L * chunk.capacity());
+        chunk = ByteBuffer.allocateDirect(Math.max(chunkSize, size));
+        chunk.order(ByteOrder.nativeOrder());
+        chunks.add(chunk);
+        ramBytesUsed += chunk.capacity();
+      }
+
+      if (docCount == addresses.length) {
+        addresses = Arrays.copyOf(addresses, addresses.length*2);
+      }
+      addresses[docCount++] = (((long) chunks.size()-1) << 32) | chunk.position();
+
+      chunk.putLong(state.dateCal.getTimeInMillis());
+      chunk.putInt(state.timeSec.numericValue().intValue());
+      chunk.putInt(title.length() | (titleLatin1 ? LATIN1 : 0));
+      chunk.putInt(body.length() | (bodyLatin1 ? LATIN1 : 0));
+      chunk.putInt(date.length() | (dateLatin1 ? LATIN1 : 0));
+      putString(chunk, title, titleLatin1);
+      putString(chunk, body, bodyLatin1);
+      putString(chunk, date, dateLatin1);
+    }
+    docs.close();
+
+    addresses = Arrays.copyOf(addresses, docCount);
+    ramBytesUsed += 8L * addresses.length;
+    System.out.println(String.format(Locale.ROOT, "DocCorpus: loaded %d docs from %s into %.1f MB off-heap in %.1f sec",
+                                     docCount, lineFile, ramBytesUsed/1024./1024., (System.nanoTime()-t0)/1000000000.0));
+
+    return new DocCorpus(chunks.toArray(new ByteBuffer[chunks.size()]), addresses, ramBytesUsed);
+  }
+
+  private static boolean isLatin1(String s) {
+    for(int i=0;i<s.length();i++) {
+      if (s.charAt(i) > 0xff) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void putString(ByteBuffer chunk, String s, boolean latin1) {
+    if (latin1) {
+      for(int i=0;i<s.length();i++) {
+        chunk.put((byte) s.charAt(i));
+      }
+    } else {
+      for(int i=0;i<s.length();i++) {
+        chunk.putChar(s.charAt(i));
+      }
+    }
+  }
+
+  public int size() {
+    return addresses.length;
+  }
+
+  public long ramBytesUsed() {
+    return ramBytesUsed;
+  }
+
+  /** Returns a new reader; each thread should use its own. */
+  public Reader newReader() {
+    return new Reader();
+  }
+
+  /** Reads docs from the corpus into reusable state; not thread-safe. */
+  public final class Reader {
+    // Private views so bulk gets can move the position without affecting other readers:
+    private final ByteBuffer[] views = new ByteBuffer[chunks.length];
+    private byte[] bytes = new byte[1024];
+    private char[] chars = new char[1024];
+
+    long msecSinceEpoch;
+    int timeSec;
+    String title;
+    String body;
+    String date;
+
+    Reader() {
+      for(int i=0;i<chunks.length;i++) {
+        views[i] = chunks[i].duplicate();
+        views[i].order(ByteOrder.nativeOrder());
+      }
+    }
+
+    /** Loads doc {@code id}, {@code 0 <= id < size()}. */
+    public void read(int id) {
+      long address = addresses[id];
+      ByteBuffer view = views[(int) (address >>> 32)];
+      int offset = (int) address;
+      msecSinceEpoch = view.getLong(offset);
+      timeSec = view.getInt(offset+8);
+      int titleLen = view.getInt(offset+12);
+      int bodyLen = view.getInt(offset+16);
+      int dateLen = view.getInt(offset+20);
+      view.position(offset + HEADER_SIZE);
+      title = readString(view, titleLen);
+      body = readString(view, bodyLen);
+      date = readString(view, dateLen);
+    }
+
+    private String readString(ByteBuffer view, int len) {
+      if ((len & LATIN1) != 0) {
+        len &= ~LATIN1;
+        if (bytes.length < len) {
+          bytes = new byte[len];
+        }
+        view.get(bytes, 0, len);
+        return new String(bytes, 0, len, StandardCharsets.ISO_8859_1);
+      } else {
+        if (chars.length < len) {
+          chars = new char[len];
+        }
+        view.asCharBuffer().get(chars, 0, len);
+        view.position(view.position() + 2*len);
+        return new String(chars, 0, len);
+      }
+    }
+  }
+}
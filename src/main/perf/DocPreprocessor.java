@@ -0,0 +1,114 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
+
+/** Enriches each document before IndexThreads indexes it, e.g. detecting its language, the way an ingest pipeline
+ *  would.  An instance is only used by one thread; {@link Factory} makes one per thread. */
+abstract class DocPreprocessor {
+
+  public abstract void process(Document doc) throws Exception;
+
+  public static interface Factory {
+    public DocPreprocessor newInstance() throws Exception;
+  }
+
+  /** Returns the factory for a -preprocess name: langid, ld or tika run that detector from src/langdetect (which
+   *  must be on the classpath); anything else is the class name of a DocPreprocessor with a no-arg constructor */
+  static Factory forName(final String name) throws ClassNotFoundException {
+    final String detectorClassName;
+    switch (name) {
+    case "langid":
+      detectorClassName = "LangIDJavaDetectEmbedded";
+      break;
+    case "ld":
+      detectorClassName = "LDDetectEmbedded";
+      break;
+    case "tika":
+      detectorClassName = "TikaDetectLanguageEmbedded";
+      break;
+    default:
+      detectorClassName = null;
+      break;
+    }
+
+    if (detectorClassName != null) {
+      final Class<?> detectorClass = Class.forName(detectorClassName);
+      return new Factory() {
+        @Override
+        public DocPreprocessor newInstance() throws Exception {
+          return new LanguageDetect(detectorClass);
+        }
+      };
+    } else {
+      final Class<? extends DocPreprocessor> preprocessorClass = Class.forName(name).asSubclass(DocPreprocessor.class);
+      return new Factory() {
+        @Override
+        public DocPreprocessor newInstance() throws Exception {
+          return preprocessorClass.getConstructor().newInstance();
+        }
+      };
+    }
+  }
+
+  /** Detects the body's language and indexes it as the "lang" field.  The detectors live in the default package, so
+   *  we can only reach them reflectively; that overhead is noise next to the detection itself. */
+  static final class LanguageDetect extends DocPreprocessor {
+    private final Object detector;
+    private final Method detect;
+
+    LanguageDetect(Class<?> detectorClass) throws Exception {
+      detector = detectorClass.getConstructor().newInstance();
+      detect = detectorClass.getMethod("detect", String.class);
+    }
+
+    @Override
+    public void process(Document doc) throws Exception {
+      IndexableField body = doc.getField("body");
+      if (body == null) {
+        return;
+      }
+      String lang;
+      try {
+        lang = (String) detect.invoke(detector, body.stringValue());
+      } catch (InvocationTargetException ite) {
+        Throwable cause = ite.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        // e.g. langdetect throws a checked exception on docs with no letters
+        lang = "unknown";
+      }
+      // LineFileDocs may hand us the same Document every time:
+      doc.removeFields("lang");
+      doc.add(new StringField("lang", lang, Field.Store.NO));
+      doc.add(new SortedDocValuesField("lang", new BytesRef(lang)));
+    }
+  }
+}
@@ -0,0 +1,602 @@
+package perf;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.SortedNumericSortField;
+import org.apache.lucene.search.SortedSetSortField;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+// javac -cp lucene/build/core/classes/java /l/util/src/main/perf/DocValuesBench.java; java -cp lucene/build/core/classes/java:/l/util/src/main perf.DocValuesBench -indexPath /l/indices/dvbench -report /l/tmp/dvbench.tsv
+
+/** Benchmarks doc values access patterns, to help pick field types for documents with many fields: numeric, sorted,
+ *  sorted-set and sorted-numeric fields at several densities (fraction of docs that have a value), each read by four
+ *  consumers: a sequential nextDoc scan, advanceExact to a random sorted subset of docs (like a selective query's hits),
+ *  sorting all docs by the field, and counting values per doc of all hits (like a facet).  Every combination runs against an
+ *  unsorted index and one sorted by a timestamp field.  Field values are derived from each doc's timestamp plus noise, so
+ *  index sorting clusters them the way it would for real time-correlated fields. */
+public class DocValuesBench {
+
+  // Timestamps span one year, in seconds:
+  private static final int TIMESTAMP_RANGE = 365 * 24 * 3600;
+
+  // Unique terms per sorted/sorted-set field:
+  private static final int TERM_COUNT = 10000;
+
+  private static final BytesRef[] TERMS = new BytesRef[TERM_COUNT];
+  static {
+    for(int i=0;i<TERM_COUNT;i++) {
+      TERMS[i] = new BytesRef(String.format(Locale.ROOT, "term%05d", i));
+    }
+  }
+
+  private static long DUMMY; // so the JIT can't skip reading values
+
+  private enum DVType {
+    NUMERIC {
+      @Override
+      void addFields(Document doc, String field, long timestamp, Random random) {
+        doc.add(new NumericDocValuesField(field, timestamp + random.nextInt(60)));
+      }
+
+      @Override
+      DocIdSetIterator iterator(LeafReader reader, String field) throws IOException {
+        return DocValues.getNumeric(reader, field);
+      }
+
+      @Override
+      long scan(LeafReader reader, String field) throws IOException {
+        NumericDocValues values = DocValues.getNumeric(reader, field);
+        long sum = 0;
+        while (values.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+          sum += values.longValue();
+        }
+        return sum;
+      }
+
+      @Override
+      long advance(LeafReader reader, String field, int[] targets) throws IOException {
+        NumericDocValues values = DocValues.getNumeric(reader, field);
+        long sum = 0;
+        for(int target : targets) {
+          if (values.advanceExact(target)) {
+            sum += values.longValue();
+          }
+        }
+        return sum;
+      }
+
+      @Override
+      SortField sortField(String field) {
+        return new SortField(field, SortField.Type.LONG);
+      }
+
+      @Override
+      FacetCounter facetCounter(LeafReader reader, String field, final int[] counts) throws IOException {
+        final NumericDocValues values = DocValues.getNumeric(reader, field);
+        return new FacetCounter() {
+          @Override
+          void count(int doc) throws IOException {
+            if (values.advanceExact(doc)) {
+              counts[(int) ((values.longValue() / 3600) % counts.length)]++;
+            }
+          }
+        };
+      }
+    },
+
+    SORTED {
+      @Override
+      void addFields(Document doc, String field, long timestamp, Random random) {
+        doc.add(new SortedDocValuesField(field, TERMS[term(timestamp, random)]));
+      }
+
+      @Override
+      DocIdSetIterator iterator(LeafReader reader, String field) throws IOException {
+        return DocValues.getSorted(reader, field);
+      }
+
+      @Override
+      long scan(LeafReader reader, String field) throws IOException {
+        SortedDocValues values = DocValues.getSorted(reader, field);
+        long sum = 0;
+        while (values.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+          sum += values.ordValue();
+        }
+        return sum;
+      }
+
+      @Override
+      long advance(LeafReader reader, String field, int[] targets) throws IOException {
+        SortedDocValues values = DocValues.getSorted(reader, field);
+        long sum = 0;
+        for(int target : targets) {
+          if (values.advanceExact(target)) {
+            sum += values.ordValue();
+          }
+        }
+        return sum;
+      }
+
+      @Override
+      SortField sortField(String field) {
+        return new SortField(field, SortField.Type.STRING);
+      }
+
+      @Override
+      FacetCounter facetCounter(LeafReader reader, String field, final int[] counts) throws IOException {
+        final SortedDocValues values = DocValues.getSorted(reader, field);
+        return new FacetCounter() {
+          @Override
+          void count(int doc) throws IOException {
+            if (values.advanceExact(doc)) {
+              counts[values.ordValue()]++;
+            }
+          }
+        };
+      }
+    },
+
+    SORTED_SET {
+      @Override
+      void addFields(Document doc, String field, long timestamp, Random random) {
+        int count = 1 + random.nextInt(4);
+        for(int i=0;i<count;i++) {
+          doc.add(new SortedSetDocValuesField(field, TERMS[term(timestamp, random)]));
+        }
+      }
+
+      @Override
+      DocIdSetIterator iterator(LeafReader reader, String field) throws IOException {
+        return DocValues.getSortedSet(reader, field);
+      }
+
+      @Override
+      long scan(LeafReader reader, String field) throws IOException {
+        SortedSetDocValues values = DocValues.getSortedSet(reader, field);
+        long sum = 0;
+        while (values.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+          long ord;
+          while ((ord = values.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+            sum += ord;
+          }
+        }
+        return sum;
+      }
+
+      @Override
+      long advance(LeafReader reader, String field, int[] targets) throws IOException {
+        SortedSetDocValues values = DocValues.getSortedSet(reader, field);
+        long sum = 0;
+        for(int target : targets) {
+          if (values.advanceExact(target)) {
+            long ord;
+            while ((ord = values.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+              sum += ord;
+            }
+          }
+        }
+        return sum;
+      }
+
+      @Override
+      SortField sortField(String field) {
+        return new SortedSetSortField(field, false);
+      }
+
+      @Override
+      FacetCounter facetCounter(LeafReader reader, String field, final int[] counts) throws IOException {
+        final SortedSetDocValues values = DocValues.getSortedSet(reader, field);
+        return new FacetCounter() {
+          @Override
+          void count(int doc) throws IOException {
+            if (values.advanceExact(doc)) {
+              long ord;
+              while ((ord = values.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                counts[(int) ord]++;
+              }
+            }
+          }
+        };
+      }
+    },
+
+    SORTED_NUMERIC {
+      @Override
+      void addFields(Document doc, String field, long timestamp, Random random) {
+        int count = 1 + random.nextInt(4);
+        for(int i=0;i<count;i++) {
+          doc.add(new SortedNumericDocValuesField(field, timestamp + random.nextInt(3600)));
+        }
+      }
+
+      @Override
+      DocIdSetIterator iterator(LeafReader reader, String field) throws IOException {
+        return DocValues.getSortedNumeric(reader, field);
+      }
+
+      @Override
+      long scan(LeafReader reader, String field) throws IOException {
+        SortedNumericDocValues values = DocValues.getSortedNumeric(reader, field);
+        long sum = 0;
+        while (values.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+          int count = values.docValueCount();
+          for(int i=0;i<count;i++) {
+            sum += values.nextValue();
+          }
+        }
+        return sum;
+      }
+
+      @Override
+      long advance(LeafReader reader, String field, int[] targets) throws IOException {
+        SortedNumericDocValues values = DocValues.getSortedNumeric(reader, field);
+        long sum = 0;
+        for(int target : targets) {
+          if (values.advanceExact(target)) {
+            int count = values.docValueCount();
+            for(int i=0;i<count;i++) {
+              sum += values.nextValue();
+            }
+          }
+        }
+        return sum;
+      }
+
+      @Override
+      SortField sortField(String field) {
+        return new SortedNumericSortField(field, SortField.Type.LONG);
+      }
+
+      @Override
+      FacetCounter facetCounter(LeafReader reader, String field, final int[] counts) throws IOException {
+        final SortedNumericDocValues values = DocValues.getSortedNumeric(reader, field);
+        return new FacetCounter() {
+          @Override
+          void count(int doc) throws IOException {
+            if (values.advanceExact(doc)) {
+              int count = values.docValueCount();
+              for(int i=0;i<count;i++) {
+                counts[(int) ((values.nextValue() / 3600) % counts.length)]++;
+              }
+            }
+          }
+        };
+      }
+    };
+
+    /** Adds this type's value(s) for one doc */
+    abstract void addFields(Document doc, String field, long timestamp, Random random);
+
+    abstract DocIdSetIterator iterator(LeafReader reader, String field) throws IOException;
+
+    /** Reads every value with nextDoc */
+    abstract long scan(LeafReader reader, String field) throws IOException;
+
+    /** Reads the values of the given increasing docs with advanceExact */
+    abstract long advance(LeafReader reader, String field, int[] targets) throws IOException;
+
+    abstract SortField sortField(String field);
+
+    /** Returns a per-segment counter that adds each collected doc's values into counts */
+    abstract FacetCounter facetCounter(LeafReader reader, String field, int[] counts) throws IOException;
+
+    String fieldName(String density) {
+      return name().toLowerCase(Locale.ROOT) + "@" + density;
+    }
+
+    /** Term ords follow the timestamp, with some noise */
+    private static int term(long timestamp, Random random) {
+      return (int) ((timestamp * TERM_COUNT / TIMESTAMP_RANGE + random.nextInt(16)) % TERM_COUNT);
+    }
+  }
+
+  private static abstract class FacetCounter {
+    abstract void count(int doc) throws IOException;
+  }
+
+  /** One measured combination, as one report row */
+  private static class Result {
+    final String index;
+    final DVType type;
+    final String density;
+    final String consumer;
+    final long valueDocs;
+    final double bestMS;
+    final double medianMS;
+
+    Result(String index, DVType type, String density, String consumer, long valueDocs, double[] msecs) {
+      this.index = index;
+      this.type = type;
+      this.density = density;
+      this.consumer = consumer;
+      this.valueDocs = valueDocs;
+      Arrays.sort(msecs);
+      this.bestMS = msecs[0];
+      this.medianMS = msecs[msecs.length/2];
+    }
+
+    double nsPerValueDoc() {
+      return valueDocs == 0 ? 0 : bestMS * 1000000.0 / valueDocs;
+    }
+  }
+
+  private static void usage() {
+    System.out.println("Usage: DocValuesBench -indexPath /path/to/index [-docs 2000000] [-densities 1.0,0.1,0.01] [-types numeric,sorted,sorted_set,sorted_numeric]");
+    System.out.println("         [-advanceFraction 0.01] [-iters 20] [-seed 17] [-reindex] [-report results.tsv]");
+    System.exit(1);
+  }
+
+  public static void main(String[] args) throws IOException {
+    Path indexPath = null;
+    int docCount = 2000000;
+    String[] densities = "1.0,0.1,0.01".split(",");
+    String types = "numeric,sorted,sorted_set,sorted_numeric";
+    double advanceFraction = 0.01;
+    int iters = 20;
+    long seed = 17;
+    boolean reindex = false;
+    String reportFile = null;
+    for(int i=0;i<args.length;i++) {
+      String arg = args[i];
+      if (arg.equals("-reindex")) {
+        reindex = true;
+        continue;
+      }
+      if (i + 1 == args.length) {
+        usage();
+      }
+      String value = args[++i];
+      if (arg.equals("-indexPath")) {
+        indexPath = Paths.get(value);
+      } else if (arg.equals("-docs")) {
+        docCount = Integer.parseInt(value);
+      } else if (arg.equals("-densities")) {
+        densities = value.split(",");
+      } else if (arg.equals("-types")) {
+        types = value;
+      } else if (arg.equals("-advanceFraction")) {
+        advanceFraction = Double.parseDouble(value);
+      } else if (arg.equals("-iters")) {
+        iters = Integer.parseInt(value);
+      } else if (arg.equals("-seed")) {
+        seed = Long.parseLong(value);
+      } else if (arg.equals("-report")) {
+        reportFile = value;
+      } else {
+        throw new IllegalArgumentException("unknown command line option \"" + arg + "\"");
+      }
+    }
+    if (indexPath == null) {
+      usage();
+    }
+
+    List<DVType> typeList = new ArrayList<>();
+    for(String type : types.split(",")) {
+      typeList.add(DVType.valueOf(type.trim().toUpperCase(Locale.ROOT)));
+    }
+
+    List<Result> results = new ArrayList<>();
+    for(String index : new String[] {"unsorted", "sorted"}) {
+      Path path = indexPath.resolve(index);
+      try (Directory dir = FSDirectory.open(path)) {
+        if (reindex || DirectoryReader.indexExists(dir) == false) {
+          buildIndex(dir, index.equals("sorted"), docCount, densities, seed);
+        }
+        long indexBytes = 0;
+        for(String file : dir.listAll()) {
+          indexBytes += dir.fileLength(file);
+        }
+        try (DirectoryReader reader = DirectoryReader.open(dir)) {
+          System.out.println(String.format(Locale.ROOT, "\n%s index: %d docs, %d segments, %.1f MB", index, reader.maxDoc(), reader.leaves().size(), indexBytes/1024./1024.));
+          for(DVType type : typeList) {
+            for(String density : densities) {
+              benchField(reader, index, type, density, advanceFraction, iters, seed, results);
+            }
+          }
+        }
+      }
+    }
+
+    System.out.println(String.format(Locale.ROOT, "\n%-9s %-15s %8s %-9s %10s %10s %10s %12s",
+                                     "index", "type", "density", "consumer", "valueDocs", "bestMS", "medianMS", "ns/valueDoc"));
+    for(Result result : results) {
+      System.out.println(String.format(Locale.ROOT, "%-9s %-15s %8s %-9s %10d %10.2f %10.2f %12.2f",
+                                       result.index, result.type.name().toLowerCase(Locale.ROOT), result.density, result.consumer,
+                                       result.valueDocs, result.bestMS, result.medianMS, result.nsPerValueDoc()));
+    }
+
+    if (reportFile != null) {
+      try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(reportFile), StandardCharsets.UTF_8))) {
+        out.println("index\ttype\tdensity\tconsumer\tvalueDocs\tbestMS\tmedianMS\tnsPerValueDoc");
+        for(Result result : results) {
+          out.println(String.format(Locale.ROOT, "%s\t%s\t%s\t%s\t%d\t%.4f\t%.4f\t%.4f",
+                                    result.index, result.type.name().toLowerCase(Locale.ROOT), result.density, result.consumer,
+                                    result.valueDocs, result.bestMS, result.medianMS, result.nsPerValueDoc()));
+        }
+      }
+      System.out.println("\nWrote report to " + reportFile);
+    }
+    System.out.println("DUMMY=" + DUMMY);
+  }
+
+  /** Indexes the same docs (same seed) into either index; only the index sort differs. */
+  private static void buildIndex(Directory dir, boolean indexSorted, int docCount, String[] densities, long seed) throws IOException {
+    IndexWriterConfig iwc = new IndexWriterConfig(null);
+    iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    iwc.setRAMBufferSizeMB(256);
+    if (indexSorted) {
+      iwc.setIndexSort(new Sort(new SortField("timestamp", SortField.Type.LONG)));
+    }
+    long t0 = System.nanoTime();
+    Random random = new Random(seed);
+    float[] densityValues = new float[densities.length];
+    for(int i=0;i<densities.length;i++) {
+      densityValues[i] = Float.parseFloat(densities[i]);
+    }
+    try (IndexWriter w = new IndexWriter(dir, iwc)) {
+      for(int i=0;i<docCount;i++) {
+        Document doc = new Document();
+        long timestamp = random.nextInt(TIMESTAMP_RANGE);
+        doc.add(new NumericDocValuesField("timestamp", timestamp));
+        // all types get fields, even those not benchmarked this run, so the index is the same for any -types:
+        for(DVType type : DVType.values()) {
+          for(int j=0;j<densities.length;j++) {
+            if (random.nextFloat() < densityValues[j]) {
+              type.addFields(doc, type.fieldName(densities[j]), timestamp, random);
+            }
+          }
+        }
+        w.addDocument(doc);
+      }
+      // one segment, so segment count doesn't muddy the comparison:
+      w.forceMerge(1);
+    }
+    System.out.println(String.format(Locale.ROOT, "Indexed %d docs (indexSorted=%s) in %.1f sec", docCount, indexSorted, (System.nanoTime()-t0)/1000000000.0));
+  }
+
+  private static void benchField(IndexReader reader, String index, final DVType type, String density, double advanceFraction,
+                                 int iters, long seed, List<Result> results) throws IOException {
+    final String field = type.fieldName(density);
+
+    // random advance targets per segment, the same for each type so they are comparable:
+    Random random = new Random(seed);
+    List<int[]> targets = new ArrayList<>();
+    long valueDocs = 0;
+    long advanceValueDocs = 0;
+    for(LeafReaderContext ctx : reader.leaves()) {
+      int maxDoc = ctx.reader().maxDoc();
+      int[] leafTargets = new int[(int) (maxDoc * advanceFraction)];
+      for(int i=0;i<leafTargets.length;i++) {
+        leafTargets[i] = random.nextInt(maxDoc);
+      }
+      Arrays.sort(leafTargets);
+      // dedup, since advanceExact must move forward:
+      int upto = 0;
+      for(int i=0;i<leafTargets.length;i++) {
+        if (upto == 0 || leafTargets[i] != leafTargets[upto-1]) {
+          leafTargets[upto++] = leafTargets[i];
+        }
+      }
+      leafTargets = Arrays.copyOf(leafTargets, upto);
+      targets.add(leafTargets);
+      // count docs with a value for this field:
+      DocIdSetIterator it = type.iterator(ctx.reader(), field);
+      long leafValueDocs = 0;
+      while (it.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+        leafValueDocs++;
+      }
+      valueDocs += leafValueDocs;
+      // approximate, assuming values are spread evenly:
+      advanceValueDocs += (long) (leafTargets.length * ((double) leafValueDocs / maxDoc));
+    }
+
+    IndexSearcher searcher = new IndexSearcher(reader);
+    searcher.setQueryCache(null); // don't bench the cache
+    final Sort sort = new Sort(type.sortField(field));
+
+    for(String consumer : new String[] {"scan", "advance", "sort", "facet"}) {
+      // first half of the iterations is warmup:
+      double[] msecs = new double[iters];
+      for(int iter=-iters/2;iter<iters;iter++) {
+        long t0 = System.nanoTime();
+        switch (consumer) {
+        case "scan":
+          for(LeafReaderContext ctx : reader.leaves()) {
+            DUMMY += type.scan(ctx.reader(), field);
+          }
+          break;
+        case "advance":
+          for(LeafReaderContext ctx : reader.leaves()) {
+            DUMMY += type.advance(ctx.reader(), field, targets.get(ctx.ord));
+          }
+          break;
+        case "sort":
+          TopDocs hits = searcher.search(new MatchAllDocsQuery(), 10, sort);
+          DUMMY += hits.scoreDocs.length;
+          break;
+        case "facet":
+          final int[] counts = new int[type == DVType.SORTED || type == DVType.SORTED_SET ? TERM_COUNT : 1024];
+          searcher.search(new MatchAllDocsQuery(), new SimpleCollector() {
+              private FacetCounter counter;
+
+              @Override
+              protected void doSetNextReader(LeafReaderContext context) throws IOException {
+                counter = type.facetCounter(context.reader(), field, counts);
+              }
+
+              @Override
+              public void collect(int doc) throws IOException {
+                counter.count(doc);
+              }
+
+              @Override
+              public ScoreMode scoreMode() {
+                return ScoreMode.COMPLETE_NO_SCORES;
+              }
+            });
+          DUMMY += counts[0];
+          break;
+        }
+        if (iter >= 0) {
+          msecs[iter] = (System.nanoTime()-t0)/1000000.0;
+        }
+      }
+      Result result = new Result(index, type, density, consumer, consumer.equals("advance") ? advanceValueDocs : valueDocs, msecs);
+      System.out.println(String.format(Locale.ROOT, "  %s %s: best %.2f msec, median %.2f msec", field, consumer, result.bestMS, result.medianMS));
+      results.add(result);
+    }
+  }
+}
@@ -0,0 +1,352 @@
+package perf;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.StringHelper;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.BytesRefFSTEnum;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.OffHeapFSTStore;
+import org.apache.lucene.util.fst.Outputs;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+
+// javac -cp lucene/build/core/classes/java /l/util/src/main/perf/FSTPerf.java; java -Xmx4g -cp lucene/build/core/classes/java:/l/util/src/main perf.FSTPerf -termsFile /l/data/topTerms20130102.txt -threads 4 -load offheap
+
+/** Builds an FST from a large terms file (one term per line, optionally followed by a space and its frequency, as in
+ *  topTerms20130102.txt), then measures build time, peak heap, final RAM, and the throughput of exact lookups, prefix
+ *  enumeration and (for ordinal outputs) {@link Util#getByOutput} from concurrent reader threads, with the FST used as
+ *  built, or saved and loaded back on-heap or off-heap (mmap'd).  Outputs are either each term's ordinal
+ *  ({@link PositiveIntOutputs}) or its frequency text ({@link ByteSequenceOutputs}). */
+public class FSTPerf {
+
+  private static final AtomicLong DUMMY = new AtomicLong(); // so the JIT can't skip lookups
+
+  /** Output for the term with this ordinal */
+  private static abstract class OutputSource<T> {
+    abstract T get(int ord);
+  }
+
+  private static void usage() {
+    System.out.println("Usage: FSTPerf -termsFile /path/to/terms.txt[.gz] [-outputs ord|bytes] [-load built|heap|offheap] [-tmpDir /path]");
+    System.out.println("         [-threads 1] [-lookups 1000000] [-prefixLength 3] [-maxPrefixTerms 100] [-iters 5] [-seed 17]");
+    System.exit(1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    String termsFile = null;
+    String outputsType = "ord";
+    String load = "built";
+    Path tmpDir = Paths.get(System.getProperty("java.io.tmpdir"));
+    int threadCount = 1;
+    int lookups = 1000000;
+    int prefixLength = 3;
+    int maxPrefixTerms = 100;
+    int iters = 5;
+    long seed = 17;
+    for(int i=0;i<args.length;i++) {
+      String arg = args[i];
+      if (i + 1 == args.length) {
+        usage();
+      }
+      String value = args[++i];
+      if (arg.equals("-termsFile")) {
+        termsFile = value;
+      } else if (arg.equals("-outputs")) {
+        outputsType = value;
+      } else if (arg.equals("-load")) {
+        load = value;
+      } else if (arg.equals("-tmpDir")) {
+        tmpDir = Paths.get(value);
+      } else if (arg.equals("-threads")) {
+        threadCount = Integer.parseInt(value);
+      } else if (arg.equals("-lookups")) {
+        lookups = Integer.parseInt(value);
+      } else if (arg.equals("-prefixLength")) {
+        prefixLength = Integer.parseInt(value);
+      } else if (arg.equals("-maxPrefixTerms")) {
+        maxPrefixTerms = Integer.parseInt(value);
+      } else if (arg.equals("-iters")) {
+        iters = Integer.parseInt(value);
+      } else if (arg.equals("-seed")) {
+        seed = Long.parseLong(value);
+      } else {
+        throw new IllegalArgumentException("unknown command line option \"" + arg + "\"");
+      }
+    }
+    if (termsFile == null) {
+      usage();
+    }
+    if (load.equals("built") == false && load.equals("heap") == false && load.equals("offheap") == false) {
+      throw new IllegalArgumentException("-load must be built, heap or offheap; got " + load);
+    }
+
+    long t0 = System.nanoTime();
+    final List<BytesRef> freqs = new ArrayList<>();
+    final BytesRef[] terms = readTerms(termsFile, freqs);
+    System.out.println(String.format(Locale.ROOT, "Loaded %d unique terms from %s in %.1f sec", terms.length, termsFile, (System.nanoTime()-t0)/1000000000.0));
+
+    if (outputsType.equals("ord")) {
+      run(terms, PositiveIntOutputs.getSingleton(), new OutputSource<Long>() {
+          @Override
+          Long get(int ord) {
+            return (long) ord;
+          }
+        }, true, load, tmpDir, threadCount, lookups, prefixLength, maxPrefixTerms, iters, seed);
+    } else if (outputsType.equals("bytes")) {
+      run(terms, ByteSequenceOutputs.getSingleton(), new OutputSource<BytesRef>() {
+          @Override
+          BytesRef get(int ord) {
+            return freqs.get(ord);
+          }
+        }, false, load, tmpDir, threadCount, lookups, prefixLength, maxPrefixTerms, iters, seed);
+    } else {
+      throw new IllegalArgumentException("-outputs must be ord or bytes; got " + outputsType);
+    }
+    System.out.println("DUMMY=" + DUMMY.get());
+  }
+
+  /** Reads terms, sorted and deduped in FST (unsigned byte) order; each term's frequency text, or the term itself if there
+   *  is none, is added to freqs. */
+  private static BytesRef[] readTerms(String fileName, List<BytesRef> freqs) throws IOException {
+    InputStream is = Files.newInputStream(Paths.get(fileName));
+    if (fileName.endsWith(".gz")) {
+      is = new GZIPInputStream(is);
+    }
+    final List<BytesRef[]> pairs = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 1 << 16)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty()) {
+          continue;
+        }
+        String term = line;
+        String freq = line;
+        int i = line.lastIndexOf(' ');
+        if (i != -1 && line.substring(i+1).replace(",", "").matches("\\d+")) {
+          term = line.substring(0, i);
+          freq = line.substring(i+1).replace(",", "");
+        }
+        pairs.add(new BytesRef[] {new BytesRef(term), new BytesRef(freq)});
+      }
+    }
+    BytesRef[][] sorted = pairs.toArray(new BytesRef[pairs.size()][]);
+    Arrays.sort(sorted, new Comparator<BytesRef[]>() {
+        @Override
+        public int compare(BytesRef[] a, BytesRef[] b) {
+          return a[0].compareTo(b[0]);
+        }
+      });
+    List<BytesRef> terms = new ArrayList<>();
+    for(BytesRef[] pair : sorted) {
+      if (terms.isEmpty() || terms.get(terms.size()-1).equals(pair[0]) == false) {
+        terms.add(pair[0]);
+        freqs.add(pair[1]);
+      }
+    }
+    return terms.toArray(new BytesRef[terms.size()]);
+  }
+
+  private static <T> void run(final BytesRef[] terms, Outputs<T> outputs, OutputSource<T> outputSource, boolean ordOutputs, String load, Path tmpDir,
+                              int threadCount, int lookups, int prefixLength, final int maxPrefixTerms, int iters, long seed) throws Exception {
+    System.gc();
+    long heapBefore = HeapUsage.used();
+    HeapUsage.resetPeak();
+    long t0 = System.nanoTime();
+    Builder<T> builder = new Builder<>(FST.INPUT_TYPE.BYTE1, outputs);
+    IntsRefBuilder scratch = new IntsRefBuilder();
+    for(int ord=0;ord<terms.length;ord++) {
+      builder.add(Util.toIntsRef(terms[ord], scratch), outputSource.get(ord));
+    }
+    FST<T> fst = builder.finish();
+    long buildNS = System.nanoTime() - t0;
+    long peakHeap = HeapUsage.peakUsed() - heapBefore;
+    System.out.println(String.format(Locale.ROOT, "Built FST in %.1f sec; peak heap during build %.1f MB (sum of per-pool peaks, above the terms); FST RAM %.1f MB; %d nodes",
+                                     buildNS/1000000000.0, peakHeap/1024./1024., fst.ramBytesUsed()/1024./1024., builder.getNodeCount()));
+    builder = null;
+
+    Path fstDir = null;
+    Directory dir = null;
+    IndexInput offHeapInput = null;
+    if (load.equals("built") == false) {
+      fstDir = Files.createTempDirectory(tmpDir, "fstperf");
+      dir = FSDirectory.open(fstDir);
+      try (IndexOutput out = dir.createOutput("fst", IOContext.DEFAULT)) {
+        fst.save(out);
+      }
+      t0 = System.nanoTime();
+      if (load.equals("heap")) {
+        try (IndexInput in = dir.openInput("fst", IOContext.READ)) {
+          fst = new FST<>(in, outputs);
+        }
+      } else {
+        // must stay open while the FST is used:
+        offHeapInput = dir.openInput("fst", IOContext.READ);
+        fst = new FST<>(offHeapInput, outputs, new OffHeapFSTStore());
+      }
+      System.out.println(String.format(Locale.ROOT, "Saved %.1f MB FST and loaded it %s in %.1f msec; FST RAM now %.1f MB",
+                                       dir.fileLength("fst")/1024./1024., load.equals("heap") ? "on-heap" : "off-heap", (System.nanoTime()-t0)/1000000.0,
+                                       fst.ramBytesUsed()/1024./1024.));
+    }
+
+    // each thread's random terms and prefixes, picked up front so sampling isn't timed:
+    final BytesRef[][] lookupTerms = new BytesRef[threadCount][];
+    final BytesRef[][] prefixes = new BytesRef[threadCount][];
+    final long[][] lookupOrds = new long[threadCount][];
+    for(int t=0;t<threadCount;t++) {
+      Random random = new Random(seed + t);
+      lookupTerms[t] = new BytesRef[lookups];
+      prefixes[t] = new BytesRef[lookups / 100];
+      lookupOrds[t] = new long[lookups];
+      for(int i=0;i<lookups;i++) {
+        int ord = random.nextInt(terms.length);
+        lookupOrds[t][i] = ord;
+        lookupTerms[t][i] = terms[ord];
+      }
+      for(int i=0;i<prefixes[t].length;i++) {
+        BytesRef term = terms[random.nextInt(terms.length)];
+        prefixes[t][i] = new BytesRef(term.bytes, term.offset, Math.min(term.length, prefixLength));
+      }
+    }
+
+    final FST<T> finalFST = fst;
+    List<String> ops = new ArrayList<>(Arrays.asList("lookup", "prefix"));
+    if (ordOutputs) {
+      ops.add("getByOutput");
+    }
+    System.out.println(String.format(Locale.ROOT, "\n%-12s %8s %14s %16s", "op", "threads", "best ops/sec", "best terms/sec"));
+    for(final String op : ops) {
+      double bestOpsPerSec = 0;
+      double bestTermsPerSec = 0;
+      // first iteration is warmup:
+      for(int iter=0;iter<=iters;iter++) {
+        final CountDownLatch startingGun = new CountDownLatch(1);
+        final AtomicLong totalOps = new AtomicLong();
+        final AtomicLong totalTerms = new AtomicLong();
+        Thread[] threads = new Thread[threadCount];
+        for(int t=0;t<threadCount;t++) {
+          final int threadID = t;
+          threads[t] = new Thread() {
+              @Override
+              public void run() {
+                try {
+                  _run();
+                } catch (Exception e) {
+                  throw new RuntimeException(e);
+                }
+              }
+
+              @SuppressWarnings("unchecked")
+              private void _run() throws Exception {
+                startingGun.await();
+                long dummy = 0;
+                long termCount = 0;
+                long opCount = 0;
+                switch (op) {
+                case "lookup":
+                  for(BytesRef term : lookupTerms[threadID]) {
+                    if (Util.get(finalFST, term) != null) {
+                      termCount++;
+                    }
+                    opCount++;
+                  }
+                  break;
+                case "prefix":
+                  BytesRefFSTEnum<T> fstEnum = new BytesRefFSTEnum<>(finalFST);
+                  for(BytesRef prefix : prefixes[threadID]) {
+                    BytesRefFSTEnum.InputOutput<T> result = fstEnum.seekCeil(prefix);
+                    int count = 0;
+                    while (result != null && count < maxPrefixTerms && StringHelper.startsWith(result.input, prefix)) {
+                      dummy += result.input.length;
+                      count++;
+                      result = fstEnum.next();
+                    }
+                    termCount += count;
+                    opCount++;
+                  }
+                  break;
+                case "getByOutput":
+                  for(long ord : lookupOrds[threadID]) {
+                    IntsRef input = Util.getByOutput((FST<Long>) finalFST, ord);
+                    if (input != null) {
+                      dummy += input.length;
+                      termCount++;
+                    }
+                    opCount++;
+                  }
+                  break;
+                }
+                totalOps.addAndGet(opCount);
+                totalTerms.addAndGet(termCount);
+                DUMMY.addAndGet(dummy);
+              }
+            };
+          threads[t].start();
+        }
+        long start = System.nanoTime();
+        startingGun.countDown();
+        for(Thread thread : threads) {
+          thread.join();
+        }
+        double sec = (System.nanoTime() - start) / 1000000000.0;
+        if (iter > 0) {
+          bestOpsPerSec = Math.max(bestOpsPerSec, totalOps.get() / sec);
+          bestTermsPerSec = Math.max(bestTermsPerSec, totalTerms.get() / sec);
+        }
+      }
+      System.out.println(String.format(Locale.ROOT, "%-12s %8d %14.0f %16.0f", op, threadCount, bestOpsPerSec, bestTermsPerSec));
+    }
+
+    if (offHeapInput != null) {
+      offHeapInput.close();
+    }
+    if (dir != null) {
+      dir.deleteFile("fst");
+      dir.close();
+      Files.delete(fstDir);
+    }
+  }
+}
@@ -0,0 +1,567 @@
+package perf;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.lucene.geo.Polygon;
+
+/** Streams multi-polygons, one per {@link #next} call, from either a GeoJSON file (a FeatureCollection, a single Feature,
+ *  or a bare Polygon / MultiPolygon / GeometryCollection geometry) or a poly file as written by
+ *  src/python/geoJSONToPolyFile.py.  The file may be gzip'd.  Bytes are parsed straight from a fixed read buffer, so only
+ *  the returned polygons' vertex arrays are allocated per feature and files with thousands of boundaries never need to fit
+ *  in memory at once.  Polygon holes are kept; a geometry is only used if its "type" is Polygon or MultiPolygon, and any
+ *  other geometry with coordinates (e.g. Point or MultiLineString) is skipped and counted in {@link #skippedGeometryCount}. */
+public class GeoPolygonReader implements Closeable {
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  // Returned by parseObject when it reaches a top level "features" array, which next() then streams:
+  private static final Polygon[] FEATURES = new Polygon[0];
+
+  private final InputStream in;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int pos;
+  private int limit;
+
+  private boolean started;
+  private boolean polyFile;
+  private boolean inFeatures;
+  private boolean done;
+  private int featureCount;
+  private int skippedGeometryCount;
+  private String name;
+
+  // Reused while parsing coordinates:
+  private double[] ringLats = new double[1024];
+  private double[] ringLons = new double[1024];
+  private int ringSize;
+  private final List<double[][]> rings = new ArrayList<>();
+  private final List<double[][][]> polygonRings = new ArrayList<>();
+  private final StringBuilder chars = new StringBuilder();
+
+  public GeoPolygonReader(Path path) throws IOException {
+    InputStream is = Files.newInputStream(path);
+    if (path.toString().endsWith(".gz")) {
+      is = new GZIPInputStream(is, BUFFER_SIZE);
+    }
+    this.in = is;
+  }
+
+  /** Name of the multi-polygon last returned by {@link #next}: a GeoJSON feature's "name" (or "ADMIN"/"NAME") property or
+   *  the poly file's name, else null. */
+  public String name() {
+    return name;
+  }
+
+  /** How many geometries so far had coordinates but were not a Polygon or MultiPolygon, and so were skipped. */
+  public int skippedGeometryCount() {
+    return skippedGeometryCount;
+  }
+
+  /** Returns the next multi-polygon, or null when there are no more. */
+  public Polygon[] next() throws IOException {
+    while (done == false) {
+      if (started == false) {
+        started = true;
+        int c = peek();
+        if (c == -1) {
+          done = true;
+        } else if (c == 'c') {
+          polyFile = true;
+        } else if (c != '{') {
+          throw new IllegalArgumentException("expected GeoJSON object or poly file \"count=\" line but got '" + (char) c + "'");
+        }
+        continue;
+      }
+
+      if (polyFile) {
+        if (peek() == -1) {
+          done = true;
+          return null;
+        }
+        return nextPolyFileEntry();
+      }
+
+      if (inFeatures) {
+        int c = peek();
+        if (c == ',') {
+          pos++;
+          continue;
+        } else if (c == ']') {
+          // nothing after the features array matters to us:
+          done = true;
+          return null;
+        }
+        name = null;
+        featureCount++;
+        Polygon[] result = parseObject(false);
+        if (result != null) {
+          return result;
+        }
+        continue;
+      }
+
+      // top level object: a FeatureCollection, Feature or bare geometry
+      name = null;
+      Polygon[] result = parseObject(true);
+      if (result == FEATURES) {
+        inFeatures = true;
+      } else {
+        done = true;
+        return result;
+      }
+    }
+    return null;
+  }
+
+  /** Parses a Feature or geometry object and returns its polygons (null if it has none), or FEATURES if the top level
+   *  object's "features" array was reached, leaving the array's '[' consumed. */
+  private Polygon[] parseObject(boolean topLevel) throws IOException {
+    expect('{');
+    Polygon[] result = null;
+    if (peek() == '}') {
+      pos++;
+      return null;
+    }
+    // "type" may come before or after "coordinates", so we only build polygons once the object is done:
+    String type = null;
+    double[][][][] coordinates = null;
+    int coordinatesHeight = -1;
+    while (true) {
+      String key = readString();
+      expect(':');
+      switch (key) {
+      case "type":
+        if (peek() == '"') {
+          type = readString();
+        } else {
+          skipValue();
+        }
+        break;
+      case "geometry":
+        if (peek() == 'n') {
+          skipValue();
+        } else {
+          result = concat(result, parseObject(false));
+        }
+        break;
+      case "geometries":
+        expect('[');
+        if (peek() == ']') {
+          pos++;
+          break;
+        }
+        while (true) {
+          result = concat(result, parseObject(false));
+          if (readSeparator(']')) {
+            break;
+          }
+        }
+        break;
+      case "coordinates":
+        coordinatesHeight = parseCoordinates();
+        coordinates = polygonRings.toArray(new double[polygonRings.size()][][][]);
+        break;
+      case "properties":
+        parseProperties();
+        break;
+      case "features":
+        if (topLevel) {
+          expect('[');
+          return FEATURES;
+        }
+        skipValue();
+        break;
+      default:
+        skipValue();
+        break;
+      }
+      if (readSeparator('}')) {
+        if (coordinates != null) {
+          result = concat(result, makePolygons(type, coordinates, coordinatesHeight));
+        }
+        return result;
+      }
+    }
+  }
+
+  /** Builds a geometry's polygons from its parsed coordinates, or returns null and counts it as skipped if it is not a
+   *  Polygon or MultiPolygon. */
+  private Polygon[] makePolygons(String type, double[][][][] coordinates, int height) {
+    int expectedHeight;
+    if ("Polygon".equals(type)) {
+      expectedHeight = 2;
+    } else if ("MultiPolygon".equals(type)) {
+      expectedHeight = 3;
+    } else {
+      skippedGeometryCount++;
+      return null;
+    }
+    if (height == -1) {
+      // empty geometry
+      return null;
+    } else if (height != expectedHeight) {
+      throw new IllegalArgumentException(type + " coordinates are nested " + height + " deep, expected " + expectedHeight +
+                                         " in feature " + featureCount);
+    }
+    Polygon[] result = new Polygon[coordinates.length];
+    for(int i=0;i<coordinates.length;i++) {
+      result[i] = makePolygon(coordinates[i]);
+    }
+    return result;
+  }
+
+  private static Polygon[] concat(Polygon[] a, Polygon[] b) {
+    if (a == null) {
+      return b;
+    } else if (b == null) {
+      return a;
+    }
+    Polygon[] result = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, result, a.length, b.length);
+    return result;
+  }
+
+  private void parseProperties() throws IOException {
+    if (peek() != '{') {
+      skipValue();
+      return;
+    }
+    pos++;
+    if (peek() == '}') {
+      pos++;
+      return;
+    }
+    while (true) {
+      String key = readString();
+      expect(':');
+      if ((key.equals("name") || key.equals("ADMIN") || key.equals("NAME")) && peek() == '"' && name == null) {
+        name = readString();
+      } else {
+        skipValue();
+      }
+      if (readSeparator('}')) {
+        return;
+      }
+    }
+  }
+
+  /** Parses a geometry's coordinates, of any type, into polygonRings and returns their nesting height; the rings are
+   *  only turned into polygons once the geometry's type is known. */
+  private int parseCoordinates() throws IOException {
+    rings.clear();
+    polygonRings.clear();
+    ringSize = 0;
+    return parseCoordinateArray();
+  }
+
+  /** Recursively parses nested coordinate arrays, returning the array's height: 0 for a position, 1 for a ring,
+   *  2 for a polygon, 3 for a multi-polygon, -1 for an empty array. */
+  private int parseCoordinateArray() throws IOException {
+    expect('[');
+    int c = peek();
+    if (c == ']') {
+      pos++;
+      return -1;
+    }
+    if (c != '[') {
+      // a position: lon, lat, optional altitude
+      double lon = readNumber();
+      expect(',');
+      double lat = readNumber();
+      while (readSeparator(']') == false) {
+        readNumber();
+      }
+      if (ringSize == ringLats.length) {
+        ringLats = Arrays.copyOf(ringLats, ringSize*2);
+        ringLons = Arrays.copyOf(ringLons, ringSize*2);
+      }
+      ringLats[ringSize] = lat;
+      ringLons[ringSize] = lon;
+      ringSize++;
+      return 0;
+    }
+
+    int childHeight;
+    while (true) {
+      childHeight = parseCoordinateArray();
+      if (readSeparator(']')) {
+        break;
+      }
+    }
+    int height = childHeight + 1;
+    if (height == 1) {
+      rings.add(new double[][] {Arrays.copyOf(ringLats, ringSize), Arrays.copyOf(ringLons, ringSize)});
+      ringSize = 0;
+    } else if (height == 2) {
+      polygonRings.add(rings.toArray(new double[rings.size()][][]));
+      rings.clear();
+    }
+    return height;
+  }
+
+  /** Makes a polygon from its rings, each {lats, lons}: the first is the outer ring, the rest are holes. */
+  private Polygon makePolygon(double[][][] rings) {
+    if (rings.length == 0) {
+      throw new IllegalArgumentException("polygon has no rings in feature " + featureCount);
+    }
+    Polygon[] holes = new Polygon[rings.length-1];
+    for(int i=1;i<rings.length;i++) {
+      holes[i-1] = new Polygon(rings[i][0], rings[i][1]);
+    }
+    return new Polygon(rings[0][0], rings[0][1], holes);
+  }
+
+  /** Parses one "count=N name" entry of a poly file: N polygons, each a "poly count=M" line of rings (outer ring first, then
+   *  holes), and each ring a "vertex count=K" line followed by K lats and K lons. */
+  private Polygon[] nextPolyFileEntry() throws IOException {
+    expectLiteral("count=");
+    int count = readInt();
+    chars.setLength(0);
+    int c;
+    while ((c = read()) != '\n' && c != -1) {
+      chars.append((char) c);
+    }
+    name = chars.toString().trim();
+    featureCount++;
+
+    Polygon[] result = new Polygon[count];
+    for(int i=0;i<count;i++) {
+      expectLiteral("poly count=");
+      int ringCount = readInt();
+      rings.clear();
+      for(int j=0;j<ringCount;j++) {
+        expectLiteral("vertex count=");
+        int vertexCount = readInt();
+        double[] lats = new double[vertexCount];
+        double[] lons = new double[vertexCount];
+        expectLiteral("lats");
+        for(int k=0;k<vertexCount;k++) {
+          lats[k] = readNumber();
+        }
+        expectLiteral("lons");
+        for(int k=0;k<vertexCount;k++) {
+          lons[k] = readNumber();
+        }
+        rings.add(new double[][] {lats, lons});
+      }
+      result[i] = makePolygon(rings.toArray(new double[rings.size()][][]));
+    }
+    return result;
+  }
+
+  // ---- byte level tokenizing ----
+
+  /** Makes sure at least n bytes are buffered, unless the input ends first. */
+  private void fill(int n) throws IOException {
+    if (limit - pos >= n) {
+      return;
+    }
+    System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+    limit -= pos;
+    pos = 0;
+    while (limit < n) {
+      int count = in.read(buffer, limit, buffer.length - limit);
+      if (count == -1) {
+        break;
+      }
+      limit += count;
+    }
+  }
+
+  private int read() throws IOException {
+    fill(1);
+    return pos < limit ? buffer[pos++] & 0xff : -1;
+  }
+
+  /** Skips whitespace and returns the next byte without consuming it, or -1 at the end. */
+  private int peek() throws IOException {
+    while (true) {
+      fill(1);
+      if (pos == limit) {
+        return -1;
+      }
+      byte b = buffer[pos];
+      if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+        pos++;
+      } else {
+        return b & 0xff;
+      }
+    }
+  }
+
+  private void expect(char expected) throws IOException {
+    int c = peek();
+    if (c != expected) {
+      throw new IllegalArgumentException("expected '" + expected + "' but got " + (c == -1 ? "end of file" : "'" + (char) c + "'") +
+                                         " in feature " + featureCount);
+    }
+    pos++;
+  }
+
+  private void expectLiteral(String literal) throws IOException {
+    peek();
+    for(int i=0;i<literal.length();i++) {
+      if (read() != literal.charAt(i)) {
+        throw new IllegalArgumentException("expected \"" + literal + "\" in poly file entry " + featureCount);
+      }
+    }
+  }
+
+  /** Consumes a ',' (returns false) or the closing char (returns true). */
+  private boolean readSeparator(char close) throws IOException {
+    int c = peek();
+    if (c == ',') {
+      pos++;
+      return false;
+    } else if (c == close) {
+      pos++;
+      return true;
+    }
+    throw new IllegalArgumentException("expected ',' or '" + close + "' but got " + (c == -1 ? "end of file" : "'" + (char) c + "'") +
+                                       " in feature " + featureCount);
+  }
+
+  /** Parses a number straight from the buffer with TaxiPipeline's exact fast path. */
+  private double readNumber() throws IOException {
+    int start = scanNumber();
+    return TaxiPipeline.parseDouble(buffer, start, pos);
+  }
+
+  private int readInt() throws IOException {
+    int start = scanNumber();
+    return TaxiPipeline.parseInt(buffer, start, pos);
+  }
+
+  /** Skips whitespace then the number's bytes, leaving pos at its end, and returns its start. */
+  private int scanNumber() throws IOException {
+    peek();
+    // no sane number is longer than this:
+    fill(64);
+    int start = pos;
+    while (pos < limit) {
+      byte b = buffer[pos];
+      if ((b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+' || b == 'e' || b == 'E') {
+        pos++;
+      } else {
+        break;
+      }
+    }
+    if (pos == start) {
+      throw new IllegalArgumentException("expected number in feature " + featureCount);
+    }
+    return start;
+  }
+
+  private String readString() throws IOException {
+    expect('"');
+    chars.setLength(0);
+    while (true) {
+      int c = read();
+      if (c == -1) {
+        throw new IllegalArgumentException("unterminated string in feature " + featureCount);
+      } else if (c == '"') {
+        return chars.toString();
+      } else if (c == '\\') {
+        c = read();
+        switch (c) {
+        case 'n': chars.append('\n'); break;
+        case 't': chars.append('\t'); break;
+        case 'r': chars.append('\r'); break;
+        case 'b': chars.append('\b'); break;
+        case 'f': chars.append('\f'); break;
+        case 'u':
+          int code = 0;
+          for(int i=0;i<4;i++) {
+            code = code * 16 + Character.digit(read(), 16);
+          }
+          chars.append((char) code);
+          break;
+        default: chars.append((char) c); break;
+        }
+      } else if (c < 0x80) {
+        chars.append((char) c);
+      } else {
+        // multi-byte UTF-8 sequence; names are all we keep, so decode them simply:
+        int extra = c >= 0xf0 ? 3 : c >= 0xe0 ? 2 : 1;
+        int code = c & (0x3f >> extra);
+        for(int i=0;i<extra;i++) {
+          code = (code << 6) | (read() & 0x3f);
+        }
+        chars.appendCodePoint(code);
+      }
+    }
+  }
+
+  /** Skips any JSON value. */
+  private void skipValue() throws IOException {
+    int c = peek();
+    if (c == '"') {
+      // skip without building the string:
+      pos++;
+      while (true) {
+        c = read();
+        if (c == '\\') {
+          read();
+        } else if (c == '"') {
+          return;
+        } else if (c == -1) {
+          throw new IllegalArgumentException("unterminated string in feature " + featureCount);
+        }
+      }
+    } else if (c == '{' || c == '[') {
+      pos++;
+      char close = c == '{' ? '}' : ']';
+      if (peek() == close) {
+        pos++;
+        return;
+      }
+      while (true) {
+        if (close == '}') {
+          skipValue();
+          expect(':');
+        }
+        skipValue();
+        if (readSeparator(close)) {
+          return;
+        }
+      }
+    } else if (c == '-' || (c >= '0' && c <= '9')) {
+      readNumber();
+    } else {
+      // true, false, null
+      while ((c = peek()) >= 'a' && c <= 'z') {
+        pos++;
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,240 @@
+package perf;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+
+/** Runs geo queries for {@link IndexAndSearchOpenStreetMaps} from a pool of threads.  Each query searches all index parts
+ *  concurrently (the calling thread takes part 0), and its wall-clock latency and CPU time (summed over every thread that
+ *  worked on it) are recorded in per-shape HdrHistograms.  The first iteration is warmup and is not recorded. */
+class GeoQueryRunner {
+
+  // Latencies and CPU times are recorded in microseconds, up to 1 hour:
+  private static final long MAX_MICROS = 3600L * 1000 * 1000;
+
+  private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+  /** One query execution: build the query, then search each part with it. */
+  static abstract class Task {
+    /** Label to group latencies by, e.g. box, distance, poly10, nearest */
+    final String shape;
+
+    Task(String shape) {
+      this.shape = shape;
+    }
+
+    /** Returns the query to run; called once per execution, so construction cost is included in the latency. */
+    abstract Query build();
+
+    /** Searches one part, returning its hit count. */
+    long search(IndexSearcher searcher, Query query) throws IOException {
+      return searcher.count(query);
+    }
+
+    /** Called with the latency of each recorded execution, on the thread that ran its {@link #build}. */
+    void finished(long latencyNanos) {
+    }
+  }
+
+  private static final class Stats {
+    final Histogram latency = new Histogram(MAX_MICROS, 3);
+    final Histogram cpu = new Histogram(MAX_MICROS, 3);
+  }
+
+  private static long cpuNanos() {
+    return THREAD_BEAN.isCurrentThreadCpuTimeSupported() ? THREAD_BEAN.getCurrentThreadCpuTime() : 0;
+  }
+
+  /** Runs all tasks {@code iters} times using {@code threadCount} query threads, and returns best QPS and best M hits/sec.
+   *  {@code shapeCache}, if not null, is told when each iteration starts. */
+  static double[] run(final IndexSearcher[] searchers, final List<Task> tasks, int threadCount, int iters,
+                      GeoShapeCache shapeCache) throws InterruptedException {
+
+    System.out.println("\nRunning " + tasks.size() + " queries with " + threadCount + " threads, " + searchers.length + " parts searched concurrently per query" +
+                       (THREAD_BEAN.isCurrentThreadCpuTimeSupported() ? "" : "; thread CPU time is not supported so CPU will be 0"));
+
+    final ExecutorService partExecutor;
+    if (searchers.length > 1) {
+      partExecutor = Executors.newFixedThreadPool(threadCount * (searchers.length-1));
+    } else {
+      partExecutor = null;
+    }
+
+    // Each thread records into its own histograms; we merge once all iterations are done:
+    final List<Map<String,Stats>> threadStats = new ArrayList<>();
+    for(int t=0;t<threadCount;t++) {
+      threadStats.add(new TreeMap<String,Stats>());
+    }
+
+    final AtomicBoolean failed = new AtomicBoolean();
+    double bestQPS = Double.NEGATIVE_INFINITY;
+
+    // million hits per second:
+    double bestMHPS = Double.NEGATIVE_INFINITY;
+
+    try {
+      for(int iter=0;iter<iters;iter++) {
+        final boolean record = iter > 0;
+        if (shapeCache != null) {
+          shapeCache.startIteration(iter);
+        }
+        final AtomicInteger nextTask = new AtomicInteger();
+        final AtomicLong totHits = new AtomicLong();
+        Thread[] threads = new Thread[threadCount];
+        long tStart = System.nanoTime();
+        for(int t=0;t<threadCount;t++) {
+          final Map<String,Stats> stats = threadStats.get(t);
+          threads[t] = new Thread() {
+              @Override
+              public void run() {
+                try {
+                  _run();
+                } catch (Exception e) {
+                  failed.set(true);
+                  throw new RuntimeException(e);
+                }
+              }
+
+              private void _run() throws Exception {
+                List<Future<long[]>> futures = new ArrayList<>();
+                while (true) {
+                  int taskID = nextTask.getAndIncrement();
+                  if (taskID >= tasks.size()) {
+                    break;
+                  }
+                  final Task task = tasks.get(taskID);
+                  long t0 = System.nanoTime();
+                  long cpu0 = cpuNanos();
+                  final Query q = task.build();
+
+                  futures.clear();
+                  for(int part=1;part<searchers.length;part++) {
+                    final IndexSearcher searcher = searchers[part];
+                    futures.add(partExecutor.submit(new Callable<long[]>() {
+                        @Override
+                        public long[] call() throws IOException {
+                          long partCPU0 = cpuNanos();
+                          long hits = task.search(searcher, q);
+                          return new long[] {hits, cpuNanos() - partCPU0};
+                        }
+                      }));
+                  }
+                  long hits = task.search(searchers[0], q);
+                  long cpu = cpuNanos() - cpu0;
+                  for(Future<long[]> future : futures) {
+                    long[] result = future.get();
+                    hits += result[0];
+                    cpu += result[1];
+                  }
+                  long latency = System.nanoTime() - t0;
+                  totHits.addAndGet(hits);
+
+                  if (record) {
+                    Stats s = stats.get(task.shape);
+                    if (s == null) {
+                      s = new Stats();
+                      stats.put(task.shape, s);
+                    }
+                    s.latency.recordValue(Math.min(MAX_MICROS, latency / 1000));
+                    s.cpu.recordValue(Math.min(MAX_MICROS, cpu / 1000));
+                    task.finished(latency);
+                  }
+                }
+              }
+            };
+          threads[t].start();
+        }
+        for(Thread thread : threads) {
+          thread.join();
+        }
+        if (failed.get()) {
+          throw new RuntimeException("query thread failed");
+        }
+
+        long tEnd = System.nanoTime();
+        double elapsedSec = (tEnd-tStart)/1000000000.0;
+        double qps = tasks.size() / elapsedSec;
+        double mhps = (totHits.get()/1000000.0) / elapsedSec;
+        System.out.println(String.format(Locale.ROOT,
+                                         "ITER %d%s: %.2f M hits/sec, %.2f QPS (%.2f sec for %d queries), totHits=%d",
+                                         iter, record ? "" : " (warmup)", mhps, qps, elapsedSec, tasks.size(), totHits.get()));
+        if (qps > bestQPS) {
+          System.out.println("  ***");
+          bestQPS = qps;
+          bestMHPS = mhps;
+        }
+      }
+    } finally {
+      if (partExecutor != null) {
+        partExecutor.shutdown();
+      }
+    }
+
+    Map<String,Stats> merged = new TreeMap<>();
+    for(Map<String,Stats> stats : threadStats) {
+      for(Map.Entry<String,Stats> ent : stats.entrySet()) {
+        Stats s = merged.get(ent.getKey());
+        if (s == null) {
+          s = new Stats();
+          merged.put(ent.getKey(), s);
+        }
+        s.latency.add(ent.getValue().latency);
+        s.cpu.add(ent.getValue().cpu);
+      }
+    }
+
+    System.out.println("\nPer-shape latency and CPU (msec; CPU is summed across the threads searching each query's parts):");
+    System.out.println(String.format(Locale.ROOT, "%-12s %8s %8s %8s %8s %8s %8s | %8s %8s %8s",
+                                     "shape", "count", "p50", "p90", "p99", "p99.9", "max", "cpuMean", "cpuP50", "cpuP99"));
+    for(Map.Entry<String,Stats> ent : merged.entrySet()) {
+      Histogram latency = ent.getValue().latency;
+      Histogram cpu = ent.getValue().cpu;
+      System.out.println(String.format(Locale.ROOT, "%-12s %8d %8.3f %8.3f %8.3f %8.3f %8.3f | %8.3f %8.3f %8.3f",
+                                       ent.getKey(),
+                                       latency.getHistogramData().getTotalCount(),
+                                       latency.getHistogramData().getValueAtPercentile(50)/1000.,
+                                       latency.getHistogramData().getValueAtPercentile(90)/1000.,
+                                       latency.getHistogramData().getValueAtPercentile(99)/1000.,
+                                       latency.getHistogramData().getValueAtPercentile(99.9)/1000.,
+                                       latency.getHistogramData().getMaxValue()/1000.,
+                                       cpu.getHistogramData().getMean()/1000.,
+                                       cpu.getHistogramData().getValueAtPercentile(50)/1000.,
+                                       cpu.getHistogramData().getValueAtPercentile(99)/1000.));
+    }
+
+    return new double[] {bestQPS, bestMHPS};
+  }
+}
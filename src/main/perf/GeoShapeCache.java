@@ -0,0 +1,271 @@
+package perf;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.lucene.geo.Polygon;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.Accountable;
+
+/** LRU cache of built geo shape queries for {@link IndexAndSearchOpenStreetMaps}, keyed by the normalized shape, so a
+ *  repeated box, circle or polygon skips shape validation and decomposition (e.g. geo3d's polygon planes).  Memory is
+ *  bounded by each entry's size: measured when the query is {@link Accountable}, else estimated from its vertex count.
+ *  The estimate is only a lower bound -- geo3d shapes also hold planes, edges and bounds per vertex, several times the
+ *  vertices themselves -- so the real footprint can be well above the configured MB.
+ *
+ *  <p>Benchmarks call {@link #startIteration} before each iteration.  Iteration 0 is warmup: it fills the cache and warms
+ *  up the query building code, and nothing is counted.  Iteration 1 starts from an empty cache, so its queries are all
+ *  misses measured with warm code, and later iterations mostly hit; hits, misses and latencies are only counted from
+ *  iteration 1 on.  Thread safe. */
+class GeoShapeCache {
+
+  /** Coordinates are rounded to this many degrees, about 1 cm, before hashing: */
+  private static final double QUANTUM = 1e-7;
+
+  // Rough per-entry overhead (key, map entry, query object); vertices are added on top:
+  private static final long ENTRY_BYTES = 256;
+
+  /** Returns the bytes an entry takes: measured if the query can tell us, else a lower bound */
+  private static long ramBytesUsed(ShapeKey key, Query query) {
+    if (query instanceof Accountable) {
+      // the key's coords plus what the query reports:
+      return ENTRY_BYTES + 8L * key.coords.length + ((Accountable) query).ramBytesUsed();
+    } else {
+      return key.ramBytesUsed();
+    }
+  }
+
+  /** A normalized shape: its kind plus quantized coordinates, with polygon rings rotated to start at their smallest vertex. */
+  static final class ShapeKey {
+    final String kind;
+    final long[] coords;
+    private final int hashCode;
+
+    private ShapeKey(String kind, long[] coords) {
+      this.kind = kind;
+      this.coords = coords;
+      this.hashCode = 31 * kind.hashCode() + Arrays.hashCode(coords);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (other instanceof ShapeKey == false) {
+        return false;
+      }
+      ShapeKey o = (ShapeKey) other;
+      return kind.equals(o.kind) && Arrays.equals(coords, o.coords);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    /** Lower bound on the entry's bytes, when the query can't measure itself */
+    long ramBytesUsed() {
+      // the key's coords plus the query's own copy of the vertices:
+      return ENTRY_BYTES + 16L * coords.length;
+    }
+  }
+
+  private static long quantize(double degrees) {
+    return Math.round(degrees / QUANTUM);
+  }
+
+  static ShapeKey box(double minLat, double maxLat, double minLon, double maxLon) {
+    return new ShapeKey("box", new long[] {quantize(minLat), quantize(maxLat), quantize(minLon), quantize(maxLon)});
+  }
+
+  static ShapeKey circle(double centerLat, double centerLon, double radiusMeters) {
+    // radius is rounded to the cm too:
+    return new ShapeKey("circle", new long[] {quantize(centerLat), quantize(centerLon), Math.round(radiusMeters * 100)});
+  }
+
+  static ShapeKey polygon(double[] lats, double[] lons) {
+    long[] coords = new long[1 + 2 + 2 * (lats.length-1)];
+    coords[0] = 1;
+    addRing(lats, lons, new Polygon[0], coords, 1);
+    return new ShapeKey("polygon", coords);
+  }
+
+  /** Key for a multi-polygon; each polygon is encoded as its vertex count, its ring, then its holes the same way. */
+  static ShapeKey polygons(Polygon... polygons) {
+    int size = 1;
+    for(Polygon polygon : polygons) {
+      size += ringSize(polygon);
+    }
+    long[] coords = new long[size];
+    coords[0] = polygons.length;
+    int upto = 1;
+    for(Polygon polygon : polygons) {
+      upto = addRing(polygon.getPolyLats(), polygon.getPolyLons(), polygon.getHoles(), coords, upto);
+    }
+    return new ShapeKey("polygon", coords);
+  }
+
+  private static int ringSize(Polygon polygon) {
+    // closing vertex is dropped:
+    int size = 2 + 2 * (polygon.getPolyLats().length-1);
+    for(Polygon hole : polygon.getHoles()) {
+      size += ringSize(hole);
+    }
+    return size;
+  }
+
+  private static int addRing(double[] lats, double[] lons, Polygon[] holes, long[] coords, int upto) {
+    int n = lats.length-1;
+    coords[upto++] = n;
+    coords[upto++] = holes.length;
+    // rotate the ring to start at its smallest (lat, lon), so the same ring with another starting vertex hits:
+    int start = 0;
+    for(int i=1;i<n;i++) {
+      if (lats[i] < lats[start] || (lats[i] == lats[start] && lons[i] < lons[start])) {
+        start = i;
+      }
+    }
+    for(int i=0;i<n;i++) {
+      coords[upto++] = quantize(lats[(start+i)%n]);
+      coords[upto++] = quantize(lons[(start+i)%n]);
+    }
+    for(Polygon hole : holes) {
+      upto = addRing(hole.getPolyLats(), hole.getPolyLons(), hole.getHoles(), coords, upto);
+    }
+    return upto;
+  }
+
+  private final long maxBytes;
+  private static final class Entry {
+    final Query query;
+    final long bytes;
+
+    Entry(Query query, long bytes) {
+      this.query = query;
+      this.bytes = bytes;
+    }
+  }
+
+  private final LinkedHashMap<ShapeKey,Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytesUsed;
+  private long putCount;
+  private long measuredCount;
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+
+  // Only true from iteration 1 on, so warmup and queries built outside an iteration are not counted:
+  private boolean recording;
+
+  // Latency (nanos) of whole queries (build + search) by whether their shape was cached:
+  private long hitNanos;
+  private long missNanos;
+  private long hitLatencyCount;
+  private long missLatencyCount;
+
+  // Whether this thread's last get() hit, so a query runner can attribute the query's latency afterwards:
+  private final ThreadLocal<Boolean> lastLookupHit = new ThreadLocal<>();
+
+  GeoShapeCache(double maxMB) {
+    if (maxMB <= 0) {
+      throw new IllegalArgumentException("maxMB must be > 0; got " + maxMB);
+    }
+    this.maxBytes = (long) (maxMB * 1024 * 1024);
+  }
+
+  /** Called before each benchmark iteration, while no queries are running; iteration 1 starts from an empty cache. */
+  synchronized void startIteration(int iter) {
+    recording = iter > 0;
+    if (iter == 1) {
+      cache.clear();
+      bytesUsed = 0;
+    }
+  }
+
+  /** Returns the cached query, or null; counts a hit or a miss once past warmup. */
+  synchronized Query get(ShapeKey key) {
+    Entry entry = cache.get(key);
+    if (recording) {
+      if (entry == null) {
+        missCount++;
+      } else {
+        hitCount++;
+      }
+    }
+    lastLookupHit.set(entry != null);
+    return entry == null ? null : entry.query;
+  }
+
+  synchronized void put(ShapeKey key, Query query) {
+    long bytes = ramBytesUsed(key, query);
+    if (bytes > maxBytes) {
+      // never fits
+      return;
+    }
+    putCount++;
+    if (query instanceof Accountable) {
+      measuredCount++;
+    }
+    Entry old = cache.put(key, new Entry(query, bytes));
+    if (old != null) {
+      bytesUsed -= old.bytes;
+    }
+    bytesUsed += bytes;
+    Iterator<Map.Entry<ShapeKey,Entry>> it = cache.entrySet().iterator();
+    while (bytesUsed > maxBytes) {
+      Map.Entry<ShapeKey,Entry> eldest = it.next();
+      bytesUsed -= eldest.getValue().bytes;
+      it.remove();
+      evictionCount++;
+    }
+  }
+
+  /** Records the latency of one whole query whose shape lookup hit or missed. */
+  synchronized void recordLatency(boolean hit, long nanos) {
+    if (recording == false) {
+      return;
+    }
+    if (hit) {
+      hitNanos += nanos;
+      hitLatencyCount++;
+    } else {
+      missNanos += nanos;
+      missLatencyCount++;
+    }
+  }
+
+  /** Records the latency of one whole query, as a hit or miss according to this thread's last {@link #get} */
+  void recordLatency(long nanos) {
+    Boolean hit = lastLookupHit.get();
+    if (hit != null) {
+      recordLatency(hit, nanos);
+    }
+  }
+
+  synchronized String stats() {
+    double hitMS = hitLatencyCount == 0 ? 0 : hitNanos / 1000000.0 / hitLatencyCount;
+    double missMS = missLatencyCount == 0 ? 0 : missNanos / 1000000.0 / missLatencyCount;
+    return String.format(Locale.ROOT,
+                         "shape cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d entries using %.2f of %.2f MB (%d of %d puts measured, the rest lower-bound estimates); avg query msec: hit=%.3f miss=%.3f (delta %.3f)",
+                         hitCount, missCount, 100.0 * hitCount / Math.max(1, hitCount+missCount), evictionCount, cache.size(),
+                         bytesUsed/1024./1024., maxBytes/1024./1024., measuredCount, putCount, hitMS, missMS, missMS - hitMS);
+  }
+}
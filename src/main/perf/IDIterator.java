@@ -0,0 +1,244 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+/** Generates IDs forever; the ID schemes shared by IDPerfTest and TermsQueryPerf */
+abstract class IDIterator {
+
+  public abstract void next(BytesRef result);
+
+  /** Returns the iterator for an ID scheme name, as used on the command line */
+  static IDIterator forName(String scheme, int base, long maxCount, Random random) {
+    switch (scheme) {
+    case "random":
+      return randomIDs(base, random);
+    case "zeroPadRandom":
+      return zeroPadRandomIDs(base, random);
+    case "zeroPadSequential":
+      return zeroPadSequentialIDs(base, maxCount);
+    case "simpleSequential":
+      return simpleSequentialIDs(base);
+    case "nanoTime":
+      return nanoTimeIDs(base);
+    case "flake":
+      return flakeIDs(base);
+    case "flakeString":
+      return flakeIDs();
+    case "uuid":
+      return javaUUIDsBase(base);
+    case "uuidString":
+      return javaUUIDs();
+    default:
+      throw new IllegalArgumentException("unknown ID scheme \"" + scheme + "\"; must be one of random, zeroPadRandom, zeroPadSequential, simpleSequential, nanoTime, flake, flakeString, uuid, uuidString");
+    }
+  }
+
+  static IDIterator flakeIDs() {
+    final FlakeID flakeID = new FlakeID();
+    return new IDIterator() {
+      @Override
+      public void next(BytesRef result) {
+        copyChars(flakeID.getStringId(), result);
+      }
+    };
+  }
+
+  static IDIterator flakeIDs(final int base) {
+    final FlakeID flakeID = new FlakeID();
+    return new IDIterator() {
+      private final BytesRef scratch = new BytesRef(64);
+      @Override
+      public void next(BytesRef result) {
+        FlakeID.TwoLongs uuid = flakeID.getTwoLongsId();
+        longToBytesRef(uuid.high, result, base);
+        longToBytesRef(uuid.low, scratch, base);
+        append(result, scratch);
+      }
+    };
+  }
+
+  static IDIterator nanoTimeIDs(final int base) {
+    return new IDIterator() {
+      @Override
+      public void next(BytesRef result) {
+        longToBytesRef(System.nanoTime(), result, base);
+      }
+    };
+  }
+
+  static IDIterator javaUUIDs() {
+    return new IDIterator() {
+      @Override
+      public void next(BytesRef result) {
+        copyChars(UUID.randomUUID().toString(), result);
+      }
+    };
+  }
+
+  static IDIterator javaUUIDsBase(final int base) {
+    return new IDIterator() {
+
+      private final BytesRef scratch = new BytesRef(64);
+
+      @Override
+      public void next(BytesRef result) {
+        UUID uuid = UUID.randomUUID();
+        longToBytesRef(uuid.getMostSignificantBits(), result, base);
+        longToBytesRef(uuid.getLeastSignificantBits(), scratch, base);
+        append(result, scratch);
+      }
+    };
+  }
+
+  /** 0000, 0001, 0002, ... */
+  static IDIterator zeroPadSequentialIDs(final int base, long maxCount) {
+    final int zeroPadDigits = getZeroPadDigits(base, maxCount-1);
+    return new IDIterator() {
+      int counter = 0;
+      @Override
+      public void next(BytesRef result) {
+        longToBytesRef(counter++, result, base, zeroPadDigits);
+      }
+    };
+  }
+
+  /** Random digits, zero padded */
+  static IDIterator zeroPadRandomIDs(final int base, final Random random) {
+    final int zeroPadDigits = getZeroPadDigits(base, Long.MAX_VALUE);
+    return new IDIterator() {
+      @Override
+      public void next(BytesRef result) {
+        longToBytesRef(random.nextLong() & 0x7fffffffffffffffL, result, base, zeroPadDigits);
+      }
+    };
+  }
+
+  /** Random digits, not padded */
+  static IDIterator randomIDs(final int base, final Random random) {
+    return new IDIterator() {
+      @Override
+      public void next(BytesRef result) {
+        longToBytesRef(random.nextLong() & Long.MAX_VALUE, result, base);
+      }
+    };
+  }
+
+  // 0, 1, 2, 3...
+  static IDIterator simpleSequentialIDs(final int base) {
+    return new IDIterator() {
+      int counter = 0;
+      @Override
+      public void next(BytesRef result) {
+        longToBytesRef(counter++, result, base);
+      }
+    };
+  }
+
+  private static long[] topBitByBase = new long[257];
+  static {
+    BigInteger x = new BigInteger(1, new byte[] {(byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00});
+    for(int base=2;base<257;base++) {
+      topBitByBase[base] = x.divide(BigInteger.valueOf(base)).longValue();
+      //System.out.println("  base=" + base + " div=" + topBitByBase[base]);
+    }
+  }
+
+  /** Sets result to the UTF-8 bytes of s; result's offset must be 0 */
+  static void copyChars(String s, BytesRef result) {
+    byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+    if (result.bytes.length < utf8.length) {
+      result.bytes = ArrayUtil.grow(result.bytes, utf8.length);
+    }
+    System.arraycopy(utf8, 0, result.bytes, 0, utf8.length);
+    result.length = utf8.length;
+  }
+
+  /** Appends other's bytes to result; result's offset must be 0 */
+  static void append(BytesRef result, BytesRef other) {
+    if (result.bytes.length < result.length + other.length) {
+      result.bytes = ArrayUtil.grow(result.bytes, result.length + other.length);
+    }
+    System.arraycopy(other.bytes, other.offset, result.bytes, result.length, other.length);
+    result.length += other.length;
+  }
+
+  // a long is at most 64 digits, in base 2; bytes' offset must be 0
+  static void longToBytesRef(long value, BytesRef bytes, int base) {
+    //System.out.println("valueStart=" + value);
+    if (bytes.bytes.length < 64) {
+      bytes.bytes = ArrayUtil.grow(bytes.bytes, 64);
+    }
+    boolean topBit = value < 0;
+    value = value & 0x7fffffffffffffffL;
+    //System.out.println("  topBit=" + topBit + " valueNow=" + value);
+    bytes.length = 0;
+    while (value != 0) {
+      bytes.bytes[bytes.length++] = (byte) (value % base);
+      value = value / base;
+      if (topBit && bytes.length == 1) {
+        value += topBitByBase[base];
+      }
+    }
+
+    // Reverse in place
+    for(int i=0;i<bytes.length/2;i++) {
+      byte x = bytes.bytes[i];
+      bytes.bytes[i] = bytes.bytes[bytes.length-i-1];
+      bytes.bytes[bytes.length-i-1] = x;
+    }
+  }
+
+  // bytes' offset must be 0
+  static void longToBytesRef(long value, BytesRef bytes, int base, int zeroPadDigits) {
+    if (bytes.bytes.length < zeroPadDigits) {
+      bytes.bytes = ArrayUtil.grow(bytes.bytes, zeroPadDigits);
+    }
+    boolean topBit = value < 0;
+    value = value & 0x7fffffffffffffffL;
+    int downTo = zeroPadDigits-1;
+    while (value != 0) {
+      bytes.bytes[downTo--] = (byte) (value % base);
+      value = value / base;
+      if (topBit && downTo == zeroPadDigits-2) {
+        value += topBitByBase[base];
+      }
+    }
+    while (downTo >= 0) {
+      bytes.bytes[downTo--] = 0;
+    }
+
+    bytes.length = zeroPadDigits;
+  }
+
+  static int getZeroPadDigits(int base, long maxValue) {
+    int count = 0;
+    while (maxValue != 0) {
+      count++;
+      maxValue = maxValue / base;
+    }
+    return count;
+  }
+}
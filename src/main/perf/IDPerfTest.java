@@ -19,14 +19,12 @@ package perf;
 
 import java.io.File;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Random;
-import java.util.UUID;
 
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
@@ -89,23 +87,14 @@ public class IDPerfTest {
   //private static final int ID_SEARCH_COUNT = 2000000;
   private static final int ID_SEARCH_COUNT = 1000000;
 
-  private static long[] topBitByBase = new long[257];
-  static {
-    BigInteger x = new BigInteger(1, new byte[] {(byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00});
-    for(int base=2;base<257;base++) {
-      topBitByBase[base] = x.divide(BigInteger.valueOf(base)).longValue();
-      //System.out.println("  base=" + base + " div=" + topBitByBase[base]);
-    }
-  }
-
   public static void main(String[] args) throws IOException {
     String indexPath = args[0];
     Result r;
 
     //r = testOne(indexPath, "uuids v1 (time, node, counter)", type1UUIDs());
     //r = testOne(indexPath, "uuids v1 (time, node, counter), base 256", type1UUIDsBase(256));
-    //r = testOne(indexPath, "flake, base " + 256, flakeIDs(256));
-    //r = testOne(indexPath, "flake", flakeIDs());
+    //r = testOne(indexPath, "flake, base " + 256, IDIterator.flakeIDs(256));
+    //r = testOne(indexPath, "flake", IDIterator.flakeIDs());
     //r = testOne(indexPath, "zero pad sequential, base 256", zeroPadSequentialIDs(256));
     //r = testOne(indexPath, "uuids v1 (time, node, counter)", type1UUIDs());
     //System.out.println("  best result: " + r);
@@ -119,12 +108,12 @@ public class IDPerfTest {
 
     int NUM_BASE = 1;
 
-    r = testOne(indexPath, "flake", flakeIDs());
+    r = testOne(indexPath, "flake", IDIterator.flakeIDs());
     System.out.println("  best result: " + r);
 
     for(int i=0;i<NUM_BASE;i++) {
       int base = getBase(i);
-      r = testOne(indexPath, "flake, base " + base, flakeIDs(base));
+      r = testOne(indexPath, "flake, base " + base, IDIterator.flakeIDs(base));
       System.out.println("  best result: " + r);
     }
 
@@ -139,36 +128,36 @@ public class IDPerfTest {
 
     for(int i=0;i<NUM_BASE;i++) {
       int base = getBase(i);
-      r = testOne(indexPath, "nanotime, base " + base, nanoTimeIDs(base));
+      r = testOne(indexPath, "nanotime, base " + base, IDIterator.nanoTimeIDs(base));
       System.out.println("  best result: " + r);
     }
 
     for(int i=0;i<NUM_BASE;i++) {
       int base = getBase(i);
-      r = testOne(indexPath, "simple sequential, base " + base, simpleSequentialIDs(base));
+      r = testOne(indexPath, "simple sequential, base " + base, IDIterator.simpleSequentialIDs(base));
       System.out.println("  best result: " + r);
     }
 
     for(int i=0;i<NUM_BASE;i++) {
       int base = getBase(i);
-      r = testOne(indexPath, "zero pad sequential, base " + base, zeroPadSequentialIDs(base));
+      r = testOne(indexPath, "zero pad sequential, base " + base, IDIterator.zeroPadSequentialIDs(base, ID_COUNT));
       System.out.println("  best result: " + r);
     }
 
     /*
     for(int i=0;i<NUM_BASE;i++) {
       int base = getBase(i);
-      r = testOne(indexPath, "zero pad random, base " + base, zeroPadRandomIDs(base));
+      r = testOne(indexPath, "zero pad random, base " + base, IDIterator.zeroPadRandomIDs(base, new Random(23)));
       System.out.println("  best result: " + r);
     }
     */
 
-    r = testOne(indexPath, "uuids v4 (random)", javaUUIDs());
+    r = testOne(indexPath, "uuids v4 (random)", IDIterator.javaUUIDs());
     System.out.println("  best result: " + r);
 
     for(int i=0;i<NUM_BASE;i++) {
       int base = getBase(i);
-      r = testOne(indexPath, " uuids v4 (random), base " + base, javaUUIDsBase(base));
+      r = testOne(indexPath, " uuids v4 (random), base " + base, IDIterator.javaUUIDsBase(base));
       System.out.println("  best result: " + r);
     }
   }
@@ -197,59 +186,12 @@ public class IDPerfTest {
   }
 
 
-  /** Generates IDs forever */
-  private static abstract class IDIterator {
-    public abstract void next(BytesRef result);
-  }
-
-  private static IDIterator flakeIDs() {
-    final FlakeID flakeID = new FlakeID();
-    return new IDIterator() {
-      @Override
-      public void next(BytesRef result) {
-        result.copyChars(flakeID.getStringId());
-      }
-    };
-  }
-
-  private static IDIterator flakeIDs(final int base) {
-    final FlakeID flakeID = new FlakeID();
-    return new IDIterator() {
-      private final BytesRef scratch = new BytesRef(64);
-      @Override
-      public void next(BytesRef result) {
-        FlakeID.TwoLongs uuid = flakeID.getTwoLongsId();
-        longToBytesRef(uuid.high, result, base);
-        longToBytesRef(uuid.low, scratch, base);
-        result.append(scratch);
-      }
-    };
-  }
-
-  private static IDIterator nanoTimeIDs(final int base) {
-    return new IDIterator() {
-      @Override
-      public void next(BytesRef result) {
-        longToBytesRef(System.nanoTime(), result, base);
-      }
-    };
-  }
-
-  private static IDIterator javaUUIDs() {
-    return new IDIterator() {
-      @Override
-      public void next(BytesRef result) {
-        result.copyChars(UUID.randomUUID().toString());
-      }
-    };
-  }
-
   // uuid-3.4.jar from http://johannburkard.de/software/uuid/
   private static IDIterator type1UUIDs() {
     return new IDIterator() {
       @Override
       public void next(BytesRef result) {
-        result.copyChars(new com.eaio.uuid.UUID().toString());
+        IDIterator.copyChars(new com.eaio.uuid.UUID().toString(), result);
       }
     };
   }
@@ -263,60 +205,9 @@ public class IDPerfTest {
       public void next(BytesRef result) {
         com.eaio.uuid.UUID uuid = new com.eaio.uuid.UUID();
         //System.out.println("got uuid=" + uuid.getTime() + " " + uuid.getClockSeqAndNode());
-        longToBytesRef(uuid.getTime(), result, base);
-        longToBytesRef(uuid.getClockSeqAndNode(), scratch, base);
-        result.append(scratch);
-      }
-    };
-  }
-
-  private static IDIterator javaUUIDsBase(final int base) {
-    return new IDIterator() {
-
-      private final BytesRef scratch = new BytesRef(64);
-
-      @Override
-      public void next(BytesRef result) {
-        UUID uuid = UUID.randomUUID();
-        longToBytesRef(uuid.getMostSignificantBits(), result, base);
-        longToBytesRef(uuid.getLeastSignificantBits(), scratch, base);
-        result.append(scratch);
-      }
-    };
-  }
-
-  /** 0000, 0001, 0002, ... */
-  private static IDIterator zeroPadSequentialIDs(final int base) {
-    final int zeroPadDigits = getZeroPadDigits(base, ID_COUNT-1);
-    return new IDIterator() {
-      int counter = 0;
-      @Override
-      public void next(BytesRef result) {
-        longToBytesRef(counter++, result, base, zeroPadDigits);
-      }
-    };
-  }
-
-  /** Random digits, zero padded */
-  private static IDIterator zeroPadRandomIDs(final int base) {
-    final int zeroPadDigits = getZeroPadDigits(base, Long.MAX_VALUE);
-
-    final Random random = new Random(23);
-    return new IDIterator() {
-      @Override
-      public void next(BytesRef result) {
-        longToBytesRef(random.nextLong() & 0x7fffffffffffffffL, result, base, zeroPadDigits);
-      }
-    };
-  }
-
-  // 0, 1, 2, 3...
-  private static IDIterator simpleSequentialIDs(final int base) {
-    return new IDIterator() {
-      int counter = 0;
-      @Override
-      public void next(BytesRef result) {
-        longToBytesRef(counter++, result, base);
+        IDIterator.longToBytesRef(uuid.getTime(), result, base);
+        IDIterator.longToBytesRef(uuid.getClockSeqAndNode(), scratch, base);
+        IDIterator.append(result, scratch);
       }
     };
   }
@@ -587,50 +478,6 @@ public class IDPerfTest {
     }
   }
 
-  // bytes must already be grown big enough!
-  private static void longToBytesRef(long value, BytesRef bytes, int base) {
-    //System.out.println("valueStart=" + value);
-    boolean topBit = value < 0;
-    value = value & 0x7fffffffffffffffL;
-    //System.out.println("  topBit=" + topBit + " valueNow=" + value);
-    long valueStart = value;
-    bytes.length = 0;
-    while (value != 0) {
-      bytes.bytes[bytes.length++] = (byte) (value % base);
-      value = value / base;
-      if (topBit && bytes.length == 1) {
-        value += topBitByBase[base];
-      }
-    }
-
-    // Reverse in place
-    for(int i=0;i<bytes.length/2;i++) {
-      byte x = bytes.bytes[i];
-      bytes.bytes[i] = bytes.bytes[bytes.length-i-1];
-      bytes.bytes[bytes.length-i-1] = x;
-    }
-    //System.out.println(valueStart + " -> " + bytes);
-  }
-
-  // bytes must already be grown big enough!
-  private static void longToBytesRef(long value, BytesRef bytes, int base, int zeroPadDigits) {
-    boolean topBit = value < 0;
-    value = value & 0x7fffffffffffffffL;
-    int downTo = zeroPadDigits-1;
-    while (value != 0) {
-      bytes.bytes[downTo--] = (byte) (value % base);
-      value = value / base;
-      if (topBit && downTo == zeroPadDigits-2) {
-        value += topBitByBase[base];
-      }
-    }
-    while (downTo >= 0) {
-      bytes.bytes[downTo--] = 0;
-    }
-
-    bytes.length = zeroPadDigits;
-  }
-
   /** Fisher–Yates shuffle */
   private static void shuffle(Random random, BytesRef[] ids) {
     for (int i=ids.length - 1; i > 0;i--) {
@@ -641,13 +488,4 @@ public class IDPerfTest {
       ids[i] = a;
     }
   }
-
-  private static int getZeroPadDigits(int base, long maxValue) {
-    int count = 0;
-    while (maxValue != 0) {
-      count++;
-      maxValue = maxValue / base;
-    }
-    return count;
-  }
 }
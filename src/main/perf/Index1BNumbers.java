@@ -18,7 +18,6 @@ package perf;
  */
 
 import java.io.File;
-import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
@@ -35,37 +34,6 @@ import org.apache.lucene.util.Version;
 // rm -rf /p/indices/1bnumbers; pushd core; ant jar; popd; javac -d /lucene/util/build -cp build/core/classes/java:build/analysis/common/classes/java /lucene/util/src/main/perf/Index1BNumbers.java; java -cp /lucene/util/build:build/core/classes/java:build/analysis/common/classes/java perf.Index1BNumbers /p/indices/1bnumbers 4 8
 
 public class Index1BNumbers {
-  private static class MakeNumbers {
-
-    final Random random;
-    final long end;
-    long curValue;
-    int countLeft;
-
-    public MakeNumbers() {
-      random = new Random(17);
-      curValue = 1397724815596L;
-      end = curValue + 2 + 3600*24*1000;
-      nextValue();
-    }
-
-    private void nextValue() {
-      // 11.574074074074074 per msec
-      while (countLeft <= 0) {
-        curValue++;
-        countLeft = (int) Math.round(3 * random.nextGaussian() + 11.6);
-      }
-    }
-
-    public synchronized long next() {
-      long value = curValue;
-      countLeft--;
-      nextValue();
-      //System.out.println(value);
-      return value;
-    }
-  }
-
   public static void main(String[] args) throws Exception {
     File indexPath = new File(args[0]);
     int numThreads = Integer.parseInt(args[1]);
@@ -99,22 +67,22 @@ public class Index1BNumbers {
             Field field = new LongField("number", 0L, longFieldType);
             doc.add(field);
 
-            while (true) {
-              try {
-                long v = numbers.next();
-                if (v >= numbers.end) {
-                  break;
+            MakeNumbers.Block block = new MakeNumbers.Block();
+            try {
+              while (numbers.next(block)) {
+                for(int upto=0;upto<block.count;upto++) {
+                  field.setLongValue(block.values[upto]);
+                  w.addDocument(doc);
                 }
-                field.setLongValue(v);
-                w.addDocument(doc);
-                int count = docsIndexed.incrementAndGet();
-                if (count % 200000 == 0) {
+                int count = docsIndexed.addAndGet(block.count);
+                if (count / 200000 != (count - block.count) / 200000) {
                   long ms = System.currentTimeMillis();
+                  long v = block.values[block.count-1];
                   System.out.println(count + ": " + ((ms - startMS)/1000.0) + " sec; " + v + " vs " + numbers.end + " (" + (numbers.end - v) + " left)");
                 }
-              } catch (Exception e) {
-                throw new RuntimeException(e);
               }
+            } catch (Exception e) {
+              throw new RuntimeException(e);
             }
           }
         };
@@ -22,11 +22,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -34,7 +38,6 @@ import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.zip.GZIPInputStream;
 
 import org.apache.lucene.codecs.Codec;
 import org.apache.lucene.codecs.FilterCodec;
@@ -154,6 +157,9 @@ public class IndexAndSearchOpenStreetMaps {
   static boolean useLatLonPoint = false;
   static boolean useDocValues = false;
   static boolean SMALL = true;
+
+  /** If non-null, built shape queries are cached by normalized shape and reused across iterations */
+  static GeoShapeCache shapeCache;
   static int NUM_PARTS;
 
   private static String getName(int part, boolean doDistanceSort) {
@@ -184,129 +190,32 @@ public class IndexAndSearchOpenStreetMaps {
   private static double minLon = Double.POSITIVE_INFINITY;
   private static double maxLon = Double.NEGATIVE_INFINITY;
         
-  // NOTE: use geoJSONToJava.py to convert the geojson file to simple text file:
+  // Reads a poly file (see geoJSONToPolyFile.py) or a GeoJSON file directly; both may be gzip'd:
   private static List<Polygon[]> readPolygons(String fileName) throws IOException {
-    CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
-        .onMalformedInput(CodingErrorAction.REPORT)
-        .onUnmappableCharacter(CodingErrorAction.REPORT);
-    int BUFFER_SIZE = 1 << 16;     // 64K
-    InputStream is = Files.newInputStream(Paths.get(fileName));
-    if (fileName.endsWith(".gz")) {
-      is = new GZIPInputStream(is);
-    }
-    BufferedReader reader = new BufferedReader(new InputStreamReader(is, decoder), BUFFER_SIZE);
+    long t0 = System.nanoTime();
     List<Polygon[]> result = new ArrayList<>();
-    //EarthDebugger earth = new EarthDebugger(51.45677607571096, 0.13580354718348125, 100000.0);
     int totalVertexCount = 0;
-
-    while (true) {
-      String line = reader.readLine();      
-      if (line == null) {
-        break;
-      }
-      if (line.startsWith("count=") == false) {
-        throw new AssertionError();
-      }
-      // Count is the number of polygons the query has:
-      int count = Integer.parseInt(line.substring(6, line.indexOf(' ')));
-      List<Polygon> polys = new ArrayList<>();
-      for(int i=0;i<count;i++) {
-        line = reader.readLine();      
-        // How many polygons (if this is > 1, the first poly is the real one, and
-        // all others are hole-polys that are subtracted):
-        if (line.startsWith("  poly count=") == false) {
-          throw new AssertionError();
-        }
-        int polyCount = Integer.parseInt(line.substring(13));
-        List<Polygon> polyPlusHoles = new ArrayList<>();
-        double sumLat = 0.0;
-        double sumLon = 0.0;
-        for(int j=0;j<polyCount;j++) {
-          line = reader.readLine();      
-          if (line.startsWith("    vertex count=") == false) {
-            throw new AssertionError();
-          }
-          
-          int vertexCount = Integer.parseInt(line.substring(17));
-          double[] lats = new double[vertexCount];
-          double[] lons = new double[vertexCount];
-          line = reader.readLine();      
-          if (line.startsWith("      lats ") == false) {
-            throw new AssertionError();
-          }
-          String[] parts = line.substring(11).split(" ");
-          if (parts.length != vertexCount) {
-            throw new AssertionError();
-          }
-          for(int k=0;k<vertexCount;k++) {
-            lats[k] = Double.parseDouble(parts[k]);
-            sumLat += lats[k];
-            minLat = Math.min(minLat, lats[k]);
-            maxLat = Math.max(maxLat, lats[k]);
+    int skippedGeometryCount;
+    try (GeoPolygonReader reader = new GeoPolygonReader(Paths.get(fileName))) {
+      Polygon[] multiPolygon;
+      while ((multiPolygon = reader.next()) != null) {
+        for(Polygon polygon : multiPolygon) {
+          // holes are inside their polygon, so only the outer ring matters for the bbox:
+          minLat = Math.min(minLat, polygon.minLat);
+          maxLat = Math.max(maxLat, polygon.maxLat);
+          minLon = Math.min(minLon, polygon.minLon);
+          maxLon = Math.max(maxLon, polygon.maxLon);
+          totalVertexCount += polygon.getPolyLats().length;
+          for(Polygon hole : polygon.getHoles()) {
+            totalVertexCount += hole.getPolyLats().length;
           }
-        
-          line = reader.readLine();      
-          if (line.startsWith("      lons ") == false) {
-            throw new AssertionError();
-          }
-          parts = line.substring(11).split(" ");
-          if (parts.length != vertexCount) {
-            throw new AssertionError();
-          }
-          for(int k=0;k<vertexCount;k++) {
-            lons[k] = Double.parseDouble(parts[k]);
-            sumLon += lons[k];
-            minLon = Math.min(minLon, lons[k]);
-            maxLon = Math.max(maxLon, lons[k]);
-          }
-
-          //System.out.println("check poly");
-
-          /*
-          int dupCount = 0;
-          for(int k=1;k<vertexCount;k++) {
-            if (lats[k] == lats[k-1] && lons[k] == lons[k-1]) {
-              dupCount++;
-            }
-          }
-          if (dupCount != 0) {
-            System.out.println("  dedup to remove " + dupCount + " duplicate points");
-            double[] newLats = new double[lats.length-dupCount];
-            double[] newLons = new double[lons.length-dupCount];
-            newLats[0] = lats[0];
-            newLons[0] = lons[0];
-            int upto = 1;
-            for(int k=1;k<lats.length;k++) {
-              if (lats[k] != lats[k-1] || lons[k] != lons[k-1]) {
-                newLats[upto] = lats[k];
-                newLons[upto] = lons[k];
-                upto++;
-              }
-            }
-            lats = newLats;
-            lons = newLons;
-          }
-          */
-
-          polyPlusHoles.add(new Polygon(lats, lons));
-          totalVertexCount += vertexCount;
         }
-
-        Polygon firstPoly = polyPlusHoles.get(0);
-        Polygon[] holes = polyPlusHoles.subList(1, polyPlusHoles.size()).toArray(new Polygon[polyPlusHoles.size()-1]);
-
-        polys.add(new Polygon(firstPoly.getPolyLats(), firstPoly.getPolyLons(), holes));
+        result.add(multiPolygon);
       }
-
-      result.add(polys.toArray(new Polygon[polys.size()]));
+      skippedGeometryCount = reader.skippedGeometryCount();
     }
-    System.out.println("Total vertex count: " + totalVertexCount);
-
-    /*
-    try (PrintWriter out = new PrintWriter("/x/tmp/londonpoly.html")) {
-      out.println(earth.finish());
-    }
-    */
+    System.out.println(String.format(Locale.ROOT, "Loaded %d multi-polygons from %s in %.1f msec; total vertex count: %d; skipped %d non-polygon geometries",
+                                     result.size(), fileName, (System.nanoTime()-t0)/1000000.0, totalVertexCount, skippedGeometryCount));
 
     return result;
   }
@@ -394,6 +303,24 @@ public class IndexAndSearchOpenStreetMaps {
   }
 */
 
+  private static IndexWriter openWriter(int part, boolean fast, boolean doDistanceSort) throws IOException {
+    Directory dir = FSDirectory.open(Paths.get(getName(part, doDistanceSort)));
+
+    IndexWriterConfig iwc = new IndexWriterConfig(null);
+    iwc.setCodec(getCodec(fast));
+    iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    if (fast) {
+      ((TieredMergePolicy) iwc.getMergePolicy()).setMaxMergedSegmentMB(Double.POSITIVE_INFINITY);
+      iwc.setRAMBufferSizeMB(1024);
+    } else {
+      iwc.setMaxBufferedDocs(109630);
+      iwc.setMergePolicy(new LogDocMergePolicy());
+      iwc.setMergeScheduler(new SerialMergeScheduler());
+    }
+    iwc.setInfoStream(new PrintStreamInfoStream(System.out));
+    return new IndexWriter(dir, iwc);
+  }
+
   private static void createIndex(boolean fast, boolean doForceMerge, boolean doDistanceSort) throws IOException, InterruptedException {
 
     CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
@@ -422,21 +349,7 @@ public class IndexAndSearchOpenStreetMaps {
     AtomicLong totalCount = new AtomicLong();
 
     for(int part=0;part<NUM_PARTS;part++) {
-      Directory dir = FSDirectory.open(Paths.get(getName(part, doDistanceSort)));
-
-      IndexWriterConfig iwc = new IndexWriterConfig(null);
-      iwc.setCodec(getCodec(fast));
-      iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
-      if (fast) {
-        ((TieredMergePolicy) iwc.getMergePolicy()).setMaxMergedSegmentMB(Double.POSITIVE_INFINITY);
-        iwc.setRAMBufferSizeMB(1024);
-      } else {
-        iwc.setMaxBufferedDocs(109630);
-        iwc.setMergePolicy(new LogDocMergePolicy());
-        iwc.setMergeScheduler(new SerialMergeScheduler());
-      }
-      iwc.setInfoStream(new PrintStreamInfoStream(System.out));
-      IndexWriter w = new IndexWriter(dir, iwc);
+      IndexWriter w = openWriter(part, fast, doDistanceSort);
 
       Thread[] threads = new Thread[NUM_THREADS];
       AtomicBoolean finished = new AtomicBoolean();
@@ -533,6 +446,194 @@ public class IndexAndSearchOpenStreetMaps {
     //System.out.println(((t3-t2)/1000000000.0) + " sec to close");
   }
 
+  /** Byte range claimed at once by an indexing thread in createIndexConcurrent */
+  private static final int CONCURRENT_CHUNK_BYTES = 1 << 22;
+
+  /** Size of each mapping in createIndexConcurrent; a multiple of CONCURRENT_CHUNK_BYTES */
+  private static final long MMAP_WINDOW_BYTES = 1L << 30;
+
+  /** Each mapping also covers this many bytes of the next one, so the line straddling a chunk's end can be read from the same mapping */
+  private static final int MAX_LINE_BYTES = 4096;
+
+  /** Like createIndex, but all parts are indexed at once from one memory-mapped latlon file.  The file is cut into fixed size chunks,
+   *  each part owns a contiguous range of chunks, and that part's threads claim chunks with an atomic increment.  A chunk owns the
+   *  lines starting inside it, and lat/lon are parsed straight from the mapped bytes.  Parts are split by bytes, not by point count
+   *  like createIndex does, so the two modes put slightly different points in each part. */
+  private static void createIndexConcurrent(boolean fast, boolean doForceMerge, boolean doDistanceSort) throws IOException, InterruptedException {
+
+    Path path;
+    if (SMALL) {
+      path = Paths.get(DATA_LOCATION, "latlon.subsetPlusAllLondon.txt");
+    } else {
+      path = Paths.get(DATA_LOCATION, "latlon.txt");
+    }
+
+    final long size;
+    final ByteBuffer[] windows;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      size = channel.size();
+      windows = new ByteBuffer[(int) ((size + MMAP_WINDOW_BYTES - 1) / MMAP_WINDOW_BYTES)];
+      for(int i=0;i<windows.length;i++) {
+        long start = i * MMAP_WINDOW_BYTES;
+        windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MMAP_WINDOW_BYTES + MAX_LINE_BYTES, size - start));
+      }
+    }
+
+    int NUM_THREADS;
+    if (fast) {
+      NUM_THREADS = 4;
+    } else {
+      NUM_THREADS = 1;
+    }
+
+    final int chunkCount = (int) ((size + CONCURRENT_CHUNK_BYTES - 1) / CONCURRENT_CHUNK_BYTES);
+    System.out.println("Index " + size + " bytes from " + path + " as " + NUM_PARTS + " concurrent parts, " + NUM_THREADS + " threads each, " +
+                       chunkCount + " chunks");
+
+    final long t0 = System.nanoTime();
+    final AtomicLong totalCount = new AtomicLong();
+    final AtomicBoolean failed = new AtomicBoolean();
+    Thread[] partThreads = new Thread[NUM_PARTS];
+
+    for(int part=0;part<NUM_PARTS;part++) {
+      final int finalPart = part;
+      final int partEndChunk = (int) ((long) chunkCount * (part+1) / NUM_PARTS);
+      final AtomicInteger nextChunk = new AtomicInteger((int) ((long) chunkCount * part / NUM_PARTS));
+      final IndexWriter w = openWriter(part, fast, doDistanceSort);
+      final AtomicLong partCount = new AtomicLong();
+      final Thread[] threads = new Thread[NUM_THREADS];
+
+      for(int t=0;t<NUM_THREADS;t++) {
+        threads[t] = new Thread() {
+            @Override
+            public void run() {
+              try {
+                _run();
+              } catch (Exception e) {
+                failed.set(true);
+                throw new RuntimeException(e);
+              }
+            }
+
+            private void _run() throws IOException {
+              // Reuse fields and document across all points (geo3d has no setter):
+              Document doc = new Document();
+              LatLonPoint pointField = null;
+              LatLonDocValuesField dvField = null;
+              if (useGeo3D == false && useGeo3DLarge == false) {
+                if (useDocValues == false) {
+                  pointField = new LatLonPoint("point", 0, 0);
+                  doc.add(pointField);
+                }
+                if (useDocValues || doDistanceSort) {
+                  dvField = new LatLonDocValuesField("point", 0, 0);
+                  doc.add(dvField);
+                }
+              }
+
+              while (true) {
+                int chunk = nextChunk.getAndIncrement();
+                if (chunk >= partEndChunk) {
+                  break;
+                }
+                long chunkStart = (long) chunk * CONCURRENT_CHUNK_BYTES;
+                ByteBuffer window = windows[(int) (chunkStart / MMAP_WINDOW_BYTES)];
+                int pos = (int) (chunkStart % MMAP_WINDOW_BYTES);
+                int chunkEnd = pos + CONCURRENT_CHUNK_BYTES;
+                int limit = window.limit();
+
+                if (chunkStart != 0) {
+                  // Skip the first line: it either started in the previous chunk, or starts exactly at our start and the
+                  // previous chunk (which also indexes the line beginning right at its end) owns it:
+                  while (pos < limit && window.get(pos++) != '\n') {
+                  }
+                }
+
+                while (pos <= chunkEnd && pos < limit) {
+                  // id,lat,lon
+                  int latStart = skipPast(window, pos, limit, (byte) ',');
+                  int lonStart = skipPast(window, latStart, limit, (byte) ',');
+                  int lineEnd = skipPast(window, lonStart, limit, (byte) '\n');
+                  double lat = TaxiPipeline.parseDouble(window, latStart, lonStart-1);
+                  double lon = TaxiPipeline.parseDouble(window, lonStart, window.get(lineEnd-1) == '\n' ? lineEnd-1 : lineEnd);
+                  pos = lineEnd;
+
+                  if (useGeo3D || useGeo3DLarge) {
+                    doc.clear();
+                    doc.add(new Geo3DPoint("point", lat, lon));
+                  } else {
+                    if (pointField != null) {
+                      pointField.setLocationValue(lat, lon);
+                    }
+                    if (dvField != null) {
+                      dvField.setLocationValue(lat, lon);
+                    }
+                  }
+                  w.addDocument(doc);
+                  partCount.incrementAndGet();
+                  long x = totalCount.incrementAndGet();
+                  if (x % 1000000 == 0) {
+                    System.out.println(x + "...");
+                  }
+                }
+              }
+            }
+          };
+      }
+
+      partThreads[part] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              for(Thread thread : threads) {
+                thread.start();
+              }
+              for(Thread thread : threads) {
+                thread.join();
+              }
+              long t1 = System.nanoTime();
+              double sec = (t1-t0)/1000000000.0;
+              System.out.println(String.format(Locale.ROOT, "Part %d is done: %d points in %.1f sec (%.1f points/sec); w.maxDoc()=%d",
+                                               finalPart, partCount.get(), sec, partCount.get()/sec, w.maxDoc()));
+              w.commit();
+              long t2 = System.nanoTime();
+              System.out.println(String.format(Locale.ROOT, "Part %d: %.1f sec to commit", finalPart, (t2-t1)/1000000000.0));
+              if (doForceMerge) {
+                w.forceMerge(1);
+                System.out.println(String.format(Locale.ROOT, "Part %d: %.1f sec to force merge", finalPart, (System.nanoTime()-t2)/1000000000.0));
+              }
+              w.close();
+            } catch (Exception e) {
+              failed.set(true);
+              throw new RuntimeException(e);
+            }
+          }
+        };
+      partThreads[part].setName("OSM part " + part);
+      partThreads[part].start();
+    }
+
+    for(Thread thread : partThreads) {
+      thread.join();
+    }
+
+    double sec = (System.nanoTime()-t0)/1000000000.0;
+    System.out.println(String.format(Locale.ROOT, "%d total points in %.1f sec (%.1f points/sec)", totalCount.get(), sec, totalCount.get()/sec));
+    if (failed.get()) {
+      throw new RuntimeException("indexing failed");
+    }
+  }
+
+  /** Returns the position just after the next occurrence of b at or after pos, or limit if there is none. */
+  private static int skipPast(ByteBuffer buffer, int pos, int limit, byte b) {
+    while (pos < limit) {
+      if (buffer.get(pos++) == b) {
+        return pos;
+      }
+    }
+    return limit;
+  }
+
   private static Codec getCodec(boolean fast) {
     if (fast) {
       return new FilterCodec("Lucene70", Codec.getDefault()) {
@@ -611,7 +712,227 @@ public class IndexAndSearchOpenStreetMaps {
     return new double[] {bestQPS, bestMHPS};
   }
 
-  private static void queryIndex(String queryClass, int gons, int nearestTopN, String polyFile, boolean preBuildQueries, Double filterPercent, boolean doDistanceSort) throws IOException {
+  /** Makes the tasks for {@link GeoQueryRunner}: the same London grid of shapes (or polygon file) as the single-threaded
+   *  benchmark, with each query built inside its task unless preBuildQueries is set. */
+  private static List<GeoQueryRunner.Task> makeTasks(String queryClass, int gons, final int nearestTopN, String polyFile, boolean preBuildQueries,
+                                                     final Double filterPercent, final boolean doDistanceSort, int partCount) throws IOException {
+    List<GeoQueryRunner.Task> tasks = new ArrayList<>();
+
+    if (queryClass.equals("polyFile")) {
+      for(final Polygon[] multiPolygon : readPolygons(polyFile)) {
+        GeoQueryRunner.Task task = new GeoQueryRunner.Task("polyFile") {
+            @Override
+            Query build() {
+              if (shapeCache == null) {
+                return buildShape();
+              }
+              GeoShapeCache.ShapeKey key = GeoShapeCache.polygons(multiPolygon);
+              Query q = shapeCache.get(key);
+              if (q == null) {
+                q = buildShape();
+                shapeCache.put(key, q);
+              }
+              return q;
+            }
+
+            @Override
+            void finished(long latencyNanos) {
+              if (shapeCache != null) {
+                shapeCache.recordLatency(latencyNanos);
+              }
+            }
+
+            private Query buildShape() {
+              // Clone so any construction cost of a polygon is included in the latency:
+              Polygon[] polygons = clonePolygon(multiPolygon);
+              if (useLatLonPoint) {
+                return LatLonPoint.newPolygonQuery("point", polygons);
+              } else if (useGeo3DLarge) {
+                return Geo3DPoint.newLargePolygonQuery("point", polygons);
+              } else if (useGeo3D) {
+                return Geo3DPoint.newPolygonQuery("point", polygons);
+              } else {
+                throw new AssertionError();
+              }
+            }
+          };
+        tasks.add(preBuild(task, preBuildQueries));
+      }
+      return tasks;
+    }
+
+    if (queryClass.equals("nearest") && partCount != 1) {
+      // TODO
+      throw new IllegalArgumentException("nearest only works with a single index part");
+    }
+
+    // Create regularly spaced shapes in a grid around London, UK:
+    int STEPS = useDocValues ? 2 : 5;
+    double MIN_LAT = 51.0919106;
+    double MAX_LAT = 51.6542719;
+    double MIN_LON = -0.3867282;
+    double MAX_LON = 0.8492337;
+    final String shape = queryClass.equals("poly") ? "poly" + gons : queryClass;
+
+    for(int latStep=0;latStep<STEPS;latStep++) {
+      final double lat = MIN_LAT + latStep * (MAX_LAT - MIN_LAT) / STEPS;
+      for(int lonStep=0;lonStep<STEPS;lonStep++) {
+        final double lon = MIN_LON + lonStep * (MAX_LON - MIN_LON) / STEPS;
+        for(int latStepEnd=latStep+1;latStepEnd<=STEPS;latStepEnd++) {
+          final double latEnd = MIN_LAT + latStepEnd * (MAX_LAT - MIN_LAT) / STEPS;
+          for(int lonStepEnd=lonStep+1;lonStepEnd<=STEPS;lonStepEnd++) {
+            final double lonEnd = MIN_LON + lonStepEnd * (MAX_LON - MIN_LON) / STEPS;
+
+            final double distanceMeters = SloppyMath.haversinMeters(lat, lon, latEnd, lonEnd)/2.0;
+            final double centerLat = (lat+latEnd)/2.0;
+            final double centerLon = (lon+lonEnd)/2.0;
+            // makeRegularPoly has insanely slow math, so make the double[]'s up front:
+            final double[][] poly = queryClass.equals("poly") ? makeRegularPoly(centerLat, centerLon, distanceMeters, gons) : null;
+
+            GeoQueryRunner.Task task;
+            switch(queryClass) {
+            case "nearest":
+              task = new GeoQueryRunner.Task(shape) {
+                  @Override
+                  Query build() {
+                    return null;
+                  }
+
+                  @Override
+                  long search(IndexSearcher searcher, Query query) throws IOException {
+                    return LatLonPoint.nearest(searcher, "point", centerLat, centerLon, nearestTopN).scoreDocs.length;
+                  }
+                };
+              break;
+            case "distance":
+            case "poly":
+            case "box":
+              task = new GeoQueryRunner.Task(shape) {
+                  @Override
+                  Query build() {
+                    GeoShapeCache.ShapeKey key = null;
+                    Query q = null;
+                    if (shapeCache != null) {
+                      switch(shape) {
+                      case "distance":
+                        key = GeoShapeCache.circle(centerLat, centerLon, distanceMeters);
+                        break;
+                      case "box":
+                        key = GeoShapeCache.box(lat, latEnd, lon, lonEnd);
+                        break;
+                      default:
+                        key = GeoShapeCache.polygon(poly[0], poly[1]);
+                        break;
+                      }
+                      q = shapeCache.get(key);
+                    }
+                    if (q == null) {
+                      q = buildShape();
+                      if (key != null) {
+                        shapeCache.put(key, q);
+                      }
+                    }
+                    if (filterPercent != null) {
+                      BooleanQuery.Builder builder = new BooleanQuery.Builder();
+                      builder.add(q, BooleanClause.Occur.MUST);
+                      builder.add(new RandomQuery(filterPercent), BooleanClause.Occur.FILTER);
+                      q = builder.build();
+                    }
+                    return q;
+                  }
+
+                  @Override
+                  void finished(long latencyNanos) {
+                    if (shapeCache != null) {
+                      shapeCache.recordLatency(latencyNanos);
+                    }
+                  }
+
+                  private Query buildShape() {
+                    Query q;
+                    switch(shape) {
+                    case "distance":
+                      if (useGeo3D || useGeo3DLarge) {
+                        q = Geo3DPoint.newDistanceQuery("point", centerLat, centerLon, distanceMeters);
+                      } else if (useLatLonPoint) {
+                        q = LatLonPoint.newDistanceQuery("point", centerLat, centerLon, distanceMeters);
+                      } else if (useDocValues) {
+                        q = LatLonDocValuesField.newSlowDistanceQuery("point", centerLat, centerLon, distanceMeters);
+                      } else {
+                        throw new AssertionError();
+                      }
+                      break;
+                    case "box":
+                      if (useGeo3D || useGeo3DLarge) {
+                        q = Geo3DPoint.newBoxQuery("point", lat, latEnd, lon, lonEnd);
+                      } else if (useLatLonPoint) {
+                        q = LatLonPoint.newBoxQuery("point", lat, latEnd, lon, lonEnd);
+                      } else if (useDocValues) {
+                        q = LatLonDocValuesField.newSlowBoxQuery("point", lat, latEnd, lon, lonEnd);
+                      } else {
+                        throw new AssertionError();
+                      }
+                      break;
+                    default:
+                      if (useGeo3DLarge) {
+                        q = Geo3DPoint.newLargePolygonQuery("point", new Polygon(poly[0], poly[1]));
+                      } else if (useGeo3D) {
+                        q = Geo3DPoint.newPolygonQuery("point", new Polygon(poly[0], poly[1]));
+                      } else if (useLatLonPoint) {
+                        q = LatLonPoint.newPolygonQuery("point", new Polygon(poly[0], poly[1]));
+                      } else {
+                        throw new AssertionError();
+                      }
+                      break;
+                    }
+                    return q;
+                  }
+
+                  @Override
+                  long search(IndexSearcher searcher, Query query) throws IOException {
+                    if (doDistanceSort) {
+                      Sort sort = new Sort(LatLonDocValuesField.newDistanceSort("point", centerLat, centerLon));
+                      return searcher.search(query, 10, sort).totalHits;
+                    } else {
+                      return searcher.count(query);
+                    }
+                  }
+                };
+              break;
+            default:
+              throw new AssertionError("unknown queryClass " + queryClass);
+            }
+            tasks.add(preBuild(task, preBuildQueries));
+          }
+        }
+      }
+    }
+
+    return tasks;
+  }
+
+  /** If preBuildQueries is set, builds the task's query once now, so executions only measure searching.  This happens
+   *  before any iteration starts, so a shape cache (which -preBuildQueries rejects anyway) would not count it. */
+  private static GeoQueryRunner.Task preBuild(final GeoQueryRunner.Task task, boolean preBuildQueries) {
+    if (preBuildQueries == false) {
+      return task;
+    }
+    final Query q = task.build();
+    return new GeoQueryRunner.Task(task.shape) {
+      @Override
+      Query build() {
+        return q;
+      }
+
+      @Override
+      long search(IndexSearcher searcher, Query query) throws IOException {
+        return task.search(searcher, query);
+      }
+    };
+  }
+
+  private static void queryIndex(String queryClass, int gons, int nearestTopN, String polyFile, boolean preBuildQueries, Double filterPercent, boolean doDistanceSort,
+                                 int searchThreads) throws IOException, InterruptedException {
     IndexSearcher[] searchers = new IndexSearcher[NUM_PARTS];
     Directory[] dirs = new Directory[NUM_PARTS];
     long sizeOnDisk = 0;
@@ -648,7 +969,13 @@ public class IndexAndSearchOpenStreetMaps {
     // million hits per second:
     double bestMHPS = Double.NEGATIVE_INFINITY;
 
-    if (queryClass.equals("polyFile")) {
+    if (searchThreads > 0) {
+      List<GeoQueryRunner.Task> tasks = makeTasks(queryClass, gons, nearestTopN, polyFile, preBuildQueries, filterPercent, doDistanceSort, searchers.length);
+      double[] result = GeoQueryRunner.run(searchers, tasks, searchThreads, ITERS, shapeCache);
+      bestQPS = result[0];
+      bestMHPS = result[1];
+
+    } else if (queryClass.equals("polyFile")) {
 
       // TODO: only load the double[][] here, so that we includ the cost of making Polygon and Query in each iteration!!
       List<Polygon[]> polygons = readPolygons(polyFile);
@@ -727,25 +1054,43 @@ public class IndexAndSearchOpenStreetMaps {
         System.out.println("\nUsing on-the-fly polygon queries, loaded from file " + polyFile);
 
         for(int iter=0;iter<ITERS;iter++) {
+          if (shapeCache != null) {
+            shapeCache.startIteration(iter);
+          }
           long tStart = System.nanoTime();
           long totHits = 0;
           int queryCount = 0;
           for(Polygon[] multiPolygon : polygons) {
+            long t0 = System.nanoTime();
+            Query q = null;
+            GeoShapeCache.ShapeKey key = null;
+            if (shapeCache != null) {
+              key = GeoShapeCache.polygons(multiPolygon);
+              q = shapeCache.get(key);
+            }
+            boolean cacheHit = q != null;
 
-            // We do this to keep the benchmark honest, so any construction cost of a polygon is included in our run time measure:
-            multiPolygon = clonePolygon(multiPolygon);
+            if (q == null) {
+              // We do this to keep the benchmark honest, so any construction cost of a polygon is included in our run time measure:
+              multiPolygon = clonePolygon(multiPolygon);
 
-            Query q;
-            if (useLatLonPoint) {
-              q = LatLonPoint.newPolygonQuery("point", multiPolygon);
-            } else {
-              q = Geo3DPoint.newLargePolygonQuery("point", multiPolygon);
+              if (useLatLonPoint) {
+                q = LatLonPoint.newPolygonQuery("point", multiPolygon);
+              } else {
+                q = Geo3DPoint.newLargePolygonQuery("point", multiPolygon);
+              }
+              if (key != null) {
+                shapeCache.put(key, q);
+              }
             }
 
             for(IndexSearcher s : searchers) {
               int hitCount = s.count(q);
               totHits += hitCount;
             }
+            if (shapeCache != null) {
+              shapeCache.recordLatency(cacheHit, System.nanoTime() - t0);
+            }
             queryCount++;
           }
 
@@ -804,6 +1149,9 @@ public class IndexAndSearchOpenStreetMaps {
       }
 
       for(int iter=0;iter<ITERS;iter++) {
+        if (shapeCache != null) {
+          shapeCache.startIteration(iter);
+        }
         long tStart = System.nanoTime();
         long totHits = 0;
         double totNearestDistance = 0.0;
@@ -823,67 +1171,91 @@ public class IndexAndSearchOpenStreetMaps {
                 double centerLon = (lon+lonEnd)/2.0;
                 ScoreDoc[] nearestHits = null;
                 Query q = null;
-
-                switch(queryClass) {
-                case "distance":
-                  if (useGeo3D || useGeo3DLarge) {
-                    q = Geo3DPoint.newDistanceQuery("point", centerLat, centerLon, distanceMeters);
-                  } else if (useLatLonPoint) {
-                    q = LatLonPoint.newDistanceQuery("point", centerLat, centerLon, distanceMeters);
-                  } else if (useDocValues) {
-                    q = LatLonDocValuesField.newSlowDistanceQuery("point", centerLat, centerLon, distanceMeters);
-                  } else {
-                    throw new AssertionError();
-                  }
-                  break;
-                case "poly":
-                  double[][] poly = polys.get(queryCount);
-                  //System.out.println("poly lats: " + Arrays.toString(poly[0]));
-                  //System.out.println("poly lons: " + Arrays.toString(poly[1]));
-                  if (useGeo3DLarge) {
-                    //System.out.println("POLY:\n  lats=" + Arrays.toString(poly[0]) + "\n  lons=" + Arrays.toString(poly[1]));
-                    q = Geo3DPoint.newLargePolygonQuery("point", new Polygon(poly[0], poly[1]));
-                  } else if (useGeo3D) {
-                    q = Geo3DPoint.newPolygonQuery("point", new Polygon(poly[0], poly[1]));
-                  } else if (useLatLonPoint) {
-                    q = LatLonPoint.newPolygonQuery("point", new Polygon(poly[0], poly[1]));
-                  } else {
-                    throw new AssertionError();
+                long t0 = System.nanoTime();
+                GeoShapeCache.ShapeKey key = null;
+                if (shapeCache != null) {
+                  switch(queryClass) {
+                  case "distance":
+                    key = GeoShapeCache.circle(centerLat, centerLon, distanceMeters);
+                    break;
+                  case "poly":
+                    key = GeoShapeCache.polygon(polys.get(queryCount)[0], polys.get(queryCount)[1]);
+                    break;
+                  case "box":
+                    key = GeoShapeCache.box(lat, latEnd, lon, lonEnd);
+                    break;
                   }
-                  break;
-                case "box":
-                  if (useGeo3D || useGeo3DLarge) {
-                    q = Geo3DPoint.newBoxQuery("point", lat, latEnd, lon, lonEnd);
-                  } else if (useLatLonPoint) {
-                    q = LatLonPoint.newBoxQuery("point", lat, latEnd, lon, lonEnd);
-                  } else if (useDocValues) {
-                    q = LatLonDocValuesField.newSlowBoxQuery("point", lat, latEnd, lon, lonEnd);
-                  } else {
-                    throw new AssertionError();
+                  if (key != null) {
+                    q = shapeCache.get(key);
                   }
-                  break;
-                case "nearest":
-                  if (useLatLonPoint) {
-                    if (searchers.length != 1) {
-                      // TODO
+                }
+                boolean cacheHit = q != null;
+
+                if (cacheHit == false) {
+                  switch(queryClass) {
+                  case "distance":
+                    if (useGeo3D || useGeo3DLarge) {
+                      q = Geo3DPoint.newDistanceQuery("point", centerLat, centerLon, distanceMeters);
+                    } else if (useLatLonPoint) {
+                      q = LatLonPoint.newDistanceQuery("point", centerLat, centerLon, distanceMeters);
+                    } else if (useDocValues) {
+                      q = LatLonDocValuesField.newSlowDistanceQuery("point", centerLat, centerLon, distanceMeters);
+                    } else {
+                      throw new AssertionError();
+                    }
+                    break;
+                  case "poly":
+                    double[][] poly = polys.get(queryCount);
+                    //System.out.println("poly lats: " + Arrays.toString(poly[0]));
+                    //System.out.println("poly lons: " + Arrays.toString(poly[1]));
+                    if (useGeo3DLarge) {
+                      //System.out.println("POLY:\n  lats=" + Arrays.toString(poly[0]) + "\n  lons=" + Arrays.toString(poly[1]));
+                      q = Geo3DPoint.newLargePolygonQuery("point", new Polygon(poly[0], poly[1]));
+                    } else if (useGeo3D) {
+                      q = Geo3DPoint.newPolygonQuery("point", new Polygon(poly[0], poly[1]));
+                    } else if (useLatLonPoint) {
+                      q = LatLonPoint.newPolygonQuery("point", new Polygon(poly[0], poly[1]));
+                    } else {
                       throw new AssertionError();
                     }
-                    nearestHits = LatLonPoint.nearest(searchers[0], "point", (lat+latEnd)/2.0, (lon+lonEnd)/2.0, nearestTopN).scoreDocs;
-                    if (false && iter == 0) {
-                      System.out.println("\n" + nearestHits.length + " nearest:");
+                    break;
+                  case "box":
+                    if (useGeo3D || useGeo3DLarge) {
+                      q = Geo3DPoint.newBoxQuery("point", lat, latEnd, lon, lonEnd);
+                    } else if (useLatLonPoint) {
+                      q = LatLonPoint.newBoxQuery("point", lat, latEnd, lon, lonEnd);
+                    } else if (useDocValues) {
+                      q = LatLonDocValuesField.newSlowBoxQuery("point", lat, latEnd, lon, lonEnd);
+                    } else {
+                      throw new AssertionError();
+                    }
+                    break;
+                  case "nearest":
+                    if (useLatLonPoint) {
+                      if (searchers.length != 1) {
+                        // TODO
+                        throw new AssertionError();
+                      }
+                      nearestHits = LatLonPoint.nearest(searchers[0], "point", (lat+latEnd)/2.0, (lon+lonEnd)/2.0, nearestTopN).scoreDocs;
+                      if (false && iter == 0) {
+                        System.out.println("\n" + nearestHits.length + " nearest:");
+                        for(ScoreDoc hit : nearestHits) {
+                          System.out.println("  " + ((FieldDoc) hit).fields[0]);
+                        }
+                      }
                       for(ScoreDoc hit : nearestHits) {
-                        System.out.println("  " + ((FieldDoc) hit).fields[0]);
+                        totNearestDistance += (Double) ((FieldDoc) hit).fields[0];
                       }
+                    } else {
+                      throw new AssertionError();
                     }
-                    for(ScoreDoc hit : nearestHits) {
-                      totNearestDistance += (Double) ((FieldDoc) hit).fields[0];
-                    }
-                  } else {
-                    throw new AssertionError();
+                    break;
+                  default:
+                    throw new AssertionError("unknown queryClass " + queryClass);
+                  }
+                  if (key != null) {
+                    shapeCache.put(key, q);
                   }
-                  break;
-                default:
-                  throw new AssertionError("unknown queryClass " + queryClass);
                 }
               
                 // TODO: do this somewhere else?
@@ -917,6 +1289,9 @@ public class IndexAndSearchOpenStreetMaps {
                   assert nearestHits != null;
                   totHits += nearestHits.length;
                 }
+                if (key != null) {
+                  shapeCache.recordLatency(cacheHit, System.nanoTime() - t0);
+                }
                 queryCount++;
                 //throw new RuntimeException("now stop");
               }
@@ -946,6 +1321,9 @@ public class IndexAndSearchOpenStreetMaps {
     }
     System.out.println("BEST M hits/sec: " + bestMHPS);
     System.out.println("BEST QPS: " + bestQPS);
+    if (shapeCache != null) {
+      System.out.println(shapeCache.stats());
+    }
 
     for(IndexSearcher s : searchers) {
       s.getIndexReader().close();
@@ -1118,6 +1496,8 @@ public class IndexAndSearchOpenStreetMaps {
     boolean preBuildQueries = false;
     boolean forceMerge = false;
     boolean doDistanceSort = false;
+    boolean concurrentParts = false;
+    int searchThreads = 0;
     for(int i=0;i<args.length;i++) {
       String arg = args[i];
       if (arg.equals("-reindex")) {
@@ -1127,6 +1507,8 @@ public class IndexAndSearchOpenStreetMaps {
       } else if (arg.equals("-reindexFast")) {
         reindex = true;
         fastReindex = true;
+      } else if (arg.equals("-concurrentParts")) {
+        concurrentParts = true;
       } else if (arg.equals("-points")) {
         useLatLonPoint = true;
         count++;
@@ -1197,10 +1579,30 @@ public class IndexAndSearchOpenStreetMaps {
         }
       } else if (arg.equals("-forceMerge")) {
         forceMerge = true;
+      } else if (arg.equals("-shapeCacheMB")) {
+        if (i + 1 < args.length) {
+          shapeCache = new GeoShapeCache(Double.parseDouble(args[i+1]));
+          i++;
+        } else {
+          throw new IllegalArgumentException("missing MB argument to -shapeCacheMB");
+        }
+      } else if (arg.equals("-searchThreads")) {
+        if (i + 1 < args.length) {
+          searchThreads = Integer.parseInt(args[i+1]);
+          if (searchThreads < 1) {
+            throw new IllegalArgumentException("searchThreads must be >= 1; got " + searchThreads);
+          }
+          i++;
+        } else {
+          throw new IllegalArgumentException("missing thread count argument to -searchThreads");
+        }
       } else {
         throw new IllegalArgumentException("unknown command line option \"" + arg + "\"");
       }
     }
+    if (preBuildQueries && shapeCache != null) {
+      throw new IllegalArgumentException("-shapeCacheMB only makes sense with on-the-fly queries, not -preBuildQueries");
+    }
     if (preBuildQueries && filterPercent != null) {
       throw new IllegalArgumentException("teach me to do this crazy combination first");
     }
@@ -1237,9 +1639,16 @@ public class IndexAndSearchOpenStreetMaps {
     }
     System.out.println("Index path: " + getName(0, doDistanceSort));
 
+    if (concurrentParts && reindex == false) {
+      throw new IllegalArgumentException("-concurrentParts only makes sense with -reindex or -reindexFast");
+    }
     if (reindex) {
-      createIndex(fastReindex, forceMerge, doDistanceSort);
+      if (concurrentParts) {
+        createIndexConcurrent(fastReindex, forceMerge, doDistanceSort);
+      } else {
+        createIndex(fastReindex, forceMerge, doDistanceSort);
+      }
     }
-    queryIndex(queryClass, gons, nearestTopN, polyFile, preBuildQueries, filterPercent, doDistanceSort);
+    queryIndex(queryClass, gons, nearestTopN, polyFile, preBuildQueries, filterPercent, doDistanceSort, searchThreads);
   }
 }
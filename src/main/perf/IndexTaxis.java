@@ -302,57 +302,101 @@ public class IndexTaxis {
       });
   }
 
-  public static void main(String[] args) throws Exception {
-    Path indexPath = Paths.get(args[0]);
-    Directory dir = FSDirectory.open(indexPath);
-    int threadCount = Integer.parseInt(args[1]);
-    Path docsPath = Paths.get(args[2]);
-    String sparseOrNot = args[3];
-    String sortOrNot = args[4];
-
-    final boolean sparse;
-    if (sparseOrNot.equals("sparse")) {
-      sparse = true;
-    } else if (sparseOrNot.equals("nonsparse")) {
-      sparse = false;
-    } else {
-      throw new IllegalArgumentException("sparseOrNot: expected 'sparse' or 'nonsparse' but saw " + sparseOrNot);
-    }
-
-    final boolean sorted;
-    if (sortOrNot.equals("True")) {
-      sorted = true;
-    } else if (sortOrNot.equals("False")) {
-      sorted = false;
-    } else {
-      throw new IllegalArgumentException("sortOrNot: expected 'true' or 'false' but saw " + sortOrNot);
-    }
-
-    // Pass analyzer explicitly, even though we've switched to StandardAnalyzer by default, so when we back-test to before that default
-    // change, this compiles:
-    IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer());
-    //System.out.println("NOW SET INFO STREAM");
-
-    iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
-
-    if (threadCount == 1) {
-      // 555 segment structure for 20M docs:
-      iwc.setMaxBufferedDocs(36036);
-      iwc.setRAMBufferSizeMB(IndexWriterConfig.DISABLE_AUTO_FLUSH);
-      iwc.setMergeScheduler(new SerialMergeScheduler());
-      iwc.setMergePolicy(new LogDocMergePolicy());
-      // so we see details about flush times, merge times:
-      iwc.setInfoStream(new PrintStreamInfoStream(System.out));
-    } else {
-      iwc.setRAMBufferSizeMB(1024.);
-    }
-
-    if (sorted) {
-      iwc.setIndexSort(new Sort(new SortField("cab_color", SortField.Type.STRING)));
+  /** Creates the fields to reuse for each CSV column: reuseFields[0] for green cabs, reuseFields[1] for yellow. */
+  static void initReuseFields(String[] fields, boolean sparse, Field[][] reuseFields, Field[][] reuseFields2) {
+    // green's fields:
+    reuseFields[0] = new Field[fields.length];
+    reuseFields2[0] = new Field[fields.length];
+
+    // yellow's fields:
+    reuseFields[1] = new Field[fields.length];
+    reuseFields2[1] = new Field[fields.length];
+
+    for(int i=0;i<fields.length;i++) {
+      String fieldName = fields[i];
+      switch(fieldName) {
+      case "vendor_id":
+      case "payment_type":
+      case "trip_type":
+      case "rate_code_id":
+      case "store_and_fwd_flag": {
+        if (sparse) {
+          reuseFields[0][i] = new StringField("green_" + fieldName, "", Field.Store.YES);
+          reuseFields2[0][i] = new SortedDocValuesField("green_" + fieldName, new BytesRef());
+          reuseFields[1][i] = new StringField("yellow_" + fieldName, "", Field.Store.YES);
+          reuseFields2[1][i] = new SortedDocValuesField("yellow_" + fieldName, new BytesRef());
+        } else {
+          reuseFields[0][i] = new StringField(fieldName, "", Field.Store.YES);
+          reuseFields2[0][i] = new SortedDocValuesField(fieldName, new BytesRef());
+          reuseFields[1][i] = reuseFields[0][i];
+          reuseFields2[1][i] = reuseFields2[0][i];
+        }
+        break;
+      }
+      case "pickup_datetime":
+      case "dropoff_datetime": {
+        if (sparse) {
+          reuseFields[0][i] = new LongPoint("green_" + fieldName, 0);
+          reuseFields2[0][i] = new NumericDocValuesField("green_" + fieldName, 0);
+          reuseFields[1][i] = new LongPoint("yellow_" + fieldName, 0);
+          reuseFields2[1][i] = new NumericDocValuesField("yellow_" + fieldName, 0);
+        } else {
+          reuseFields[0][i] = new LongPoint(fieldName, 0);
+          reuseFields2[0][i] = new NumericDocValuesField(fieldName, 0);
+          reuseFields[1][i] = reuseFields[0][i];
+          reuseFields2[1][i] = reuseFields2[0][i];
+        }
+        break;
+      }
+      case "passenger_count": {
+        if (sparse) {
+          reuseFields[0][i] = new IntPoint("green_" + fieldName, 0);
+          reuseFields2[0][i] = new NumericDocValuesField("green_" + fieldName, 0);
+          reuseFields[1][i] = new IntPoint("yellow_" + fieldName, 0);
+          reuseFields2[1][i] = new NumericDocValuesField("yellow_" + fieldName, 0);
+        } else {
+          reuseFields[0][i] = new IntPoint(fieldName, 0);
+          reuseFields2[0][i] = new NumericDocValuesField(fieldName, 0);
+          reuseFields[1][i] = reuseFields[0][i];
+          reuseFields2[1][i] = reuseFields2[0][i];
+        }
+        break;
+      }
+      case "trip_distance":
+      case "pickup_latitude":
+      case "pickup_longitude":
+      case "dropoff_latitude":
+      case "dropoff_longitude":
+      case "fare_amount":
+      case "surcharge":
+      case "mta_tax":
+      case "extra":
+      case "ehail_fee":
+      case "improvement_surcharge":
+      case "tip_amount":
+      case "tolls_amount":
+      case "total_amount": {
+        if (sparse) {
+          reuseFields[0][i] = new DoublePoint("green_" + fieldName, 0.0);
+          reuseFields2[0][i] = new NumericDocValuesField("green_" + fieldName, 0);
+          reuseFields[1][i] = new DoublePoint("yellow_" + fieldName, 0.0);
+          reuseFields2[1][i] = new NumericDocValuesField("yellow_" + fieldName, 0);
+        } else {
+          reuseFields[0][i] = new DoublePoint(fieldName, 0.0);
+          reuseFields2[0][i] = new NumericDocValuesField(fieldName, 0);
+          reuseFields[1][i] = reuseFields[0][i];
+          reuseFields2[1][i] = reuseFields2[0][i];
+        }
+        break;
+      }
+      default:
+        throw new AssertionError("failed to handle field \"" + fieldName + "\"");
+      }
     }
+  }
 
-    final IndexWriter w = new IndexWriter(dir, iwc);
-
+  /** Reads chunks from a shared stream; returns true if any indexing thread failed. */
+  private static boolean indexStream(final IndexWriter w, Path docsPath, int threadCount, final boolean sparse) throws Exception {
     BufferedInputStream docs = new BufferedInputStream(Files.newInputStream(docsPath, StandardOpenOption.READ));
 
     // parse the header fields
@@ -408,97 +452,7 @@ public class IndexTaxis {
             // Setup fields & document to reuse
             final Field[][] reuseFields = new Field[2][];
             final Field[][] reuseFields2 = new Field[2][];
-
-            // green's fields:
-            reuseFields[0] = new Field[fields.length];
-            reuseFields2[0] = new Field[fields.length];
-
-            // yellow's fields:
-            reuseFields[1] = new Field[fields.length];
-            reuseFields2[1] = new Field[fields.length];
-
-            
-            for(int i=0;i<fields.length;i++) {
-              String fieldName = fields[i];
-              switch(fieldName) {
-              case "vendor_id":
-              case "payment_type":
-              case "trip_type":
-              case "rate_code_id":
-              case "store_and_fwd_flag": {
-                if (sparse) {
-                  reuseFields[0][i] = new StringField("green_" + fieldName, "", Field.Store.YES);
-                  reuseFields2[0][i] = new SortedDocValuesField("green_" + fieldName, new BytesRef());
-                  reuseFields[1][i] = new StringField("yellow_" + fieldName, "", Field.Store.YES);
-                  reuseFields2[1][i] = new SortedDocValuesField("yellow_" + fieldName, new BytesRef());
-                } else {
-                  reuseFields[0][i] = new StringField(fieldName, "", Field.Store.YES);
-                  reuseFields2[0][i] = new SortedDocValuesField(fieldName, new BytesRef());
-                  reuseFields[1][i] = reuseFields[0][i];
-                  reuseFields2[1][i] = reuseFields2[0][i];
-                }
-                break;
-              }
-              case "pickup_datetime":
-              case "dropoff_datetime": {
-                if (sparse) {
-                  reuseFields[0][i] = new LongPoint("green_" + fieldName, 0);
-                  reuseFields2[0][i] = new NumericDocValuesField("green_" + fieldName, 0);
-                  reuseFields[1][i] = new LongPoint("yellow_" + fieldName, 0);
-                  reuseFields2[1][i] = new NumericDocValuesField("yellow_" + fieldName, 0);
-                } else {
-                  reuseFields[0][i] = new LongPoint(fieldName, 0);
-                  reuseFields2[0][i] = new NumericDocValuesField(fieldName, 0);
-                  reuseFields[1][i] = reuseFields[0][i];
-                  reuseFields2[1][i] = reuseFields2[0][i];
-                }
-                break;
-              }
-              case "passenger_count": {
-                if (sparse) {
-                  reuseFields[0][i] = new IntPoint("green_" + fieldName, 0);
-                  reuseFields2[0][i] = new NumericDocValuesField("green_" + fieldName, 0);
-                  reuseFields[1][i] = new IntPoint("yellow_" + fieldName, 0);
-                  reuseFields2[1][i] = new NumericDocValuesField("yellow_" + fieldName, 0);
-                } else {
-                  reuseFields[0][i] = new IntPoint(fieldName, 0);
-                  reuseFields2[0][i] = new NumericDocValuesField(fieldName, 0);
-                  reuseFields[1][i] = reuseFields[0][i];
-                  reuseFields2[1][i] = reuseFields2[0][i];
-                }
-                break;
-              }
-              case "trip_distance":
-              case "pickup_latitude":
-              case "pickup_longitude":
-              case "dropoff_latitude":
-              case "dropoff_longitude":
-              case "fare_amount":
-              case "surcharge":
-              case "mta_tax":
-              case "extra":
-              case "ehail_fee":
-              case "improvement_surcharge":
-              case "tip_amount":
-              case "tolls_amount":
-              case "total_amount": {
-                if (sparse) {
-                  reuseFields[0][i] = new DoublePoint("green_" + fieldName, 0.0);
-                  reuseFields2[0][i] = new NumericDocValuesField("green_" + fieldName, 0);
-                  reuseFields[1][i] = new DoublePoint("yellow_" + fieldName, 0.0);
-                  reuseFields2[1][i] = new NumericDocValuesField("yellow_" + fieldName, 0);
-                } else {
-                  reuseFields[0][i] = new DoublePoint(fieldName, 0.0);
-                  reuseFields2[0][i] = new NumericDocValuesField(fieldName, 0);
-                  reuseFields[1][i] = reuseFields[0][i];
-                  reuseFields2[1][i] = reuseFields2[0][i];
-                }
-                break;
-              }
-              default:
-                throw new AssertionError("failed to handle field \"" + fieldName + "\"");
-              }
-            }
+            initReuseFields(fields, sparse, reuseFields, reuseFields2);
 
             Field cabColorField = new StringField("cab_color", "", Field.Store.NO);
             Field cabColorDVField = new SortedDocValuesField("cab_color", new BytesRef());
@@ -519,6 +473,74 @@ public class IndexTaxis {
     for(int i=0;i<threadCount;i++) {
       threads[i].join();
     }
+    docs.close();
+
+    return failed.get();
+  }
+
+  public static void main(String[] args) throws Exception {
+    Path indexPath = Paths.get(args[0]);
+    Directory dir = FSDirectory.open(indexPath);
+    int threadCount = Integer.parseInt(args[1]);
+    Path docsPath = Paths.get(args[2]);
+    String sparseOrNot = args[3];
+    String sortOrNot = args[4];
+    // Optional: "stream" (default) reads chunks through one synchronized stream; "pipeline" uses TaxiPipeline:
+    String ingest = args.length > 5 ? args[5] : "stream";
+
+    final boolean sparse;
+    if (sparseOrNot.equals("sparse")) {
+      sparse = true;
+    } else if (sparseOrNot.equals("nonsparse")) {
+      sparse = false;
+    } else {
+      throw new IllegalArgumentException("sparseOrNot: expected 'sparse' or 'nonsparse' but saw " + sparseOrNot);
+    }
+
+    final boolean sorted;
+    if (sortOrNot.equals("True")) {
+      sorted = true;
+    } else if (sortOrNot.equals("False")) {
+      sorted = false;
+    } else {
+      throw new IllegalArgumentException("sortOrNot: expected 'true' or 'false' but saw " + sortOrNot);
+    }
+
+    if (ingest.equals("stream") == false && ingest.equals("pipeline") == false) {
+      throw new IllegalArgumentException("ingest: expected 'stream' or 'pipeline' but saw " + ingest);
+    }
+
+    // Pass analyzer explicitly, even though we've switched to StandardAnalyzer by default, so when we back-test to before that default
+    // change, this compiles:
+    IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer());
+    //System.out.println("NOW SET INFO STREAM");
+
+    iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+
+    if (threadCount == 1) {
+      // 555 segment structure for 20M docs:
+      iwc.setMaxBufferedDocs(36036);
+      iwc.setRAMBufferSizeMB(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+      iwc.setMergeScheduler(new SerialMergeScheduler());
+      iwc.setMergePolicy(new LogDocMergePolicy());
+      // so we see details about flush times, merge times:
+      iwc.setInfoStream(new PrintStreamInfoStream(System.out));
+    } else {
+      iwc.setRAMBufferSizeMB(1024.);
+    }
+
+    if (sorted) {
+      iwc.setIndexSort(new Sort(new SortField("cab_color", SortField.Type.STRING)));
+    }
+
+    final IndexWriter w = new IndexWriter(dir, iwc);
+
+    final boolean failed;
+    if (ingest.equals("pipeline")) {
+      failed = TaxiPipeline.index(w, docsPath, threadCount, sparse);
+    } else {
+      failed = indexStream(w, docsPath, threadCount, sparse);
+    }
 
     if (threadCount == 1) {
       System.out.println("Indexing done; now close");
@@ -527,9 +549,8 @@ public class IndexTaxis {
       System.out.println("Indexing done; now rollback");
       w.rollback();
     }
-    docs.close();
 
-    if (failed.get()) {
+    if (failed) {
       throw new RuntimeException("indexing failed");
     }
   }
@@ -21,7 +21,10 @@ import java.io.IOException;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -47,11 +50,23 @@ class IndexThreads {
   final Thread[] threads;
   final AtomicBoolean refreshing;
   final AtomicLong lastRefreshNS;
+  final PreprocessStage preprocess;
 
   public IndexThreads(Random random, IndexWriter w, AtomicBoolean indexingFailed, LineFileDocs lineFileDocs, int numThreads, int docCountLimit,
                       boolean addGroupingFields, boolean printDPS, Mode mode, float docsPerSecPerThread, UpdatesListener updatesListener,
                       double nrtEverySec, int randomDocIDMax)
     throws IOException, InterruptedException {
+    this(random, w, indexingFailed, lineFileDocs, numThreads, docCountLimit, addGroupingFields, printDPS, mode, docsPerSecPerThread, updatesListener,
+         nrtEverySec, randomDocIDMax, null, 0, 0);
+  }
+
+  /** If preprocessor is non-null, every doc goes through it before indexing: inline in each index thread when
+   *  preprocessThreadCount is 0, else in that many separate threads feeding the index threads through a queue holding
+   *  up to preprocessQueueSize docs. */
+  public IndexThreads(Random random, IndexWriter w, AtomicBoolean indexingFailed, LineFileDocs lineFileDocs, int numThreads, int docCountLimit,
+                      boolean addGroupingFields, boolean printDPS, Mode mode, float docsPerSecPerThread, UpdatesListener updatesListener,
+                      double nrtEverySec, int randomDocIDMax, DocPreprocessor.Factory preprocessor, int preprocessThreadCount, int preprocessQueueSize)
+    throws IOException, InterruptedException {
     final AtomicInteger groupBlockIndex;
 
     this.docs = lineFileDocs;
@@ -74,8 +89,18 @@ class IndexThreads {
     refreshing = new AtomicBoolean(false);
     lastRefreshNS = new AtomicLong(System.nanoTime());
 
+    if (preprocessor != null) {
+      if (preprocessThreadCount > 0 && addGroupingFields) {
+        throw new IllegalArgumentException("cannot preprocess in separate threads when adding grouping fields");
+      }
+      preprocess = new PreprocessStage(preprocessor, docs, preprocessThreadCount, preprocessQueueSize, numThreads, startLatch, stop, failed);
+    } else {
+      preprocess = null;
+    }
+
     for(int thread=0;thread<numThreads;thread++) {
-      threads[thread] = new IndexThread(random, startLatch, stopLatch, w, docs, docCountLimit, count, mode, groupBlockIndex, stop, refreshing, lastRefreshNS, docsPerSecPerThread, failed, updatesListener, nrtEverySec, randomDocIDMax);
+      threads[thread] = new IndexThread(random, startLatch, stopLatch, w, docs, docCountLimit, count, mode, groupBlockIndex, stop, refreshing, lastRefreshNS, docsPerSecPerThread, failed, updatesListener, nrtEverySec, randomDocIDMax,
+                                        preprocess);
       threads[thread].setName("Index #" + thread);
       threads[thread].start();
     }
@@ -95,6 +120,9 @@ class IndexThreads {
   }
 
   public long getBytesIndexed() {
+    if (preprocess != null) {
+      return preprocess.getBytesIndexed();
+    }
     return docs.getBytesIndexed();
   }
 
@@ -103,6 +131,11 @@ class IndexThreads {
     for(Thread t : threads) {
       t.join();
     }
+    if (preprocess != null) {
+      for(Thread t : preprocess.threads) {
+        t.join();
+      }
+    }
     if (printer != null) {
       printer.join();
     }
@@ -124,6 +157,159 @@ class IndexThreads {
     public void afterUpdate();
   }
 
+  /** Runs the DocPreprocessor and keeps its cost separate from indexing.  When it has its own threads, they also pull
+   *  (and clone) the docs from LineFileDocs, like an upstream ingest stage would. */
+  static final class PreprocessStage {
+    // Marks the end of the docs; each index thread puts it back for the next one:
+    private static final Document END = new Document();
+
+    private final DocPreprocessor.Factory factory;
+    private final LineFileDocs docs;
+    private final AtomicBoolean stop;
+    private final BlockingQueue<Document> queue;
+    final Thread[] threads;
+    private final int indexThreadCount;
+
+    private final AtomicLong preprocessNS = new AtomicLong();
+    private final AtomicLong preprocessCount = new AtomicLong();
+    // Time index threads spent waiting for preprocessed docs:
+    private final AtomicLong waitNS = new AtomicLong();
+    // Title + body chars of the docs index threads took off the queue (LineFileDocs counts docs when read, so it would
+    // include the ones read ahead and still queued):
+    private final AtomicLong bytesTaken = new AtomicLong();
+
+    PreprocessStage(DocPreprocessor.Factory factory, final LineFileDocs docs, int threadCount, int queueSize, int indexThreadCount,
+                    final CountDownLatch startLatch, final AtomicBoolean stop, final AtomicBoolean failed) {
+      this.factory = factory;
+      this.docs = docs;
+      this.stop = stop;
+      this.indexThreadCount = indexThreadCount;
+      threads = new Thread[threadCount];
+      if (threadCount == 0) {
+        queue = null;
+        return;
+      }
+
+      queue = new ArrayBlockingQueue<Document>(queueSize);
+
+      // Create them all up front, so a failure leaves no started thread waiting forever on startLatch:
+      DocPreprocessor[] preprocessors = new DocPreprocessor[threadCount];
+      for(int thread=0;thread<threadCount;thread++) {
+        try {
+          preprocessors[thread] = factory.newInstance();
+        } catch (Exception e) {
+          throw new RuntimeException("failed to create preprocessor", e);
+        }
+      }
+
+      final AtomicInteger threadsLeft = new AtomicInteger(threadCount);
+      for(int thread=0;thread<threadCount;thread++) {
+        final DocPreprocessor preprocessor = preprocessors[thread];
+        threads[thread] = new Thread() {
+            @Override
+            public void run() {
+              try {
+                _run();
+              } catch (Exception e) {
+                failed.set(true);
+                throw new RuntimeException(e);
+              } finally {
+                if (threadsLeft.decrementAndGet() == 0) {
+                  try {
+                    offer(END);
+                  } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                  }
+                }
+              }
+            }
+
+            private void _run() throws Exception {
+              startLatch.await();
+              final LineFileDocs.DocState docState = docs.newDocState();
+              while (stop.get() == false) {
+                Document doc = docs.nextDoc(docState);
+                if (doc == null) {
+                  break;
+                }
+                if (doc == docState.doc) {
+                  // queued docs must not share fields
+                  doc = LineFileDocs.cloneDoc(doc);
+                }
+                process(preprocessor, doc);
+                if (offer(doc) == false) {
+                  break;
+                }
+              }
+            }
+          };
+        threads[thread].setName("Preprocess #" + thread);
+        threads[thread].start();
+      }
+    }
+
+    DocPreprocessor newInline() throws Exception {
+      return queue == null ? factory.newInstance() : null;
+    }
+
+    void process(DocPreprocessor preprocessor, Document doc) throws Exception {
+      long t0 = System.nanoTime();
+      preprocessor.process(doc);
+      preprocessNS.addAndGet(System.nanoTime() - t0);
+      preprocessCount.incrementAndGet();
+    }
+
+    /** Returns false if we stopped while the queue was full */
+    private boolean offer(Document doc) throws InterruptedException {
+      while (queue.offer(doc, 100, TimeUnit.MILLISECONDS) == false) {
+        if (stop.get()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Returns the next preprocessed doc, or null once they are used up or we are stopped */
+    Document take() throws InterruptedException {
+      long t0 = System.nanoTime();
+      try {
+        while (stop.get() == false) {
+          Document doc = queue.poll(100, TimeUnit.MILLISECONDS);
+          if (doc == END) {
+            queue.put(END);
+            return null;
+          } else if (doc != null) {
+            // counted like LineFileDocs does:
+            bytesTaken.addAndGet(doc.getField("title").stringValue().length() + doc.getField("body").stringValue().length());
+            return doc;
+          }
+        }
+        return null;
+      } finally {
+        waitNS.addAndGet(System.nanoTime() - t0);
+      }
+    }
+
+    /** With separate threads, only docs handed to the index threads count; docs read ahead into the queue don't */
+    long getBytesIndexed() {
+      return queue == null ? docs.getBytesIndexed() : bytesTaken.get();
+    }
+
+    /** How the stage has done so far, to append to the docs/sec output */
+    String status(long elapsedNS) {
+      long count = preprocessCount.get();
+      double secPerThread = preprocessNS.get() / 1000000000.;
+      if (queue == null) {
+        // index threads paid for preprocessing themselves:
+        return String.format(Locale.ROOT, "preprocess %d docs (%.1f docs/sec/thread; %.1f%% of index thread time)",
+                             count, count / secPerThread, 100. * preprocessNS.get() / (elapsedNS * (double) indexThreadCount));
+      } else {
+        return String.format(Locale.ROOT, "preprocess %d docs in %d threads (%.1f docs/sec/thread); index threads waited %.1f%% of their time",
+                             count, threads.length, count / secPerThread, 100. * waitNS.get() / (elapsedNS * (double) indexThreadCount));
+      }
+    }
+  }
+
   private static class IndexThread extends Thread {
     public static BytesRef[] group100;
     public static BytesRef[] group100K;
@@ -146,11 +332,15 @@ class IndexThreads {
     private final AtomicLong lastRefreshNS;
     private final double nrtEverySec;
     final int randomDocIDMax;
+    private final PreprocessStage preprocess;
+    // Only set when preprocessing inline:
+    private DocPreprocessor preprocessor;
 
     public IndexThread(Random random, CountDownLatch startLatch, CountDownLatch stopLatch, IndexWriter w,
                        LineFileDocs docs, int numTotalDocs, AtomicInteger count, Mode mode, AtomicInteger groupBlockIndex,
                        AtomicBoolean stop, AtomicBoolean refreshing, AtomicLong lastRefreshNS, float docsPerSec,
-                       AtomicBoolean failed, UpdatesListener updatesListener, double nrtEverySec, int randomDocIDMax) {
+                       AtomicBoolean failed, UpdatesListener updatesListener, double nrtEverySec, int randomDocIDMax,
+                       PreprocessStage preprocess) {
       this.startLatch = startLatch;
       this.stopLatch = stopLatch;
       this.w = w;
@@ -168,11 +358,30 @@ class IndexThreads {
       this.lastRefreshNS = lastRefreshNS;
       this.nrtEverySec = nrtEverySec;
       this.randomDocIDMax = randomDocIDMax;
+      this.preprocess = preprocess;
+    }
+
+    /** Returns the next doc to index, after preprocessing, or null when there are no more */
+    private Document nextDoc(LineFileDocs.DocState docState) throws Exception {
+      if (preprocess == null) {
+        return docs.nextDoc(docState);
+      } else if (preprocessor == null) {
+        return preprocess.take();
+      } else {
+        Document doc = docs.nextDoc(docState);
+        if (doc != null) {
+          preprocess.process(preprocessor, doc);
+        }
+        return doc;
+      }
     }
 
     @Override
     public void run() {
       try {
+        if (preprocess != null) {
+          preprocessor = preprocess.newInline();
+        }
         final LineFileDocs.DocState docState = docs.newDocState();
         final Field idField = docState.id;
         final long tStart = System.currentTimeMillis();
@@ -261,9 +470,9 @@ class IndexThreads {
                         Field extraField;
 
                         try {
-                          doc = docs.nextDoc(docState);
-                        } catch (IOException ioe) {
-                          throw new RuntimeException(ioe);
+                          doc = nextDoc(docState);
+                        } catch (Exception e) {
+                          throw new RuntimeException(e);
                         }
                         if (doc == null) {
                           return false;
@@ -312,11 +521,12 @@ class IndexThreads {
           final long startNS = System.nanoTime();
           int threadCount = 0;
           while (!stop.get()) {
-            final Document doc = docs.nextDoc(docState);
+            final Document doc = nextDoc(docState);
             if (doc == null) {
               break;
             }
-            final int id = LineFileDocs.idToInt(idField.stringValue());
+            // NOTE: can't use docState.id if docs were preprocessed in other threads
+            final int id = LineFileDocs.idToInt(doc.get("id"));
             if (numTotalDocs != -1 && id >= numTotalDocs) {
               break;
             }
@@ -357,7 +567,12 @@ class IndexThreads {
             threadCount++;
 
             if ((docCount % 10000) == 0) {
-              System.out.println("Indexer: " + docCount + " docs... (" + (System.currentTimeMillis() - tStart) + " msec)");
+              long elapsedMS = System.currentTimeMillis() - tStart;
+              if (preprocess != null) {
+                System.out.println("Indexer: " + docCount + " docs... (" + elapsedMS + " msec); " + preprocess.status(elapsedMS*1000000L));
+              } else {
+                System.out.println("Indexer: " + docCount + " docs... (" + elapsedMS + " msec)");
+              }
             }
 
             final long sleepNS = startNS + (long) (1000000000*(threadCount/docsPerSec)) - System.nanoTime();
@@ -371,7 +586,7 @@ class IndexThreads {
           }
         } else {
           while (!stop.get()) {
-            final Document doc = docs.nextDoc(docState);
+            final Document doc = nextDoc(docState);
             if (doc == null) {
               break;
             }
@@ -383,7 +598,13 @@ class IndexThreads {
             if ((docCount % 10000) == 0) {
               long nowMS = System.currentTimeMillis();
               double dps = docCount / ((nowMS - tStart)/1000.0);
-              System.out.println(String.format(Locale.ROOT, "Indexer: %d docs (%.1f sec); %.1f docs/sec", docCount, (nowMS - tStart)/1000.0, dps));
+              String preprocessStatus;
+              if (preprocess != null) {
+                preprocessStatus = "; " + preprocess.status((nowMS - tStart)*1000000L);
+              } else {
+                preprocessStatus = "";
+              }
+              System.out.println(String.format(Locale.ROOT, "Indexer: %d docs (%.1f sec); %.1f docs/sec%s", docCount, (nowMS - tStart)/1000.0, dps, preprocessStatus));
             }
 
             if (mode == Mode.UPDATE) {
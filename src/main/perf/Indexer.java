@@ -78,7 +78,7 @@ public final class Indexer {
     }
   }
 
-  private static MergeScheduler getMergeScheduler(AtomicBoolean indexingFailed, boolean useCMS, int maxConcurrentMerges, boolean disableIOThrottle) {
+  static MergeScheduler getMergeScheduler(AtomicBoolean indexingFailed, boolean useCMS, int maxConcurrentMerges, boolean disableIOThrottle) {
     if (useCMS) {
       ConcurrentMergeScheduler cms = new ConcurrentMergeScheduler() {
           @Override
@@ -101,7 +101,7 @@ public final class Indexer {
     }
   }
 
-  private static MergePolicy getMergePolicy(String mergePolicy, boolean useCFS) {
+  static MergePolicy getMergePolicy(String mergePolicy, boolean useCFS) {
 
     MergePolicy mp;
     if (mergePolicy.equals("LogDocMergePolicy")) {
@@ -124,6 +124,24 @@ public final class Indexer {
     return mp;
   }
 
+  static Analyzer getAnalyzer(String analyzer) {
+    if (analyzer.equals("EnglishAnalyzer")) {
+      return new EnglishAnalyzer();
+    } else if (analyzer.equals("StandardAnalyzer")) {
+      return new StandardAnalyzer();
+    } else if (analyzer.equals("StandardAnalyzerNoStopWords")) {
+      return new StandardAnalyzer(CharArraySet.EMPTY_SET);
+    } else if (analyzer.equals("ShingleStandardAnalyzer")) {
+      return new ShingleAnalyzerWrapper(new StandardAnalyzer(),
+                                        2, 2);
+    } else if (analyzer.equals("ShingleStandardAnalyzerNoStopWords")) {
+      return new ShingleAnalyzerWrapper(new StandardAnalyzer(CharArraySet.EMPTY_SET),
+                                        2, 2);
+    } else {
+      throw new RuntimeException("unknown analyzer " + analyzer);
+    }
+  }
+
   private static void _main(String[] clArgs) throws Exception {
 
     Args args = new Args(clArgs);
@@ -187,22 +205,7 @@ public final class Indexer {
     dir = od.open(Paths.get(dirPath));
 
     final String analyzer = args.getString("-analyzer");
-    final Analyzer a;
-    if (analyzer.equals("EnglishAnalyzer")) {
-      a = new EnglishAnalyzer();
-    } else if (analyzer.equals("StandardAnalyzer")) {
-      a = new StandardAnalyzer();
-    } else if (analyzer.equals("StandardAnalyzerNoStopWords")) {
-      a = new StandardAnalyzer(CharArraySet.EMPTY_SET);
-    } else if (analyzer.equals("ShingleStandardAnalyzer")) {
-      a = new ShingleAnalyzerWrapper(new StandardAnalyzer(),
-                                     2, 2);
-    } else if (analyzer.equals("ShingleStandardAnalyzerNoStopWords")) {
-      a = new ShingleAnalyzerWrapper(new StandardAnalyzer(CharArraySet.EMPTY_SET),
-                                     2, 2);
-    } else {
-      throw new RuntimeException("unknown analyzer " + analyzer);
-    } 
+    final Analyzer a = getAnalyzer(analyzer);
 
     final String lineFile = args.getString("-lineDocsFile");
 
@@ -297,6 +300,40 @@ public final class Indexer {
     // docs from the line file source:
     final boolean repeatDocs = args.getFlag("-repeatDocs");
 
+    // If set, first decode this many docs into RAM and index only from there, so line file I/O and parsing aren't measured:
+    final int preloadDocCount;
+    if (args.hasArg("-preloadDocCount")) {
+      preloadDocCount = args.getInt("-preloadDocCount");
+      if (facetFields.isEmpty() == false) {
+        throw new IllegalArgumentException("-preloadDocCount cannot be used with -facets");
+      }
+    } else {
+      preloadDocCount = 0;
+    }
+
+    // Run each doc through a DocPreprocessor (e.g. langid, ld or tika language detection) before indexing, inline or in
+    // -preprocessThreads separate threads:
+    final DocPreprocessor.Factory preprocessor;
+    final int preprocessThreadCount;
+    final int preprocessQueueSize;
+    if (args.hasArg("-preprocess")) {
+      preprocessor = DocPreprocessor.forName(args.getString("-preprocess"));
+      if (args.hasArg("-preprocessThreads")) {
+        preprocessThreadCount = args.getInt("-preprocessThreads");
+      } else {
+        preprocessThreadCount = 0;
+      }
+      if (args.hasArg("-preprocessQueueSize")) {
+        preprocessQueueSize = args.getInt("-preprocessQueueSize");
+      } else {
+        preprocessQueueSize = 1000;
+      }
+    } else {
+      preprocessor = null;
+      preprocessThreadCount = 0;
+      preprocessQueueSize = 0;
+    }
+
     final String facetDVFormatName;
     if (facetFields.isEmpty()) {
       facetDVFormatName = "Lucene70";
@@ -317,6 +354,9 @@ public final class Indexer {
     System.out.println("Line file: " + lineFile);
     System.out.println("Doc count limit: " + (docCountLimit == -1 ? "all docs" : ""+docCountLimit));
     System.out.println("Threads: " + numThreads);
+    if (args.hasArg("-preprocess")) {
+      System.out.println("Preprocess: " + args.getString("-preprocess") + (preprocessThreadCount == 0 ? " inline" : " in " + preprocessThreadCount + " threads, queue size " + preprocessQueueSize));
+    }
     System.out.println("Force merge: " + (doForceMerge ? "yes" : "no"));
     System.out.println("Verbose: " + (verbose ? "yes" : "no"));
     System.out.println("RAM Buffer MB: " + ramBufferSizeMB);
@@ -349,6 +389,7 @@ public final class Indexer {
       System.out.println("Open & close NRT reader every: never");
     }
     System.out.println("Repeat docs: " + repeatDocs);
+    System.out.println("Preload docs: " + (preloadDocCount == 0 ? "no" : ""+preloadDocCount));
     
     if (verbose) {
       InfoStream.setDefault(new PrintStreamInfoStream(System.out));
@@ -426,13 +467,20 @@ public final class Indexer {
     // Fixed seed so group field values are always consistent:
     final Random random = new Random(17);
 
-    LineFileDocs lineFileDocs = new LineFileDocs(lineFile, repeatDocs, storeBody, tvsBody, bodyPostingsOffsets, false, taxoWriter, facetDimMethods, facetsConfig, addDVFields);
+    final DocCorpus corpus;
+    if (preloadDocCount != 0) {
+      corpus = DocCorpus.load(lineFile, preloadDocCount);
+    } else {
+      corpus = null;
+    }
+
+    LineFileDocs lineFileDocs = new LineFileDocs(lineFile, corpus, repeatDocs, storeBody, tvsBody, bodyPostingsOffsets, false, taxoWriter, facetDimMethods, facetsConfig, addDVFields);
 
     float docsPerSecPerThread = -1f;
     //float docsPerSecPerThread = 100f;
 
     IndexThreads threads = new IndexThreads(random, w, indexingFailed, lineFileDocs, numThreads, docCountLimit, addGroupingFields, printDPS, mode, docsPerSecPerThread, null, nrtEverySec,
-                                            randomDocIDMax);
+                                            randomDocIDMax, preprocessor, preprocessThreadCount, preprocessQueueSize);
 
     System.out.println("\nIndexer: start");
     final long t0 = System.currentTimeMillis();
@@ -455,6 +503,9 @@ public final class Indexer {
 
     final long t1 = System.currentTimeMillis();
     System.out.println("\nIndexer: indexing done (" + (t1-t0) + " msec); total " + w.maxDoc() + " docs");
+    if (threads.preprocess != null) {
+      System.out.println("Indexer: " + threads.preprocess.status((t1-t0)*1000000L));
+    }
     // if we update we can not tell how many docs
     if (threads.failed.get()) {
       throw new RuntimeException("exceptions during indexing");
@@ -0,0 +1,302 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.IOUtils;
+
+import perf.IndexThreads.Mode;
+
+// Runs many Indexer configurations in one JVM, against the same docs decoded into RAM once, e.g.:
+//
+//   java perf.IndexerSweep -dirImpl MMapDirectory -indexPath /l/tmp/sweep -analyzer StandardAnalyzerNoStopWords \
+//     -lineDocsFile /l/data/enwiki.txt -docCountLimit 1000000 -ramBufferMB 64,256,1024 -threadCount 4,8,16 \
+//     -maxConcurrentMerges 1,3 -mergePolicy TieredMergePolicy,LogDocMergePolicy -useCMS true,false -search adaptive
+
+public final class IndexerSweep {
+
+  /** One configuration to try, and its results once it ran. */
+  static final class Point {
+    final double ramBufferMB;
+    final int threadCount;
+    final int maxConcurrentMerges;
+    final String mergePolicy;
+    final boolean useCMS;
+
+    double docsPerSec;
+    double gbPerHour;
+    int segmentCount;
+    long peakHeapBytes;
+
+    Point(double ramBufferMB, int threadCount, int maxConcurrentMerges, String mergePolicy, boolean useCMS) {
+      this.ramBufferMB = ramBufferMB;
+      this.threadCount = threadCount;
+      this.maxConcurrentMerges = maxConcurrentMerges;
+      this.mergePolicy = mergePolicy;
+      this.useCMS = useCMS;
+    }
+
+    String key() {
+      return String.format(Locale.ROOT, "ram=%.1fMB threads=%d merges=%d mp=%s cms=%s",
+                           ramBufferMB, threadCount, maxConcurrentMerges, mergePolicy, useCMS);
+    }
+
+    /** True if this point is at least as good as other on throughput, heap and thread count, and strictly better on one. */
+    boolean dominates(Point other) {
+      if (docsPerSec < other.docsPerSec || peakHeapBytes > other.peakHeapBytes || threadCount > other.threadCount) {
+        return false;
+      }
+      return docsPerSec > other.docsPerSec || peakHeapBytes < other.peakHeapBytes || threadCount < other.threadCount;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT, "%s: %.1f docs/sec, %.2f GB/hour, %d segments, %.1f MB peak heap",
+                           key(), docsPerSec, gbPerHour, segmentCount, peakHeapBytes/1024./1024.);
+    }
+  }
+
+  private final String dirImpl;
+  private final Path indexPath;
+  private final String analyzer;
+  private final String lineFile;
+  private final DocCorpus corpus;
+  private final int docCountLimit;
+  private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+  private final Map<String,Point> results = new LinkedHashMap<>();
+  private int pointCount;
+
+  private IndexerSweep(String dirImpl, Path indexPath, String analyzer, String lineFile, DocCorpus corpus, int docCountLimit) {
+    this.dirImpl = dirImpl;
+    this.indexPath = indexPath;
+    this.analyzer = analyzer;
+    this.lineFile = lineFile;
+    this.corpus = corpus;
+    this.docCountLimit = docCountLimit;
+  }
+
+  public static void main(String[] clArgs) throws Exception {
+    Args args = new Args(clArgs);
+
+    final String dirImpl = args.getString("-dirImpl");
+    final Path indexPath = Paths.get(args.getString("-indexPath"));
+    final String analyzer = args.getString("-analyzer");
+    final String lineFile = args.getString("-lineDocsFile");
+    final int docCountLimit = args.getInt("-docCountLimit");
+
+    final List<Double> ramBufferMBs = new ArrayList<>();
+    for(String s : args.getString("-ramBufferMB", "256").split(",")) {
+      ramBufferMBs.add(Double.parseDouble(s));
+    }
+    final List<Integer> threadCounts = parseInts(args.getString("-threadCount", "1"));
+    final List<Integer> maxConcurrentMerges = parseInts(args.getString("-maxConcurrentMerges", "3"));
+    final List<String> mergePolicies = new ArrayList<>();
+    Collections.addAll(mergePolicies, args.getString("-mergePolicy", "TieredMergePolicy").split(","));
+    final List<Boolean> useCMSs = new ArrayList<>();
+    for(String s : args.getString("-useCMS", "true").split(",")) {
+      useCMSs.add(Boolean.parseBoolean(s));
+    }
+    final String search = args.getString("-search", "grid");
+
+    args.check();
+
+    if (docCountLimit <= 0) {
+      throw new IllegalArgumentException("-docCountLimit must be > 0; got " + docCountLimit);
+    }
+
+    System.out.println("Line file: " + lineFile);
+    System.out.println("Doc count: " + docCountLimit);
+    System.out.println("RAM buffer MB: " + ramBufferMBs);
+    System.out.println("Threads: " + threadCounts);
+    System.out.println("Max concurrent merges: " + maxConcurrentMerges);
+    System.out.println("Merge policies: " + mergePolicies);
+    System.out.println("Use CMS: " + useCMSs);
+    System.out.println("Search: " + search);
+
+    DocCorpus corpus = DocCorpus.load(lineFile, docCountLimit);
+    if (corpus.size() < docCountLimit) {
+      throw new IllegalArgumentException("line file only has " + corpus.size() + " docs but -docCountLimit is " + docCountLimit);
+    }
+
+    IndexerSweep sweep = new IndexerSweep(dirImpl, indexPath, analyzer, lineFile, corpus, docCountLimit);
+
+    if (search.equals("grid")) {
+      for(double ramBufferMB : ramBufferMBs) {
+        for(int threadCount : threadCounts) {
+          for(int merges : maxConcurrentMerges) {
+            for(String mergePolicy : mergePolicies) {
+              for(boolean useCMS : useCMSs) {
+                sweep.run(new Point(ramBufferMB, threadCount, merges, mergePolicy, useCMS));
+              }
+            }
+          }
+        }
+      }
+    } else if (search.equals("adaptive")) {
+      // Coordinate ascent on docs/sec: sweep one parameter at a time, holding the others at the best values so far,
+      // until a full pass over all parameters no longer changes the best point:
+      Point best = sweep.run(new Point(ramBufferMBs.get(0), threadCounts.get(0), maxConcurrentMerges.get(0),
+                                       mergePolicies.get(0), useCMSs.get(0)));
+      while (true) {
+        Point prev = best;
+        for(double v : ramBufferMBs) {
+          best = better(best, sweep.run(new Point(v, best.threadCount, best.maxConcurrentMerges, best.mergePolicy, best.useCMS)));
+        }
+        for(int v : threadCounts) {
+          best = better(best, sweep.run(new Point(best.ramBufferMB, v, best.maxConcurrentMerges, best.mergePolicy, best.useCMS)));
+        }
+        for(int v : maxConcurrentMerges) {
+          best = better(best, sweep.run(new Point(best.ramBufferMB, best.threadCount, v, best.mergePolicy, best.useCMS)));
+        }
+        for(String v : mergePolicies) {
+          best = better(best, sweep.run(new Point(best.ramBufferMB, best.threadCount, best.maxConcurrentMerges, v, best.useCMS)));
+        }
+        for(boolean v : useCMSs) {
+          best = better(best, sweep.run(new Point(best.ramBufferMB, best.threadCount, best.maxConcurrentMerges, best.mergePolicy, v)));
+        }
+        if (best == prev) {
+          break;
+        }
+      }
+      System.out.println("\nBest docs/sec: " + best);
+    } else {
+      throw new IllegalArgumentException("-search must be grid or adaptive; got " + search);
+    }
+
+    System.out.println("\nAll points (" + sweep.results.size() + "):");
+    for(Point point : sweep.results.values()) {
+      System.out.println("  " + point);
+    }
+
+    System.out.println("\nPareto frontier (max docs/sec, min peak heap, min threads):");
+    for(Point point : sweep.paretoFrontier()) {
+      System.out.println("  " + point);
+    }
+  }
+
+  private static List<Integer> parseInts(String s) {
+    List<Integer> result = new ArrayList<>();
+    for(String v : s.split(",")) {
+      result.add(Integer.parseInt(v));
+    }
+    return result;
+  }
+
+  private static Point better(Point a, Point b) {
+    return b.docsPerSec > a.docsPerSec ? b : a;
+  }
+
+  private List<Point> paretoFrontier() {
+    List<Point> frontier = new ArrayList<>();
+    for(Point point : results.values()) {
+      boolean dominated = false;
+      for(Point other : results.values()) {
+        if (other.dominates(point)) {
+          dominated = true;
+          break;
+        }
+      }
+      if (dominated == false) {
+        frontier.add(point);
+      }
+    }
+    Collections.sort(frontier, (a, b) -> Double.compare(b.docsPerSec, a.docsPerSec));
+    return frontier;
+  }
+
+  /** Indexes the corpus into a fresh directory with this point's settings, or returns the previous result if
+   *  this point already ran. */
+  private Point run(Point point) throws Exception {
+    Point prev = results.get(point.key());
+    if (prev != null) {
+      return prev;
+    }
+
+    Path path = indexPath.resolve("sweep" + pointCount++);
+    IOUtils.rm(path);
+
+    // Don't count garbage from the previous point against this one:
+    System.gc();
+    long baselineHeapBytes = memoryBean.getHeapMemoryUsage().getUsed();
+
+    System.out.println("\nIndexerSweep: start " + point.key());
+
+    try (Directory dir = OpenDirectory.get(dirImpl).open(path);
+         Analyzer a = Indexer.getAnalyzer(analyzer)) {
+      IndexWriterConfig iwc = new IndexWriterConfig(a);
+      iwc.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+      iwc.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+      iwc.setRAMBufferSizeMB(point.ramBufferMB);
+      iwc.setUseCompoundFile(false);
+      final AtomicBoolean indexingFailed = new AtomicBoolean();
+      iwc.setMergeScheduler(Indexer.getMergeScheduler(indexingFailed, point.useCMS, point.maxConcurrentMerges, false));
+      iwc.setMergePolicy(Indexer.getMergePolicy(point.mergePolicy, false));
+
+      IndexWriter w = new IndexWriter(dir, iwc);
+      LineFileDocs docs = new LineFileDocs(lineFile, corpus, false, false, false, false, false, null,
+                                           Collections.<String,Integer>emptyMap(), null, false);
+      IndexThreads threads = new IndexThreads(new Random(17), w, indexingFailed, docs, point.threadCount, docCountLimit,
+                                              false, false, Mode.ADD, -1f, null, -1.0, -1);
+
+      long peakHeapBytes = 0;
+      final long t0 = System.nanoTime();
+      threads.start();
+      while (!threads.done() && indexingFailed.get() == false) {
+        Thread.sleep(100);
+        peakHeapBytes = Math.max(peakHeapBytes, memoryBean.getHeapMemoryUsage().getUsed());
+      }
+      threads.stop();
+      if (indexingFailed.get()) {
+        throw new RuntimeException("exceptions during indexing for " + point.key());
+      }
+
+      // Like Indexer -waitForCommit: count the commit, and wait for merges, in the indexing time:
+      w.close();
+      final long t1 = System.nanoTime();
+      peakHeapBytes = Math.max(peakHeapBytes, memoryBean.getHeapMemoryUsage().getUsed());
+
+      double sec = (t1-t0)/1000000000.0;
+      point.docsPerSec = docCountLimit / sec;
+      point.gbPerHour = threads.getBytesIndexed()/1024./1024./1024./(sec/3600.);
+      point.segmentCount = SegmentInfos.readLatestCommit(dir).size();
+      point.peakHeapBytes = peakHeapBytes - baselineHeapBytes;
+    }
+    IOUtils.rm(path);
+
+    System.out.println("IndexerSweep: " + point);
+    results.put(point.key(), point);
+    return point;
+  }
+}
@@ -94,10 +94,26 @@ public class LineFileDocs implements Closeable {
   final boolean isBinary;
   private final ThreadLocal<ByteBuffer> nextDocs = new ThreadLocal<>();
   private final String[] months = DateFormatSymbols.getInstance(Locale.ROOT).getMonths();
+  // non-null if we serve docs already decoded into RAM instead of reading the line file:
+  private final DocCorpus corpus;
 
   public LineFileDocs(String path, boolean doRepeat, boolean storeBody, boolean tvsBody, boolean bodyPostingsOffsets,
                       boolean doClone, TaxonomyWriter taxoWriter, Map<String,Integer> facetFields,
                       FacetsConfig facetsConfig, boolean addDVFields) throws IOException {
+    this(path, null, doRepeat, storeBody, tvsBody, bodyPostingsOffsets, doClone, taxoWriter, facetFields, facetsConfig, addDVFields);
+  }
+
+  /** Serves docs from {@code corpus} instead of reading {@code path}; with {@code doRepeat} the corpus is cycled forever. */
+  public LineFileDocs(String path, DocCorpus corpus, boolean doRepeat, boolean storeBody, boolean tvsBody, boolean bodyPostingsOffsets,
+                      boolean doClone, TaxonomyWriter taxoWriter, Map<String,Integer> facetFields,
+                      FacetsConfig facetsConfig, boolean addDVFields) throws IOException {
+    if (corpus != null && facetFields.isEmpty() == false) {
+      throw new IllegalArgumentException("facet fields are not supported with a preloaded corpus");
+    }
+    if (corpus != null && corpus.size() == 0) {
+      throw new IllegalArgumentException("corpus has no docs");
+    }
+    this.corpus = corpus;
     this.path = path;
     this.isBinary = path.endsWith(".bin");
     this.storeBody = storeBody;
@@ -110,6 +126,12 @@ public class LineFileDocs implements Closeable {
     this.facetsConfig = facetsConfig;
     this.addDVFields = addDVFields;
     
+    if (corpus != null) {
+      // Threads read straight from the corpus:
+      readerThread = null;
+      return;
+    }
+
     open();
     readerThread = new Thread() {
         @Override
@@ -317,6 +339,8 @@ public class LineFileDocs implements Closeable {
     //final SimpleDateFormat dateParser = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
     final Calendar dateCal = Calendar.getInstance();
     final ParsePosition datePos = new ParsePosition(0);
+    // Only set when reading from a DocCorpus:
+    DocCorpus.Reader corpusReader;
 
     DocState(boolean storeBody, boolean tvsBody, boolean bodyPostingsOffsets, boolean addDVFields) {
       doc = new Document();
@@ -385,7 +409,11 @@ public class LineFileDocs implements Closeable {
   }
 
   public DocState newDocState() {
-    return new DocState(storeBody, tvsBody, bodyPostingsOffsets, addDVFields);
+    DocState state = new DocState(storeBody, tvsBody, bodyPostingsOffsets, addDVFields);
+    if (corpus != null) {
+      state.corpusReader = corpus.newReader();
+    }
+    return state;
   }
 
   // TODO: is there a pre-existing way to do this!!!
@@ -423,8 +451,27 @@ public class LineFileDocs implements Closeable {
     String line;
     String title;
     String body;
+    int myID;
     
-    if (isBinary) {
+    if (corpus != null) {
+      myID = nextID.getAndIncrement();
+      // myID goes negative if the counter overflows; without repeating, that is past the end too:
+      if ((myID >= corpus.size() || myID < 0) && doRepeat == false) {
+        return null;
+      }
+      DocCorpus.Reader corpusReader = doc.corpusReader;
+      corpusReader.read(Math.floorMod(myID, corpus.size()));
+      title = corpusReader.title;
+      body = corpusReader.body;
+      msecSinceEpoch = corpusReader.msecSinceEpoch;
+      timeSec = corpusReader.timeSec;
+      doc.date.setStringValue(corpusReader.date);
+      doc.dateCal.setTimeInMillis(msecSinceEpoch);
+
+      spot3 = 0;
+      line = null;
+
+    } else if (isBinary) {
 
       ByteBuffer buffer = nextDocs.get();
       if (buffer == null || buffer.position() == buffer.limit()) {
@@ -471,6 +518,7 @@ public class LineFileDocs implements Closeable {
 
       spot3 = 0;
       line = null;
+      myID = nextID.getAndIncrement();
       
     } else {
       Object o;
@@ -516,10 +564,9 @@ public class LineFileDocs implements Closeable {
       doc.dateCal.setTime(date);
       msecSinceEpoch = doc.dateCal.getTimeInMillis();
       timeSec = doc.dateCal.get(Calendar.HOUR_OF_DAY)*3600 + doc.dateCal.get(Calendar.MINUTE)*60 + doc.dateCal.get(Calendar.SECOND);
+      myID = nextID.getAndIncrement();
     }
 
-    final int myID = nextID.getAndIncrement();
-
     bytesIndexed.addAndGet(body.length() + title.length());
     doc.body.setStringValue(body);
     doc.title.setStringValue(title);
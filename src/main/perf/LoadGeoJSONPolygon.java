@@ -2,20 +2,51 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Locale;
 
 import org.apache.lucene.geo.Polygon;
 
-// ant jar; javac -cp build/core/classes/java /l/util/src/main/perf/LoadGeoJSONPolygon.java
+import perf.GeoPolygonReader;
 
-// java -cp build/core/classes/java:/l/util/src/main/perf LoadGeoJSONPolygon.java /l/BIGPolygon.mikemccand/cleveland.geojson
+// ant jar; javac -cp build/core/classes/java:/l/util/build /l/util/src/main/perf/LoadGeoJSONPolygon.java
+
+// java -cp build/core/classes/java:/l/util/build:/l/util/src/main/perf LoadGeoJSONPolygon /l/BIGPolygon.mikemccand/cleveland.geojson [-fromGeoJSON]
+
+// Streams every (multi-)polygon from a GeoJSON or poly file with perf.GeoPolygonReader; -fromGeoJSON instead loads the whole
+// file into a String and parses it with Polygon.fromGeoJSON, for comparison (single polygon files only)
 
 public class LoadGeoJSONPolygon {
   public static void main(String[] args) throws Exception {
-    byte[] encoded = Files.readAllBytes(Paths.get(args[0]));
-    String s = new String(encoded, StandardCharsets.UTF_8);
-    System.out.println("Polygon string is " + s.length() + " characters");
-    Polygon[] result = Polygon.fromGeoJSON(s);
-    System.out.println(result.length + " polygons:");
+    long t0 = System.nanoTime();
+    if (args.length > 1 && args[1].equals("-fromGeoJSON")) {
+      byte[] encoded = Files.readAllBytes(Paths.get(args[0]));
+      String s = new String(encoded, StandardCharsets.UTF_8);
+      System.out.println("Polygon string is " + s.length() + " characters");
+      Polygon[] result = Polygon.fromGeoJSON(s);
+      System.out.println(result.length + " polygons:");
+      printPolygons(result);
+    } else {
+      int featureCount = 0;
+      int polygonCount = 0;
+      int vertexCount = 0;
+      int skippedGeometryCount;
+      try (GeoPolygonReader reader = new GeoPolygonReader(Paths.get(args[0]))) {
+        Polygon[] result;
+        while ((result = reader.next()) != null) {
+          System.out.println(reader.name() + ": " + result.length + " polygons:");
+          featureCount++;
+          polygonCount += result.length;
+          vertexCount += printPolygons(result);
+        }
+        skippedGeometryCount = reader.skippedGeometryCount();
+      }
+      System.out.println(featureCount + " features; " + polygonCount + " polygons; " + vertexCount + " total vertices; " +
+                         skippedGeometryCount + " skipped non-polygon geometries");
+    }
+    System.out.println(String.format(Locale.ROOT, "%.1f msec", (System.nanoTime()-t0)/1000000.0));
+  }
+
+  private static int printPolygons(Polygon[] result) {
     int vertexCount = 0;
     for(Polygon polygon : result) {
       vertexCount += polygon.getPolyLats().length;
@@ -24,5 +55,6 @@ public class LoadGeoJSONPolygon {
       }
       System.out.println("  " + polygon.getPolyLats().length + " vertices; " + polygon.getHoles().length + " holes; " + vertexCount + " total vertices");
     }
+    return vertexCount;
   }
 }
@@ -0,0 +1,84 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.util.ArrayUtil;
+
+/** Timestamps (msec) after {@link #START}, with a Gaussian number of values (mean 11.6) per msec; one day is ~1B
+ *  values.  Used by Index1BNumbers and NumericRangeBench.
+ *
+ *  <p>Indexing threads claim whole blocks of {@link #BLOCK_MS} msec through an atomic cursor and fill a thread-private
+ *  buffer from them; each block draws its counts from its own Random, seeded by the block's index, so the values
+ *  don't depend on how many threads there are or which one claimed which block. */
+class MakeNumbers {
+
+  static final long START = 1397724815596L;
+
+  static final int BLOCK_MS = 1000;
+
+  /** One thread's buffer of values, ascending */
+  static final class Block {
+    long[] values = new long[BLOCK_MS * 16];
+    int count;
+  }
+
+  final long end;
+  private final long blockCount;
+  private final AtomicLong nextBlock = new AtomicLong();
+
+  public MakeNumbers() {
+    this(3600*24*1000);
+  }
+
+  public MakeNumbers(long durationMS) {
+    end = START + 2 + durationMS;
+    // values are in START+1 .. end-1:
+    blockCount = (end - START - 1 + BLOCK_MS - 1) / BLOCK_MS;
+  }
+
+  /** Fills block with the values of the next unclaimed block, returning false once all blocks are claimed */
+  public boolean next(Block block) {
+    final long blockID = nextBlock.getAndIncrement();
+    if (blockID >= blockCount) {
+      return false;
+    }
+    final Random random = new Random(17 ^ (blockID * 0x9E3779B97F4A7C15L));
+    final long msStart = START + 1 + blockID * BLOCK_MS;
+    final long msEnd = Math.min(msStart + BLOCK_MS, end);
+    long[] values = block.values;
+    int count = 0;
+    for(long ms=msStart;ms<msEnd;ms++) {
+      // 11.574074074074074 per msec
+      final int msCount = (int) Math.round(3 * random.nextGaussian() + 11.6);
+      if (msCount > 0) {
+        if (count + msCount > values.length) {
+          values = Arrays.copyOf(values, ArrayUtil.oversize(count + msCount, Long.BYTES));
+          block.values = values;
+        }
+        Arrays.fill(values, count, count + msCount, ms);
+        count += msCount;
+      }
+    }
+    block.count = count;
+    return true;
+  }
+}
@@ -0,0 +1,332 @@
+package perf;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexOrDocValuesQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.SortedNumericSortField;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+// Indexes the same timestamp stream as Index1BNumbers (see MakeNumbers) once per encoding -- LongPoint, SortedNumericDocValuesField,
+// both, and both on an index sorted by the timestamp -- and then runs range queries of controlled selectivity against each
+// across threads, reporting build time, index size and latency percentiles.  Indices that already exist under -indexPath are
+// reused.  The legacy trie encoding (LongField with a precStep) is still covered by Index1BNumbers/Search1B.
+
+// java -cp build/core/classes/java:build/analysis/common/classes/java:/l/util/build perf.NumericRangeBench -indexPath /l/indices/numbers -durationMS 86400000 -indexThreads 8 -searchThreads 8
+
+public class NumericRangeBench {
+
+  static final String FIELD = "timestamp";
+
+  /** How the timestamps are indexed, and how a range is queried against them */
+  enum Encoding {
+    POINTS("points", "points"),
+    DV("dv", "dv"),
+    BOTH("both", "both"),
+    SORTED_POINTS("sortedPoints", "sorted"),
+    SORTED_DV("sortedDV", "sorted");
+
+    final String cliName;
+    /** Encodings sharing an index name also share the index */
+    final String indexName;
+
+    Encoding(String cliName, String indexName) {
+      this.cliName = cliName;
+      this.indexName = indexName;
+    }
+
+    static Encoding forName(String name) {
+      for(Encoding encoding : values()) {
+        if (encoding.cliName.equals(name)) {
+          return encoding;
+        }
+      }
+      throw new IllegalArgumentException("unknown encoding \"" + name + "\"; must be one of points, dv, both, sortedPoints, sortedDV");
+    }
+
+    Query newRangeQuery(long min, long max) {
+      switch (this) {
+      case POINTS:
+      case SORTED_POINTS:
+        return LongPoint.newRangeQuery(FIELD, min, max);
+      case DV:
+      case SORTED_DV:
+        return SortedNumericDocValuesField.newSlowRangeQuery(FIELD, min, max);
+      case BOTH:
+        return new IndexOrDocValuesQuery(LongPoint.newRangeQuery(FIELD, min, max),
+                                         SortedNumericDocValuesField.newSlowRangeQuery(FIELD, min, max));
+      default:
+        throw new AssertionError();
+      }
+    }
+  }
+
+  public static void main(String[] clArgs) throws Exception {
+    Args args = new Args(clArgs);
+    final Path indexPath = Paths.get(args.getString("-indexPath"));
+    // one day is ~1B docs:
+    final long durationMS = Long.parseLong(args.getString("-durationMS", Long.toString(3600*24*1000)));
+    final int indexThreads = Integer.parseInt(args.getString("-indexThreads", "4"));
+    final int searchThreads = Integer.parseInt(args.getString("-searchThreads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+    final String[] encodingNames = args.getString("-encodings", "points,dv,both,sortedPoints,sortedDV").split(",");
+    final String[] selectivityStrings = args.getString("-selectivities", "0.0001,0.001,0.01,0.1,0.5").split(",");
+    final int queryCount = Integer.parseInt(args.getString("-queryCount", "50"));
+    final int iters = Integer.parseInt(args.getString("-iters", "5"));
+    args.check();
+
+    final List<Encoding> encodings = new ArrayList<>();
+    for(String name : encodingNames) {
+      encodings.add(Encoding.forName(name));
+    }
+    final double[] selectivities = new double[selectivityStrings.length];
+    for(int i=0;i<selectivities.length;i++) {
+      selectivities[i] = Double.parseDouble(selectivityStrings[i]);
+      if (selectivities[i] <= 0 || selectivities[i] > 1) {
+        throw new IllegalArgumentException("selectivity must be > 0 and <= 1; got " + selectivities[i]);
+      }
+    }
+
+    final long start = MakeNumbers.START;
+    final long end = new MakeNumbers(durationMS).end;
+
+    // Build (or reuse) each index once:
+    System.out.println(String.format(Locale.ROOT, "%-8s %12s %10s %10s %10s", "index", "docs", "build sec", "size MB", "bytes/doc"));
+    final Map<String,DirectoryReader> readers = new HashMap<>();
+    for(Encoding encoding : encodings) {
+      if (readers.containsKey(encoding.indexName)) {
+        continue;
+      }
+      Path path = indexPath.resolve(encoding.indexName);
+      if (Files.exists(path) == false) {
+        buildIndex(path, encoding.indexName, durationMS, indexThreads);
+      }
+      Directory dir = FSDirectory.open(path);
+      DirectoryReader r = DirectoryReader.open(dir);
+      readers.put(encoding.indexName, r);
+      long sizeBytes = 0;
+      for(String file : dir.listAll()) {
+        sizeBytes += dir.fileLength(file);
+      }
+      String buildSec = r.getIndexCommit().getUserData().get("buildSec");
+      System.out.println(String.format(Locale.ROOT, "%-8s %12d %10s %10.1f %10.2f",
+                                       encoding.indexName, r.maxDoc(), buildSec == null ? "?" : buildSec,
+                                       sizeBytes/1024./1024., ((double) sizeBytes)/r.maxDoc()));
+    }
+
+    // Same ranges for every encoding:
+    final long[][] mins = new long[selectivities.length][];
+    final long[][] maxs = new long[selectivities.length][];
+    final Random random = new Random(19);
+    for(int i=0;i<selectivities.length;i++) {
+      final long width = Math.max(1, (long) (selectivities[i] * (end - start)));
+      mins[i] = new long[queryCount];
+      maxs[i] = new long[queryCount];
+      for(int j=0;j<queryCount;j++) {
+        mins[i][j] = start + (long) (random.nextDouble() * (end - start - width));
+        maxs[i][j] = mins[i][j] + width - 1;
+      }
+    }
+    // hit count for each query, from the first encoding, to check the others:
+    final int[][] expectedHits = new int[selectivities.length][];
+
+    System.out.println(String.format(Locale.ROOT, "\n%d queries per selectivity, %d iters, %d search threads", queryCount, iters, searchThreads));
+    System.out.println(String.format(Locale.ROOT, "%-13s %8s %12s %9s %9s %9s %9s %9s",
+                                     "encoding", "select", "avg hits", "p50 ms", "p90 ms", "p99 ms", "max ms", "QPS"));
+    for(Encoding encoding : encodings) {
+      IndexSearcher s = new IndexSearcher(readers.get(encoding.indexName));
+      // don't bench the cache:
+      s.setQueryCache(null);
+      for(int i=0;i<selectivities.length;i++) {
+        Query[] queries = new Query[queryCount];
+        for(int j=0;j<queryCount;j++) {
+          queries[j] = encoding.newRangeQuery(mins[i][j], maxs[i][j]);
+        }
+        if (expectedHits[i] == null) {
+          expectedHits[i] = new int[queryCount];
+          for(int j=0;j<queryCount;j++) {
+            expectedHits[i][j] = s.count(queries[j]);
+          }
+        }
+
+        // warmup:
+        runQueries(s, queries, expectedHits[i], 1, searchThreads);
+        final long t0 = System.nanoTime();
+        final long[] latencies = runQueries(s, queries, expectedHits[i], iters, searchThreads);
+        final long elapsedNS = System.nanoTime() - t0;
+
+        long totHits = 0;
+        for(int hits : expectedHits[i]) {
+          totHits += hits;
+        }
+        Arrays.sort(latencies);
+        System.out.println(String.format(Locale.ROOT, "%-13s %8.4f %12d %9.2f %9.2f %9.2f %9.2f %9.1f",
+                                         encoding.cliName, selectivities[i], totHits/queryCount,
+                                         percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+                                         latencies[latencies.length-1]/1000000.,
+                                         latencies.length / (elapsedNS/1000000000.)));
+      }
+    }
+
+    for(DirectoryReader r : readers.values()) {
+      Directory dir = r.directory();
+      r.close();
+      dir.close();
+    }
+  }
+
+  private static void buildIndex(Path path, String indexName, long durationMS, int numThreads) throws Exception {
+    System.out.println("build " + indexName + " index at " + path + "...");
+    final boolean indexPoints = indexName.equals("dv") == false;
+    final boolean indexDocValues = indexName.equals("points") == false;
+
+    Directory dir = FSDirectory.open(path);
+    IndexWriterConfig iwc = new IndexWriterConfig(new StandardAnalyzer());
+    iwc.setRAMBufferSizeMB(512);
+    if (indexName.equals("sorted")) {
+      iwc.setIndexSort(new Sort(new SortedNumericSortField(FIELD, SortField.Type.LONG)));
+    }
+    final IndexWriter w = new IndexWriter(dir, iwc);
+
+    final MakeNumbers numbers = new MakeNumbers(durationMS);
+
+    final long startMS = System.currentTimeMillis();
+    final AtomicLong docsIndexed = new AtomicLong();
+    final AtomicBoolean failed = new AtomicBoolean();
+    Thread[] threads = new Thread[numThreads];
+    for(int i=0;i<numThreads;i++) {
+      threads[i] = new Thread() {
+          @Override
+          public void run() {
+
+            Document doc = new Document();
+            LongPoint pointField = new LongPoint(FIELD, 0L);
+            SortedNumericDocValuesField dvField = new SortedNumericDocValuesField(FIELD, 0L);
+            if (indexPoints) {
+              doc.add(pointField);
+            }
+            if (indexDocValues) {
+              doc.add(dvField);
+            }
+
+            MakeNumbers.Block block = new MakeNumbers.Block();
+            try {
+              while (numbers.next(block)) {
+                for(int upto=0;upto<block.count;upto++) {
+                  long v = block.values[upto];
+                  pointField.setLongValue(v);
+                  dvField.setLongValue(v);
+                  w.addDocument(doc);
+                }
+                long count = docsIndexed.addAndGet(block.count);
+                if (count / 10000000 != (count - block.count) / 10000000) {
+                  long ms = System.currentTimeMillis();
+                  System.out.println("  " + count + ": " + ((ms - startMS)/1000.0) + " sec; " + (numbers.end - block.values[block.count-1]) + " msec left");
+                }
+              }
+            } catch (Exception e) {
+              failed.set(true);
+              throw new RuntimeException(e);
+            }
+          }
+        };
+      threads[i].start();
+    }
+    for(int i=0;i<numThreads;i++) {
+      threads[i].join();
+    }
+    if (failed.get()) {
+      throw new RuntimeException("indexing thread failed");
+    }
+    Map<String,String> commitData = new HashMap<>();
+    commitData.put("buildSec", String.format(Locale.ROOT, "%.1f", (System.currentTimeMillis() - startMS)/1000.0));
+    w.setLiveCommitData(commitData.entrySet());
+    w.close();
+    dir.close();
+  }
+
+  /** Runs every query iters times across threads, checking hit counts, and returns each execution's latency in nanos */
+  private static long[] runQueries(final IndexSearcher s, final Query[] queries, final int[] expectedHits, int iters, int threadCount) throws InterruptedException {
+    final long[] latencies = new long[iters * queries.length];
+    final AtomicInteger nextTask = new AtomicInteger();
+    final AtomicBoolean failed = new AtomicBoolean();
+    Thread[] threads = new Thread[threadCount];
+    for(int t=0;t<threadCount;t++) {
+      threads[t] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              while (true) {
+                int task = nextTask.getAndIncrement();
+                if (task >= latencies.length) {
+                  break;
+                }
+                int queryIndex = task % queries.length;
+                long t0 = System.nanoTime();
+                int hits = s.count(queries[queryIndex]);
+                latencies[task] = System.nanoTime() - t0;
+                if (hits != expectedHits[queryIndex]) {
+                  throw new RuntimeException("query " + queries[queryIndex] + " got " + hits + " hits but expected " + expectedHits[queryIndex]);
+                }
+              }
+            } catch (Exception e) {
+              failed.set(true);
+              throw new RuntimeException(e);
+            }
+          }
+        };
+      threads[t].start();
+    }
+    for(Thread thread : threads) {
+      thread.join();
+    }
+    if (failed.get()) {
+      throw new RuntimeException("search thread failed");
+    }
+    return latencies;
+  }
+
+  /** In msec, from sorted latencies in nanos */
+  private static double percentile(long[] sortedLatencies, double p) {
+    return sortedLatencies[Math.min(sortedLatencies.length-1, (int) (p * sortedLatencies.length))] / 1000000.;
+  }
+}
@@ -0,0 +1,632 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package perf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.util.BytesRef;
+
+/** Faster ingest path for {@link IndexTaxis}: the block file is memory-mapped and its chunk offsets are found up front, so
+ *  each thread claims the next chunk with one atomic increment instead of taking a lock around a shared stream.  Each CSV
+ *  column gets a typed parser once, from the header, and values are parsed straight from the chunk's bytes into reused
+ *  fields.  Time spent copying chunks out of the map (read), parsing rows (parse) and in {@code IndexWriter} (index) is
+ *  reported separately. */
+class TaxiPipeline {
+
+  // Stay well under the 2 GB limit of a single mapping:
+  private static final long MAX_REGION_SIZE = 1L << 30;
+
+  private static final byte NEWLINE = (byte) '\n';
+  private static final byte COMMA = (byte) ',';
+
+  enum ColumnType {STRING, DATE, INT, DOUBLE}
+
+  static ColumnType getColumnType(String fieldName) {
+    switch(fieldName) {
+    case "vendor_id":
+    case "payment_type":
+    case "trip_type":
+    case "rate_code_id":
+    case "store_and_fwd_flag":
+      return ColumnType.STRING;
+    case "pickup_datetime":
+    case "dropoff_datetime":
+      return ColumnType.DATE;
+    case "passenger_count":
+      return ColumnType.INT;
+    case "trip_distance":
+    case "pickup_latitude":
+    case "pickup_longitude":
+    case "dropoff_latitude":
+    case "dropoff_longitude":
+    case "fare_amount":
+    case "surcharge":
+    case "mta_tax":
+    case "extra":
+    case "ehail_fee":
+    case "improvement_surcharge":
+    case "tip_amount":
+    case "tolls_amount":
+    case "total_amount":
+      return ColumnType.DOUBLE;
+    default:
+      throw new AssertionError("failed to handle field \"" + fieldName + "\"");
+    }
+  }
+
+  private final String[] fields;
+  private final ColumnType[] columnTypes;
+  private final MappedByteBuffer[] regions;
+  private final int[] chunkRegions;
+  private final int[] chunkOffsets;
+  private final int[] chunkLengths;
+  // where each chunk's bytes start in the file, so a bad row can be located:
+  private final long[] chunkFileOffsets;
+  private final int chunkCount;
+  private final AtomicInteger nextChunk = new AtomicInteger();
+
+  private final AtomicInteger docCounter = new AtomicInteger();
+  private final AtomicLong bytesCounter = new AtomicLong();
+  private final AtomicLong readNS = new AtomicLong();
+  private final AtomicLong parseNS = new AtomicLong();
+  private final AtomicLong indexNS = new AtomicLong();
+  private long startNS;
+
+  private TaxiPipeline(Path docsPath) throws IOException {
+    try (FileChannel channel = FileChannel.open(docsPath, StandardOpenOption.READ)) {
+      long size = channel.size();
+
+      // parse the header fields
+      ByteBuffer headerBuffer = ByteBuffer.allocate((int) Math.min(size, 65536));
+      channel.read(headerBuffer, 0);
+      int headerEnd = -1;
+      for(int i=0;i<headerBuffer.position();i++) {
+        if (headerBuffer.get(i) == NEWLINE) {
+          headerEnd = i;
+          break;
+        }
+      }
+      if (headerEnd == -1) {
+        throw new IllegalArgumentException("hit EOF while trying to read CSV header; are you sure you have the right CSV file!");
+      }
+      // this is OK because headers are all ascii:
+      fields = new String(headerBuffer.array(), 0, headerEnd, StandardCharsets.US_ASCII).split(",");
+      columnTypes = new ColumnType[fields.length];
+      for(int i=0;i<fields.length;i++) {
+        columnTypes[i] = getColumnType(fields[i]);
+      }
+
+      // Find all chunks, grouping them into regions that are each mapped once:
+      ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+      lengthBuffer.order(ByteOrder.LITTLE_ENDIAN);
+      List<Long> regionStarts = new ArrayList<>();
+      List<Long> regionEnds = new ArrayList<>();
+      int[] regionsOfChunks = new int[1024];
+      int[] offsets = new int[1024];
+      int[] lengths = new int[1024];
+      long[] fileOffsets = new long[1024];
+      int count = 0;
+      long pos = headerEnd+1;
+      long regionStart = pos;
+      while (pos < size) {
+        lengthBuffer.clear();
+        if (channel.read(lengthBuffer, pos) != Integer.BYTES) {
+          throw new IllegalArgumentException("truncated chunk header at file offset " + pos);
+        }
+        int length = lengthBuffer.getInt(0);
+        long end = pos + Integer.BYTES + length;
+        if (end > size) {
+          throw new IllegalArgumentException("chunk at file offset " + pos + " has length " + length + " but file size is " + size);
+        }
+        if (end - regionStart > MAX_REGION_SIZE) {
+          regionStarts.add(regionStart);
+          regionEnds.add(pos);
+          regionStart = pos;
+        }
+        if (count == offsets.length) {
+          regionsOfChunks = Arrays.copyOf(regionsOfChunks, 2*count);
+          offsets = Arrays.copyOf(offsets, 2*count);
+          lengths = Arrays.copyOf(lengths, 2*count);
+          fileOffsets = Arrays.copyOf(fileOffsets, 2*count);
+        }
+        regionsOfChunks[count] = regionStarts.size();
+        offsets[count] = (int) (pos + Integer.BYTES - regionStart);
+        lengths[count] = length;
+        fileOffsets[count] = pos + Integer.BYTES;
+        count++;
+        pos = end;
+      }
+      regionStarts.add(regionStart);
+      regionEnds.add(pos);
+
+      regions = new MappedByteBuffer[regionStarts.size()];
+      for(int i=0;i<regions.length;i++) {
+        regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, regionStarts.get(i), regionEnds.get(i) - regionStarts.get(i));
+      }
+      chunkRegions = regionsOfChunks;
+      chunkOffsets = offsets;
+      chunkLengths = lengths;
+      chunkFileOffsets = fileOffsets;
+      chunkCount = count;
+    }
+    System.out.println(String.format(Locale.ROOT, "TaxiPipeline: %d chunks in %d mapped regions; fields=%s",
+                                     chunkCount, regions.length, Arrays.toString(fields)));
+  }
+
+  /** Indexes all docs in the block file; returns true if any indexing thread failed. */
+  static boolean index(IndexWriter w, Path docsPath, int threadCount, boolean sparse) throws Exception {
+    TaxiPipeline pipeline = new TaxiPipeline(docsPath);
+    final AtomicBoolean failed = new AtomicBoolean();
+    Thread[] threads = new Thread[threadCount];
+    pipeline.startNS = System.nanoTime();
+    for(int i=0;i<threadCount;i++) {
+      threads[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              pipeline.new IndexThread(w, sparse).run();
+            } catch (Exception e) {
+              failed.set(true);
+              throw new RuntimeException(e);
+            }
+          }
+        };
+      threads[i].start();
+    }
+    for(int i=0;i<threadCount;i++) {
+      threads[i].join();
+    }
+    pipeline.printStats();
+    return failed.get();
+  }
+
+  private void printStats() {
+    double sec = (System.nanoTime() - startNS)/1000000000.0;
+    int docs = docCounter.get();
+    double mb = bytesCounter.get()/1024./1024.;
+    System.out.println(String.format(Locale.ROOT, "TaxiPipeline: %d docs, %.1f MB in %.1f sec; %.1f docs/sec; %.1f MB/sec",
+                                     docs, mb, sec, docs/sec, mb/sec));
+    // Per-stage rates are per thread-second spent in that stage:
+    printStage("read", readNS.get(), docs, mb);
+    printStage("parse", parseNS.get(), docs, mb);
+    printStage("index", indexNS.get(), docs, mb);
+  }
+
+  private static void printStage(String name, long ns, int docs, double mb) {
+    double sec = ns/1000000000.0;
+    System.out.println(String.format(Locale.ROOT, "  %s: %.1f thread-sec; %.1f docs/sec; %.1f MB/sec per thread",
+                                     name, sec, docs/sec, mb/sec));
+  }
+
+  /** One string value, as both the String for the indexed field and the bytes for doc values. */
+  private static final class StringValue {
+    final String string;
+    final BytesRef bytes;
+
+    StringValue(BytesRef bytes) {
+      this.bytes = bytes;
+      this.string = bytes.utf8ToString();
+    }
+  }
+
+  private final class IndexThread {
+    private final IndexWriter w;
+    private final Field[][] reuseFields = new Field[2][];
+    private final Field[][] reuseFields2 = new Field[2][];
+    private final Field cabColorField = new StringField("cab_color", "", Field.Store.NO);
+    private final Field cabColorDVField = new SortedDocValuesField("cab_color", new BytesRef());
+    private final BytesRef[] colorBytes = new BytesRef[] {new BytesRef("g"), new BytesRef("y")};
+    private final Document reuseDoc = new Document();
+    private final ByteBuffer[] views = new ByteBuffer[regions.length];
+
+    // String columns have few unique values, so we look them up instead of creating new Strings per doc:
+    private final List<Map<BytesRef,StringValue>> stringValues = new ArrayList<>();
+    private final BytesRef scratch = new BytesRef();
+
+    private byte[] chunk = new byte[1 << 18];
+    private long threadParseNS;
+
+    IndexThread(IndexWriter w, boolean sparse) {
+      this.w = w;
+      IndexTaxis.initReuseFields(fields, sparse, reuseFields, reuseFields2);
+      for(int i=0;i<regions.length;i++) {
+        views[i] = regions[i].duplicate();
+      }
+      for(int i=0;i<fields.length;i++) {
+        stringValues.add(new HashMap<BytesRef,StringValue>());
+      }
+    }
+
+    void run() throws IOException {
+      long threadReadNS = 0;
+      long threadTotalNS = 0;
+      while (true) {
+        int chunkID = nextChunk.getAndIncrement();
+        if (chunkID >= chunkCount) {
+          break;
+        }
+        long t0 = System.nanoTime();
+        int length = chunkLengths[chunkID];
+        if (chunk.length < length) {
+          chunk = new byte[length];
+        }
+        ByteBuffer view = views[chunkRegions[chunkID]];
+        view.position(chunkOffsets[chunkID]);
+        view.get(chunk, 0, length);
+        long t1 = System.nanoTime();
+        threadReadNS += t1-t0;
+        indexOneChunk(chunkID, length);
+        threadTotalNS += System.nanoTime()-t1;
+      }
+      readNS.addAndGet(threadReadNS);
+      parseNS.addAndGet(threadParseNS);
+      indexNS.addAndGet(threadTotalNS - threadParseNS);
+    }
+
+    private void indexOneChunk(final int chunkID, final int length) throws IOException {
+      if (chunk[length-1] != NEWLINE) {
+        throw new AssertionError();
+      }
+
+      w.addDocuments(new Iterable<Document>() {
+          @Override
+          public Iterator<Document> iterator() {
+            return new Iterator<Document>() {
+              private int i;
+              private Document nextDoc;
+              private boolean nextSet;
+
+              @Override
+              public boolean hasNext() {
+                if (nextSet == false) {
+                  long t0 = System.nanoTime();
+                  nextDoc = parseNextDoc();
+                  threadParseNS += System.nanoTime()-t0;
+                  nextSet = true;
+                }
+
+                return nextDoc != null;
+              }
+
+              @Override
+              public Document next() {
+                assert nextSet;
+                nextSet = false;
+                Document result = nextDoc;
+                nextDoc = null;
+                return result;
+              }
+
+              private Document parseNextDoc() {
+                reuseDoc.clear();
+                if (i == length) {
+                  return null;
+                }
+                int lineStart = i;
+                byte color = chunk[i++];
+                if (chunk[i++] != ':') {
+                  throw new IllegalArgumentException("expected ':' but saw '" + (char) chunk[i-1]);
+                }
+                int colorFieldIndex;
+                if (color == 'g') {
+                  colorFieldIndex = 0;
+                } else if (color == 'y') {
+                  colorFieldIndex = 1;
+                } else {
+                  throw new IllegalArgumentException("expected color 'g' or 'y' but got '" + (char) color + "'");
+                }
+                cabColorField.setStringValue(colorFieldIndex == 0 ? "g" : "y");
+                reuseDoc.add(cabColorField);
+                cabColorDVField.setBytesValue(colorBytes[colorFieldIndex]);
+                reuseDoc.add(cabColorDVField);
+
+                Field[] colorReuseFields = reuseFields[colorFieldIndex];
+                Field[] colorReuseFields2 = reuseFields2[colorFieldIndex];
+                int fieldUpto = 0;
+                int lastFieldStart = i;
+                while (true) {
+                  byte b = chunk[i];
+                  if (b == NEWLINE || b == COMMA) {
+                    if (i > lastFieldStart) {
+                      try {
+                        addOneField(fieldUpto, colorReuseFields[fieldUpto], colorReuseFields2[fieldUpto], lastFieldStart, i);
+                      } catch (IllegalArgumentException iae) {
+                        throw new IllegalArgumentException("could not parse column \"" + fields[fieldUpto] + "\" of the row at file offset " +
+                                                           (chunkFileOffsets[chunkID] + lineStart) + ": " + iae.getMessage(), iae);
+                      }
+                    }
+                    if (b == NEWLINE) {
+                      if (fieldUpto != colorReuseFields.length-1) {
+                        throw new AssertionError("fieldUpto=" + fieldUpto + " vs fields.length-1=" + (colorReuseFields.length-1));
+                      }
+                      i++;
+                      int x = docCounter.incrementAndGet();
+                      long y = bytesCounter.addAndGet(i - lineStart);
+                      if (x % 100000 == 0) {
+                        double sec = (System.nanoTime() - startNS)/1000000000.0;
+                        System.out.println(String.format(Locale.ROOT, "%.1f sec: %d docs; %.1f docs/sec; %.1f MB/sec", sec, x, x/sec, (y/1024./1024.)/sec));
+                      }
+                      return reuseDoc;
+                    }
+                    fieldUpto++;
+                    lastFieldStart = i+1;
+                  }
+                  i++;
+                }
+              }
+            };
+          }
+        });
+    }
+
+    private void addOneField(int column, Field reuseField, Field reuseField2, int start, int end) {
+      switch(columnTypes[column]) {
+      case STRING: {
+        scratch.bytes = chunk;
+        scratch.offset = start;
+        scratch.length = end-start;
+        Map<BytesRef,StringValue> values = stringValues.get(column);
+        StringValue value = values.get(scratch);
+        if (value == null) {
+          value = new StringValue(BytesRef.deepCopyOf(scratch));
+          values.put(value.bytes, value);
+        }
+        reuseField.setStringValue(value.string);
+        reuseDoc.add(reuseField);
+        reuseField2.setBytesValue(value.bytes);
+        reuseDoc.add(reuseField2);
+        break;
+      }
+      case DATE: {
+        long v = parseDate(chunk, start, end, reuseField.name());
+        reuseField.setLongValue(v);
+        reuseDoc.add(reuseField);
+        reuseField2.setLongValue(v);
+        reuseDoc.add(reuseField2);
+        break;
+      }
+      case INT: {
+        int v = parseInt(chunk, start, end);
+        reuseField.setIntValue(v);
+        reuseDoc.add(reuseField);
+        reuseField2.setLongValue(v);
+        reuseDoc.add(reuseField2);
+        break;
+      }
+      case DOUBLE: {
+        double v = parseDouble(chunk, start, end);
+        reuseField.setDoubleValue(v);
+        reuseDoc.add(reuseField);
+        reuseField2.setLongValue(Double.doubleToRawLongBits(v));
+        reuseDoc.add(reuseField2);
+        break;
+      }
+      default:
+        throw new AssertionError();
+      }
+    }
+  }
+
+  static int parseInt(byte[] bytes, int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && bytes[i] == '-') {
+      negative = true;
+      i++;
+    }
+    if (i == end) {
+      throw new NumberFormatException("could not parse \"" + new String(bytes, start, end-start, StandardCharsets.US_ASCII) + "\" as int");
+    }
+    int v = 0;
+    for(;i<end;i++) {
+      int digit = bytes[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new NumberFormatException("could not parse \"" + new String(bytes, start, end-start, StandardCharsets.US_ASCII) + "\" as int");
+      }
+      v = v*10 + digit;
+    }
+    return negative ? -v : v;
+  }
+
+  private static final double[] POWERS_OF_TEN = new double[23];
+  static {
+    POWERS_OF_TEN[0] = 1.0;
+    for(int i=1;i<POWERS_OF_TEN.length;i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i-1] * 10.0;
+    }
+  }
+
+  /** Parses plain decimals like {@code -73.981512} exactly as {@link Double#parseDouble} would: when the digits fit in 15
+   *  decimal digits, both the mantissa and the power of ten are exact doubles, so the one division is correctly rounded.
+   *  Anything else falls back to {@link Double#parseDouble}, so e.g. an empty value, {@code "."} or {@code "-"} throws
+   *  NumberFormatException. */
+  static double parseDouble(byte[] bytes, int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && bytes[i] == '-') {
+      negative = true;
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    boolean anyDigits = false;
+    int fractionDigits = -1;
+    for(;i<end;i++) {
+      byte b = bytes[i];
+      if (b == '.' && fractionDigits == -1) {
+        fractionDigits = 0;
+      } else if (b >= '0' && b <= '9') {
+        anyDigits = true;
+        mantissa = mantissa*10 + (b - '0');
+        if (mantissa != 0) {
+          digits++;
+        }
+        if (fractionDigits != -1) {
+          fractionDigits++;
+        }
+      } else {
+        digits = Integer.MAX_VALUE;
+        break;
+      }
+    }
+    if (anyDigits == false || digits > 15 || fractionDigits >= POWERS_OF_TEN.length) {
+      return Double.parseDouble(new String(bytes, start, end-start, StandardCharsets.US_ASCII));
+    }
+    double v = fractionDigits <= 0 ? mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+    return negative ? -v : v;
+  }
+
+  /** Same as {@link #parseDouble(byte[],int,int)}, for bytes read from a (e.g. memory-mapped) ByteBuffer.  Like
+   *  {@link Double#parseDouble}, an empty value or one without digits (e.g. {@code "."} or {@code "-"}) throws
+   *  NumberFormatException. */
+  static double parseDouble(ByteBuffer buffer, int start, int end) {
+    int i = start;
+    boolean negative = false;
+    if (i < end && buffer.get(i) == '-') {
+      negative = true;
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    boolean anyDigits = false;
+    int fractionDigits = -1;
+    for(;i<end;i++) {
+      byte b = buffer.get(i);
+      if (b == '.' && fractionDigits == -1) {
+        fractionDigits = 0;
+      } else if (b >= '0' && b <= '9') {
+        anyDigits = true;
+        mantissa = mantissa*10 + (b - '0');
+        if (mantissa != 0) {
+          digits++;
+        }
+        if (fractionDigits != -1) {
+          fractionDigits++;
+        }
+      } else {
+        digits = Integer.MAX_VALUE;
+        break;
+      }
+    }
+    if (anyDigits == false || digits > 15 || fractionDigits >= POWERS_OF_TEN.length) {
+      byte[] bytes = new byte[end-start];
+      for(int j=0;j<bytes.length;j++) {
+        bytes[j] = buffer.get(start+j);
+      }
+      return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+    }
+    double v = fractionDigits <= 0 ? mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+    return negative ? -v : v;
+  }
+
+  /** Parses {@code yyyy-MM-dd HH:mm:ss} (or with a 'T' instead of the space) to msec since the epoch, optionally followed
+   *  by fractional seconds (truncated to msec) and a zone: {@code Z}, {@code +HH}, {@code +HHmm} or {@code +HH:mm}.  Without
+   *  a zone it is UTC. */
+  static long parseDate(byte[] bytes, int start, int end, String fieldName) {
+    if (end - start < 19 ||
+        bytes[start+4] != '-' || bytes[start+7] != '-' || (bytes[start+10] != ' ' && bytes[start+10] != 'T') ||
+        bytes[start+13] != ':' || bytes[start+16] != ':') {
+      throw dateException(bytes, start, end, fieldName);
+    }
+    int year = parseInt(bytes, start, start+4);
+    int month = parseInt(bytes, start+5, start+7);
+    int day = parseInt(bytes, start+8, start+10);
+    int hour = parseInt(bytes, start+11, start+13);
+    int minute = parseInt(bytes, start+14, start+16);
+    int second = parseInt(bytes, start+17, start+19);
+
+    int i = start+19;
+    int millis = 0;
+    if (i < end && bytes[i] == '.') {
+      i++;
+      int fractionStart = i;
+      while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+        if (i - fractionStart < 3) {
+          millis = millis*10 + (bytes[i] - '0');
+        }
+        i++;
+      }
+      if (i == fractionStart) {
+        throw dateException(bytes, start, end, fieldName);
+      }
+      for(int j=i-fractionStart;j<3;j++) {
+        millis *= 10;
+      }
+    }
+    int offsetMinutes = 0;
+    if (i < end) {
+      byte sign = bytes[i];
+      int zoneLength = end - i - 1;
+      if (sign == 'Z' && zoneLength == 0) {
+        // UTC
+      } else if (sign == '+' || sign == '-') {
+        if (zoneLength == 2) {
+          // +HH
+        } else if (zoneLength == 4) {
+          offsetMinutes = parseInt(bytes, i+3, i+5);
+        } else if (zoneLength == 5 && bytes[i+3] == ':') {
+          offsetMinutes = parseInt(bytes, i+4, i+6);
+        } else {
+          throw dateException(bytes, start, end, fieldName);
+        }
+        offsetMinutes += parseInt(bytes, i+1, i+3)*60;
+        if (sign == '-') {
+          offsetMinutes = -offsetMinutes;
+        }
+      } else {
+        throw dateException(bytes, start, end, fieldName);
+      }
+    }
+
+    // Days since 1970-01-01 in the proleptic Gregorian calendar, counting years from March so the leap day is last:
+    int y = month <= 2 ? year-1 : year;
+    int era = (y >= 0 ? y : y-399) / 400;
+    int yearOfEra = y - era*400;
+    int dayOfYear = (153*(month + (month > 2 ? -3 : 9)) + 2)/5 + day-1;
+    int dayOfEra = yearOfEra*365 + yearOfEra/4 - yearOfEra/100 + dayOfYear;
+    long days = era*146097L + dayOfEra - 719468;
+
+    return ((days*24 + hour)*60 + minute - offsetMinutes)*60000L + second*1000L + millis;
+  }
+
+  private static IllegalArgumentException dateException(byte[] bytes, int start, int end, String fieldName) {
+    return new IllegalArgumentException("could not parse field \"" + fieldName + "\" as date: rawValue=" +
+                                        new String(bytes, start, end-start, StandardCharsets.US_ASCII));
+  }
+}
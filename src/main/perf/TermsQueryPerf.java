@@ -20,21 +20,30 @@ package perf;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiDocValues;
 import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.SerialMergeScheduler;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.index.TieredMergePolicy;
-import org.apache.lucene.queries.TermsQuery;
 import org.apache.lucene.search.AutomatonQuery;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocValuesTermsQuery;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.MultiTermQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermInSetQuery;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
@@ -42,36 +51,72 @@ import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.IOUtils;
 import org.apache.lucene.util.automaton.Automata;
 
-import java.math.BigInteger;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // TODO
 //   - sometimes mixin ids that don't exist
 
-// rm -rf /l/tmp/idsindex; pushd core; ant jar; popd; pushd queries; ant jar; popd; javac -cp build/core/lucene-core-6.0.0-SNAPSHOT.jar:build/analysis/common/lucene-analyzers-common-6.0.0-SNAPSHOT.jar:build/queries/lucene-queries-6.0.0-SNAPSHOT.jar /l/util/src/main/perf/TermsQueryPerf.java; java -Xmx1g -Xms1g -cp /l/util/src/main:build/core/lucene-core-6.0.0-SNAPSHOT.jar:build/analysis/common/lucene-analyzers-common-6.0.0-SNAPSHOT.jar:build/queries/lucene-queries-6.0.0-SNAPSHOT.jar perf.TermsQueryPerf /l/tmp/idsindex
+// Compares ways to filter by a large set of IDs: a union automaton, TermInSetQuery, a BooleanQuery of TermQuery, a doc
+// values set (DocValuesTermsQuery) and a points set (LongPoint.newSetQuery on each doc's sequence number).  For each set
+// size and strategy it reports query construction, rewrite and (multi-threaded) execution time, plus retained heap per query.
+// The index is built, with IDs from IDIterator, only if -indexPath does not exist yet.
 
-public class TermsQueryPerf {
-
-  // 100M:
-  static final int ID_INDEX_COUNT = 100000000;
-
-  // Make 10 queries, each searching a random 50K:
-  static final int ID_SEARCH_COUNT = 50000;
-  static final int NUM_QUERIES = 10;
+// java -Xmx4g -cp build/core/classes/java:build/analysis/common/classes/java:build/queries/classes/java:/l/util/build perf.TermsQueryPerf -indexPath /l/tmp/idsindex -idScheme random -setSizes 10000,100000,1000000 -threads 8
 
-  public static void main(String[] args) throws Exception {
+public class TermsQueryPerf {
 
-    List<BytesRef> lookupIDs = new ArrayList<>();
-    Random random = new Random(17);
-    double rate = 1.01 * ((double) NUM_QUERIES * ID_SEARCH_COUNT)/ID_INDEX_COUNT;
+  static final String[] STRATEGIES = new String[] {"automaton", "termInSet", "boolean", "docValues", "points"};
+
+  public static void main(String[] clArgs) throws Exception {
+    Args args = new Args(clArgs);
+    final Path indexPath = Paths.get(args.getString("-indexPath"));
+    final String idScheme = args.getString("-idScheme", "random");
+    final int idBase = Integer.parseInt(args.getString("-idBase", "10"));
+    // 100M:
+    final int docCount = Integer.parseInt(args.getString("-docCount", "100000000"));
+    final String[] setSizeStrings = args.getString("-setSizes", "10000,100000,1000000").split(",");
+    final String[] strategies = args.getString("-strategies", String.join(",", STRATEGIES)).split(",");
+    final int queryCount = Integer.parseInt(args.getString("-queryCount", "10"));
+    final int threadCount = Integer.parseInt(args.getString("-threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+    final int iters = Integer.parseInt(args.getString("-iters", "10"));
+    // larger sets skip the boolean strategy:
+    final int maxBooleanClauses = Integer.parseInt(args.getString("-maxBooleanClauses", "100000"));
+    args.check();
+
+    for(String strategy : strategies) {
+      if (Arrays.asList(STRATEGIES).contains(strategy) == false) {
+        throw new IllegalArgumentException("unknown strategy \"" + strategy + "\"; must be one of " + Arrays.toString(STRATEGIES));
+      }
+    }
+    final int[] setSizes = new int[setSizeStrings.length];
+    int maxSetSize = 0;
+    for(int i=0;i<setSizes.length;i++) {
+      setSizes[i] = Integer.parseInt(setSizeStrings[i]);
+      maxSetSize = Math.max(maxSetSize, setSizes[i]);
+    }
 
-    Path indexPath = Paths.get(args[0]);
+    // Queries take overlapping windows of a shuffled pool of IDs, twice the largest set size:
+    final int poolSize = 2 * maxSetSize;
+    if (poolSize > docCount) {
+      throw new IllegalArgumentException("-docCount " + docCount + " is too small for set size " + maxSetSize);
+    }
+    final List<BytesRef> poolIDs = new ArrayList<>();
+    final List<Long> poolSeqs = new ArrayList<>();
+    final Random random = new Random(17);
+    final double rate = 1.01 * ((double) poolSize)/docCount;
 
     boolean doIndex = Files.exists(indexPath) == false;
 
@@ -86,24 +131,29 @@ public class TermsQueryPerf {
       iwc.setUseCompoundFile(false);
 
       /// 7/7/7 segment structure:
-      iwc.setMaxBufferedDocs(ID_INDEX_COUNT/777);
+      iwc.setMaxBufferedDocs(docCount/777);
       iwc.setRAMBufferSizeMB(-1);
 
       ((TieredMergePolicy) iwc.getMergePolicy()).setFloorSegmentMB(.001);
       ((TieredMergePolicy) iwc.getMergePolicy()).setNoCFSRatio(0.0);
 
       IndexWriter w = new IndexWriter(dir, iwc);
-      // IDIterator ids = zeroPadSequentialIDs(10);
-      IDIterator ids = randomIDs(10, random);
+      IDIterator ids = IDIterator.forName(idScheme, idBase, docCount, random);
 
+      System.out.println("Index " + docCount + " " + idScheme + " ids, base " + idBase);
       BytesRef idValue = new BytesRef(64);
-      for(int i=0;i<ID_INDEX_COUNT;i++) {
+      for(int i=0;i<docCount;i++) {
         ids.next(idValue);
         Document doc = new Document();
         doc.add(new StringField("id", idValue, Field.Store.NO));
+        doc.add(new SortedDocValuesField("id", idValue));
+        // the points strategy filters on each doc's sequence number instead of its (maybe not numeric) id:
+        doc.add(new LongPoint("seq", i));
+        doc.add(new NumericDocValuesField("seq", i));
         w.addDocument(doc);
-        if (random.nextDouble() <= rate && lookupIDs.size() < NUM_QUERIES * ID_SEARCH_COUNT) {
-          lookupIDs.add(BytesRef.deepCopyOf(idValue));
+        if (random.nextDouble() <= rate && poolIDs.size() < poolSize) {
+          poolIDs.add(BytesRef.deepCopyOf(idValue));
+          poolSeqs.add((long) i);
         }
         if (i % 100000 == 0) {
           System.out.println(i + " docs...");
@@ -117,162 +167,201 @@ public class TermsQueryPerf {
     if (doIndex == false) {
       System.out.println("Build lookup ids");
       TermsEnum termsEnum = MultiFields.getTerms(r, "id").iterator();
+      PostingsEnum postings = null;
+      List<int[]> docIDs = new ArrayList<>();
       BytesRef idValue;
       while ((idValue = termsEnum.next()) != null) {
-        if (random.nextDouble() <= rate && lookupIDs.size() < NUM_QUERIES * ID_SEARCH_COUNT) {
-          lookupIDs.add(BytesRef.deepCopyOf(idValue));
-          //System.out.println("add: " + idValue);
+        if (random.nextDouble() <= rate && poolIDs.size() < poolSize) {
+          postings = termsEnum.postings(postings, PostingsEnum.NONE);
+          docIDs.add(new int[] {postings.nextDoc(), poolIDs.size()});
+          poolIDs.add(BytesRef.deepCopyOf(idValue));
+          poolSeqs.add(-1L);
         }
       }
-      shuffle(random, lookupIDs);
+
+      // Look up each sampled doc's sequence number in docID order, since doc values iterators only go forwards:
+      Collections.sort(docIDs, new Comparator<int[]>() {
+          @Override
+          public int compare(int[] a, int[] b) {
+            return Integer.compare(a[0], b[0]);
+          }
+        });
+      NumericDocValues seqs = MultiDocValues.getNumericValues(r, "seq");
+      for(int[] docAndIndex : docIDs) {
+        if (seqs.advanceExact(docAndIndex[0]) == false) {
+          throw new RuntimeException("doc " + docAndIndex[0] + " has no seq value");
+        }
+        poolSeqs.set(docAndIndex[1], seqs.longValue());
+      }
       System.out.println("Done build lookup ids");
     }
 
-    IndexSearcher s = new IndexSearcher(r);
-
-    if (lookupIDs.size() < NUM_QUERIES * ID_SEARCH_COUNT) {
-      throw new RuntimeException("didn't get enough lookup ids: " + (NUM_QUERIES * ID_SEARCH_COUNT) + " vs " + lookupIDs.size());
+    if (poolIDs.size() < poolSize) {
+      throw new RuntimeException("didn't get enough lookup ids: " + poolSize + " vs " + poolIDs.size());
     }
+    shuffle(random, poolIDs, poolSeqs);
 
-    List<Query> queries = new ArrayList<Query>();
-    for(int i=0;i<NUM_QUERIES;i++) {
-
-      List<BytesRef> sortedTermBytes = new ArrayList<>();
-      for(BytesRef term : lookupIDs.subList(i*ID_SEARCH_COUNT, (i+1)*ID_SEARCH_COUNT)) {
-        sortedTermBytes.add(term);
+    IndexSearcher s = new IndexSearcher(r);
+    // else we just measure the query cache:
+    s.setQueryCache(null);
+
+    BooleanQuery.setMaxClauseCount(Math.max(BooleanQuery.getMaxClauseCount(), maxBooleanClauses));
+
+    System.out.println(String.format(Locale.ROOT, "\n%d docs, %d segments; %d queries per set, %d search threads; best of %d iters",
+                                     r.maxDoc(), r.leaves().size(), queryCount, threadCount, iters));
+    System.out.println(String.format(Locale.ROOT, "%-10s %8s %12s %12s %12s %10s %12s",
+                                     "strategy", "setSize", "build ms", "rewrite ms", "search ms", "QPS", "heap MB/q"));
+
+    for(int setSize : setSizes) {
+      final int stride = queryCount == 1 ? 0 : (poolSize - setSize) / (queryCount - 1);
+      final List<List<BytesRef>> setIDs = new ArrayList<>();
+      final List<long[]> setSeqs = new ArrayList<>();
+      for(int i=0;i<queryCount;i++) {
+        setIDs.add(poolIDs.subList(i*stride, i*stride+setSize));
+        long[] seqs = new long[setSize];
+        for(int j=0;j<setSize;j++) {
+          seqs[j] = poolSeqs.get(i*stride+j);
+        }
+        setSeqs.add(seqs);
       }
-      Collections.sort(sortedTermBytes);
-
-      // nocommit only do this if term count is high enough?
-      // nocommit: we can be more efficient here, go straight to binary:
-      Query query = new AutomatonQuery(new Term("id", "manyterms"),
-                                       Automata.makeStringUnion(sortedTermBytes));
-      //((MultiTermQuery) query).setRewriteMethod(MultiTermQuery.CONSTANT_SCORE_REWRITE);
-      //Query query = new TermsQuery("id", lookupIDs.subList(i*ID_SEARCH_COUNT, (i+1)*ID_SEARCH_COUNT));
-      queries.add(query);
-    }
 
-    // TODO: also include construction time of queries
-    long best = Long.MAX_VALUE;
-    for(int iter=0;iter<100;iter++) {
-      long t0 = System.nanoTime();
-      long totCount = 0;
-      for(int i=0;i<NUM_QUERIES;i++) {
-        //Query query = new TermsQuery("id", lookupIDs.subList(i*ID_SEARCH_COUNT, (i+1)*ID_SEARCH_COUNT));
-        Query query = queries.get(i);
-        totCount += s.search(query, 10).totalHits;
-      }
-      if (totCount != NUM_QUERIES * ID_SEARCH_COUNT) {
-        throw new RuntimeException("totCount=" + totCount + " but expected " + (NUM_QUERIES * ID_SEARCH_COUNT));
-      }
-      long t = System.nanoTime() - t0;
-      System.out.println("ITER: " + iter + ": " + (t/1000000.) + " msec");
-      if (t < best) {
-        System.out.println("  **");
-        best = t;
+      for(String strategy : strategies) {
+        if (strategy.equals("boolean") && setSize > maxBooleanClauses) {
+          System.out.println(String.format(Locale.ROOT, "%-10s %8d   skipped: more than -maxBooleanClauses %d", strategy, setSize, maxBooleanClauses));
+          continue;
+        }
+
+        final double heapMBPerQuery = measureHeap(strategy, setIDs, setSeqs) / 1024. / 1024. / queryCount;
+
+        long bestBuild = Long.MAX_VALUE;
+        long bestRewrite = Long.MAX_VALUE;
+        long bestSearch = Long.MAX_VALUE;
+        for(int iter=0;iter<iters;iter++) {
+          long t0 = System.nanoTime();
+          Query[] queries = buildQueries(strategy, setIDs, setSeqs);
+          long t1 = System.nanoTime();
+          for(int i=0;i<queries.length;i++) {
+            queries[i] = s.rewrite(queries[i]);
+          }
+          long t2 = System.nanoTime();
+          search(s, queries, setSize, threadCount);
+          long t3 = System.nanoTime();
+          bestBuild = Math.min(bestBuild, t1-t0);
+          bestRewrite = Math.min(bestRewrite, t2-t1);
+          bestSearch = Math.min(bestSearch, t3-t2);
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%-10s %8d %12.2f %12.2f %12.2f %10.1f %12.2f",
+                                         strategy, setSize,
+                                         bestBuild/1000000., bestRewrite/1000000., bestSearch/1000000.,
+                                         queryCount / (bestSearch/1000000000.),
+                                         heapMBPerQuery));
       }
     }
 
     IOUtils.close(r, dir);
   }
 
-  private static long[] topBitByBase = new long[257];
-  static {
-    BigInteger x = new BigInteger(1, new byte[] {(byte) 0x80, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00});
-    for(int base=2;base<257;base++) {
-      topBitByBase[base] = x.divide(BigInteger.valueOf(base)).longValue();
-      //System.out.println("  base=" + base + " div=" + topBitByBase[base]);
+  private static Query[] buildQueries(String strategy, List<List<BytesRef>> setIDs, List<long[]> setSeqs) {
+    Query[] queries = new Query[setIDs.size()];
+    for(int i=0;i<queries.length;i++) {
+      queries[i] = buildQuery(strategy, setIDs.get(i), setSeqs.get(i));
     }
+    return queries;
   }
 
-  // bytes must already be grown big enough!
-  private static void longToBytesRef(long value, BytesRef bytes, int base) {
-    //System.out.println("valueStart=" + value);
-    boolean topBit = value < 0;
-    value = value & 0x7fffffffffffffffL;
-    //System.out.println("  topBit=" + topBit + " valueNow=" + value);
-    long valueStart = value;
-    bytes.length = 0;
-    while (value != 0) {
-      bytes.bytes[bytes.length++] = (byte) (value % base);
-      value = value / base;
-      if (topBit && bytes.length == 1) {
-        value += topBitByBase[base];
+  private static Query buildQuery(String strategy, List<BytesRef> ids, long[] seqs) {
+    switch (strategy) {
+    case "automaton":
+      {
+        List<BytesRef> sortedTermBytes = new ArrayList<>(ids);
+        Collections.sort(sortedTermBytes);
+        return new AutomatonQuery(new Term("id", "manyterms"), Automata.makeStringUnion(sortedTermBytes));
+      }
+    case "termInSet":
+      return new TermInSetQuery("id", ids);
+    case "boolean":
+      {
+        BooleanQuery.Builder b = new BooleanQuery.Builder();
+        for(BytesRef id : ids) {
+          b.add(new TermQuery(new Term("id", id)), BooleanClause.Occur.SHOULD);
+        }
+        // constant score, like the other strategies:
+        return new ConstantScoreQuery(b.build());
       }
+    case "docValues":
+      return new DocValuesTermsQuery("id", ids);
+    case "points":
+      return LongPoint.newSetQuery("seq", seqs.clone());
+    default:
+      throw new AssertionError();
     }
+  }
 
-    // Reverse in place
-    for(int i=0;i<bytes.length/2;i++) {
-      byte x = bytes.bytes[i];
-      bytes.bytes[i] = bytes.bytes[bytes.length-i-1];
-      bytes.bytes[bytes.length-i-1] = x;
+  /** Returns how many more heap bytes are in use once all queries are built and held */
+  private static long measureHeap(String strategy, List<List<BytesRef>> setIDs, List<long[]> setSeqs) {
+    MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    System.gc();
+    System.gc();
+    long before = memoryBean.getHeapMemoryUsage().getUsed();
+    Query[] queries = buildQueries(strategy, setIDs, setSeqs);
+    System.gc();
+    System.gc();
+    long after = memoryBean.getHeapMemoryUsage().getUsed();
+    if (queries.length != setIDs.size()) {
+      // keeps queries reachable until we've measured
+      throw new AssertionError();
     }
-    //System.out.println(valueStart + " -> " + bytes);
+    return after - before;
   }
 
-  // bytes must already be grown big enough!
-  private static void longToBytesRef(long value, BytesRef bytes, int base, int zeroPadDigits) {
-    boolean topBit = value < 0;
-    value = value & 0x7fffffffffffffffL;
-    int downTo = zeroPadDigits-1;
-    while (value != 0) {
-      bytes.bytes[downTo--] = (byte) (value % base);
-      value = value / base;
-      if (topBit && downTo == zeroPadDigits-2) {
-        value += topBitByBase[base];
-      }
+  /** Runs all queries once, spread across threads, and verifies each matches exactly its set */
+  private static void search(final IndexSearcher s, final Query[] queries, final int expectedCount, int threadCount) throws InterruptedException {
+    final AtomicInteger nextQuery = new AtomicInteger();
+    final AtomicBoolean failed = new AtomicBoolean();
+    Thread[] threads = new Thread[threadCount];
+    for(int t=0;t<threadCount;t++) {
+      threads[t] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              while (true) {
+                int i = nextQuery.getAndIncrement();
+                if (i >= queries.length) {
+                  break;
+                }
+                int count = s.count(queries[i]);
+                if (count != expectedCount) {
+                  throw new RuntimeException("count=" + count + " but expected " + expectedCount + " for query " + i);
+                }
+              }
+            } catch (Exception e) {
+              failed.set(true);
+              throw new RuntimeException(e);
+            }
+          }
+        };
+      threads[t].start();
     }
-    while (downTo >= 0) {
-      bytes.bytes[downTo--] = 0;
+    for(Thread thread : threads) {
+      thread.join();
     }
-
-    bytes.length = zeroPadDigits;
-  }
-
-  /** Generates IDs forever */
-  private static abstract class IDIterator {
-    public abstract void next(BytesRef result);
-  }
-
-  /** 0000, 0001, 0002, ... */
-  private static IDIterator zeroPadSequentialIDs(final int base) {
-    final int zeroPadDigits = getZeroPadDigits(base, ID_INDEX_COUNT-1);
-    return new IDIterator() {
-      int counter = 0;
-      @Override
-      public void next(BytesRef result) {
-        longToBytesRef(counter++, result, base, zeroPadDigits);
-      }
-    };
-  }
-
-  private static IDIterator randomIDs(final int base, final Random random) {
-    return new IDIterator() {
-      @Override
-      public void next(BytesRef result) {
-        longToBytesRef(random.nextLong() & Long.MAX_VALUE, result, base);
-      }
-    };
-    
-  }
-
-  private static int getZeroPadDigits(int base, long maxValue) {
-    int count = 0;
-    while (maxValue != 0) {
-      count++;
-      maxValue = maxValue / base;
+    if (failed.get()) {
+      throw new RuntimeException("search thread failed");
     }
-    return count;
   }
 
-  /** Fisher–Yates shuffle */
-  private static void shuffle(Random random, List<BytesRef> ids) {
+  /** Fisher–Yates shuffle, of two parallel lists */
+  private static void shuffle(Random random, List<BytesRef> ids, List<Long> seqs) {
     for (int i=ids.size() - 1; i > 0;i--) {
       int index = random.nextInt(i + 1);
       // swap
       BytesRef a = ids.get(index);
       ids.set(index, ids.get(i));
       ids.set(i, a);
+      Long b = seqs.get(index);
+      seqs.set(index, seqs.get(i));
+      seqs.set(i, b);
     }
   }
 }
@@ -18,157 +18,300 @@ package perf;
  */
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.CharArraySet;
-import org.apache.lucene.analysis.LowerCaseFilter;
 import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.Tokenizer;
-import org.apache.lucene.analysis.core.WhitespaceTokenizer;
-import org.apache.lucene.analysis.miscellaneous.WordDelimiterFilter;
-import org.apache.lucene.analysis.ngram.EdgeNGramTokenFilter;
-import org.apache.lucene.analysis.shingle.ShingleFilter;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.custom.CustomAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.util.ArrayUtil;
-import org.apache.lucene.util.Version;
 
 import java.io.BufferedReader;
-import java.io.Closeable;
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
-import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 // TODO
 //   - back-test
 
-// javac -d /l/util/build -cp build/core/classes/java:build/analysis/common/classes/java /l/util/src/main/perf/TestAnalyzerPerf.java; java -cp /l/util/build:build/core/classes/java:build/analysis/common/classes/java perf.TestAnalyzerPerf /lucenedata/enwiki/enwiki-20130102-lines.txt
+// javac -d /l/util/build -cp build/core/classes/java:build/analysis/common/classes/java /l/util/src/main/perf/TestAnalyzerPerf.java; java -cp /l/util/build:build/core/classes/java:build/analysis/common/classes/java perf.TestAnalyzerPerf /lucenedata/enwiki/enwiki-20130102-lines.txt -threads 4
 
+/** Measures analysis throughput on N threads over a pre-loaded slice of a line file, and attributes the cost to each stage of
+ *  the chain by running it incrementally: the tokenizer alone, then the tokenizer plus the first filter, and so on, so each
+ *  stage's cost is its delta over the previous prefix.  Chains are given as SPI names with optional parameters, e.g.
+ *  {@code -chain "whitespace,lowercase,edgeNGram(minGramSize=1,maxGramSize=3)"}; without -chain, the Standard, LowerCase,
+ *  EdgeNGrams, Shingles and WordDelimiterFilter chains are run.  Each thread reuses its TokenStream (the analyzer's default
+ *  per-thread reuse), and CPU time and allocated bytes are summed over the threads. */
 public class TestAnalyzerPerf {
 
-  private static void testAnalyzer(String desc, File wikiLinesFile, Analyzer a) throws Exception {
-    testAnalyzer(desc, wikiLinesFile, a, 10000, 100000);
-  }
-
-  private static void testAnalyzer(String desc, File wikiLinesFile, Analyzer a, int warmupCount, int runCount) throws Exception {
-    System.out.println("\nTEST: " + desc);
+  private static final com.sun.management.ThreadMXBean THREAD_BEAN = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
 
-    // 64 KB buffer
-    InputStream is = new FileInputStream(wikiLinesFile);
-    BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"), 1 << 16);
+  // Docs a thread claims at once:
+  private static final int CHUNK = 100;
 
-    long startTime = System.currentTimeMillis();
-    long sumTime = 0;
-    long hash = 0;
-    long tokenCount = 0;
-    int totCount = warmupCount + runCount;
-    for (int i=0;i<totCount;i++) {
+  /** One tokenizer or token filter, by SPI name */
+  private static class Stage {
+    final String name;
+    final Map<String,String> params;
 
-      boolean isWarmup = i < warmupCount;
+    Stage(String name, Map<String,String> params) {
+      this.name = name;
+      this.params = params;
+    }
 
-      if (i % 10000 == 0) {
-        System.out.println(String.format(Locale.ROOT, "%.1f sec: %d...", (System.currentTimeMillis()-startTime)/1000.0, i));
-      }
-      String s = reader.readLine();
-      long t0 = System.nanoTime();
-      TokenStream ts = a.tokenStream("field", new StringReader(s));
-      ts.reset();
-
-      CharTermAttribute termAtt = ts.getAttribute(CharTermAttribute.class);
-      PositionIncrementAttribute posIncAtt;
-      if (ts.hasAttribute(PositionIncrementAttribute.class)) {
-        posIncAtt = ts.getAttribute(PositionIncrementAttribute.class);
-      } else {
-        posIncAtt = null;
-      }
-      OffsetAttribute offsetAtt;
-      if (ts.hasAttribute(OffsetAttribute.class)) {
-        offsetAtt = ts.getAttribute(OffsetAttribute.class);
-      } else {
-        offsetAtt = null;
-      }
+    @Override
+    public String toString() {
+      return params.isEmpty() ? name : name + params;
+    }
+  }
 
-      while (ts.incrementToken()) {
-        hash += 31 * ArrayUtil.hashCode(termAtt.buffer(), 0, termAtt.length());
-        if (posIncAtt != null) {
-          hash += 31 * posIncAtt.getPositionIncrement();
-        }
-        if (offsetAtt != null) {
-          hash += 31 * offsetAtt.startOffset();
-          hash += 31 * offsetAtt.endOffset();
-        }
-        if (isWarmup == false) {
-          tokenCount++;
+  /** Parses "tokenizer,filter1(key=value,key2=value2),filter2" */
+  private static List<Stage> parseChain(String chain) {
+    List<Stage> stages = new ArrayList<>();
+    int depth = 0;
+    int start = 0;
+    for(int i=0;i<=chain.length();i++) {
+      char c = i == chain.length() ? ',' : chain.charAt(i);
+      if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+      } else if (c == ',' && depth == 0) {
+        String spec = chain.substring(start, i).trim();
+        start = i+1;
+        Map<String,String> params = new LinkedHashMap<>();
+        int paren = spec.indexOf('(');
+        String name = spec;
+        if (paren != -1) {
+          if (spec.endsWith(")") == false) {
+            throw new IllegalArgumentException("missing ) in chain stage \"" + spec + "\"");
+          }
+          name = spec.substring(0, paren).trim();
+          for(String param : spec.substring(paren+1, spec.length()-1).split(",")) {
+            int eq = param.indexOf('=');
+            if (eq == -1) {
+              throw new IllegalArgumentException("parameter \"" + param + "\" in chain stage \"" + spec + "\" must be key=value");
+            }
+            params.put(param.substring(0, eq).trim(), param.substring(eq+1).trim());
+          }
         }
+        stages.add(new Stage(name, params));
       }
-      ts.end();
-      ts.close();
+    }
+    return stages;
+  }
 
-      if (isWarmup == false) {
-        sumTime += System.nanoTime() - t0;
-      }
+  /** Tokenizer plus the first {@code filterCount} filters of the chain */
+  private static Analyzer buildPrefix(List<Stage> stages, int filterCount) throws IOException {
+    CustomAnalyzer.Builder builder = CustomAnalyzer.builder().withTokenizer(stages.get(0).name, new HashMap<>(stages.get(0).params));
+    for(int i=1;i<=filterCount;i++) {
+      builder.addTokenFilter(stages.get(i).name, new HashMap<>(stages.get(i).params));
     }
-    reader.close();
+    return builder.build();
+  }
 
-    System.out.println(String.format(Locale.ROOT,
-                                     "%s time=%.2f msec hash=%d tokens=%d",
-                                     desc, (sumTime/1000000.0), hash, tokenCount));
+  /** Totals of one pass over the corpus, summed across threads */
+  private static class Pass {
+    long wallNS;
+    long cpuNS;
+    long allocatedBytes;
+    long tokenCount;
+    long hash;
   }
 
-  private static class LowerCaseAnalyzer extends Analyzer {
-    @Override
-    protected TokenStreamComponents createComponents(String fieldName) {
-      Tokenizer src = new WhitespaceTokenizer();
-      TokenStream tok = new LowerCaseFilter(src);
-      return new TokenStreamComponents(src, tok);
+  private static Pass runPass(final Analyzer a, final String[] docs, int threadCount) throws InterruptedException {
+    final CountDownLatch startingGun = new CountDownLatch(1);
+    final AtomicInteger nextDoc = new AtomicInteger();
+    final AtomicLong cpuNS = new AtomicLong();
+    final AtomicLong allocatedBytes = new AtomicLong();
+    final AtomicLong tokenCount = new AtomicLong();
+    final AtomicLong hash = new AtomicLong();
+    final AtomicBoolean failed = new AtomicBoolean();
+    Thread[] threads = new Thread[threadCount];
+    for(int t=0;t<threadCount;t++) {
+      threads[t] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              _run();
+            } catch (Exception e) {
+              failed.set(true);
+              throw new RuntimeException(e);
+            }
+          }
+
+          private void _run() throws Exception {
+            startingGun.await();
+            long threadID = Thread.currentThread().getId();
+            long cpu0 = THREAD_BEAN.getCurrentThreadCpuTime();
+            long alloc0 = THREAD_BEAN.getThreadAllocatedBytes(threadID);
+            long myHash = 0;
+            long myTokenCount = 0;
+            while (true) {
+              int start = nextDoc.getAndAdd(CHUNK);
+              if (start >= docs.length) {
+                break;
+              }
+              int end = Math.min(docs.length, start + CHUNK);
+              for(int i=start;i<end;i++) {
+                // reuses this thread's TokenStream:
+                TokenStream ts = a.tokenStream("field", docs[i]);
+                ts.reset();
+
+                CharTermAttribute termAtt = ts.getAttribute(CharTermAttribute.class);
+                PositionIncrementAttribute posIncAtt;
+                if (ts.hasAttribute(PositionIncrementAttribute.class)) {
+                  posIncAtt = ts.getAttribute(PositionIncrementAttribute.class);
+                } else {
+                  posIncAtt = null;
+                }
+                OffsetAttribute offsetAtt;
+                if (ts.hasAttribute(OffsetAttribute.class)) {
+                  offsetAtt = ts.getAttribute(OffsetAttribute.class);
+                } else {
+                  offsetAtt = null;
+                }
+
+                while (ts.incrementToken()) {
+                  myHash += 31 * ArrayUtil.hashCode(termAtt.buffer(), 0, termAtt.length());
+                  if (posIncAtt != null) {
+                    myHash += 31 * posIncAtt.getPositionIncrement();
+                  }
+                  if (offsetAtt != null) {
+                    myHash += 31 * offsetAtt.startOffset();
+                    myHash += 31 * offsetAtt.endOffset();
+                  }
+                  myTokenCount++;
+                }
+                ts.end();
+                ts.close();
+              }
+            }
+            cpuNS.addAndGet(THREAD_BEAN.getCurrentThreadCpuTime() - cpu0);
+            allocatedBytes.addAndGet(THREAD_BEAN.getThreadAllocatedBytes(threadID) - alloc0);
+            tokenCount.addAndGet(myTokenCount);
+            hash.addAndGet(myHash);
+          }
+        };
+      threads[t].start();
+    }
+    long t0 = System.nanoTime();
+    startingGun.countDown();
+    for(Thread thread : threads) {
+      thread.join();
+    }
+    if (failed.get()) {
+      throw new RuntimeException("analysis thread failed");
     }
+    Pass pass = new Pass();
+    pass.wallNS = System.nanoTime() - t0;
+    pass.cpuNS = cpuNS.get();
+    pass.allocatedBytes = allocatedBytes.get();
+    pass.tokenCount = tokenCount.get();
+    pass.hash = hash.get();
+    return pass;
   }
 
-  private static class EdgeNGramsAnalyzer extends Analyzer {
-    @Override
-    protected TokenStreamComponents createComponents(String fieldName) {
-      Tokenizer src = new WhitespaceTokenizer();
-      TokenStream tok = new EdgeNGramTokenFilter(src, 1, 3);
-      return new TokenStreamComponents(src, tok);
+  private static void testAnalyzer(String desc, String chain, String[] docs, int threadCount, int iters) throws Exception {
+    List<Stage> stages = parseChain(chain);
+    System.out.println("\nTEST: " + desc + " [" + chain + "] threads=" + threadCount + " docs=" + docs.length);
+    System.out.println(String.format(Locale.ROOT, "%-40s %12s %10s %10s %10s %10s %8s %12s %12s",
+                                     "stage", "tokens", "wallMS", "K tok/sec", "cpuMS", "+cpuMS", "share", "bytes/token", "+bytes/doc"));
+
+    // best (lowest CPU) pass of each prefix:
+    Pass[] best = new Pass[stages.size()];
+    for(int filterCount=0;filterCount<stages.size();filterCount++) {
+      try (Analyzer a = buildPrefix(stages, filterCount)) {
+        // first pass is warmup:
+        for(int iter=0;iter<=iters;iter++) {
+          Pass pass = runPass(a, docs, threadCount);
+          if (iter > 0 && (best[filterCount] == null || pass.cpuNS < best[filterCount].cpuNS)) {
+            best[filterCount] = pass;
+          }
+        }
+      }
     }
-  }
 
-  private static class ShinglesAnalyzer extends Analyzer {
-    @Override
-    protected TokenStreamComponents createComponents(String fieldName) {
-      Tokenizer src = new WhitespaceTokenizer();
-      //TokenStream tok = new ShingleFilter(src, 2, 2);
-      TokenStream tok = new ShingleFilter(src, 2, 2);
-      return new TokenStreamComponents(src, tok);
+    long totalCPU = best[stages.size()-1].cpuNS;
+    for(int i=0;i<stages.size();i++) {
+      Pass pass = best[i];
+      long deltaCPU = i == 0 ? pass.cpuNS : pass.cpuNS - best[i-1].cpuNS;
+      long deltaBytes = i == 0 ? pass.allocatedBytes : pass.allocatedBytes - best[i-1].allocatedBytes;
+      System.out.println(String.format(Locale.ROOT, "%-40s %12d %10.1f %10.1f %10.1f %10.1f %7.1f%% %12.1f %12.1f",
+                                       (i == 0 ? "" : "+") + stages.get(i), pass.tokenCount, pass.wallNS/1000000.0,
+                                       pass.tokenCount / (pass.wallNS/1000000.0), pass.cpuNS/1000000.0, deltaCPU/1000000.0,
+                                       100.0 * deltaCPU / totalCPU, (double) pass.allocatedBytes / Math.max(1, pass.tokenCount),
+                                       (double) deltaBytes / docs.length));
     }
+    System.out.println("hash=" + best[stages.size()-1].hash);
   }
 
-  private static class WDFAnalyzer extends Analyzer {
-    @Override
-    protected TokenStreamComponents createComponents(String fieldName) {
-      Tokenizer src = new WhitespaceTokenizer();
-      int flags = 0;
-      flags |= WordDelimiterFilter.GENERATE_WORD_PARTS;
-      flags |= WordDelimiterFilter.GENERATE_NUMBER_PARTS;
-      flags |= WordDelimiterFilter.SPLIT_ON_CASE_CHANGE;
-      flags |= WordDelimiterFilter.SPLIT_ON_NUMERICS;
-      flags |= WordDelimiterFilter.STEM_ENGLISH_POSSESSIVE;
-      TokenStream tok = new WordDelimiterFilter(src, flags, null);
-      return new TokenStreamComponents(src, tok);
+  private static String[] loadDocs(String lineFile, int docCount) throws IOException {
+    List<String> docs = new ArrayList<>();
+    // 64 KB buffer
+    InputStream is = new FileInputStream(lineFile);
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"), 1 << 16)) {
+      String line;
+      while (docs.size() < docCount && (line = reader.readLine()) != null) {
+        docs.add(line);
+      }
     }
+    return docs.toArray(new String[docs.size()]);
   }
 
   public static void main(String[] args) throws Exception {
-    File wikiLinesFile = new File(args[0]);
-    testAnalyzer("Standard", wikiLinesFile, new StandardAnalyzer(CharArraySet.EMPTY_SET));
-    testAnalyzer("LowerCase", wikiLinesFile, new LowerCaseAnalyzer());
-    testAnalyzer("EdgeNGrams", wikiLinesFile, new EdgeNGramsAnalyzer());
-    testAnalyzer("Shingles", wikiLinesFile, new ShinglesAnalyzer());
-    testAnalyzer("WordDelimiterFilter", wikiLinesFile, new WDFAnalyzer());
+    if (args.length == 0) {
+      System.out.println("Usage: TestAnalyzerPerf /path/to/lines.txt [-threads 1] [-docs 100000] [-iters 3] [-chain \"whitespace,lowercase\"]");
+      System.exit(1);
+    }
+    String lineFile = args[0];
+    int threadCount = 1;
+    int docCount = 100000;
+    int iters = 3;
+    String chain = null;
+    for(int i=1;i<args.length;i+=2) {
+      if (i+1 == args.length) {
+        throw new IllegalArgumentException("missing value for command line option \"" + args[i] + "\"");
+      }
+      if (args[i].equals("-threads")) {
+        threadCount = Integer.parseInt(args[i+1]);
+      } else if (args[i].equals("-docs")) {
+        docCount = Integer.parseInt(args[i+1]);
+      } else if (args[i].equals("-iters")) {
+        iters = Integer.parseInt(args[i+1]);
+      } else if (args[i].equals("-chain")) {
+        chain = args[i+1];
+      } else {
+        throw new IllegalArgumentException("unknown command line option \"" + args[i] + "\"");
+      }
+    }
+
+    long t0 = System.nanoTime();
+    String[] docs = loadDocs(lineFile, docCount);
+    System.out.println(String.format(Locale.ROOT, "Loaded %d docs in %.1f sec", docs.length, (System.nanoTime()-t0)/1000000000.0));
+
+    if (chain != null) {
+      testAnalyzer("Custom", chain, docs, threadCount, iters);
+    } else {
+      // StandardAnalyzer with an empty stop set:
+      testAnalyzer("Standard", "standard,lowercase", docs, threadCount, iters);
+      testAnalyzer("LowerCase", "whitespace,lowercase", docs, threadCount, iters);
+      testAnalyzer("EdgeNGrams", "whitespace,edgeNGram(minGramSize=1,maxGramSize=3)", docs, threadCount, iters);
+      testAnalyzer("Shingles", "whitespace,shingle(minShingleSize=2,maxShingleSize=2)", docs, threadCount, iters);
+      testAnalyzer("WordDelimiterFilter",
+                   "whitespace,wordDelimiter(generateWordParts=1,generateNumberParts=1,splitOnCaseChange=1,splitOnNumerics=1,stemEnglishPossessive=1)",
+                   docs, threadCount, iters);
+    }
   }
 }
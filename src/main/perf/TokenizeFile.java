@@ -5,13 +5,27 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
 import org.apache.lucene.analysis.pattern.PatternTokenizer;
 import org.apache.lucene.analysis.pattern.SimplePatternTokenizer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 
 // javac -cp ../../build/analysis/common/lucene-analyzers-common-7.0.0-SNAPSHOT.jar:../../build/core/lucene-core-7.0.0-SNAPSHOT.jar TokenizeFile.java
@@ -20,12 +34,52 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 
 // pushd ../../core; ant jar; popd; ant jar; javac -cp ../../build/analysis/common/lucene-analyzers-common-7.0.0-SNAPSHOT.jar:../../build/core/lucene-core-7.0.0-SNAPSHOT.jar /l/util/src/main/perf/TokenizeFile.java; java -cp /l/util/src/main/perf:../../build/analysis/common/lucene-analyzers-common-7.0.0-SNAPSHOT.jar:../../build/core/lucene-core-7.0.0-SNAPSHOT.jar TokenizeFile /lucenedata/enwiki/enwiki-20130102-lines.txt
   
+// Add -mmap to map the file instead, split it across -threads threads, and time UTF-8 decoding and tokenizing separately:
+
+// java -cp ... TokenizeFile /lucenedata/enwiki/enwiki-20130102-lines.txt -mmap -threads 8 -tokenizer standard
+
 public class TokenizeFile {
 
-  public static void main(String[] args) throws IOException {
+  // Bytes decoded and tokenized at once in -mmap mode; each block ends at a newline, so a line longer than this gets a
+  // block to itself:
+  private static final int BLOCK_SIZE = 1024*1024;
+
+  // Bytes mapped at once in -mmap mode:
+  private static final long WINDOW_SIZE = 1L << 30;
+
+  public static void main(String[] args) throws Exception {
+    String fileName = args[0];
+    boolean mmap = false;
+    int threadCount = 1;
+    String tokenizer = "simplePattern";
+    int iters = 10;
+    for(int i=1;i<args.length;i++) {
+      if (args[i].equals("-mmap")) {
+        mmap = true;
+      } else if (args[i].equals("-threads")) {
+        threadCount = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-tokenizer")) {
+        tokenizer = args[++i];
+      } else if (args[i].equals("-iters")) {
+        iters = Integer.parseInt(args[++i]);
+      } else {
+        throw new IllegalArgumentException("unknown command line option \"" + args[i] + "\"");
+      }
+    }
+    if (mmap == false && threadCount != 1) {
+      throw new IllegalArgumentException("-threads requires -mmap");
+    }
+    // fail fast on a bad name:
+    newTokenizer(tokenizer);
+
     double minSec = Double.POSITIVE_INFINITY;
-    for(int iter=0;iter<10;iter++) {
-      double sec = run(iter, args[0]);
+    for(int iter=0;iter<iters;iter++) {
+      double sec;
+      if (mmap) {
+        sec = runMMap(iter, fileName, tokenizer, threadCount);
+      } else {
+        sec = run(iter, fileName, tokenizer);
+      }
       System.out.println(String.format(Locale.ROOT, "iter %d: %.3f sec", iter, sec));
       if (sec < minSec) {
         System.out.println("  **");
@@ -34,13 +88,220 @@ public class TokenizeFile {
     }
   }
 
-  private static double run(int iter, String fileName) throws IOException {
+  private static Tokenizer newTokenizer(String name) {
+    switch (name) {
+    case "simplePattern":
+      return new SimplePatternTokenizer("[^ \t\r\n]+");
+    case "pattern":
+      return new PatternTokenizer(Pattern.compile("[^ \t\r\n]+"), 0);
+    case "whitespace":
+      return new WhitespaceTokenizer();
+    case "standard":
+      return new StandardTokenizer();
+    default:
+      throw new IllegalArgumentException("unknown tokenizer \"" + name + "\"; expected simplePattern, pattern, whitespace or standard");
+    }
+  }
+
+  /** Reads a reused char[] without copying it, unlike CharArrayReader which must be re-created per block */
+  private static class CharsReader extends Reader {
+    private char[] chars;
+    private int upto;
+    private int limit;
+
+    void reset(char[] chars, int length) {
+      this.chars = chars;
+      this.upto = 0;
+      this.limit = length;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+      if (upto == limit) {
+        return -1;
+      }
+      int count = Math.min(length, limit - upto);
+      System.arraycopy(chars, upto, buffer, offset, count);
+      upto += count;
+      return count;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /** Returns the position just after the first newline at or after pos, or the file size */
+  private static long nextLineStart(FileChannel channel, long pos) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(64*1024);
+    long size = channel.size();
+    while (pos < size) {
+      buffer.clear();
+      int count = channel.read(buffer, pos);
+      for(int i=0;i<count;i++) {
+        if (buffer.get(i) == '\n') {
+          return pos + i + 1;
+        }
+      }
+      pos += count;
+    }
+    return size;
+  }
+
+  private static double runMMap(int iter, String fileName, final String tokenizerName, int threadCount) throws Exception {
+    try (final FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+      long size = channel.size();
+      // split at line starts, so no token straddles two threads:
+      final long[] starts = new long[threadCount+1];
+      for(int t=1;t<threadCount;t++) {
+        starts[t] = Math.max(starts[t-1], nextLineStart(channel, size*t/threadCount));
+      }
+      starts[threadCount] = size;
+
+      final AtomicLong decodeNS = new AtomicLong();
+      final AtomicLong tokenizeNS = new AtomicLong();
+      final AtomicLong totalChars = new AtomicLong();
+      final AtomicLong totalTokens = new AtomicLong();
+      final AtomicLong totalHash = new AtomicLong();
+      final AtomicBoolean failed = new AtomicBoolean();
+      Thread[] threads = new Thread[threadCount];
+      long t0 = System.nanoTime();
+      for(int t=0;t<threadCount;t++) {
+        final long start = starts[t];
+        final long end = starts[t+1];
+        threads[t] = new Thread() {
+            @Override
+            public void run() {
+              try {
+                _run();
+              } catch (Exception e) {
+                failed.set(true);
+                throw new RuntimeException(e);
+              }
+            }
+
+            private void _run() throws IOException {
+              Tokenizer ts = newTokenizer(tokenizerName);
+              CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+              CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+              // UTF-8 never decodes to more chars than bytes:
+              char[] chars = new char[BLOCK_SIZE];
+              CharBuffer charBuffer = CharBuffer.wrap(chars);
+              CharsReader reader = new CharsReader();
+              long myDecodeNS = 0;
+              long myTokenizeNS = 0;
+              long myChars = 0;
+              long myTokens = 0;
+              long hashSum = 0;
+
+              long pos = start;
+              while (pos < end) {
+                long windowLength = Math.min(WINDOW_SIZE, end - pos);
+                boolean lastWindow = pos + windowLength == end;
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, windowLength);
+                int blockStart = 0;
+                while (blockStart < windowLength) {
+                  int blockEnd = (int) Math.min(windowLength, blockStart + BLOCK_SIZE);
+                  if (blockEnd < windowLength || lastWindow == false) {
+                    // end the block after its last newline; the rest goes to the next block or window:
+                    int i = blockEnd - 1;
+                    while (i >= blockStart && window.get(i) != '\n') {
+                      i--;
+                    }
+                    if (i >= blockStart) {
+                      blockEnd = i + 1;
+                    } else {
+                      // a line longer than BLOCK_SIZE: grow the block to the line's end, so we never cut a token or
+                      // a UTF-8 sequence in two
+                      i = blockEnd;
+                      while (i < windowLength && window.get(i) != '\n') {
+                        i++;
+                      }
+                      if (i < windowLength) {
+                        blockEnd = i + 1;
+                      } else if (lastWindow) {
+                        blockEnd = (int) windowLength;
+                      } else {
+                        // the line runs past this window; remap from its start
+                        break;
+                      }
+                    }
+                  }
+                  if (blockEnd - blockStart > chars.length) {
+                    chars = new char[blockEnd - blockStart];
+                    charBuffer = CharBuffer.wrap(chars);
+                  }
+
+                  long tDecode = System.nanoTime();
+                  window.limit(blockEnd).position(blockStart);
+                  charBuffer.clear();
+                  decoder.reset();
+                  decoder.decode(window, charBuffer, true);
+                  decoder.flush(charBuffer);
+                  int charCount = charBuffer.position();
+                  long t1 = System.nanoTime();
+
+                  reader.reset(chars, charCount);
+                  ts.setReader(reader);
+                  ts.reset();
+                  while (ts.incrementToken()) {
+                    hashSum += termAtt.hashCode();
+                    myTokens++;
+                  }
+                  ts.end();
+                  ts.close();
+                  long t2 = System.nanoTime();
+
+                  myDecodeNS += t1 - tDecode;
+                  myTokenizeNS += t2 - t1;
+                  myChars += charCount;
+                  window.limit((int) windowLength);
+                  blockStart = blockEnd;
+                }
+                if (blockStart == 0) {
+                  throw new IllegalArgumentException("no newline within " + windowLength + " bytes at file offset " + pos);
+                }
+                pos += blockStart;
+              }
+              decodeNS.addAndGet(myDecodeNS);
+              tokenizeNS.addAndGet(myTokenizeNS);
+              totalChars.addAndGet(myChars);
+              totalTokens.addAndGet(myTokens);
+              totalHash.addAndGet(hashSum);
+            }
+          };
+        threads[t].start();
+      }
+      for(Thread thread : threads) {
+        thread.join();
+      }
+      if (failed.get()) {
+        throw new RuntimeException("tokenizer thread failed");
+      }
+      double sec = (System.nanoTime()-t0)/1000000000.0;
+
+      // decode and tokenize times are summed over threads, so these rates are per thread:
+      System.out.println(String.format(Locale.ROOT,
+                                       "  %s, %d threads: %.1f MB in %.3f sec = %.1f MB/sec; decode %.1f MB/sec/thread; tokenize %.2f M tokens/sec/thread (%.1f M chars/sec/thread)",
+                                       tokenizerName, threads.length, size/1024./1024., sec, size/1024./1024./sec,
+                                       size/1024./1024./(decodeNS.get()/1000000000.0),
+                                       totalTokens.get()/1000000.0/(tokenizeNS.get()/1000000000.0),
+                                       totalChars.get()/1000000.0/(tokenizeNS.get()/1000000000.0)));
+      if (iter == 0) {
+        System.out.println(String.format(Locale.ROOT, "%d tokens, hashSum=%d", totalTokens.get(), totalHash.get()));
+      }
+      return sec;
+    }
+  }
+
+  private static double run(int iter, String fileName, String tokenizerName) throws IOException {
     File wikiLinesFile = new File(fileName);
     // 64 KB buffer
     InputStream is = new FileInputStream(wikiLinesFile);
     BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"), 1 << 16);
-    Tokenizer ts = new SimplePatternTokenizer("[^ \t\r\n]+");
-    //Tokenizer ts = new PatternTokenizer(Pattern.compile("[^ \t\r\n]+"), 0);
+    Tokenizer ts = newTokenizer(tokenizerName);
     CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
     long hashSum = 0;
     int tokenCount = 0;